@@ -622,6 +622,12 @@ public class RocketmqAnalysis{
         // 根据存储在 commitLog 文件中的内容消息是否匹配
         // 主要用于表达式 SQL92 的过滤模式
         boolean isMatchedByCommitLog(final ByteBuffer msgBuffer, final Map<String, String> properties);
+
+        // 根据 ConsumeQueueExt 中投影的消息属性判断消息是否匹配，主要用于表达式 SQL92 的过滤模式
+        // 返回 null 表示无法判断，仍然需要读取 CommitLog 调用 isMatchedByCommitLog。默认实现总是返回 null，已有的 MessageFilter 实现不需要修改
+        default Boolean isMatchedByProjection(final String topic, final ConsumeQueueExt.CqExtUnit cqExtUnit) {
+            return null;
+        }
     }
 
 
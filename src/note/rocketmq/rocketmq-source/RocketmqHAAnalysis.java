@@ -51,6 +51,34 @@ public class RocketmqHAAnalysis{
 
     public class HAService {
 
+        /**
+         * 能力协商。Slave 开启了 haCompressEnable 等改变帧格式的功能时，连接之后发送的第一个包为握手包：HA_HANDSHAKE_MAGIC(8) | capabilities(8)，
+         * 上报的偏移量不可能是负数，Master 据此区分握手包和普通的上报。Master 将 Slave 提供的能力和自己开启的能力取交集，通过一个 12 字节的帧
+         * HA_HANDSHAKE_MAGIC(8) | capabilities(4) 回复 Slave，之后双方都按照协商的结果收发数据，两端配置不一致时退化为原来的格式，而不是解析出错。
+         *
+         * 没有开启这些功能的 Slave 不发送握手包，和旧版本的 Master 完全兼容；开启了这些功能的 Slave 要求 Master 已经升级
+         */
+        public static final long HA_HANDSHAKE_MAGIC = 0xCAFEBABE48414853L;
+        // Master 发送的数据帧是 LZ4 压缩的，帧头为 16 个字节
+        public static final int HA_CAPABILITY_COMPRESS = 1;
+        // Slave 的上报为 16 个字节，8 个字节的 offset 之后是 8 个字节的 credit
+        public static final int HA_CAPABILITY_FLOW_CONTROL = 2;
+        // Slave 端 HAClient 读缓冲区的大小，Master 发送的一帧（帧头加上数据）必须能完整地放进去，否则 Slave 永远解析不出这一帧，复制会一直停住
+        public static final int HA_MAX_FRAME_SIZE = 1024 * 1024 * 4;
+        // LZ4 最坏情况下 n 个字节压缩之后为 n + n/255 + 16 个字节，再加上 16 个字节的帧头也不能超过 HA_MAX_FRAME_SIZE
+        public static final int HA_MAX_COMPRESS_BLOCK_SIZE = (HA_MAX_FRAME_SIZE - 16 - 16) / 256 * 255;
+
+        // 所有 Slave 的连接，多数派复制模式下用来计算 quorumAckOffset，读写都不需要加锁
+        private final Set<HAConnection> ackConnections = ConcurrentHashMap.newKeySet();
+        // 至少 haQuorumSize 个 Slave 都已经确认的最大偏移量，只会增大。已经被多数派确认的数据不会因为某个 Slave 断开而变得不安全
+        private final AtomicLong quorumAckOffset = new AtomicLong(0);
+        // 开启 haCompressEnable 时使用，压缩之后的完整 Block 被所有 Slave 的 WriteSocketService 共享，同一段数据只压缩一次
+        private final BlockCodec haBlockCodec = new Lz4BlockCodec();
+
+        private final BlockCache compressedBlockCache;
+
+        private final HACompressedBlockSource compressedBlockSource = new HACompressedBlockSource();
+
         /**
          * Rocketmq 的 HA 实现原理如下：
          * 1.主服务器启动，并且在特定端口上监听从服务器的连接
@@ -63,9 +91,79 @@ public class RocketmqHAAnalysis{
             this.acceptSocketService = new AcceptSocketService(defaultMessageStore.getMessageStoreConfig().getHaListenPort());
             this.groupTransferService = new GroupTransferService();
             this.haClient = new HAClient();
+            this.compressedBlockCache = new BlockCache(defaultMessageStore.getMessageStoreConfig().getHaCompressedBlockCacheSize());
+        }
+
+        /**
+         * 把 CommitLog 按 haCompressBlockSize 划分为 Block，readBlock 读取一个完整的 Block 并压缩，结果缓存在 compressedBlockCache 中。
+         * 只有已经完整写入的 Block 才会被缓存，最后一个还在写入的 Block 由 WriteSocketService 直接压缩，不进入缓存
+         */
+        class HACompressedBlockSource implements BlockSource {
+
+            @Override
+            public long getFileFromOffset() {
+                return 0;
+            }
+
+            // HACompressedBlockSource#readBlock
+            @Override
+            public byte[] readBlock(final int blockIndex) throws IOException {
+                final int blockSize = HAService.this.compressBlockSize();
+                SelectMappedBufferResult result = HAService.this.defaultMessageStore.getCommitLogData((long) blockIndex * blockSize);
+                if (result == null || result.getSize() < blockSize) {
+                    if (result != null) {
+                        result.release();
+                    }
+                    throw new IOException("ha compress block " + blockIndex + " is not complete");
+                }
+                try {
+                    byte[] raw = new byte[blockSize];
+                    result.getByteBuffer().get(raw);
+                    return HAService.this.haBlockCodec.compress(raw, 0, blockSize);
+                } finally {
+                    result.release();
+                }
+            }
+        }
+
+        // 本节点开启的能力，Slave 在握手包中提供，Master 用来和 Slave 提供的能力取交集
+        // HAService#localCapabilities
+        public int localCapabilities() {
+            int capabilities = 0;
+            if (this.defaultMessageStore.getMessageStoreConfig().isHaCompressEnable()) {
+                capabilities |= HA_CAPABILITY_COMPRESS;
+            }
+            if (this.defaultMessageStore.getMessageStoreConfig().isHaFlowControlEnable()) {
+                capabilities |= HA_CAPABILITY_FLOW_CONTROL;
+            }
+            return capabilities;
+        }
+
+        // 实际使用的 Block 大小，haCompressBlockSize 配置得过大时截断为 HA_MAX_COMPRESS_BLOCK_SIZE，保证压缩之后的一帧不超过 Slave 的读缓冲区
+        // HAService#compressBlockSize
+        public int compressBlockSize() {
+            return Math.min(this.defaultMessageStore.getMessageStoreConfig().getHaCompressBlockSize(), HA_MAX_COMPRESS_BLOCK_SIZE);
+        }
+
+        public BlockCodec getHaBlockCodec() {
+            return haBlockCodec;
+        }
+
+        public BlockCache getCompressedBlockCache() {
+            return compressedBlockCache;
+        }
+
+        public HACompressedBlockSource getCompressedBlockSource() {
+            return compressedBlockSource;
         }
 
         public void start() throws Exception {
+            // haQuorumSize 小于 1 时 updateQuorumAckOffset 中的 ackOffsets[n - quorum] 会越界，在启动时直接拒绝这样的配置
+            MessageStoreConfig messageStoreConfig = this.defaultMessageStore.getMessageStoreConfig();
+            if (messageStoreConfig.isHaQuorumEnable() && messageStoreConfig.getHaQuorumSize() < 1) {
+                throw new IllegalArgumentException("haQuorumSize must be at least 1 when haQuorumEnable is true, but is "
+                    + messageStoreConfig.getHaQuorumSize());
+            }
             this.acceptSocketService.beginAccept();
             this.acceptSocketService.start();
             this.groupTransferService.start();
@@ -86,6 +184,77 @@ public class RocketmqHAAnalysis{
                     value = this.push2SlaveMaxOffset.get();
                 }
             }
+
+            if (this.defaultMessageStore.getMessageStoreConfig().isHaQuorumEnable()) {
+                this.updateQuorumAckOffset();
+            }
+        }
+
+        /**
+         * 原来只要有一个 Slave 的确认偏移量（push2SlaveMaxOffset 是所有 Slave 中最大的）超过 nextOffset，GroupCommitRequest 就算复制成功。
+         * 多数派复制模式下，取所有 Slave 确认偏移量中第 haQuorumSize 大的值作为 quorumAckOffset，也就是至少 haQuorumSize 个 Slave 都已经
+         * 收到的位置，然后直接在当前的 ReadSocketService 线程中完成所有 nextOffset 不超过它的请求。发送者的延迟取决于第 haQuorumSize 快的
+         * Slave，而不是最慢的那个
+         */
+        // HAService#updateQuorumAckOffset
+        private void updateQuorumAckOffset() {
+            final int quorum = this.defaultMessageStore.getMessageStoreConfig().getHaQuorumSize();
+            long[] ackOffsets = new long[this.ackConnections.size()];
+            int n = 0;
+            for (HAConnection connection : this.ackConnections) {
+                if (n < ackOffsets.length) {
+                    ackOffsets[n++] = connection.getSlaveAckOffset();
+                }
+            }
+            // 运行期间通过 updateBrokerConfig 改成非法值时不推进 quorumAckOffset，发送者最终会超时而不是让 ReadSocketService 抛出异常
+            if (quorum < 1 || n < quorum) {
+                return;
+            }
+
+            Arrays.sort(ackOffsets, 0, n);
+            long offset = ackOffsets[n - quorum];
+            for (long value = this.quorumAckOffset.get(); offset > value; value = this.quorumAckOffset.get()) {
+                if (this.quorumAckOffset.compareAndSet(value, offset)) {
+                    this.groupTransferService.completeQuorumRequests(offset);
+                    break;
+                }
+            }
+        }
+
+        // HAService#isSlaveOK
+        public boolean isSlaveOK(final long masterPutWhere) {
+            if (this.defaultMessageStore.getMessageStoreConfig().isHaQuorumEnable()) {
+                // 连接的 Slave 不足 haQuorumSize 个，或者多数派落后太多时，直接返回 SLAVE_NOT_AVAILABLE，不让发送者白白等到超时
+                return this.ackConnections.size() >= this.defaultMessageStore.getMessageStoreConfig().getHaQuorumSize()
+                    && masterPutWhere - this.quorumAckOffset.get() < this.defaultMessageStore.getMessageStoreConfig().getHaSlaveFallbehindMax();
+            }
+            // ignore code
+        }
+
+        // HAService#addConnection
+        public void addConnection(final HAConnection conn) {
+            // ignore code
+            this.ackConnections.add(conn);
+        }
+
+        // HAService#removeConnection
+        public void removeConnection(final HAConnection conn) {
+            // ignore code
+            this.ackConnections.remove(conn);
+        }
+
+        // 多数派复制模式下请求不经过 GroupTransferService 的 synchronized 和读写队列交换
+        // HAService#putRequest
+        public void putRequest(final CommitLog.GroupCommitRequest request) {
+            if (this.defaultMessageStore.getMessageStoreConfig().isHaQuorumEnable()) {
+                this.groupTransferService.putQuorumRequest(request);
+            } else {
+                this.groupTransferService.putRequest(request);
+            }
+        }
+
+        public long getQuorumAckOffset() {
+            return this.quorumAckOffset.get();
         }
 
     }
@@ -122,22 +291,54 @@ public class RocketmqHAAnalysis{
             }
         }
 
+        // handleHA 的异步版本，被 CommitLog#asyncPutMessage 调用。GroupCommitRequest 被提交到 GroupTransferService 之后，不再调用 waitForFlush
+        // 阻塞当前线程，而是直接返回 GroupCommitRequest 中的 future，GroupTransferService 在 doWaitTransfer 中调用 wakeupCustomer 时完成该 future
+        // CommitLog#submitReplicaRequest
+        public CompletableFuture<PutMessageStatus> submitReplicaRequest(AppendMessageResult result, MessageExt messageExt) {
+            if (BrokerRole.SYNC_MASTER == this.defaultMessageStore.getMessageStoreConfig().getBrokerRole()) {
+                HAService service = this.defaultMessageStore.getHaService();
+                if (messageExt.isWaitStoreMsgOK()) {
+                    if (service.isSlaveOK(result.getWroteOffset() + result.getWroteBytes())) {
+                        GroupCommitRequest request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
+                        service.putRequest(request);
+                        service.getWaitNotifyObject().wakeupAll();
+                        return request.future().thenApply(transferOK -> {
+                            if (!transferOK) {
+                                log.error("do sync transfer other node, wait return, but failed");
+                                return PutMessageStatus.FLUSH_SLAVE_TIMEOUT;
+                            }
+                            return PutMessageStatus.PUT_OK;
+                        });
+                    } else {
+                        return CompletableFuture.completedFuture(PutMessageStatus.SLAVE_NOT_AVAILABLE);
+                    }
+                }
+            }
+            return CompletableFuture.completedFuture(PutMessageStatus.PUT_OK);
+        }
+
     }
 
     // HAClient 是主从同步 Slave 端的核心实现类
     class HAClient extends ServiceThread{
 
-        private static final int READ_MAX_BUFFER_SIZE = 1024 * 1024 * 4;
+        private static final int READ_MAX_BUFFER_SIZE = HAService.HA_MAX_FRAME_SIZE;
 
         private SocketChannel socketChannel;
         // 读缓存区，大小为 4MB
         private ByteBuffer byteBufferRead = ByteBuffer.allocate(READ_MAX_BUFFER_SIZE);
 
         private long lastWriteTimestamp = System.currentTimeMillis();
-        // Slave 向 Master 发起主从同步的拉取偏移量
-        private final ByteBuffer reportOffset = ByteBuffer.allocate(8);
+        // Slave 向 Master 发起主从同步的拉取偏移量，开启 haFlowControlEnable 时后面再跟 8 个字节的 credit
+        private final ByteBuffer reportOffset = ByteBuffer.allocate(16);
         // 表示 byteBufferRead 中已经转发的指针
         private int dispatchPostion = 0;
+        // 和 Master 协商之后的能力，每次建立连接时重新协商
+        private int capabilities = 0;
+        // 已经发送握手包，还没有收到 Master 的回复，此时不上报偏移量，Master 也不会开始传输
+        private boolean negotiating = false;
+
+        private final ByteBuffer handshake = ByteBuffer.allocate(16);
 
         /**
          * Slave 端尝试连接 Master 服务器，在 Broker 启动的时候，如果 Broker 角色为 SLAVE 时将读取 Broker 配置文件中的
@@ -161,6 +362,12 @@ public class RocketmqHAAnalysis{
                         if (this.socketChannel != null) {
                             // 注册网络读事件 OP_READ
                             this.socketChannel.register(this.selector, SelectionKey.OP_READ);
+                            this.capabilities = 0;
+                            int offered = HAService.this.localCapabilities();
+                            this.negotiating = offered != 0;
+                            if (this.negotiating && !this.sendHandshake(offered)) {
+                                this.closeMaster();
+                            }
                         }
                     }
                 }
@@ -172,6 +379,24 @@ public class RocketmqHAAnalysis{
             return this.socketChannel != null;
         }
 
+        // HAClient#sendHandshake
+        private boolean sendHandshake(final int offered) {
+            this.handshake.clear();
+            this.handshake.putLong(HAService.HA_HANDSHAKE_MAGIC);
+            this.handshake.putLong(offered);
+            this.handshake.flip();
+            for (int i = 0; i < 3 && this.handshake.hasRemaining(); i++) {
+                try {
+                    this.socketChannel.write(this.handshake);
+                } catch (IOException e) {
+                    log.error("HAClient, send handshake exception", e);
+                    return false;
+                }
+            }
+            log.info("HAClient, offer capabilities {} to master {}", offered, this.masterAddress.get());
+            return !this.handshake.hasRemaining();
+        }
+
         // HAClient#isTimeToReportOffset
         // 判断是否需要向 Master 反馈当前待拉取的偏移量，Master 与 Slave 的 HA 心跳发送间隔默认为 5s，
         // 可以通过配置 haSendHeartbeatInterval 来改变心跳间隔
@@ -189,12 +414,16 @@ public class RocketmqHAAnalysis{
          */
         // HAClient#reportSlaveMaxOffset
         private boolean reportSlaveMaxOffset(final long maxOffset) {
+            final int reportSize = (this.capabilities & HAService.HA_CAPABILITY_FLOW_CONTROL) != 0 ? 16 : 8;
             this.reportOffset.position(0);
-            this.reportOffset.limit(8);
+            this.reportOffset.limit(reportSize);
             // 只保存一个 8 字节的 Long 型数据
             this.reportOffset.putLong(maxOffset);
+            if (reportSize == 16) {
+                this.reportOffset.putLong(this.credit());
+            }
             this.reportOffset.position(0);
-            this.reportOffset.limit(8);
+            this.reportOffset.limit(reportSize);
 
             // 特别需要留意的是，调用网络通道的 write 方法是在一个 while 循环中反复判断 byteBuffer 是否全部写入到通道中，
             // 这是由于 NIO 是一个非阻塞 IO，调用一次 write 方法不一定会将 ByteBuffer 可读字节全部写入
@@ -210,6 +439,16 @@ public class RocketmqHAAnalysis{
             return !this.reportOffset.hasRemaining();
         }
 
+        /**
+         * credit 为 Master 在 maxOffset 之后还可以继续发送的字节数，也就是 haFlowControlWindow。Master 不需要等待每一批数据的确认，只要未确认的数据
+         * 不超过 credit 就可以连续发送。已经收到但是还没有追加到 CommitLog 中的字节也在 maxOffset 之后，Master 计算窗口时减去的 nextTransferFromWhere - ack
+         * 已经包含了它们，这里不能再减一次，否则窗口在积压时会被算小一半。Slave 处理不过来时 maxOffset 不再前进，Master 同样会停止发送
+         */
+        // HAClient#credit
+        private long credit() {
+            return HAService.this.defaultMessageStore.getMessageStoreConfig().getHaFlowControlWindow();
+        }
+
         /**
          * 处理网络读请求，即处理从 Master 服务器传回的消息数据。同样 RocketMQ 给出了一个处理网络读的 NIO 示例，循环判断 readByteBuffer 是否还有剩余空间，
          * 如果存在剩余空间，则调用 SocketChannel#read(ByteBuffer eadByteBuffer)，将通道中的数据读入到读缓存区中
@@ -261,7 +500,28 @@ public class RocketmqHAAnalysis{
         private boolean dispatchReadRequest() {
             // msgHeaderSize 头部长度，大小为12个字节，8 个字节的物理偏移量，4 个字节的消息长度，包括消息的物理偏移量与消息的长度，
             // 长度字节必须首先探测，否则无法判断byteBufferRead缓存区中是否包含一条完整的消息
-            final int msgHeaderSize = 8 + 4; // phyoffset + size
+            // Master 对握手包的回复，只会是连接上的第一个帧
+            if (this.negotiating) {
+                if (this.byteBufferRead.position() - this.dispatchPostion < 8 + 4) {
+                    return true;
+                }
+                if (this.byteBufferRead.getLong(this.dispatchPostion) != HAService.HA_HANDSHAKE_MAGIC) {
+                    log.error("HAClient, master did not answer the handshake, it may not support capability negotiation");
+                    return false;
+                }
+                this.capabilities = this.byteBufferRead.getInt(this.dispatchPostion + 8);
+                this.dispatchPostion += 8 + 4;
+                this.negotiating = false;
+                log.info("HAClient, negotiated capabilities {} with master", this.capabilities);
+                // 协商完成之后立即上报偏移量，Master 收到之后才开始传输
+                if (!this.reportSlaveMaxOffset(this.currentReportedOffset)) {
+                    return false;
+                }
+            }
+
+            // 协商了压缩时消息头为 16 个字节，size 为压缩之后的长度，后面再跟 4 个字节的压缩之前的长度
+            final boolean compressed = (this.capabilities & HAService.HA_CAPABILITY_COMPRESS) != 0;
+            final int msgHeaderSize = compressed ? 8 + 4 + 4 : 8 + 4; // phyoffset + size (+ rawSize)
             // readSocketPos 记录当前 byteBufferRead 的当前指针，后面可能会使用其恢复 byteBufferRead 的位置
             int readSocketPos = this.byteBufferRead.position();
 
@@ -292,6 +552,16 @@ public class RocketmqHAAnalysis{
                         this.byteBufferRead.position(this.dispatchPostion + msgHeaderSize);
                         // 读取 bodySize 个字节内容到 byte[] 字节数组中
                         this.byteBufferRead.get(bodyData);
+                        if (compressed && bodySize > 0) {
+                            int rawSize = this.byteBufferRead.getInt(this.dispatchPostion + 12);
+                            try {
+                                bodyData = HAService.this.haBlockCodec.decompress(bodyData, 0, bodySize, rawSize);
+                            } catch (Exception e) {
+                                // 数据已经无法信任，断开连接，重新连接之后从 Slave 的最大偏移量重新同步
+                                log.error("HAClient, decompress frame at offset {} failed, size {}, rawSize {}", masterPhyOffset, bodySize, rawSize, e);
+                                return false;
+                            }
+                        }
                         // 将消息内容追加到消息内存映射文件中
                         HAService.this.defaultMessageStore.appendToCommitLog(masterPhyOffset, bodyData);
 
@@ -331,8 +601,8 @@ public class RocketmqHAAnalysis{
                 try {
                     // 当存在 masterAddress != null && 连接 Master 成功
                     if (this.connectMaster()) {
-                        // 若距离上次上报时间超过5S，上报到 Master 进度
-                        if (this.isTimeToReportOffset()) {
+                        // 若距离上次上报时间超过5S，上报到 Master 进度。协商完成之前不上报，否则 Master 会把握手之后的偏移量当作错误的格式解析
+                        if (!this.negotiating && this.isTimeToReportOffset()) {
                             boolean result = this.reportSlaveMaxOffset(this.currentReportedOffset);
                             if (!result) {
                                 this.closeMaster();
@@ -456,6 +726,22 @@ public class RocketmqHAAnalysis{
         private final WaitNotifyObject notifyTransferObject = new WaitNotifyObject();
         private volatile List<CommitLog.GroupCommitRequest> requestsWrite = new ArrayList<>();
         private volatile List<CommitLog.GroupCommitRequest> requestsRead = new ArrayList<>();
+        // 多数派复制模式下等待确认的请求，nextOffset -> GroupCommitRequest，每条消息的 nextOffset 都不相同。不再交换 requestsWrite 和 requestsRead，
+        // 请求由收到确认的 ReadSocketService 线程直接完成，GroupTransferService 线程只负责让超时的请求失败
+        private final ConcurrentSkipListMap<Long, CommitLog.GroupCommitRequest> quorumRequests = new ConcurrentSkipListMap<>();
+        // 完成请求时会在当前线程上执行 CompletableFuture 的回调，也就是 SendMessageProcessor 写响应的逻辑，放到单独的线程中执行，
+        // 不占用 ReadSocketService 读取 Slave 上报的时间。单个线程保证请求按照 nextOffset 的顺序完成
+        private final ExecutorService quorumCompleteExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryImpl("HAQuorumCompleteThread_"));
+
+        // GroupTransferService#putQuorumRequest
+        public void putQuorumRequest(final CommitLog.GroupCommitRequest request) {
+            this.quorumRequests.put(request.getNextOffset(), request);
+            // 放入之前 quorumAckOffset 可能已经超过了 nextOffset，这里补一次检查，completeQuorumRequests 保证每个请求只完成一次
+            long ackOffset = HAService.this.getQuorumAckOffset();
+            if (ackOffset >= request.getNextOffset()) {
+                this.completeQuorumRequests(ackOffset);
+            }
+        }
 
         public synchronized void putRequest(final CommitLog.GroupCommitRequest request) {
             synchronized (this.requestsWrite) {
@@ -470,6 +756,47 @@ public class RocketmqHAAnalysis{
             this.notifyTransferObject.wakeup();
         }
 
+        // 完成所有 nextOffset 不超过 ackOffset 的请求，可能被多个 ReadSocketService 线程同时调用，只有 remove 成功的线程才会完成请求
+        // GroupTransferService#completeQuorumRequests
+        public void completeQuorumRequests(final long ackOffset) {
+            final List<CommitLog.GroupCommitRequest> completed = new ArrayList<>();
+            for (Map.Entry<Long, CommitLog.GroupCommitRequest> entry : this.quorumRequests.headMap(ackOffset, true).entrySet()) {
+                if (this.quorumRequests.remove(entry.getKey(), entry.getValue())) {
+                    completed.add(entry.getValue());
+                }
+            }
+            if (completed.isEmpty()) {
+                return;
+            }
+
+            Runnable wakeup = () -> {
+                for (CommitLog.GroupCommitRequest request : completed) {
+                    request.wakeupCustomer(true);
+                }
+            };
+            try {
+                this.quorumCompleteExecutor.execute(wakeup);
+            } catch (RejectedExecutionException e) {
+                // 已经关闭，在当前线程中完成，不能让发送者一直等到超时
+                wakeup.run();
+            }
+        }
+
+        // 从最小的 nextOffset 开始让超时的请求失败。nextOffset 越小的请求越早提交，遇到第一个没有超时的请求就可以停止
+        // GroupTransferService#expireQuorumRequests
+        private void expireQuorumRequests() {
+            long deadline = System.currentTimeMillis() - HAService.this.defaultMessageStore.getMessageStoreConfig().getSyncFlushTimeout();
+            for (Map.Entry<Long, CommitLog.GroupCommitRequest> entry : this.quorumRequests.entrySet()) {
+                if (entry.getValue().getCreateTimestamp() > deadline) {
+                    break;
+                }
+                if (this.quorumRequests.remove(entry.getKey(), entry.getValue())) {
+                    log.warn("transfer messsage to quorum timeout, " + entry.getKey());
+                    entry.getValue().wakeupCustomer(false);
+                }
+            }
+        }
+
         private void swapRequests() {
             List<CommitLog.GroupCommitRequest> tmp = this.requestsWrite;
             this.requestsWrite = this.requestsRead;
@@ -509,7 +836,11 @@ private void doWaitTransfer() {
             while (!this.isStopped()) {
                 try {
                     this.waitForRunning(10);
-                    this.doWaitTransfer();
+                    if (HAService.this.defaultMessageStore.getMessageStoreConfig().isHaQuorumEnable()) {
+                        this.expireQuorumRequests();
+                    } else {
+                        this.doWaitTransfer();
+                    }
                 } catch (Exception e) {
                     log.warn(this.getServiceName() + " service has exception. ", e);
                 }
@@ -522,6 +853,12 @@ private void doWaitTransfer() {
             this.swapRequests();
         }
 
+        @Override
+        public void shutdown() {
+            super.shutdown();
+            this.quorumCompleteExecutor.shutdown();
+        }
+
         @Override
         public String getServiceName() {
             return GroupTransferService.class.getSimpleName();
@@ -533,6 +870,16 @@ private void doWaitTransfer() {
         private volatile long slaveRequestOffset = -1;
         
         private volatile long slaveAckOffset = -1;
+        // Slave 在 slaveAckOffset 之后还能接收的字节数，Slave 没有开启 haFlowControlEnable 时为 -1，不做流量控制
+        private volatile long slaveCredit = -1;
+        // 和 Slave 协商之后的能力，Slave 没有发送握手包时为 0
+        private volatile int capabilities = 0;
+        // 等待 WriteSocketService 发送的握手回复，也就是协商之后的能力，没有需要发送的回复时为 -1
+        private volatile int handshakeReply = -1;
+
+        public long getSlaveAckOffset() {
+            return slaveAckOffset;
+        }
 
         public HAConnection(final HAService haService, final SocketChannel socketChannel) throws IOException {
             this.haService = haService;
@@ -651,16 +998,34 @@ private void doWaitTransfer() {
                         readSizeZeroTimes = 0;
                         this.lastReadTimestamp = HAConnection.this.haService.getDefaultMessageStore().getSystemClock().now();
 
+                        // 握手包只会是连接上的第一个包，参考 HAService#HA_HANDSHAKE_MAGIC
+                        if (HAConnection.this.slaveRequestOffset < 0 && this.processPostion == 0
+                            && this.byteBufferRead.position() >= 8 && this.byteBufferRead.getLong(0) == HAService.HA_HANDSHAKE_MAGIC) {
+                            if (this.byteBufferRead.position() < 16) {
+                                continue;
+                            }
+                            int offered = (int) this.byteBufferRead.getLong(8);
+                            HAConnection.this.capabilities = offered & HAConnection.this.haService.localCapabilities();
+                            HAConnection.this.handshakeReply = HAConnection.this.capabilities;
+                            this.processPostion = 16;
+                            log.info("slave[{}] offer capabilities {}, accept {}", HAConnection.this.clientAddr, offered, HAConnection.this.capabilities);
+                        }
+
                         // 超过 8 个字节处理，因为 slave 的 broker 发送的就是 8 个字节的 slave 的 offset 的心跳
                         // 如果读取的字节大于 0 并且本次读取到的内容大于等于 8，表明收到了从服务器一条拉取消息的请求。
                         // 由于有新的从服务器反馈拉取偏移量，服务端会通知由于同步等待 HA 复制结果而阻塞的消息发送者线程
-                        if ((this.byteBufferRead.position() - this.processPostion) >= 8) {
+                        // 协商了流量控制时每个包为 16 个字节，8 个字节的 offset 之后是 8 个字节的 credit，参考 HAService#HA_HANDSHAKE_MAGIC
+                        final int reportSize = (HAConnection.this.capabilities & HAService.HA_CAPABILITY_FLOW_CONTROL) != 0 ? 16 : 8;
+                        if ((this.byteBufferRead.position() - this.processPostion) >= reportSize) {
                             // 获取离 byteBufferRead.position() 最近的 8 的整除数（获取最后一个完整的包）
-                            int pos = this.byteBufferRead.position() - (this.byteBufferRead.position() % 8);
+                            int pos = this.byteBufferRead.position() - (this.byteBufferRead.position() % reportSize);
                             // 读取能读取到的最后一个有效的 8 个字节的心跳包，比如 position = 571, 则 571 - (571%8) = 571-3 = 568
                             // 也就是读取 560-568 位置的字节, 因为Slave可能发送了多个进度过来, Master只读最末尾也就是最大的那个
-                            long readOffset = this.byteBufferRead.getLong(pos - 8);
+                            long readOffset = this.byteBufferRead.getLong(pos - reportSize);
                             this.processPostion = pos;
+                            if (reportSize == 16) {
+                                HAConnection.this.slaveCredit = this.byteBufferRead.getLong(pos - 8);
+                            }
 
                             // 更新 slave broker 反馈的已经拉取完的 offset 偏移量，也就是下一次希望获取到的消息起始偏移量
                             HAConnection.this.slaveAckOffset = readOffset;
@@ -673,6 +1038,8 @@ private void doWaitTransfer() {
                             // 读取从服务器已拉取偏移量，因为有新的从服务器反馈拉取进度，需要通知某些生产者以便返回，因为如果消息发送使用同步方式，
                             // 需要等待将消息复制到从服务器，然后才返回，故这里需要唤醒相关线程去判断自己关注的消息是否已经传输完成
                             HAConnection.this.haService.notifyTransferSome(HAConnection.this.slaveAckOffset);
+                            // 确认之后窗口向前移动，唤醒因为窗口已满而等待的 WriteSocketService
+                            writeSocketService.wakeup();
                         }
                     } else if (readSize == 0) {
                         if (++readSizeZeroTimes >= 3) {
@@ -697,14 +1064,23 @@ private void doWaitTransfer() {
         private final Selector selector;
         private final SocketChannel socketChannel;
 
-        private final int headerSize = 8 + 4;
-        private final ByteBuffer byteBufferHeader = ByteBuffer.allocate(headerSize);
+        // 协商了压缩时为 8 + 4 + 4，最后 4 个字节为压缩之前的长度，在发送握手回复时确定
+        private int headerSize = 8 + 4;
+        private final ByteBuffer byteBufferHeader = ByteBuffer.allocate(8 + 4 + 4);
         private long nextTransferFromWhere = -1;
         private SelectMappedBufferResult selectMappedBufferResult;
+        // 消息头和消息体通过一次 gathering write 写入，避免每一批数据都要两次系统调用
+        private final ByteBuffer[] frame = new ByteBuffer[] {this.byteBufferHeader, null};
+        // 开启 haTransferZeroCopyEnable 并且数据位于 MappedFile 中时，通过 FileChannel#transferTo（也就是 sendfile）从文件直接发送消息体，
+        // 数据不再经过用户态。transferChannel 为 null 时仍然写 selectMappedBufferResult 中的 ByteBuffer
+        private FileChannel transferChannel;
+        private long transferPosition;
+        private long transferRemaining;
         private boolean lastWriteOver = true;
         private long lastWriteTimestamp = System.currentTimeMillis();
 
         public WriteSocketService(final SocketChannel socketChannel) throws IOException {
+            this.byteBufferHeader.limit(this.headerSize);
             this.selector = RemotingUtil.openSelector();
             this.socketChannel = socketChannel;
             this.socketChannel.register(this.selector, SelectionKey.OP_WRITE);
@@ -720,6 +1096,20 @@ private void doWaitTransfer() {
                 try {
                     this.selector.select(1000);
 
+                    // 回复 Slave 的握手包，之后的帧按照协商的格式发送。Slave 收到回复之后才会上报偏移量，所以此时还没有开始传输数据
+                    int reply = HAConnection.this.handshakeReply;
+                    if (reply >= 0 && this.lastWriteOver) {
+                        HAConnection.this.handshakeReply = -1;
+                        this.headerSize = (reply & HAService.HA_CAPABILITY_COMPRESS) != 0 ? 8 + 4 + 4 : 8 + 4;
+                        this.byteBufferHeader.position(0);
+                        this.byteBufferHeader.limit(8 + 4);
+                        this.byteBufferHeader.putLong(HAService.HA_HANDSHAKE_MAGIC);
+                        this.byteBufferHeader.putInt(reply);
+                        this.byteBufferHeader.flip();
+                        this.lastWriteOver = this.transferData();
+                        continue;
+                    }
+
                     // 如果 slaveRequestOffset 等于 -1，说明 Master 还未收到 SLAVE 服务器的拉取请求，因为不知道 Slave 需要同步的开始位置，
                     // 会休眠，然后继续，只有 Slave 把 maxPhyOffset 传给 Master 后才能往下
                     // slaveRequestOffset 在收到从服务器拉取请求时更新（HAConnection$ReadSocketService#processReadEvent）
@@ -759,6 +1149,9 @@ private void doWaitTransfer() {
                             this.byteBufferHeader.putLong(this.nextTransferFromWhere);
                             // size = 0
                             this.byteBufferHeader.putInt(0);
+                            if (headerSize > 12) {
+                                this.byteBufferHeader.putInt(0);
+                            }
                             this.byteBufferHeader.flip();
                             this.lastWriteOver = this.transferData();
 
@@ -773,23 +1166,40 @@ private void doWaitTransfer() {
                             continue;
                     }
 
+                    // 未确认的数据已经达到 Slave 给出的 credit，等待 ReadSocketService 收到新的确认之后唤醒
+                    long window = this.window();
+                    if (window <= 0) {
+                        this.waitForRunning(100);
+                        continue;
+                    }
+
                     // 根据 SLAVE 服务器请求的待拉取偏移量，RocketMQ 首先获取该偏移量之后所有的可读消息，如果未查到匹配的消息，通知所有等待线程继续等待100ms
                     SelectMappedBufferResult selectResult = HAConnection.this.haService.getDefaultMessageStore().getCommitLogData(this.nextTransferFromWhere);
                     
                     // 如果匹配到消息，判断返回消息总长度是否大于配置的 HA 传输一次同步任务最大传输的字节数，则通过设置 ByteBuffer 的 limit 来设置只传输
                     // 指定长度的字节，这就意味着 HA 客户端收到的信息会包含不完整的消息。HA 一批次传输消息最大字节通过 haTransferBatchSize 来设置，默认值为 32K。
                     // HA 服务端消息的传输一直以上述步骤在循环运行，每次事件处理完成后等待 1s
-                    if (selectResult != null) {
-                        int size = selectResult.getSize();
-                        if (size > HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().getHaTransferBatchSize()) {
-                            size = HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().getHaTransferBatchSize();
-                        }
+                    if (selectResult != null && headerSize > 12) {
+                        this.lastWriteOver = this.transferCompressed(selectResult, window);
+                    } else if (selectResult != null) {
+                        int size = (int) Math.min(selectResult.getSize(), Math.min(this.batchSize(selectResult.getSize()), window));
 
                         long thisOffset = this.nextTransferFromWhere;
                         this.nextTransferFromWhere += size;
                         selectResult.getByteBuffer().limit(size);
                         this.selectMappedBufferResult = selectResult;
 
+                        // selectResult 持有 MappedFile 的引用，传输完成之前文件不会被删除。压缩段以及 DirectIORingCache 中的数据没有对应的
+                        // MappedFile，只能写 ByteBuffer
+                        MappedFile mappedFile = selectResult.getMappedFile();
+                        if (HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().isHaTransferZeroCopyEnable() && mappedFile != null) {
+                            this.transferChannel = mappedFile.getFileChannel();
+                            this.transferPosition = thisOffset - mappedFile.getFileFromOffset();
+                            this.transferRemaining = size;
+                        } else {
+                            this.transferChannel = null;
+                        }
+
                         // Build Header
                         this.byteBufferHeader.position(0);
                         // headerSize 为 8 + 4 = 12
@@ -833,37 +1243,59 @@ private void doWaitTransfer() {
             HAConnection.log.info(this.getServiceName() + " service end");
         }
 
+        /**
+         * 原来先写 12 字节的消息头，再写消息体，每一批数据至少两次系统调用，并且消息体要从 mappedByteBuffer 经过用户态拷贝到 socket 中。现在：
+         *
+         * 1.transferChannel 不为 null 时，先写消息头，再通过 FileChannel#transferTo 从 CommitLog 文件直接发送消息体
+         * 2.否则消息头和消息体通过一次 gathering write 写入
+         *
+         * 非阻塞的 SocketChannel 发送缓冲区满时 write 和 transferTo 都返回 0，连续 3 次返回 0 就结束这一次传输，等待下一次写事件继续
+         */
         // WriteSocketService#transferData
         private boolean transferData() throws Exception {
             int writeSizeZeroTimes = 0;
 
-            // Write Header(8 + 4)，8 个字节为消息在 CommitLog 文件的偏移量，4 个字节为消息的大小
-            // 如果请求头有数据，先传输请求头，同时更新最后写入时间
-            while (this.byteBufferHeader.hasRemaining()) {
-                int writeSize = this.socketChannel.write(this.byteBufferHeader);
-                if (writeSize > 0) {
-                    writeSizeZeroTimes = 0;
-                    this.lastWriteTimestamp = HAConnection.this.haService.getDefaultMessageStore().getSystemClock().now();
-                } else if (writeSize == 0) {
-                    if (++writeSizeZeroTimes >= 3) {
-                        break;
+            if (null == this.selectMappedBufferResult || this.transferChannel != null) {
+                // Write Header(8 + 4)，8 个字节为消息在 CommitLog 文件的偏移量，4 个字节为消息的大小
+                while (this.byteBufferHeader.hasRemaining()) {
+                    int writeSize = this.socketChannel.write(this.byteBufferHeader);
+                    if (writeSize > 0) {
+                        writeSizeZeroTimes = 0;
+                        this.lastWriteTimestamp = HAConnection.this.haService.getDefaultMessageStore().getSystemClock().now();
+                    } else if (writeSize == 0) {
+                        if (++writeSizeZeroTimes >= 3) {
+                            break;
+                        }
+                    } else {
+                        throw new Exception("ha master write header error < 0");
                     }
-                } else {
-                    throw new Exception("ha master write header error < 0");
                 }
-            }
-
-            if (null == this.selectMappedBufferResult) {
-                return !this.byteBufferHeader.hasRemaining();
-            }
 
-            writeSizeZeroTimes = 0;
+                if (null == this.selectMappedBufferResult) {
+                    return !this.byteBufferHeader.hasRemaining();
+                }
 
-            // Write Body
-            // 请求头没有数据，就发送消息体，也就是消息本身
-            if (!this.byteBufferHeader.hasRemaining()) {
-                while (this.selectMappedBufferResult.getByteBuffer().hasRemaining()) {
-                    int writeSize = this.socketChannel.write(this.selectMappedBufferResult.getByteBuffer());
+                writeSizeZeroTimes = 0;
+
+                // Write Body
+                if (!this.byteBufferHeader.hasRemaining()) {
+                    while (this.transferRemaining > 0) {
+                        long writeSize = this.transferChannel.transferTo(this.transferPosition, this.transferRemaining, this.socketChannel);
+                        if (writeSize > 0) {
+                            writeSizeZeroTimes = 0;
+                            this.transferPosition += writeSize;
+                            this.transferRemaining -= writeSize;
+                            this.lastWriteTimestamp = HAConnection.this.haService.getDefaultMessageStore().getSystemClock().now();
+                        } else if (++writeSizeZeroTimes >= 3) {
+                            break;
+                        }
+                    }
+                }
+            } else {
+                // Write Header + Body
+                this.frame[1] = this.selectMappedBufferResult.getByteBuffer();
+                while (this.frame[1].hasRemaining()) {
+                    long writeSize = this.socketChannel.write(this.frame);
                     if (writeSize > 0) {
                         writeSizeZeroTimes = 0;
                         this.lastWriteTimestamp = HAConnection.this.haService.getDefaultMessageStore().getSystemClock().now();
@@ -872,21 +1304,95 @@ private void doWaitTransfer() {
                             break;
                         }
                     } else {
-                        throw new Exception("ha master write body error < 0");
+                        throw new Exception("ha master write error < 0");
                     }
                 }
+                this.frame[1] = null;
             }
 
-            boolean result = !this.byteBufferHeader.hasRemaining() && !this.selectMappedBufferResult.getByteBuffer().hasRemaining();
+            boolean result = !this.byteBufferHeader.hasRemaining() && this.isBodyTransferred();
 
-            if (!this.selectMappedBufferResult.getByteBuffer().hasRemaining()) {
+            if (this.isBodyTransferred()) {
                 this.selectMappedBufferResult.release();
                 this.selectMappedBufferResult = null;
+                this.transferChannel = null;
             }
 
             return result;
         }
 
+        /**
+         * 压缩传输：每一帧最多到当前 haCompressBlockSize 对齐的 Block 的末尾，帧头中带有偏移量、压缩之后的长度以及压缩之前的长度。
+         * 从 Block 起始位置开始的完整 Block 从 compressedBlockCache 中获取，多个 Slave 追赶同一段数据时只压缩一次；Slave 的起始偏移量没有对齐，
+         * 或者 Block 还没有写满时直接压缩这一段数据，不进入缓存。压缩之后的数据不在文件中，所以不使用 transferTo
+         */
+        // WriteSocketService#transferCompressed
+        private boolean transferCompressed(final SelectMappedBufferResult selectResult, final long window) throws Exception {
+            final int blockSize = HAConnection.this.haService.compressBlockSize();
+            final long thisOffset = this.nextTransferFromWhere;
+            final long blockEnd = (thisOffset / blockSize + 1) * blockSize;
+            final int rawSize = (int) Math.min(Math.min(selectResult.getSize(), blockEnd - thisOffset), window);
+
+            byte[] compressed;
+            try {
+                if (thisOffset % blockSize == 0 && rawSize == blockSize) {
+                    compressed = HAConnection.this.haService.getCompressedBlockCache().get(HAConnection.this.haService.getCompressedBlockSource(),
+                        (int) (thisOffset / blockSize));
+                } else {
+                    byte[] raw = new byte[rawSize];
+                    selectResult.getByteBuffer().get(raw);
+                    compressed = HAConnection.this.haService.getHaBlockCodec().compress(raw, 0, rawSize);
+                }
+            } finally {
+                selectResult.release();
+            }
+
+            this.nextTransferFromWhere += rawSize;
+            this.selectMappedBufferResult = new SelectMappedBufferResult(thisOffset, ByteBuffer.wrap(compressed), compressed.length, null);
+            this.transferChannel = null;
+
+            // Build Header
+            this.byteBufferHeader.position(0);
+            this.byteBufferHeader.limit(headerSize);
+            this.byteBufferHeader.putLong(thisOffset);
+            this.byteBufferHeader.putInt(compressed.length);
+            this.byteBufferHeader.putInt(rawSize);
+            this.byteBufferHeader.flip();
+
+            return this.transferData();
+        }
+
+        /**
+         * 在 Slave 给出的 credit 之内还可以发送的字节数。Slave 没有开启流量控制时不限制，和原来一样只受 TCP 发送缓冲区的限制。
+         * Master 不等待每一批数据的确认，窗口内可以同时有多批数据在传输中，确认到达之后窗口向前移动
+         */
+        // WriteSocketService#window
+        private long window() {
+            long credit = HAConnection.this.slaveCredit;
+            if (credit < 0) {
+                return Long.MAX_VALUE;
+            }
+            long inflight = this.nextTransferFromWhere - Math.max(HAConnection.this.slaveAckOffset, 0);
+            return credit - inflight;
+        }
+
+        /**
+         * 可读数据超过 haTransferBatchSize 说明 Slave 落后较多，此时使用更大的 haTransferCatchUpBatchSize，减少追赶时的系统调用和唤醒次数，
+         * 跟上之后恢复为 haTransferBatchSize。加上帧头之后不能超过 Slave 端 4MB 的读缓冲区，配置得更大时截断
+         */
+        // WriteSocketService#batchSize
+        private int batchSize(final int readable) {
+            int batchSize = HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().getHaTransferBatchSize();
+            if (readable > batchSize) {
+                batchSize = Math.max(batchSize, HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().getHaTransferCatchUpBatchSize());
+            }
+            return Math.min(batchSize, HAService.HA_MAX_FRAME_SIZE - this.headerSize);
+        }
+
+        private boolean isBodyTransferred() {
+            return this.transferChannel != null ? this.transferRemaining == 0 : !this.selectMappedBufferResult.getByteBuffer().hasRemaining();
+        }
+
         @Override
         public String getServiceName() {
             return WriteSocketService.class.getSimpleName();
@@ -900,6 +1406,9 @@ private void doWaitTransfer() {
 
     public class PullAPIWrapper{
 
+        // MessageQueue -> 上一次拉取之后离队列末尾还有多少条消息
+        private final ConcurrentMap<MessageQueue, AtomicLong> pullLagTable = new ConcurrentHashMap<MessageQueue, AtomicLong>(32);
+
         // RocketMQ 根据 MessageQueue 查找 Broker 地址的唯一依据便是 brokerName，从 RocketMQ 的 Broker 组织实现来看，同一组 Broker(M-S) 服务器，
         // 其 brokerName 相同，主服务器的 brokerId 为 0，从服务器的 brokerId 大于 0，RocketMQ 提供了 MQClientFactory.findBrokerAddressInSubscribe 
         // 来实现根据 brokerName、brokerId 查找 Broker 地址
@@ -932,6 +1441,20 @@ private void doWaitTransfer() {
                 return this.defaultBrokerId;
             }
 
+            // 原来只有 Master 因为内存压力建议时才会切换到 Slave。开启 slaveReadOffloadEnable 之后，消费者离队列末尾超过 slaveReadMinLagMessages 条消息时
+            // 主动从复制延迟足够小的 Slave 拉取，这些旧消息通常已经不在 Master 的 page cache 中，从 Slave 读取可以把 Master 的磁盘带宽留给生产者。
+            // 追上之后 pullLagTable 中的值变小，重新回到 Master 或者按照 Broker 的建议拉取
+            ClientConfig clientConfig = this.mQClientFactory.getClientConfig();
+            if (clientConfig.isSlaveReadOffloadEnable()) {
+                AtomicLong pullLag = this.pullLagTable.get(mq);
+                if (pullLag != null && pullLag.get() >= clientConfig.getSlaveReadMinLagMessages()) {
+                    long brokerId = this.mQClientFactory.selectLagSafeSlave(mq.getBrokerName(), clientConfig.getSlaveReadMaxReplicaLagBytes(), mq.hashCode());
+                    if (brokerId != MixAll.MASTER_ID) {
+                        return brokerId;
+                    }
+                }
+            }
+
             AtomicLong suggest = this.pullFromWhichNodeTable.get(mq);
             if (suggest != null) {
                 return suggest.get();
@@ -944,10 +1467,28 @@ private void doWaitTransfer() {
         public PullResult processPullResult(final MessageQueue mq, final PullResult pullResult, final SubscriptionData subscriptionData) {
             PullResultExt pullResultExt = (PullResultExt) pullResult;
             this.updatePullFromWhichNode(mq, pullResultExt.getSuggestWhichBrokerId());
+            // 记录这个队列还有多少条消息没有拉取，maxOffset 来自响应的 Broker，从 Slave 拉取时就是 Slave 上的队列末尾
+            this.updatePullLag(mq, pullResult.getMaxOffset() - pullResult.getNextBeginOffset());
 
             // ignore code
         }
 
+        // PullAPIWrapper#updatePullLag
+        private void updatePullLag(final MessageQueue mq, final long lag) {
+            AtomicLong pullLag = this.pullLagTable.get(mq);
+            if (null == pullLag) {
+                this.pullLagTable.put(mq, new AtomicLong(lag));
+            } else {
+                pullLag.set(lag);
+            }
+        }
+
+        // 消息队列在负载均衡之后被分配给了其它消费者时调用，否则 pullLagTable 中会一直保留这个队列的值
+        // PullAPIWrapper#removePullLag
+        public void removePullLag(final MessageQueue mq) {
+            this.pullLagTable.remove(mq);
+        }
+
         // PullAPIWrapper#updatePullFromWhichNode
         public void updatePullFromWhichNode(final MessageQueue mq, final long brokerId) {
             AtomicLong suggest = this.pullFromWhichNodeTable.get(mq);
@@ -960,6 +1501,51 @@ private void doWaitTransfer() {
 
     }
 
+    public class MQClientAPIImpl {
+
+        // 心跳响应中 Broker 的 CommitLog 最大物理偏移量，和 ClientManageProcessor#heartBeat 中使用的名称相同
+        public static final String HEARTBEAT_MAX_PHY_OFFSET = "maxPhyOffset";
+
+        // MQClientAPIImpl#sendHearbeat
+        public int sendHearbeat(final String addr, final HeartbeatData heartbeatData, final long timeoutMillis,
+                    final LongConsumer maxPhyOffsetListener) throws RemotingException, MQBrokerException, InterruptedException {
+            RemotingCommand request = RemotingCommand.createRequestCommand(RequestCode.HEART_BEAT, null);
+            request.setLanguage(clientConfig.getLanguage());
+            request.setBody(heartbeatData.encode());
+            RemotingCommand response = this.remotingClient.invokeSync(addr, request, timeoutMillis);
+            assert response != null;
+            switch (response.getCode()) {
+                case ResponseCode.SUCCESS: {
+                    // 旧版本的 Broker 不会返回这个字段
+                    String maxPhyOffset = response.getExtFields() == null ? null : response.getExtFields().get(HEARTBEAT_MAX_PHY_OFFSET);
+                    if (maxPhyOffset != null) {
+                        maxPhyOffsetListener.accept(Long.parseLong(maxPhyOffset));
+                    }
+                    return response.getVersion();
+                }
+                default:
+                    break;
+            }
+
+            throw new MQBrokerException(response.getCode(), response.getRemark());
+        }
+    }
+
+    public class ClientManageProcessor {
+
+        // ClientManageProcessor#heartBeat
+        public RemotingCommand heartBeat(ChannelHandlerContext ctx, RemotingCommand request) {
+            RemotingCommand response = RemotingCommand.createResponseCommand(null);
+            // ignore code
+
+            // 返回当前 Broker 的 CommitLog 最大物理偏移量，消费者据此计算同一组中各个 Slave 的复制延迟
+            response.addExtField(MQClientAPIImpl.HEARTBEAT_MAX_PHY_OFFSET, String.valueOf(this.brokerController.getMessageStore().getMaxPhyOffset()));
+            response.setCode(ResponseCode.SUCCESS);
+            response.setRemark(null);
+            return response;
+        }
+    }
+
     public class MQClientInstance{
 
         // MQClientInstance#findBrokerAddressInSubscribe
@@ -64,6 +64,16 @@ public class RocketmqMessageStoreAnalysis{
         private final ReputMessageService reputMessageService;
 
         private final MessageArrivingListener messageArrivingListener;
+        // 冷读线程池，用于将不在 page cache 中的消息异步地加载到内存中，避免冷读在 Netty 线程或者拉取线程中触发缺页中断
+        private final ExecutorService coldReadExecutor;
+        // 每个 topic 需要投影到 ConsumeQueueExt 中的消息属性及其字典
+        private final PropertyProjection propertyProjection;
+        // 热路径上各个环节的延迟分布
+        private final StoreMetrics storeMetrics;
+        // 开启 commitLogDirectIOEnable 之后缓存最近写入的 CommitLog 数据，否则为 null
+        private final DirectIORingCache directIORingCache;
+        // 有数据还没有刷盘的 ConsumeQueue，每个 ConsumeQueue 最多出现一次，见 ConsumeQueue#markDirty
+        private final ConcurrentLinkedQueue<ConsumeQueue> dirtyConsumeQueues = new ConcurrentLinkedQueue<>();
 
         public DefaultMessageStore(final MessageStoreConfig messageStoreConfig,
                 final BrokerStatsManager brokerStatsManager, final MessageArrivingListener messageArrivingListener,
@@ -81,6 +91,7 @@ public class RocketmqMessageStoreAnalysis{
             this.cleanCommitLogService = new CleanCommitLogService();
             this.cleanConsumeQueueService = new CleanConsumeQueueService();
             this.storeStatsService = new StoreStatsService();
+            this.storeMetrics = new StoreMetrics();
             this.indexService = new IndexService(this);
             this.haService = new HAService(this);
 
@@ -88,17 +99,35 @@ public class RocketmqMessageStoreAnalysis{
 
             this.scheduleMessageService = new ScheduleMessageService(this);
 
+            // 队列满或者已经关闭时抛出 RejectedExecutionException，由 scheduleColdRead 在调用线程中执行，也就是退化为原来的同步读取。
+            // 不能使用 CallerRunsPolicy，关闭之后它会直接丢弃任务，GetMessageResult 永远不会被释放，消费者也收不到响应
+            this.coldReadExecutor = new ThreadPoolExecutor(messageStoreConfig.getColdReadThreadPoolNums(), messageStoreConfig.getColdReadThreadPoolNums(),
+                1000 * 60, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(messageStoreConfig.getColdReadThreadPoolQueueCapacity()),
+                new ThreadFactoryImpl("ColdReadThread_"), new ThreadPoolExecutor.AbortPolicy());
+
+            // 开启 transientStorePoolEnable 时，池子由 CommitRealTimeService 线程在启动时初始化，参考 TransientStorePool 的注释
             this.transientStorePool = new TransientStorePool(messageStoreConfig);
 
-            if (messageStoreConfig.isTransientStorePoolEnable()) {
-                this.transientStorePool.init();
+            // O_DIRECT 写入的是 TransientStorePool 中的 writeBuffer，所以必须同时开启 transientStorePoolEnable
+            if (messageStoreConfig.isCommitLogDirectIOEnable() && messageStoreConfig.isTransientStorePoolEnable()) {
+                this.directIORingCache = new DirectIORingCache(messageStoreConfig.getDirectIORingCacheSize());
+            } else {
+                this.directIORingCache = null;
+                if (messageStoreConfig.isCommitLogDirectIOEnable()) {
+                    log.warn("commitLogDirectIOEnable requires transientStorePoolEnable, direct io is disabled");
+                }
             }
 
             this.allocateMappedFileService.start();
 
             this.indexService.start();
 
+            this.propertyProjection = new PropertyProjection(StorePathConfigHelper.getStorePathPropertyDictionary(messageStoreConfig.getStorePathRootDir()),
+                messageStoreConfig.getPropertyProjection(), messageStoreConfig.getPropertyDictionaryMaxSize());
+
             this.dispatcherList = new LinkedList<>();
+            // 属性投影需要在构建 ConsumeQueue 之前计算出来，和 CommitLogDispatcherCalcBitMap 一样放在 CommitLogDispatcherBuildConsumeQueue 前面
+            this.dispatcherList.addLast(new CommitLogDispatcherProjectProperties());
             this.dispatcherList.addLast(new CommitLogDispatcherBuildConsumeQueue());
             this.dispatcherList.addLast(new CommitLogDispatcherBuildIndex());
 
@@ -120,6 +149,7 @@ public class RocketmqMessageStoreAnalysis{
             }
 
             long beginTime = this.getSystemClock().now();
+            long beginNanos = System.nanoTime();
 
             GetMessageStatus status = GetMessageStatus.NO_MESSAGE_IN_QUEUE;
             // 待查找的消息的偏移量
@@ -172,6 +202,11 @@ public class RocketmqMessageStoreAnalysis{
                             final int maxFilterMessageCount = Math.max(16000, maxMsgNums * ConsumeQueue.CQ_STORE_UNIT_SIZE);
                             final boolean diskFallRecorded = this.messageStoreConfig.isDiskFallRecorded();
                             ConsumeQueueExt.CqExtUnit cqExtUnit = new ConsumeQueueExt.CqExtUnit();
+                            // 开启 residencyAwareReadEnable 之后，不再根据 maxOffsetPy - offsetPy 是否超过物理内存的 40% 来猜测消息是否在磁盘上，
+                            // 而是在拉取第一条消息时通过 mincore 探测从该消息开始的 maxTransferBytesOnMessageInDisk 字节是否都在 page cache 中。
+                            // 一次拉取只探测一次，避免每条消息都进行一次系统调用
+                            final boolean residencyAware = this.messageStoreConfig.isResidencyAwareReadEnable();
+                            Boolean coldRead = null;
 
                             for (; i < bufferConsumeQueue.getSize() && i < maxFilterMessageCount; i += ConsumeQueue.CQ_STORE_UNIT_SIZE) {
 
@@ -186,7 +221,15 @@ public class RocketmqMessageStoreAnalysis{
                                         continue;
                                 }
 
-                                boolean isInDisk = checkInDiskByCommitOffset(offsetPy, maxOffsetPy);
+                                boolean isInDisk;
+                                if (residencyAware) {
+                                    if (coldRead == null) {
+                                        coldRead = !this.commitLog.isResident(offsetPy, this.messageStoreConfig.getMaxTransferBytesOnMessageInDisk());
+                                    }
+                                    isInDisk = coldRead;
+                                } else {
+                                    isInDisk = checkInDiskByCommitOffset(offsetPy, maxOffsetPy);
+                                }
 
                                 if (this.isTheBatchFull(sizePy, maxMsgNums, getResult.getBufferTotalSize(),
                                         getResult.getMessageCount(), isInDisk)) {
@@ -213,6 +256,17 @@ public class RocketmqMessageStoreAnalysis{
                                     continue;
                                 }
 
+                                // filterBitMap 只能排除一定不匹配的消息，如果扩展单元中有属性投影，直接用投影的属性执行 SQL92 表达式，
+                                // 能够确定结果时就不需要读取 CommitLog 解码消息属性了
+                                Boolean matchedByProjection = messageFilter != null && extRet ? messageFilter.isMatchedByProjection(topic, cqExtUnit) : null;
+                                if (matchedByProjection != null && !matchedByProjection) {
+                                    if (getResult.getBufferTotalSize() == 0) {
+                                        status = GetMessageStatus.NO_MATCHED_MESSAGE;
+                                    }
+
+                                    continue;
+                                }
+
                                 SelectMappedBufferResult selectResult = this.commitLog.getMessage(offsetPy, sizePy);
 
                                 if (null == selectResult) {
@@ -223,7 +277,7 @@ public class RocketmqMessageStoreAnalysis{
                                     continue;
                                 }
 
-                                if (messageFilter != null && !messageFilter.isMatchedByCommitLog(selectResult.getByteBuffer().slice(), null)) {
+                                if (messageFilter != null && matchedByProjection == null && !messageFilter.isMatchedByCommitLog(selectResult.getByteBuffer().slice(), null)) {
                                     if (getResult.getBufferTotalSize() == 0) {
                                         status = GetMessageStatus.NO_MATCHED_MESSAGE;
                                     }
@@ -244,6 +298,8 @@ public class RocketmqMessageStoreAnalysis{
                             }
 
                             nextBeginOffset = offset + (i / ConsumeQueue.CQ_STORE_UNIT_SIZE);
+                            // 标记本次拉取是否是冷读，PullMessageProcessor 会将冷读的结果交给 coldReadExecutor 预读之后再写出
+                            getResult.setColdRead(coldRead != null && coldRead);
 
                             long diff = maxOffsetPy - maxPhyOffsetPulling;
                             long memory = (long) (StoreUtil.TOTAL_PHYSICAL_MEMORY_SIZE * (this.messageStoreConfig.getAccessMessageInMemoryMaxRatio() / 100.0));
@@ -272,6 +328,8 @@ public class RocketmqMessageStoreAnalysis{
 
             long eclipseTime = this.getSystemClock().now() - beginTime;
             this.storeStatsService.setGetMessageEntireTimeMax(eclipseTime);
+            (getResult.isColdRead() ? this.storeMetrics.getGetMessageCold() : this.storeMetrics.getGetMessageHot())
+                .recordNanos(System.nanoTime() - beginNanos);
 
             getResult.setStatus(status);
             getResult.setNextBeginOffset(nextBeginOffset);
@@ -322,8 +380,17 @@ public class RocketmqMessageStoreAnalysis{
                 return new PutMessageResult(PutMessageStatus.OS_PAGECACHE_BUSY, null);
             }
 
+            // 6.如果 TransientStorePool 已经耗尽，新的 MappedFile 将拿不到 writeBuffer，此时返回 OS_PAGECACHE_BUSY 让生产者重试，
+            // 等待 CommitRealTimeService 将数据 commit 之后归还 ByteBuffer
+            if (this.isTransientStorePoolDeficient()) {
+                return new PutMessageResult(PutMessageStatus.OS_PAGECACHE_BUSY, null);
+            }
+
             long beginTime = this.getSystemClock().now();
-            PutMessageResult result = this.commitLog.putMessage(msg);
+            // 如果开启了 enableLockFreeAppend，那么多个生产者线程不再竞争 putMessageLock，而是通过 CAS 在 MappedFile 中预留各自的空间，
+            // 然后并行地将消息写入到各自的区域中，具体实现在 CommitLog#putMessageLockFree 中
+            PutMessageResult result = this.messageStoreConfig.isEnableLockFreeAppend() ?
+                    this.commitLog.putMessageLockFree(msg) : this.commitLog.putMessage(msg);
 
             long eclipseTime = this.getSystemClock().now() - beginTime;
             if (eclipseTime > 500) {
@@ -338,6 +405,173 @@ public class RocketmqMessageStoreAnalysis{
             return result;
         }
 
+        /**
+         * putMessage 的异步版本，返回的 future 在消息刷盘以及主从同步都完成之后才会完成。
+         * 写入之前的各项检查与 putMessage 相同，检查不通过时直接返回一个已经完成的 future
+         */
+        // DefaultMessageStore#asyncPutMessage
+        public CompletableFuture<PutMessageResult> asyncPutMessage(MessageExtBrokerInner msg) {
+            // Broker 状态以及消息合法性的检查与 putMessage 中的 1~6 步以及 isOSPageCacheBusy 完全相同，
+            // 只是返回值由 PutMessageResult 变为 CompletableFuture.completedFuture(PutMessageResult)
+            // ignore code
+
+            long beginTime = this.getSystemClock().now();
+            CompletableFuture<PutMessageResult> resultFuture = this.commitLog.asyncPutMessage(msg);
+
+            resultFuture.thenAccept(result -> {
+                // 这里统计的是从开始写入到刷盘、主从同步全部完成的耗时
+                long eclipseTime = this.getSystemClock().now() - beginTime;
+                if (eclipseTime > 500) {
+                    log.warn("asyncPutMessage not in lock eclipse time(ms)={}, bodyLength={}", eclipseTime, msg.getBody().length);
+                }
+                this.storeStatsService.setPutMessageEntireTimeMax(eclipseTime);
+
+                if (null == result || !result.isOk()) {
+                    this.storeStatsService.getPutMessageFailedTimes().incrementAndGet();
+                }
+            });
+
+            return resultFuture;
+        }
+
+        /**
+         * 将一次冷读的结果交给 coldReadExecutor，先通过 MappedFile#readAhead 把 GetMessageResult 中所有消息所在的页加载到 page cache 中，
+         * 然后再执行 onLoaded（通常是将消息写出到 socket）。这样缺页中断只会阻塞冷读线程，追赶历史消息的消费者不会占用 Netty 线程和拉取线程，
+         * 也就不会拖慢实时消费的消费者。热读不需要经过这里，直接在原来的线程中返回
+         */
+        // DefaultMessageStore#scheduleColdRead
+        public void scheduleColdRead(final GetMessageResult getResult, final Runnable onLoaded) {
+            Runnable task = () -> {
+                long beginTime = this.getSystemClock().now();
+                long beginNanos = System.nanoTime();
+                try {
+                    for (SelectMappedBufferResult selectResult : getResult.getMessageMapedList()) {
+                        // 压缩段以及 DirectIORingCache 中的数据没有对应的 MappedFile，已经在堆内存中，不需要预读
+                        MappedFile mappedFile = selectResult.getMappedFile();
+                        if (mappedFile == null) {
+                            continue;
+                        }
+                        mappedFile.readAhead((int) (selectResult.getStartOffset() - mappedFile.getFileFromOffset()), selectResult.getSize());
+                    }
+                } catch (Throwable e) {
+                    log.warn("cold read ahead exception", e);
+                }
+                this.storeMetrics.getColdReadAhead().recordNanos(System.nanoTime() - beginNanos);
+                long eclipseTime = this.getSystemClock().now() - beginTime;
+                if (eclipseTime > 500) {
+                    log.info("cold read ahead {} bytes cost {} ms", getResult.getBufferTotalSize(), eclipseTime);
+                }
+                onLoaded.run();
+            };
+            try {
+                this.coldReadExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // 队列已满或者已经关闭，在当前线程中执行。onLoaded 负责写出响应并释放 GetMessageResult，不能丢弃
+                task.run();
+            }
+        }
+
+        // DefaultMessageStore#getDispatchedOffset
+        public long getDispatchedOffset() {
+            return this.reputMessageService.getDispatchedOffset();
+        }
+
+        // 根据时间戳查找消息队列中的逻辑偏移量，比如把消费组的消费进度重置到某个时间点，具体实现在 ConsumeQueue#getOffsetInQueueByTime 中
+        // DefaultMessageStore#getOffsetInQueueByTime
+        public long getOffsetInQueueByTime(String topic, int queueId, long timestamp) {
+            ConsumeQueue logic = this.findConsumeQueue(topic, queueId);
+            if (logic != null) {
+                return logic.getOffsetInQueueByTime(timestamp);
+            }
+            return 0;
+        }
+
+        public PropertyProjection getPropertyProjection() {
+            return propertyProjection;
+        }
+
+        public DirectIORingCache getDirectIORingCache() {
+            return directIORingCache;
+        }
+
+        // 并行转发时 ConsumeQueue 由多个 DispatchLane 构建，暂存区只在单线程的 doReput 中使用
+        // DefaultMessageStore#isConsumeQueueStageEnable
+        public boolean isConsumeQueueStageEnable() {
+            return this.messageStoreConfig.isConsumeQueueStageEnable() && !this.messageStoreConfig.isParallelReputEnable();
+        }
+
+        /**
+         * ConsumeQueue 是否应该把条目写入暂存区。只有 ReputMessageService 在暂存分支中转发消息时为 true，暂存区中的条目由它在每一批消息之后发布。
+         * recoverAbnormally、dispatchToConsumeQueue 等恢复时的转发直接写入文件，否则不满一页的尾部会留在暂存区中，recoverTopicQueueTable 看不到这些条目
+         */
+        // DefaultMessageStore#isConsumeQueueStaging
+        public boolean isConsumeQueueStaging() {
+            return this.reputMessageService.staging;
+        }
+
+        // DefaultMessageStore#onConsumeQueueStaged
+        public void onConsumeQueueStaged(final ConsumeQueue consumeQueue) {
+            this.reputMessageService.stagedConsumeQueues.add(consumeQueue);
+        }
+
+        // DefaultMessageStore#markConsumeQueueDirty
+        public void markConsumeQueueDirty(final ConsumeQueue consumeQueue) {
+            this.dirtyConsumeQueues.offer(consumeQueue);
+        }
+
+        // 拉取上一个统计周期的延迟分布：getStoreMetrics().getLatencies()
+        public StoreMetrics getStoreMetrics() {
+            return storeMetrics;
+        }
+
+        // DefaultMessageStore#isTransientStorePoolDeficient
+        public boolean isTransientStorePoolDeficient() {
+            if (!this.messageStoreConfig.isTransientStorePoolEnable()) {
+                return false;
+            }
+            // 当前的 MappedFile 还有 writeBuffer 并且没有写满时，消息不需要新的 ByteBuffer，即使池子已经耗尽也不需要反压
+            if (this.commitLog.isLastMappedFileBuffered()) {
+                return false;
+            }
+            return this.transientStorePool.isExhausted();
+        }
+
+        /**
+         * 批量写入消息，对应生产者的 send(Collection<Message>)。一批消息只会获取一次写锁、编码成一段连续的数据写入 CommitLog，
+         * 具体实现在 CommitLog#putMessages 中
+         */
+        // DefaultMessageStore#putMessages
+        public PutMessageResult putMessages(MessageExtBatch messageExtBatch) {
+            // Broker 状态的检查与 putMessage 中的 1~3 步、isOSPageCacheBusy 以及 isTransientStorePoolDeficient 完全相同
+            // ignore code
+
+            if (messageExtBatch.getTopic().length() > Byte.MAX_VALUE) {
+                log.warn("PutMessages topic length too long " + messageExtBatch.getTopic().length());
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+            }
+
+            // 整批消息的 body 大小不能超过 maxMessageSize，编码器的缓冲区也是按照这个大小分配的
+            if (messageExtBatch.getBody().length > messageStoreConfig.getMaxMessageSize()) {
+                log.warn("PutMessages body length too long " + messageExtBatch.getBody().length);
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+            }
+
+            long beginTime = this.getSystemClock().now();
+            PutMessageResult result = this.commitLog.putMessages(messageExtBatch);
+
+            long eclipseTime = this.getSystemClock().now() - beginTime;
+            if (eclipseTime > 500) {
+                log.warn("not in lock eclipse time(ms)={}, bodyLength={}", eclipseTime, messageExtBatch.getBody().length);
+            }
+            this.storeStatsService.setPutMessageEntireTimeMax(eclipseTime);
+
+            if (null == result || !result.isOk()) {
+                this.storeStatsService.getPutMessageFailedTimes().incrementAndGet();
+            }
+
+            return result;
+        }
+
         public void start() throws Exception {
 
             lock = lockFile.getChannel().tryLock(0, 1, false);
@@ -361,18 +595,63 @@ public class RocketmqMessageStoreAnalysis{
             // reputFromOffset 设置为 CommitLog 的提交指针。如果不允许重复转发，reputFromOffset 设置为 CommitLog 的内存中的最大偏移量
             if (this.getMessageStoreConfig().isDuplicationEnable()) {
                 this.reputMessageService.setReputFromOffset(this.commitLog.getConfirmOffset());
+            } else if (this.recoveredReputFromOffset >= 0) {
+                // 增量恢复时没有转发消息，从 consumeQueueSafeOffset 开始重新转发，具体见 DefaultMessageStore#recover
+                this.reputMessageService.setReputFromOffset(this.recoveredReputFromOffset);
             } else {
                 this.reputMessageService.setReputFromOffset(this.commitLog.getMaxOffset());
             }
             this.reputMessageService.start();
+
+            if (this.indexRebuildService != null) {
+                this.indexRebuildService.start();
+            }
     
             this.haService.start();
     
             this.createTempFile();
             this.addScheduleTask();
+            this.registerStoreMetrics();
             this.shutdown = false;
         }
 
+        // 注册到 JMX 失败不影响 Broker 启动，延迟分布仍然可以通过 getStoreMetrics 拉取
+        // DefaultMessageStore#registerStoreMetrics
+        private void registerStoreMetrics() {
+            try {
+                ObjectName objectName = new ObjectName(StoreMetrics.OBJECT_NAME_PREFIX + this.brokerConfig.getBrokerName());
+                MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+                if (!mBeanServer.isRegistered(objectName)) {
+                    mBeanServer.registerMBean(this.storeMetrics, objectName);
+                }
+            } catch (Exception e) {
+                log.warn("register store metrics mbean failed", e);
+            }
+        }
+
+        // DefaultMessageStore#shutdown
+        public void shutdown() {
+            // ignore code
+
+            // 先停止 IndexRebuildService，它和 IndexMergeService 一样会写 IndexFile
+            if (this.indexRebuildService != null) {
+                this.indexRebuildService.shutdown();
+            }
+            // 停止 IndexMergeService，正在进行的合并先写 .tmp 再重命名，中途停止不会留下不完整的 SortedIndexTable
+            this.indexService.shutdown();
+            // 在 ReputMessageService 停止之后关闭字典，不会再有新的编码
+            this.propertyProjection.shutdown();
+            // 已经提交的冷读任务仍然会执行完，它们持有的 SelectMappedBufferResult 在写出之后释放
+            this.coldReadExecutor.shutdown();
+
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    new ObjectName(StoreMetrics.OBJECT_NAME_PREFIX + this.brokerConfig.getBrokerName()));
+            } catch (Exception e) {
+                log.warn("unregister store metrics mbean failed", e);
+            }
+        }
+
         public void doDispatch(DispatchRequest req) {
             // CommitLogDispatcherBuildIndex 和 CommitLogDispatcherBuildConsumeQueue 这两个类对象在 DefaultMessageStore 的构造方法中被添加到
             // dispatcherList 中去，在这里会被依次调用，将从 CommitLog 中读取到的消息添加到 ConsumeQueue 和 IndexFile 中去。
@@ -397,6 +676,24 @@ public class RocketmqMessageStoreAnalysis{
                 }
             }, 1000 * 60, this.messageStoreConfig.getCleanResourceInterval(), TimeUnit.MILLISECONDS);
 
+            // 定期持久化增量恢复使用的水位
+            if (this.messageStoreConfig.isIncrementalRecoverEnable()) {
+                this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        DefaultMessageStore.this.persistRecoveryCheckpoint();
+                    }
+                }, 1000, this.messageStoreConfig.getRecoveryCheckpointInterval(), TimeUnit.MILLISECONDS);
+            }
+
+            // 每个统计周期结束时生成一次延迟分布
+            this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    DefaultMessageStore.this.storeMetrics.roll();
+                }
+            }, this.messageStoreConfig.getStoreMetricsInterval(), this.messageStoreConfig.getStoreMetricsInterval(), TimeUnit.MILLISECONDS);
+
             // ignore code
         }
 
@@ -451,7 +748,9 @@ public class RocketmqMessageStoreAnalysis{
 
                 fileReservedTime *= 60 * 60 * 1000;
 
-                deleteCount = DefaultMessageStore.this.commitLog.deleteExpiredFile(fileReservedTime, deletePhysicFilesInterval,
+                // 压缩段中的数据总是比 mappedFileQueue 中的更旧，先删除过期的压缩段
+                deleteCount = DefaultMessageStore.this.commitLog.deleteExpiredCompressedSegments(fileReservedTime, cleanAtOnce);
+                deleteCount += DefaultMessageStore.this.commitLog.deleteExpiredFile(fileReservedTime, deletePhysicFilesInterval,
                     destroyMapedFileIntervalForcibly, cleanAtOnce);
                 if (deleteCount > 0) {
                 } else if (spacefull) {
@@ -474,6 +773,8 @@ public class RocketmqMessageStoreAnalysis{
         @Override
         public void run() {
             CommitLog.log.info(this.getServiceName() + " service started");
+            // 启动时预分配的 ByteBuffer 也在 commit 线程中分配，和 adjust 中扩容的 ByteBuffer 一样位于 commit 线程所在的 NUMA 节点上
+            CommitLog.this.defaultMessageStore.getTransientStorePool().init();
             while (!this.isStopped()) {
                 // CommitRealTimeService 线程间隔时间，默认 200ms
                 int interval = CommitLog.this.defaultMessageStore.getMessageStoreConfig().getCommitIntervalCommitLog();
@@ -491,9 +792,12 @@ public class RocketmqMessageStoreAnalysis{
                 }
 
                 try {
+                    long beginNanos = System.nanoTime();
                     boolean result = CommitLog.this.mappedFileQueue.commit(commitDataLeastPages);
                     long end = System.currentTimeMillis();
                     if (!result) {
+                        // 只统计确实提交了数据的轮次，待提交数据不足 commitDataLeastPages 的空转会把分布拉低到几乎为 0
+                        CommitLog.this.defaultMessageStore.getStoreMetrics().getCommit().recordNanos(System.nanoTime() - beginNanos);
                         this.lastCommitTimestamp = end; // result = false means some data committed.
                         // commit 操作执行完成后，CommitRealTimeService 唤醒 flushCommitLogService 线程执行 flush 操作
                         flushCommitLogService.wakeup();
@@ -502,6 +806,9 @@ public class RocketmqMessageStoreAnalysis{
                     if (end - begin > 500) {
                         log.info("Commit data to file costs {} ms", end - begin);
                     }
+
+                    // 根据 commit 之后仍然积压的数据量调整 TransientStorePool 的大小，新分配的 ByteBuffer 会位于当前 commit 线程所在的 NUMA 节点上
+                    CommitLog.this.defaultMessageStore.getTransientStorePool().adjust(CommitLog.this.mappedFileQueue.remainHowManyDataToCommit());
                     this.waitForRunning(interval);
                 } catch (Throwable e) {
                     CommitLog.log.error(this.getServiceName() + " service has exception. ", e);
@@ -559,7 +866,11 @@ public class RocketmqMessageStoreAnalysis{
                     }
 
                     long begin = System.currentTimeMillis();
-                    CommitLog.this.mappedFileQueue.flush(flushPhysicQueueLeastPages);
+                    long beginNanos = System.nanoTime();
+                    // 和 commit 一样，flush 返回 false 说明确实刷盘了数据，只统计这样的轮次
+                    if (!CommitLog.this.mappedFileQueue.flush(flushPhysicQueueLeastPages)) {
+                        CommitLog.this.defaultMessageStore.getStoreMetrics().getFlush().recordNanos(System.nanoTime() - beginNanos);
+                    }
                     long storeTimestamp = CommitLog.this.mappedFileQueue.getStoreTimestamp();
                     if (storeTimestamp > 0) {
                         CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(storeTimestamp);
@@ -592,6 +903,15 @@ public class RocketmqMessageStoreAnalysis{
 
         private volatile long reputFromOffset = 0;
 
+        // 开启 ConsumeQueue 暂存时，这一批消息中有条目在暂存区的 ConsumeQueue，以及还没有发出的消息到达通知，只被 ReputMessageService 线程访问
+        private final List<ConsumeQueue> stagedConsumeQueues = new ArrayList<>();
+
+        private final List<DispatchRequest> pendingArrivings = new ArrayList<>();
+        // 第一条条目还在暂存区中的消息的物理偏移量，没有时为 Long.MAX_VALUE
+        private volatile long stagedFromOffset = Long.MAX_VALUE;
+        // 正在暂存分支中转发消息，只在 ReputMessageService 线程中为 true，见 DefaultMessageStore#isConsumeQueueStaging
+        private volatile boolean staging = false;
+
         public long getReputFromOffset() {
             return reputFromOffset;
         }
@@ -601,7 +921,7 @@ public class RocketmqMessageStoreAnalysis{
         }
 
         // ReputMessageService#doReput
-        private void doReput() {
+        private void doReput() throws InterruptedException {
             for (boolean doNext = true; this.isCommitLogAvailable() && doNext; ) {
 
                 if (DefaultMessageStore.this.getMessageStoreConfig().isDuplicationEnable()
@@ -624,18 +944,41 @@ public class RocketmqMessageStoreAnalysis{
                                 // 如果消息的长度大于 0，则调用 doDisptach 方法，最终会分别调用 CommitLogDispatcherBuildConsumeQueue（构建消息消费队列文件）
                                 // 和 CommitLogDispatcherBuildIndex（构建消息索引文件）
                                 if (size > 0) {
-                                    DefaultMessageStore.this.doDispatch(dispatchRequest);
-
-                                    // 如果开启了长轮询，并且 Broker 的角色为主节点的话，则通知有新消息到达，执行 NotifyMessageArrivingListener 代码，
-                                    // 最终调用 pullRequestHoldService 的 notifyMessageArriving 方法，进行一次消息拉取
-                                    if (BrokerRole.SLAVE != DefaultMessageStore.this.getMessageStoreConfig().getBrokerRole()
-                                        && DefaultMessageStore.this.brokerConfig.isLongPollingEnable()) {
-                                        DefaultMessageStore.this.messageArrivingListener.arriving(dispatchRequest.getTopic(),
-                                            dispatchRequest.getQueueId(), dispatchRequest.getConsumeQueueOffset() + 1,
-                                            dispatchRequest.getTagsCode(), dispatchRequest.getStoreTimestamp(),
-                                            dispatchRequest.getBitMap(), dispatchRequest.getPropertiesMap());
+                                    // 开启并行转发之后，当前线程只负责解析消息和推进 reputFromOffset，转发交给 DispatchLane 执行
+                                    if (this.dispatchLanes != null) {
+                                        this.dispatchParallel(dispatchRequest);
+                                    } else if (DefaultMessageStore.this.isConsumeQueueStageEnable()) {
+                                        // 条目还在暂存区中，消费者拉取不到，所以消息到达的通知要等到 publishStaged 之后再发出
+                                        if (this.pendingArrivings.isEmpty()) {
+                                            this.stagedFromOffset = dispatchRequest.getCommitLogOffset();
+                                        }
+                                        this.staging = true;
+                                        try {
+                                            DefaultMessageStore.this.doDispatch(dispatchRequest);
+                                        } finally {
+                                            this.staging = false;
+                                        }
+                                        this.pendingArrivings.add(dispatchRequest);
+                                        if (this.pendingArrivings.size() >= DefaultMessageStore.this.getMessageStoreConfig().getConsumeQueueStageMaxMessages()) {
+                                            this.publishStaged();
+                                        }
+                                    } else {
+                                        DefaultMessageStore.this.doDispatch(dispatchRequest);
+                                        this.notifyMessageArriving(dispatchRequest);
                                     }
 
+                                    // CommitLog 的时间索引也在这里构建，ReputMessageService 是按顺序读取 CommitLog 的唯一线程
+                                    if (DefaultMessageStore.this.getMessageStoreConfig().isTimeSkipIndexEnable()) {
+                                        TimeSkipIndex timeSkipIndex = TimeSkipIndex.of(result.getMappedFile());
+                                        if (timeSkipIndex != null) {
+                                            timeSkipIndex.record(dispatchRequest.getStoreTimestamp(), dispatchRequest.getCommitLogOffset(),
+                                                DefaultMessageStore.this.getMessageStoreConfig().getTimeSkipIndexInterval());
+                                        }
+                                    }
+
+                                    DefaultMessageStore.this.storeMetrics.getReputLag().recordNanos(
+                                        TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - dispatchRequest.getStoreTimestamp()));
+
                                     this.reputFromOffset += size;
                                     readSize += size;
                                     if (DefaultMessageStore.this.getMessageStoreConfig().getBrokerRole() == BrokerRole.SLAVE) {
@@ -666,6 +1009,8 @@ public class RocketmqMessageStoreAnalysis{
                             }
                         }
                     } finally {
+                        // 一批消息处理完之后，暂存区中的条目统一写入 ConsumeQueue 文件
+                        this.publishStaged();
                         result.release();
                     }
                 } else {
@@ -674,6 +1019,142 @@ public class RocketmqMessageStoreAnalysis{
             }
         }
 
+        // ReputMessageService#publishStaged
+        private void publishStaged() {
+            if (this.pendingArrivings.isEmpty() && this.stagedConsumeQueues.isEmpty()) {
+                return;
+            }
+            for (ConsumeQueue consumeQueue : this.stagedConsumeQueues) {
+                consumeQueue.publishStaged();
+            }
+            this.stagedConsumeQueues.clear();
+            this.stagedFromOffset = Long.MAX_VALUE;
+
+            for (DispatchRequest dispatchRequest : this.pendingArrivings) {
+                this.notifyMessageArriving(dispatchRequest);
+            }
+            this.pendingArrivings.clear();
+        }
+
+        /**
+         * 并行转发。doReput 在单线程中逐条解析消息，然后依次调用所有的 CommitLogDispatcher，在开启了 IndexFile 的情况下，构建 ConsumeQueue 和 IndexFile
+         * 都在这一个线程中，写入量大时 ConsumeQueue 的构建会落后于 CommitLog，消费者看到消息的延迟变大。
+         *
+         * 开启 parallelReputEnable 之后，ReputMessageService 线程仍然负责顺序地解析消息、推进 reputFromOffset，但是转发交给多个 DispatchLane 线程：
+         * 1.ConsumeQueue 的构建按照 topic + queueId 的哈希值分配到 parallelReputThreadNums 个 lane 中，同一个消息队列的消息总是由同一个 lane 按照
+         * CommitLog 中的顺序处理，所以每个 ConsumeQueue 中的 queueOffset 仍然是连续、递增的，不同队列之间并行构建
+         * 2.IndexService 不是线程安全的（IndexFile#putKey 没有加锁），所以 CommitLogDispatcherBuildIndex 由一个单独的 lane 处理，它和 ConsumeQueue 的构建并行，
+         * 但自身是串行的
+         * 3.消息到达的通知（messageArrivingListener）在 ConsumeQueue 构建完成之后由对应的 lane 发出，保证被唤醒的 PullRequest 一定能拉到消息
+         *
+         * 每个 lane 的队列是有界的，队列满时 ReputMessageService 线程会阻塞，对解析进行反压
+         */
+        private DispatchLane[] dispatchLanes;
+
+        private DispatchLane indexLane;
+
+        /**
+         * 并行转发时已经交给 lane 但还没有推进 StoreCheckpoint#logicsMsgTimestamp 的消息，按照 CommitLog 中的顺序排列，只被 ReputMessageService 线程访问。
+         * 各个 lane 完成的顺序和 CommitLog 中的顺序不一致，如果由 ConsumeQueue 在写入之后直接设置 logicsMsgTimestamp，可能出现时间戳已经越过
+         * 另一个 lane 中还没有写入的消息，异常恢复时就会漏掉这些消息，所以改为根据 getDispatchedOffset 推进
+         */
+        private final Deque<DispatchRequest> inflightRequests = new ArrayDeque<>();
+
+        // ReputMessageService#start
+        @Override
+        public void start() {
+            if (DefaultMessageStore.this.getMessageStoreConfig().isParallelReputEnable()) {
+                int laneNums = DefaultMessageStore.this.getMessageStoreConfig().getParallelReputThreadNums();
+                int capacity = DefaultMessageStore.this.getMessageStoreConfig().getParallelReputQueueCapacity();
+                List<CommitLogDispatcher> queueDispatchers = new ArrayList<>();
+                List<CommitLogDispatcher> indexDispatchers = new ArrayList<>();
+                for (CommitLogDispatcher dispatcher : DefaultMessageStore.this.dispatcherList) {
+                    if (dispatcher instanceof CommitLogDispatcherBuildIndex) {
+                        indexDispatchers.add(dispatcher);
+                    } else {
+                        queueDispatchers.add(dispatcher);
+                    }
+                }
+
+                DispatchLane[] lanes = new DispatchLane[laneNums];
+                for (int i = 0; i < laneNums; i++) {
+                    lanes[i] = new DispatchLane(i, capacity, queueDispatchers, true);
+                    lanes[i].start();
+                }
+                this.indexLane = new DispatchLane(laneNums, capacity, indexDispatchers, false);
+                this.indexLane.start();
+                this.dispatchLanes = lanes;
+            }
+            super.start();
+        }
+
+        // ReputMessageService#dispatchParallel
+        private void dispatchParallel(final DispatchRequest dispatchRequest) throws InterruptedException {
+            this.inflightRequests.addLast(dispatchRequest);
+            int hash = dispatchRequest.getTopic().hashCode() * 31 + dispatchRequest.getQueueId();
+            this.dispatchLanes[(hash & Integer.MAX_VALUE) % this.dispatchLanes.length].put(dispatchRequest);
+            if (DefaultMessageStore.this.messageStoreConfig.isMessageIndexEnable()) {
+                this.indexLane.put(dispatchRequest);
+            }
+        }
+
+        // 将 logicsMsgTimestamp 推进到 getDispatchedOffset 之前最后一条消息的存储时间，这条消息以及它之前的消息都已经写入了 ConsumeQueue
+        // ReputMessageService#advanceLogicsMsgTimestamp
+        private void advanceLogicsMsgTimestamp() {
+            long dispatchedOffset = this.getDispatchedOffset();
+            DispatchRequest last = null;
+            while (!this.inflightRequests.isEmpty() && this.inflightRequests.peekFirst().getCommitLogOffset() < dispatchedOffset) {
+                last = this.inflightRequests.pollFirst();
+            }
+            if (last != null) {
+                DefaultMessageStore.this.getStoreCheckpoint().setLogicsMsgTimestamp(last.getStoreTimestamp());
+            }
+        }
+
+        // 如果开启了长轮询，并且 Broker 的角色为主节点的话，则通知有新消息到达，执行 NotifyMessageArrivingListener 代码，
+        // 最终调用 pullRequestHoldService 的 notifyMessageArriving 方法，进行一次消息拉取
+        // ReputMessageService#notifyMessageArriving
+        private void notifyMessageArriving(final DispatchRequest dispatchRequest) {
+            if (BrokerRole.SLAVE != DefaultMessageStore.this.getMessageStoreConfig().getBrokerRole()
+                && DefaultMessageStore.this.brokerConfig.isLongPollingEnable()) {
+                DefaultMessageStore.this.messageArrivingListener.arriving(dispatchRequest.getTopic(),
+                    dispatchRequest.getQueueId(), dispatchRequest.getConsumeQueueOffset() + 1,
+                    dispatchRequest.getTagsCode(), dispatchRequest.getStoreTimestamp(),
+                    dispatchRequest.getBitMap(), dispatchRequest.getPropertiesMap());
+            }
+        }
+
+        // 先停止解析线程，再依次停止各个 lane，lane 会在退出之前处理完队列中剩余的请求
+        // ReputMessageService#shutdown
+        @Override
+        public void shutdown() {
+            super.shutdown();
+            if (this.dispatchLanes != null) {
+                for (DispatchLane lane : this.dispatchLanes) {
+                    lane.shutdown();
+                }
+                this.indexLane.shutdown();
+            }
+        }
+
+        /**
+         * 已经完成转发的最大偏移量，这个偏移量之前的消息都已经构建了 ConsumeQueue 和 IndexFile。没有开启并行转发时就是 reputFromOffset，
+         * 否则为 reputFromOffset 和每个 lane 中最早的还没有处理完的消息偏移量中的最小值
+         */
+        // ReputMessageService#getDispatchedOffset
+        public long getDispatchedOffset() {
+            // 先读 stagedFromOffset，再读 reputFromOffset，两者都只会向前推进，这样不会漏掉正在暂存的消息
+            long stagedFromOffset = this.stagedFromOffset;
+            long dispatchedOffset = Math.min(this.reputFromOffset, stagedFromOffset);
+            if (this.dispatchLanes != null) {
+                for (DispatchLane lane : this.dispatchLanes) {
+                    dispatchedOffset = Math.min(dispatchedOffset, lane.getPendingFromOffset());
+                }
+                dispatchedOffset = Math.min(dispatchedOffset, this.indexLane.getPendingFromOffset());
+            }
+            return dispatchedOffset;
+        }
+
         // ReputMessageService#run
         @Override
         public void run() {
@@ -685,6 +1166,9 @@ public class RocketmqMessageStoreAnalysis{
                     // 和索引文件 IndexFile，消息消费转发的核心实现在 doReput 方法中实现
                     Thread.sleep(1);
                     this.doReput();
+                    if (this.dispatchLanes != null) {
+                        this.advanceLogicsMsgTimestamp();
+                    }
                 } catch (Exception e) {
                     DefaultMessageStore.log.warn(this.getServiceName() + " service has exception. ", e);
                 }
@@ -698,6 +1182,89 @@ public class RocketmqMessageStoreAnalysis{
             return ReputMessageService.class.getSimpleName();
         }
 
+        /**
+         * 并行转发中的一个 lane，单线程按照放入的顺序依次处理 DispatchRequest。
+         *
+         * 处理时先 peek 队头的请求，处理完成之后再将其 poll 出来，这样在处理过程中队头仍然是正在处理的请求，getPendingFromOffset 可以据此
+         * 得到这个 lane 中最早的还没有处理完的消息偏移量。每个 lane 只有一个消费者线程，所以 peek 和 poll 之间不会有其它线程取走队头
+         */
+        class DispatchLane extends ServiceThread {
+
+            private final int index;
+
+            private final BlockingQueue<DispatchRequest> requestQueue;
+
+            private final List<CommitLogDispatcher> dispatchers;
+            // 是否在转发之后通知消息到达，只有构建 ConsumeQueue 的 lane 才需要通知
+            private final boolean notifyArriving;
+
+            DispatchLane(int index, int capacity, List<CommitLogDispatcher> dispatchers, boolean notifyArriving) {
+                this.index = index;
+                this.requestQueue = new LinkedBlockingQueue<>(capacity);
+                this.dispatchers = dispatchers;
+                this.notifyArriving = notifyArriving;
+            }
+
+            // 放入之后唤醒 lane，lane 空闲时不需要频繁轮询
+            public void put(DispatchRequest request) throws InterruptedException {
+                this.requestQueue.put(request);
+                this.wakeup();
+            }
+
+            public long getPendingFromOffset() {
+                DispatchRequest head = this.requestQueue.peek();
+                return head == null ? Long.MAX_VALUE : head.getCommitLogOffset();
+            }
+
+            // DispatchLane#run
+            @Override
+            public void run() {
+                DefaultMessageStore.log.info(this.getServiceName() + " service started");
+
+                // 连续转发失败的次数，用于计算重试的退避时间
+                int failures = 0;
+                // 停止之前要处理完队列中剩余的请求
+                while (!this.isStopped() || !this.requestQueue.isEmpty()) {
+                    DispatchRequest request = this.requestQueue.peek();
+                    if (request == null) {
+                        // put 会唤醒 lane，这里的超时只是兜底
+                        this.waitForRunning(100);
+                        continue;
+                    }
+                    try {
+                        for (CommitLogDispatcher dispatcher : this.dispatchers) {
+                            dispatcher.dispatch(request);
+                        }
+                        if (this.notifyArriving) {
+                            ReputMessageService.this.notifyMessageArriving(request);
+                        }
+                        this.requestQueue.poll();
+                        failures = 0;
+                    } catch (Throwable e) {
+                        // 跳过这条消息会导致 ConsumeQueue 中的 queueOffset 不连续，所以队头的请求会一直重试，重试间隔从 10ms 开始指数退避，最长 1s。
+                        // 停止时不再重试，这条消息之后的请求留给重启之后的恢复流程重新转发
+                        failures++;
+                        DefaultMessageStore.log.error("{} dispatch failed {} times, topic: {}, queueId: {}, commitLogOffset: {}",
+                            this.getServiceName(), failures, request.getTopic(), request.getQueueId(), request.getCommitLogOffset(), e);
+                        if (this.isStopped()) {
+                            break;
+                        }
+                        try {
+                            Thread.sleep(Math.min(1000L, 10L << Math.min(failures - 1, 7)));
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                }
+
+                DefaultMessageStore.log.info(this.getServiceName() + " service end");
+            }
+
+            @Override
+            public String getServiceName() {
+                return DispatchLane.class.getSimpleName() + "-" + this.index;
+            }
+        }
+
     }
 
     class CommitLogDispatcherBuildConsumeQueue implements CommitLogDispatcher {
@@ -718,10 +1285,25 @@ public class RocketmqMessageStoreAnalysis{
         }
     }
 
+    // 根据 propertyProjection 配置计算消息的属性投影，由 ConsumeQueue#putMessagePositionInfoWrapper 写入 ConsumeQueueExt
+    class CommitLogDispatcherProjectProperties implements CommitLogDispatcher {
+        @Override
+        public void dispatch(DispatchRequest request) {
+            if (DefaultMessageStore.this.messageStoreConfig.isEnableConsumeQueueExt()) {
+                request.setPropertyProjection(DefaultMessageStore.this.propertyProjection.project(request.getTopic(), request.getPropertiesMap()));
+            }
+        }
+    }
+
     class CommitLogDispatcherBuildIndex implements CommitLogDispatcher {
         @Override
         public void dispatch(DispatchRequest request) {
             if (DefaultMessageStore.this.messageStoreConfig.isMessageIndexEnable()) {
+                // 增量恢复之后 IndexRebuildService 还在后台重建索引时，由它负责构建这条消息的索引
+                IndexRebuildService indexRebuildService = DefaultMessageStore.this.indexRebuildService;
+                if (indexRebuildService != null && indexRebuildService.skipIfRebuilding(request)) {
+                    return;
+                }
                 // 根据消息，更新消息索引文件
                 DefaultMessageStore.this.indexService.buildIndex(request);
             }
@@ -733,6 +1315,17 @@ public class RocketmqMessageStoreAnalysis{
         // topic-queueId -> offset
         private HashMap<String, Long> topicQueueTable = new HashMap<String, Long>(1024);
 
+        // 无锁追加模式下使用，topic-queueId -> QueueOffsetSlot。topicQueueTable 是一个 HashMap，只能在 putMessageLock 的保护下使用，
+        // 而在无锁模式下，多个线程会同时为不同的消息队列分配逻辑偏移量，所以每一个消息队列对应一个 QueueOffsetSlot
+        private final ConcurrentMap<String, QueueOffsetSlot> queueOffsetSlotTable = new ConcurrentHashMap<>(1024);
+
+        // 无锁追加模式下，每一个写线程都需要有自己的 DefaultAppendMessageCallback，因为 DefaultAppendMessageCallback 中的 msgStoreItemMemory
+        // 等缓冲区在原来的实现中是被 putMessageLock 保护的，多个线程并行编码时不能共享
+        private final ThreadLocal<DefaultAppendMessageCallback> appendMessageCallbackThreadLocal;
+
+        // 开启 appendResultReuseEnable 之后，同步写入路径上每个线程复用的 AppendMessageResult 和 PutMessageResult
+        private final ThreadLocal<PutMessageContext> putMessageContextThreadLocal;
+
         // CommitLog#CommitLog
         public CommitLog(final DefaultMessageStore defaultMessageStore) {
             this.mappedFileQueue = new MappedFileQueue(defaultMessageStore.getMessageStoreConfig().getStorePathCommitLog(),
@@ -758,6 +1351,25 @@ public class RocketmqMessageStoreAnalysis{
             };
             this.putMessageLock = defaultMessageStore.getMessageStoreConfig().isUseReentrantLockWhenPutMessage() ? 
                 new PutMessageReentrantLock() : new PutMessageSpinLock();
+            appendMessageCallbackThreadLocal = new ThreadLocal<DefaultAppendMessageCallback>() {
+                @Override
+                protected DefaultAppendMessageCallback initialValue() {
+                    return new DefaultAppendMessageCallback(defaultMessageStore.getMessageStoreConfig().getMaxMessageSize());
+                }
+            };
+            putMessageContextThreadLocal = new ThreadLocal<PutMessageContext>() {
+                @Override
+                protected PutMessageContext initialValue() {
+                    return new PutMessageContext();
+                }
+            };
+        }
+
+        // 最后一个 MappedFile 是否还可以通过 writeBuffer 写入
+        // CommitLog#isLastMappedFileBuffered
+        public boolean isLastMappedFileBuffered() {
+            MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
+            return mappedFile != null && mappedFile.hasWriteBuffer() && !mappedFile.isFull();
         }
 
         // CommitLog#start
@@ -765,11 +1377,25 @@ public class RocketmqMessageStoreAnalysis{
             this.flushCommitLogService.start();
             if (defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
                 this.commitLogService.start();
+                // 等待 CommitRealTimeService 线程完成 TransientStorePool 的初始化，之后才能开始接收消息
+                defaultMessageStore.getTransientStorePool().awaitInitialized();
+            }
+            // 后台将写满并且足够旧的 CommitLog 文件压缩为 CompressedSegment
+            if (defaultMessageStore.getMessageStoreConfig().isCommitLogCompactEnable()) {
+                this.commitLogCompactService.start();
+            }
+            // 后台将写满并且足够旧的 CommitLog 文件移动到冷存储目录
+            if (defaultMessageStore.getMessageStoreConfig().isTieredStorageEnable()) {
+                this.tieredStorageService.start();
             }
         }
 
         public boolean load() {
             boolean result = this.mappedFileQueue.load();
+            // 加载冷存储目录中的 CommitLog 文件，必须在 loadCompressedSegments 之前，冷存储中的文件也可能已经被压缩了
+            result = result && this.loadTieredFiles();
+            // 加载已经压缩的 CommitLog 文件
+            result = result && this.loadCompressedSegments();
             log.info("load commit log " + (result ? "OK" : "Failed"));
             return result;
         }
@@ -786,6 +1412,9 @@ public class RocketmqMessageStoreAnalysis{
             private final StringBuilder keyBuilder = new StringBuilder();
 
             private final StringBuilder msgIdBuilder = new StringBuilder();
+            // topic -> TopicEncoding，缓存 topic 的字节数组以及 topic-queueId 形式的 key，避免每条消息都重新编码 topic、拼接 key。
+            // 和 msgStoreItemMemory 一样，只被持有 putMessageLock 的线程或者线程私有的 DefaultAppendMessageCallback 访问
+            private final HashMap<String, TopicEncoding> topicEncodingCache = new HashMap<>(256);
             // 用来保存 Broker 的 host 信息，也就是 ip + port
             private final ByteBuffer hostHolder = ByteBuffer.allocate(8);
             // 用来保存消息的 id
@@ -797,20 +1426,30 @@ public class RocketmqMessageStoreAnalysis{
             // DefaultAppendMessageCallback#doAppend
             public AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer, final int maxBlank, 
                         final MessageExtBrokerInner msgInner) {
+                return this.doAppend(fileFromOffset, byteBuffer, maxBlank, msgInner, null);
+            }
+
+            /**
+             * 原来的 doAppend 对每一条消息都要创建 msgId 字符串、把 topic 和 propertiesString 编码为新的字节数组、拼接 topic-queueId，最后再创建
+             * AppendMessageResult，每秒 20 万条消息时会产生大量的短命对象。现在：
+             *
+             * 1.topic 的字节数组和 topic-queueId 从 topicEncodingCache 中获取
+             * 2.先计算 propertiesString 的 UTF-8 长度，再直接编码到 msgStoreItemMemory 中，不经过中间的字节数组
+             * 3.msgId 在 AppendMessageResult#getMsgId 第一次被调用时才生成，SendMessageProcessor 之外的调用者通常不需要 msgId
+             * 4.reuse 不为 null 时直接重置并返回 reuse，否则新建 AppendMessageResult
+             */
+            // DefaultAppendMessageCallback#doAppend
+            public AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer, final int maxBlank,
+                        final MessageExtBrokerInner msgInner, final AppendMessageResult reuse) {
+                final long encodeBeginNanos = System.nanoTime();
                 // 写入消息的偏移量 wroteOffset 为：这个 MappedFile 最开始的偏移量 + position
                 long wroteOffset = fileFromOffset + byteBuffer.position();
 
-                this.resetByteBuffer(hostHolder, 8);
-                // 创建一个全局唯一的消息 id，这个消息 id 有 16 个字节。这 16 个字节的组成如下：
-                // 4 字节的 IP + 4 字节的端口号地址 + 8 字节的消息偏移量
-                String msgId = MessageDecoder.createMessageId(this.msgIdMemory, msgInner.getStoreHostBytes(hostHolder), wroteOffset);
-
+                // 消息 id 有 16 个字节：4 字节的 IP + 4 字节的端口号地址 + 8 字节的消息偏移量，由 storeHost 和 wroteOffset 决定，
+                // 所以只需要把 storeHost 交给 AppendMessageResult，在 getMsgId 时再生成
+                final TopicEncoding topicEncoding = this.topicEncoding(msgInner.getTopic());
                 // Record ConsumeQueue information
-                keyBuilder.setLength(0);
-                keyBuilder.append(msgInner.getTopic());
-                keyBuilder.append('-');
-                keyBuilder.append(msgInner.getQueueId());
-                String key = keyBuilder.toString();
+                String key = topicEncoding.queueKey(msgInner.getQueueId());
 
                 // 获取该主题的消息在消息队列的偏移量，CommitLog 的 topicQueueTable 中保存了当前所有消息队列的当前写入偏移量
                 // 这个 key 是 topic-queueId
@@ -826,17 +1465,17 @@ public class RocketmqMessageStoreAnalysis{
                  *  接下来对消息 msgInner 进行序列化操作，也就是转变为字节数组 
                  */
 
-                // 将 msg 中的 propertiesString 序列化为字节数组
-                final byte[] propertiesData = msgInner.getPropertiesString() == null ? null : msgInner.getPropertiesString().getBytes(MessageDecoder.CHARSET_UTF8);
-                final int propertiesLength = propertiesData == null ? 0 : propertiesData.length;
+                // propertiesString 编码为 UTF-8 之后的长度，这里只计算长度，写入时再直接编码到 msgStoreItemMemory 中
+                final String propertiesString = msgInner.getPropertiesString();
+                final int propertiesLength = propertiesString == null ? 0 : utf8Length(propertiesString);
 
                 if (propertiesLength > Short.MAX_VALUE) {
-                    log.warn("putMessage message properties length too long. length={}", propertiesData.length);
+                    log.warn("putMessage message properties length too long. length={}", propertiesLength);
                     return new AppendMessageResult(AppendMessageStatus.PROPERTIES_SIZE_EXCEEDED);
                 }
 
-                // 将 msg 中的主题 topic 序列化为字节数组
-                final byte[] topicData = msgInner.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
+                // topic 的字节数组已经缓存在 topicEncoding 中
+                final byte[] topicData = topicEncoding.topicData;
                 final int topicLength = topicData.length;
                 // 将 msg 的消息主体 body 序列化为字节数组
                 final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
@@ -856,8 +1495,8 @@ public class RocketmqMessageStoreAnalysis{
                     // 3 The remaining space may be any value
                     final long beginTimeMills = CommitLog.this.defaultMessageStore.now();
                     byteBuffer.put(this.msgStoreItemMemory.array(), 0, maxBlank);
-                    return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank, msgId,
-                            msgInner.getStoreTimestamp(), queueOffset,
+                    return (reuse != null ? reuse : new AppendMessageResult(AppendMessageStatus.END_OF_FILE)).reset(AppendMessageStatus.END_OF_FILE,
+                            wroteOffset, maxBlank, msgInner.getStoreHost(), msgInner.getStoreTimestamp(), queueOffset,
                             CommitLog.this.defaultMessageStore.now() - beginTimeMills);
                 }
 
@@ -904,15 +1543,17 @@ public class RocketmqMessageStoreAnalysis{
                 // 17 PROPERTIES
                 this.msgStoreItemMemory.putShort((short) propertiesLength);
                 if (propertiesLength > 0)
-                    this.msgStoreItemMemory.put(propertiesData);
+                    putUtf8(this.msgStoreItemMemory, propertiesString);
+                CommitLog.this.defaultMessageStore.getStoreMetrics().getAppendEncode().recordNanos(System.nanoTime() - encodeBeginNanos);
 
                 final long beginTimeMills = CommitLog.this.defaultMessageStore.now();
                 // Write messages to the queue buffer
                 // 将消息写入到 ByteBuffer 中，然后创建 AppendMessageResult。这里只是将消息存储到 MappedFile 对应的磁盘映射中，并没有刷到磁盘中
                 byteBuffer.put(this.msgStoreItemMemory.array(), 0, msgLen);
                 
-                AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen, msgId, msgInner.getStoreTimestamp(), 
-                        queueOffset, CommitLog.this.defaultMessageStore.now() - beginTimeMills);
+                AppendMessageResult result = (reuse != null ? reuse : new AppendMessageResult(AppendMessageStatus.PUT_OK)).reset(AppendMessageStatus.PUT_OK,
+                        wroteOffset, msgLen, msgInner.getStoreHost(), msgInner.getStoreTimestamp(), queueOffset,
+                        CommitLog.this.defaultMessageStore.now() - beginTimeMills);
 
                 switch (tranType) {
                 case MessageSysFlag.TRANSACTION_PREPARED_TYPE:
@@ -931,31 +1572,427 @@ public class RocketmqMessageStoreAnalysis{
                 return result;
             }
 
-        }
+            /**
+             * 批量追加消息。messageExtBatch 中的所有消息已经在锁外被 MessageExtBatchEncoder 编码成了一段连续的 ByteBuffer（encodedBuff），
+             * 其中每条消息的格式和 doAppend 中单条消息的格式完全相同，只有 QUEUEOFFSET、PHYSICALOFFSET 和 STORETIMESTAMP 之外的字段是确定的。
+             *
+             * 所以在锁内只需要遍历一次 encodedBuff，回填每一条消息的 QUEUEOFFSET 和 PHYSICALOFFSET，然后一次性将整个 encodedBuff 拷贝到 byteBuffer 中。
+             * 同一批消息属于同一个 topic 和 queueId，所以它们的 queueOffset 是连续的
+             */
+            // DefaultAppendMessageCallback#doAppend
+            public AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer, final int maxBlank,
+                        final MessageExtBatch messageExtBatch) {
+                byteBuffer.mark();
+                // 这一批消息中第一条消息的物理偏移量
+                long wroteOffset = fileFromOffset + byteBuffer.position();
 
-        // 这也就表明 CommitLog 中每一个条目长度是不固定的，每一个条目的长度存储在前 4 个字节中
-        private static int calMsgLength(int bodyLength, int topicLength, int propertiesLength) {
-            final int msgLen = 4 //TOTALSIZE
-                + 4 //MAGICCODE
-                + 4 //BODYCRC
-                + 4 //QUEUEID
-                + 4 //FLAG
-                + 8 //QUEUEOFFSET
-                + 8 //PHYSICALOFFSET
-                + 4 //SYSFLAG
-                + 8 //BORNTIMESTAMP
-                + 8 //BORNHOST
-                + 8 //STORETIMESTAMP
-                + 8 //STOREHOSTADDRESS
-                + 4 //RECONSUMETIMES
-                + 8 //Prepared Transaction Offset
-                + 4 // 消息体的长度
-                + (bodyLength > 0 ? bodyLength : 0) // 消息体的实际内容
-                + 1 // 消息主题的长度 
-                + topicLength // 消息主题实际内容
-                + 2 // 消息的属性的长度
-                + (propertiesLength > 0 ? propertiesLength : 0) // 消息的附属属性的长度
-                + 0;
+                keyBuilder.setLength(0);
+                keyBuilder.append(messageExtBatch.getTopic());
+                keyBuilder.append('-');
+                keyBuilder.append(messageExtBatch.getQueueId());
+                String key = keyBuilder.toString();
+                Long queueOffset = CommitLog.this.topicQueueTable.get(key);
+                if (null == queueOffset) {
+                    queueOffset = 0L;
+                    CommitLog.this.topicQueueTable.put(key, queueOffset);
+                }
+                long beginQueueOffset = queueOffset;
+                int totalMsgLen = 0;
+                int msgNum = 0;
+                msgIdBuilder.setLength(0);
+                final long beginTimeMills = CommitLog.this.defaultMessageStore.now();
+                ByteBuffer messagesByteBuff = messageExtBatch.getEncodedBuff();
+                long[] msgPhyOffsets = new long[messageExtBatch.getEncodedMsgNum()];
+                this.resetByteBuffer(hostHolder, 8);
+                ByteBuffer storeHostBytes = messageExtBatch.getStoreHostBytes(hostHolder);
+                messagesByteBuff.mark();
+
+                while (messagesByteBuff.hasRemaining()) {
+                    final int msgPos = messagesByteBuff.position();
+                    final int msgLen = messagesByteBuff.getInt();
+                    totalMsgLen += msgLen;
+
+                    // 剩余的空间不足以存放这一批消息，和单条消息一样，在文件末尾写入 BLANK_MAGIC_CODE，然后返回 END_OF_FILE，
+                    // 这一批消息会被整体写入到下一个文件中，所以 topicQueueTable 中的 queueOffset 不能被修改
+                    if ((totalMsgLen + END_FILE_MIN_BLANK_LENGTH) > maxBlank) {
+                        this.resetByteBuffer(this.msgStoreItemMemory, 8);
+                        this.msgStoreItemMemory.putInt(maxBlank);
+                        this.msgStoreItemMemory.putInt(CommitLog.BLANK_MAGIC_CODE);
+                        messagesByteBuff.reset();
+                        byteBuffer.reset();
+                        byteBuffer.put(this.msgStoreItemMemory.array(), 0, 8);
+                        return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank, msgIdBuilder.toString(),
+                            messageExtBatch.getStoreTimestamp(), beginQueueOffset, CommitLog.this.defaultMessageStore.now() - beginTimeMills);
+                    }
+
+                    long msgPhyOffset = wroteOffset + totalMsgLen - msgLen;
+                    // 回填 QUEUEOFFSET 和 PHYSICALOFFSET
+                    messagesByteBuff.putLong(msgPos + QUEUE_OFFSET_POSITION, queueOffset);
+                    messagesByteBuff.putLong(msgPos + PHYSICAL_OFFSET_POSITION, msgPhyOffset);
+                    messagesByteBuff.position(msgPos + msgLen);
+
+                    storeHostBytes.rewind();
+                    String msgId = MessageDecoder.createMessageId(this.msgIdMemory, storeHostBytes, msgPhyOffset);
+                    if (msgIdBuilder.length() > 0) {
+                        msgIdBuilder.append(',').append(msgId);
+                    } else {
+                        msgIdBuilder.append(msgId);
+                    }
+                    msgPhyOffsets[msgNum] = msgPhyOffset;
+                    queueOffset++;
+                    msgNum++;
+                }
+
+                // 一次性将这一批消息全部写入到 byteBuffer 中
+                messagesByteBuff.position(0);
+                messagesByteBuff.limit(totalMsgLen);
+                byteBuffer.put(messagesByteBuff);
+                messageExtBatch.setEncodedBuff(null);
+
+                AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, totalMsgLen, msgIdBuilder.toString(),
+                    messageExtBatch.getStoreTimestamp(), beginQueueOffset, CommitLog.this.defaultMessageStore.now() - beginTimeMills);
+                result.setMsgNum(msgNum);
+                result.setMsgPhyOffsets(msgPhyOffsets);
+                CommitLog.this.topicQueueTable.put(key, queueOffset);
+
+                return result;
+            }
+
+            // QUEUEOFFSET 字段在消息中的位置：TOTALSIZE(4) + MAGICCODE(4) + BODYCRC(4) + QUEUEID(4) + FLAG(4)
+            private static final int QUEUE_OFFSET_POSITION = 4 + 4 + 4 + 4 + 4;
+            // PHYSICALOFFSET 字段在消息中的位置，紧跟在 QUEUEOFFSET 之后
+            private static final int PHYSICAL_OFFSET_POSITION = QUEUE_OFFSET_POSITION + 8;
+
+            /**
+             * 无锁追加模式下的第一阶段：在预留空间之前，先把消息完整地编码到线程私有的 msgStoreItemMemory 中。
+             *
+             * 消息的各个字段中，只有 QUEUEOFFSET 和 PHYSICALOFFSET 这两个字段依赖于消息最终写入的位置，而这两个字段在消息中的位置是固定的，
+             * 所以这里先用 0 占位，等到在 MappedFile 中预留好空间之后，再调用 appendEncoded 将这两个字段回填。这样耗时的序列化操作就完全在
+             * 临界区之外并行进行，预留空间时只需要知道消息的长度 msgLen 即可。
+             *
+             * 返回编码后的消息长度，如果消息不合法则返回 -1
+             */
+            // DefaultAppendMessageCallback#encodeWithoutOffset
+            public int encodeWithoutOffset(final MessageExtBrokerInner msgInner) {
+                final String propertiesString = msgInner.getPropertiesString();
+                final int propertiesLength = propertiesString == null ? 0 : utf8Length(propertiesString);
+
+                if (propertiesLength > Short.MAX_VALUE) {
+                    log.warn("putMessage message properties length too long. length={}", propertiesLength);
+                    return -1;
+                }
+
+                final byte[] topicData = this.topicEncoding(msgInner.getTopic()).topicData;
+                final int topicLength = topicData.length;
+                final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
+
+                final int msgLen = calMsgLength(bodyLength, topicLength, propertiesLength);
+                if (msgLen > this.maxMessageSize) {
+                    log.warn("message size exceeded, msg total size: " + msgLen + ", msg body size: " + bodyLength + ", maxMessageSize: " + this.maxMessageSize);
+                    return -1;
+                }
+
+                // 编码的顺序以及各个字段的含义和 doAppend 方法完全相同
+                this.resetByteBuffer(msgStoreItemMemory, msgLen);
+                this.msgStoreItemMemory.putInt(msgLen);
+                this.msgStoreItemMemory.putInt(CommitLog.MESSAGE_MAGIC_CODE);
+                this.msgStoreItemMemory.putInt(msgInner.getBodyCRC());
+                this.msgStoreItemMemory.putInt(msgInner.getQueueId());
+                this.msgStoreItemMemory.putInt(msgInner.getFlag());
+                // QUEUEOFFSET 占位，预留空间之后回填
+                this.msgStoreItemMemory.putLong(0L);
+                // PHYSICALOFFSET 占位，预留空间之后回填
+                this.msgStoreItemMemory.putLong(0L);
+                this.msgStoreItemMemory.putInt(msgInner.getSysFlag());
+                this.msgStoreItemMemory.putLong(msgInner.getBornTimestamp());
+                this.resetByteBuffer(hostHolder, 8);
+                this.msgStoreItemMemory.put(msgInner.getBornHostBytes(hostHolder));
+                this.msgStoreItemMemory.putLong(msgInner.getStoreTimestamp());
+                this.resetByteBuffer(hostHolder, 8);
+                this.msgStoreItemMemory.put(msgInner.getStoreHostBytes(hostHolder));
+                this.msgStoreItemMemory.putInt(msgInner.getReconsumeTimes());
+                this.msgStoreItemMemory.putLong(msgInner.getPreparedTransactionOffset());
+                this.msgStoreItemMemory.putInt(bodyLength);
+                if (bodyLength > 0)
+                    this.msgStoreItemMemory.put(msgInner.getBody());
+                this.msgStoreItemMemory.put((byte) topicLength);
+                this.msgStoreItemMemory.put(topicData);
+                this.msgStoreItemMemory.putShort((short) propertiesLength);
+                if (propertiesLength > 0)
+                    putUtf8(this.msgStoreItemMemory, propertiesString);
+
+                return msgLen;
+            }
+
+            // DefaultAppendMessageCallback#topicEncoding
+            private TopicEncoding topicEncoding(final String topic) {
+                TopicEncoding encoding = this.topicEncodingCache.get(topic);
+                if (encoding == null) {
+                    // topic 的数量通常是有限的，超过上限时直接清空，避免大量临时 topic 占用内存
+                    if (this.topicEncodingCache.size() >= TOPIC_ENCODING_CACHE_SIZE) {
+                        this.topicEncodingCache.clear();
+                    }
+                    encoding = new TopicEncoding(topic);
+                    this.topicEncodingCache.put(topic, encoding);
+                }
+                return encoding;
+            }
+
+            // 无锁追加模式下 putMessageLockFree 使用的 topic-queueId
+            public String queueKey(final MessageExtBrokerInner msgInner) {
+                return this.topicEncoding(msgInner.getTopic()).queueKey(msgInner.getQueueId());
+            }
+
+            /**
+             * 无锁追加模式下的第二阶段：在 MappedFile 中预留好 [wroteOffset, wroteOffset + msgLen) 这段空间以及逻辑偏移量 queueOffset 之后，
+             * 回填 QUEUEOFFSET 和 PHYSICALOFFSET 字段，然后将 msgStoreItemMemory 中的内容拷贝到 byteBuffer 中（byteBuffer 的 position 已经被设置为
+             * 预留的位置）。不同线程预留的区域互不重叠，所以这里的拷贝不需要任何锁。
+             */
+            // DefaultAppendMessageCallback#appendEncoded
+            public AppendMessageResult appendEncoded(final long wroteOffset, final ByteBuffer byteBuffer, final int msgLen,
+                        final long queueOffset, final MessageExtBrokerInner msgInner, final AppendMessageResult reuse) {
+                this.msgStoreItemMemory.putLong(QUEUE_OFFSET_POSITION, queueOffset);
+                this.msgStoreItemMemory.putLong(PHYSICAL_OFFSET_POSITION, wroteOffset);
+
+                final long beginTimeMills = CommitLog.this.defaultMessageStore.now();
+                byteBuffer.put(this.msgStoreItemMemory.array(), 0, msgLen);
+
+                // msgId 和 doAppend 一样在 getMsgId 时才生成
+                return (reuse != null ? reuse : new AppendMessageResult(AppendMessageStatus.PUT_OK)).reset(AppendMessageStatus.PUT_OK,
+                        wroteOffset, msgLen, msgInner.getStoreHost(), msgInner.getStoreTimestamp(), queueOffset,
+                        CommitLog.this.defaultMessageStore.now() - beginTimeMills);
+            }
+
+            /**
+             * 无锁追加模式下批量消息的第二阶段：byteBuffer 的 [position, limit) 就是为这一批消息预留的区域，queueOffset 是分配给第一条消息的逻辑偏移量。
+             * 和 doAppend 的批量版本一样逐条回填 QUEUEOFFSET 和 PHYSICALOFFSET，但不需要判断剩余空间，也不需要修改 topicQueueTable
+             */
+            // DefaultAppendMessageCallback#doAppendReserved
+            public AppendMessageResult doAppendReserved(final long fileFromOffset, final ByteBuffer byteBuffer, final long queueOffset,
+                        final MessageExtBatch messageExtBatch) {
+                final long wroteOffset = fileFromOffset + byteBuffer.position();
+                final long beginTimeMills = CommitLog.this.defaultMessageStore.now();
+                ByteBuffer messagesByteBuff = messageExtBatch.getEncodedBuff();
+                long[] msgPhyOffsets = new long[messageExtBatch.getEncodedMsgNum()];
+                StringBuilder msgIdBuilder = new StringBuilder();
+                this.resetByteBuffer(hostHolder, 8);
+                ByteBuffer storeHostBytes = messageExtBatch.getStoreHostBytes(hostHolder);
+
+                int totalMsgLen = 0;
+                int msgNum = 0;
+                while (messagesByteBuff.hasRemaining()) {
+                    final int msgPos = messagesByteBuff.position();
+                    final int msgLen = messagesByteBuff.getInt();
+                    long msgPhyOffset = wroteOffset + totalMsgLen;
+                    messagesByteBuff.putLong(msgPos + QUEUE_OFFSET_POSITION, queueOffset + msgNum);
+                    messagesByteBuff.putLong(msgPos + PHYSICAL_OFFSET_POSITION, msgPhyOffset);
+                    messagesByteBuff.position(msgPos + msgLen);
+
+                    storeHostBytes.rewind();
+                    String msgId = MessageDecoder.createMessageId(this.msgIdMemory, storeHostBytes, msgPhyOffset);
+                    if (msgIdBuilder.length() > 0) {
+                        msgIdBuilder.append(',');
+                    }
+                    msgIdBuilder.append(msgId);
+                    msgPhyOffsets[msgNum++] = msgPhyOffset;
+                    totalMsgLen += msgLen;
+                }
+
+                messagesByteBuff.flip();
+                byteBuffer.put(messagesByteBuff);
+                messageExtBatch.setEncodedBuff(null);
+
+                AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, totalMsgLen, msgIdBuilder.toString(),
+                    messageExtBatch.getStoreTimestamp(), queueOffset, CommitLog.this.defaultMessageStore.now() - beginTimeMills);
+                result.setMsgNum(msgNum);
+                result.setMsgPhyOffsets(msgPhyOffsets);
+                return result;
+            }
+
+            // 无锁追加模式下，文件剩余空间不足以存放消息时，由成功将预留指针推进到文件末尾的那个线程写入 BLANK_MAGIC_CODE 填充剩余空间。
+            // 和 doAppend 一样只写 8 个字节的文件结束标记，并且直接写入文件。msgStoreItemMemory 中是这个线程刚刚通过 encodeWithoutOffset 编码好的消息，
+            // 之后会在下一个文件中通过 appendEncoded 写入，不能被覆盖
+            // DefaultAppendMessageCallback#appendBlank
+            public void appendBlank(final ByteBuffer byteBuffer, final int maxBlank) {
+                // 1 TOTALSIZE 剩余空间
+                byteBuffer.putInt(maxBlank);
+                // 2 MAGICCODE 魔数
+                byteBuffer.putInt(CommitLog.BLANK_MAGIC_CODE);
+            }
+
+        }
+
+        // DefaultAppendMessageCallback#topicEncodingCache 的容量
+        private static final int TOPIC_ENCODING_CACHE_SIZE = 4096;
+
+        // 一个 topic 编码之后的字节数组，以及它的每一个消息队列在 topicQueueTable 中的 key（topic-queueId），都只在第一次用到时创建
+        static class TopicEncoding {
+
+            private final String topic;
+
+            private final byte[] topicData;
+
+            private String[] queueKeys = new String[16];
+
+            TopicEncoding(final String topic) {
+                this.topic = topic;
+                this.topicData = topic.getBytes(MessageDecoder.CHARSET_UTF8);
+            }
+
+            String queueKey(final int queueId) {
+                if (queueId >= this.queueKeys.length) {
+                    this.queueKeys = Arrays.copyOf(this.queueKeys, Math.max(queueId + 1, this.queueKeys.length * 2));
+                }
+                String key = this.queueKeys[queueId];
+                if (key == null) {
+                    key = this.topic + '-' + queueId;
+                    this.queueKeys[queueId] = key;
+                }
+                return key;
+            }
+        }
+
+        /**
+         * 同步写入路径上复用的结果对象，每个线程一个。开启 appendResultReuseEnable 之后，putMessage、putMessageLockFree 返回的 PutMessageResult
+         * 以及其中的 AppendMessageResult 都是当前线程的 PutMessageContext 中的对象，只在同一个线程下一次写入消息之前有效。同步调用者在当前线程中读取结果并且构造响应；
+         * 需要把结果交给其它线程的调用者（比如 SendMessageProcessor#asyncSendMessage 中同步写入的事务 prepare 消息）必须先通过 AppendMessageResult#copy 复制。
+         *
+         * asyncPutMessage 返回的 PutMessageResult 会被 CompletableFuture 持有到刷盘和主从同步完成，所以异步写入以及批量写入都不复用
+         */
+        static class PutMessageContext {
+
+            private final AppendMessageResult appendMessageResult = new AppendMessageResult(AppendMessageStatus.PUT_OK);
+
+            private final PutMessageResult putMessageResult = new PutMessageResult(PutMessageStatus.PUT_OK, this.appendMessageResult);
+
+            PutMessageResult putOk(final AppendMessageResult result) {
+                this.putMessageResult.setPutMessageStatus(PutMessageStatus.PUT_OK);
+                this.putMessageResult.setAppendMessageResult(result);
+                return this.putMessageResult;
+            }
+        }
+
+        // CommitLog#reusableAppendResult
+        private AppendMessageResult reusableAppendResult() {
+            return this.defaultMessageStore.getMessageStoreConfig().isAppendResultReuseEnable() ?
+                this.putMessageContextThreadLocal.get().appendMessageResult : null;
+        }
+
+        // result 是 reusableAppendResult 返回的对象时，同样复用 PutMessageResult
+        // CommitLog#putOk
+        private PutMessageResult putOk(final AppendMessageResult result) {
+            if (this.defaultMessageStore.getMessageStoreConfig().isAppendResultReuseEnable()) {
+                PutMessageContext context = this.putMessageContextThreadLocal.get();
+                if (context.appendMessageResult == result) {
+                    return context.putOk(result);
+                }
+            }
+            return new PutMessageResult(PutMessageStatus.PUT_OK, result);
+        }
+
+        // 计算 s 编码为 UTF-8 之后的长度，结果和 s.getBytes(UTF-8).length 相同，不成对的代理字符和 String#getBytes 一样按照一个字节的 '?' 计算
+        // CommitLog#utf8Length
+        private static int utf8Length(final String s) {
+            int length = 0;
+            for (int i = 0, n = s.length(); i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    length += 1;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (!Character.isSurrogate(c)) {
+                    length += 3;
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 1;
+                }
+            }
+            return length;
+        }
+
+        // 将 s 以 UTF-8 编码直接写入 buffer，写入的内容和 s.getBytes(UTF-8) 相同。propertiesString 几乎都是 ASCII 字符，只会走第一个分支
+        // CommitLog#putUtf8
+        private static void putUtf8(final ByteBuffer buffer, final String s) {
+            for (int i = 0, n = s.length(); i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buffer.put((byte) c);
+                } else if (c < 0x800) {
+                    buffer.put((byte) (0xC0 | (c >> 6)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                } else if (!Character.isSurrogate(c)) {
+                    buffer.put((byte) (0xE0 | (c >> 12)));
+                    buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                } else {
+                    buffer.put((byte) '?');
+                }
+            }
+        }
+
+        /**
+         * 无锁追加模式下，一个消息队列（topic-queueId）的逻辑偏移量分配器。
+         *
+         * ConsumeQueue 要求同一个消息队列中的消息，逻辑偏移量 queueOffset 越大，在 CommitLog 中的物理偏移量也越大（参考
+         * ConsumeQueue#putMessagePositionInfo 中 offset <= maxPhysicOffset 的判断）。所以对于同一个消息队列，"在 MappedFile 中预留空间"
+         * 和"分配 queueOffset"这两个动作必须是原子的，这里就使用 QueueOffsetSlot 对象本身作为锁。锁的粒度是单个消息队列，并且临界区中只有一次 CAS，
+         * 不同消息队列的生产者之间完全不会互相阻塞，而消息的编码和拷贝都在锁外进行。
+         */
+        static class QueueOffsetSlot {
+            // 该消息队列下一条消息的逻辑偏移量
+            private long queueOffset;
+
+            QueueOffsetSlot(final long queueOffset) {
+                this.queueOffset = queueOffset;
+            }
+        }
+
+        // CommitLog#getOrCreateQueueOffsetSlot
+        private QueueOffsetSlot getOrCreateQueueOffsetSlot(final String key) {
+            QueueOffsetSlot slot = this.queueOffsetSlotTable.get(key);
+            if (slot == null) {
+                // 第一次使用该消息队列时，使用 topicQueueTable 中的值初始化，topicQueueTable 在 Broker 启动恢复 CommitLog 时会被重建
+                Long queueOffset = this.topicQueueTable.get(key);
+                QueueOffsetSlot newSlot = new QueueOffsetSlot(queueOffset == null ? 0L : queueOffset);
+                slot = this.queueOffsetSlotTable.putIfAbsent(key, newSlot);
+                if (slot == null) {
+                    slot = newSlot;
+                }
+            }
+            return slot;
+        }
+
+        // 这也就表明 CommitLog 中每一个条目长度是不固定的，每一个条目的长度存储在前 4 个字节中
+        private static int calMsgLength(int bodyLength, int topicLength, int propertiesLength) {
+            final int msgLen = 4 //TOTALSIZE
+                + 4 //MAGICCODE
+                + 4 //BODYCRC
+                + 4 //QUEUEID
+                + 4 //FLAG
+                + 8 //QUEUEOFFSET
+                + 8 //PHYSICALOFFSET
+                + 4 //SYSFLAG
+                + 8 //BORNTIMESTAMP
+                + 8 //BORNHOST
+                + 8 //STORETIMESTAMP
+                + 8 //STOREHOSTADDRESS
+                + 4 //RECONSUMETIMES
+                + 8 //Prepared Transaction Offset
+                + 4 // 消息体的长度
+                + (bodyLength > 0 ? bodyLength : 0) // 消息体的实际内容
+                + 1 // 消息主题的长度 
+                + topicLength // 消息主题实际内容
+                + 2 // 消息的属性的长度
+                + (propertiesLength > 0 ? propertiesLength : 0) // 消息的附属属性的长度
+                + 0;
             return msgLen;
         }
 
@@ -1000,8 +2037,13 @@ public class RocketmqMessageStoreAnalysis{
             // 获取到现在可以写入的 CommitLog 文件，其实也就是获取到 mappedFileQueue 中的最后一个 MappedFile
             MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
 
+            // 开启 appendResultReuseEnable 时复用当前线程的 AppendMessageResult，否则为 null
+            AppendMessageResult reuse = this.reusableAppendResult();
+            StoreMetrics storeMetrics = this.defaultMessageStore.getStoreMetrics();
+            long lockRequestNanos = System.nanoTime();
             // 在往 CommitLog 中写入消息之前，先申请一个写锁 putMessageLock，这也就说明将消息写入到 CommitLog 是串行的
             putMessageLock.lock(); 
+            long lockAcquiredNanos = System.nanoTime();
             try {
                 long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
                 this.beginTimeInLock = beginLockTimestamp;
@@ -1023,7 +2065,7 @@ public class RocketmqMessageStoreAnalysis{
                     return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null);
                 }
 
-                result = mappedFile.appendMessage(msg, this.appendMessageCallback);
+                result = mappedFile.appendMessage(msg, this.appendMessageCallback, reuse);
                 switch (result.getStatus()) {
                 case PUT_OK:
                     break;
@@ -1037,7 +2079,7 @@ public class RocketmqMessageStoreAnalysis{
                         beginTimeInLock = 0;
                         return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, result);
                     }
-                    result = mappedFile.appendMessage(msg, this.appendMessageCallback);
+                    result = mappedFile.appendMessage(msg, this.appendMessageCallback, reuse);
                     break;
                 case MESSAGE_SIZE_EXCEEDED:
                 case PROPERTIES_SIZE_EXCEEDED:
@@ -1055,7 +2097,9 @@ public class RocketmqMessageStoreAnalysis{
                 beginTimeInLock = 0;
             } finally{
                 putMessageLock.unlock();
+                storeMetrics.getPutMessageLockHold().recordNanos(System.nanoTime() - lockAcquiredNanos);
             }
+            storeMetrics.getPutMessageLockWait().recordNanos(lockAcquiredNanos - lockRequestNanos);
 
             if (eclipseTimeInLock > 500) {
                 log.warn("[NOTIFYME]putMessage in lock cost time(ms)={}, bodyLength={} AppendMessageResult={}", eclipseTimeInLock, msg.getBody().length, result);
@@ -1066,7 +2110,7 @@ public class RocketmqMessageStoreAnalysis{
             }
     
             // result 的类型为 AppendMessageResult
-            PutMessageResult putMessageResult = new PutMessageResult(PutMessageStatus.PUT_OK, result);
+            PutMessageResult putMessageResult = this.putOk(result);
     
             // Statistics
             storeStatsService.getSinglePutMessageTopicTimesTotal(msg.getTopic()).incrementAndGet();
@@ -1081,6 +2125,424 @@ public class RocketmqMessageStoreAnalysis{
             return putMessageResult;
         }
 
+        /**
+         * 无锁多写者追加模式。putMessage 方法中，所有生产者线程的消息都在 putMessageLock 的保护下串行地写入到 CommitLog 中，在核数很多的机器上，
+         * 大量线程同时发送消息时，这把锁就成为了延迟抖动的来源。putMessageLockFree 将消息的写入拆分为三个阶段：
+         *
+         * 1.编码：在锁外，使用线程私有的 DefaultAppendMessageCallback 将消息完整地编码到 msgStoreItemMemory 中，只有 QUEUEOFFSET 和 PHYSICALOFFSET 留空
+         * 2.预留：在 MappedFile 中通过 CAS 推进 reservedPosition 指针来为消息预留 msgLen 个字节的空间，同时为消息分配 queueOffset
+         * 3.写入与发布：各个线程并行地将消息拷贝到各自预留的区域，然后通过 MappedFile#publish 发布。只有当 [0, pos) 之间所有预留的区域都写入完成之后，
+         * wrotePosition 才会被推进，所以 ReputMessageService 和刷盘线程通过 getReadPosition 看到的永远是一段连续的、没有空洞的数据
+         */
+        // CommitLog#putMessageLockFree
+        public PutMessageResult putMessageLockFree(final MessageExtBrokerInner msg) {
+            msg.setStoreTimestamp(System.currentTimeMillis());
+            msg.setBodyCRC(UtilAll.crc32(msg.getBody()));
+
+            // 延迟消息替换 topic 和 queueId 的逻辑和 putMessage 中完全一样，这里省略
+            // ignore code
+
+            StoreStatsService storeStatsService = this.defaultMessageStore.getStoreStatsService();
+
+            AppendMessageResult result = this.appendMessageLockFree(msg, this.reusableAppendResult());
+            if (null == result) {
+                return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null);
+            }
+            switch (result.getStatus()) {
+            case PUT_OK:
+                break;
+            case MESSAGE_SIZE_EXCEEDED:
+            case PROPERTIES_SIZE_EXCEEDED:
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result);
+            default:
+                return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result);
+            }
+
+            PutMessageResult putMessageResult = this.putOk(result);
+
+            storeStatsService.getSinglePutMessageTopicTimesTotal(msg.getTopic()).incrementAndGet();
+            storeStatsService.getSinglePutMessageTopicSizeTotal(msg.getTopic()).addAndGet(result.getWroteBytes());
+
+            // 刷盘和主从同步的逻辑和 putMessage 中相同。同步刷盘时 GroupCommitRequest 的 nextOffset 为本条消息的结束位置，而刷盘线程只会刷到
+            // 已经发布的 wrotePosition，所以只有在本条消息之前的所有消息都写入完成之后，本条消息才会被认为刷盘成功
+            handleDiskFlush(result, putMessageResult, msg);
+            handleHA(result, putMessageResult, msg);
+
+            return putMessageResult;
+        }
+
+        /**
+         * putMessageLockFree 和 asyncPutMessage 共用的无锁追加：编码、预留、写入与发布。开启 enableLockFreeAppend 之后所有单条消息的写入都必须走这里，
+         * 不能再有线程在 putMessageLock 下通过 wrotePosition 追加，否则两种写入方式会在同一个 MappedFile 中互相覆盖。
+         * 无法创建 MappedFile 时返回 null
+         */
+        // CommitLog#appendMessageLockFree
+        private AppendMessageResult appendMessageLockFree(final MessageExtBrokerInner msg, final AppendMessageResult reuse) {
+            DefaultAppendMessageCallback callback = this.appendMessageCallbackThreadLocal.get();
+
+            // 1.在锁外进行编码
+            long encodeBeginNanos = System.nanoTime();
+            final int msgLen = callback.encodeWithoutOffset(msg);
+            this.defaultMessageStore.getStoreMetrics().getAppendEncode().recordNanos(System.nanoTime() - encodeBeginNanos);
+            if (msgLen < 0) {
+                return new AppendMessageResult(AppendMessageStatus.MESSAGE_SIZE_EXCEEDED);
+            }
+
+            final String key = callback.queueKey(msg);
+            final QueueOffsetSlot slot = this.getOrCreateQueueOffsetSlot(key);
+            final int tranType = MessageSysFlag.getTransactionValue(msg.getSysFlag());
+            // 事务 PREPARED 和 ROLLBACK 消息不会被分配 queueOffset，和 doAppend 中的逻辑相同
+            final boolean needQueueOffset = tranType == MessageSysFlag.TRANSACTION_NOT_TYPE
+                    || tranType == MessageSysFlag.TRANSACTION_COMMIT_TYPE;
+
+            AppendMessageResult result = null;
+            MappedFile unlockMappedFile = null;
+            long beginTimestamp = this.defaultMessageStore.getSystemClock().now();
+
+            // 最多重试 2 次，第一次可能由于当前文件剩余空间不足返回 END_OF_FILE，第二次在新文件中写入
+            for (int i = 0; i < 2; i++) {
+                MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
+                if (null == mappedFile || mappedFile.isFull()) {
+                    mappedFile = this.rollMappedFileLockFree(mappedFile);
+                }
+
+                if (null == mappedFile) {
+                    log.error("create mapped file error, topic: " + msg.getTopic() + " clientAddr: " + msg.getBornHostString());
+                    return null;
+                }
+
+                // 2.预留空间并且分配 queueOffset，这两个动作对于同一个消息队列来说必须是原子的，锁的粒度仅为单个消息队列
+                int pos;
+                long queueOffset;
+                synchronized (slot) {
+                    pos = mappedFile.reserve(msgLen, callback);
+                    queueOffset = slot.queueOffset;
+                    if (pos >= 0 && needQueueOffset) {
+                        slot.queueOffset++;
+                    }
+                }
+
+                // pos < 0 说明当前文件剩余的空间已经不足以存放这条消息，文件末尾已经被填充为空白，需要在下一个文件中重新预留
+                if (pos < 0) {
+                    unlockMappedFile = mappedFile;
+                    result = new AppendMessageResult(AppendMessageStatus.END_OF_FILE);
+                    continue;
+                }
+
+                // 3.在预留的区域中写入消息，然后发布
+                result = mappedFile.appendEncoded(pos, msgLen, queueOffset, msg, callback, reuse);
+                break;
+            }
+
+            if (result.getStatus() != AppendMessageStatus.PUT_OK) {
+                return result;
+            }
+
+            long eclipseTime = this.defaultMessageStore.getSystemClock().now() - beginTimestamp;
+            if (eclipseTime > 500) {
+                log.warn("[NOTIFYME]putMessageLockFree cost time(ms)={}, bodyLength={} AppendMessageResult={}", eclipseTime, msg.getBody().length, result);
+            }
+
+            if (null != unlockMappedFile && this.defaultMessageStore.getMessageStoreConfig().isWarmMapedFileEnable()) {
+                this.defaultMessageStore.unlockMappedFile(unlockMappedFile);
+            }
+            return result;
+        }
+
+        /**
+         * 无锁追加模式下切换到下一个 MappedFile。MappedFileQueue#getLastMappedFile(0) 本身不是线程安全的，在原来的实现中是被 putMessageLock
+         * 保护的，如果多个线程同时发现当前文件已满，同一个 MappedFile 会被多次加入到 mappedFiles 中。由于切换文件的频率很低（默认 1G 一次），
+         * 这里直接对 mappedFileQueue 加锁，并且在加锁之后再次检查最后一个文件是否已满
+         */
+        // CommitLog#rollMappedFileLockFree
+        private MappedFile rollMappedFileLockFree(final MappedFile fullMappedFile) {
+            synchronized (this.mappedFileQueue) {
+                MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
+                if (mappedFile != null && mappedFile != fullMappedFile && !mappedFile.isFull()) {
+                    return mappedFile;
+                }
+                return this.mappedFileQueue.getLastMappedFile(0);
+            }
+        }
+
+        /**
+         * 批量写入消息。生产者发送的一批消息（MessageExtBatch）属于同一个 topic 和 queueId，putMessages 先在锁外通过 MessageExtBatchEncoder
+         * 将这一批消息编码成一段连续的 ByteBuffer，然后只获取一次 putMessageLock（或者在无锁模式下只预留一次空间），调用一次 appendMessagesInner
+         * 将整段数据写入 MappedFile。这样一批 100 条消息只需要竞争一次锁、一次刷盘请求和一次主从同步请求。
+         *
+         * 写入之后 ReputMessageService 从 CommitLog 中逐条解析消息，所以这一批中的每一条消息都会各自生成一个 DispatchRequest，分别构建 ConsumeQueue 和 IndexFile
+         */
+        // CommitLog#putMessages
+        public PutMessageResult putMessages(final MessageExtBatch messageExtBatch) {
+            messageExtBatch.setStoreTimestamp(System.currentTimeMillis());
+            AppendMessageResult result;
+
+            StoreStatsService storeStatsService = this.defaultMessageStore.getStoreStatsService();
+
+            // 批量消息不支持事务消息和延迟消息
+            final int tranType = MessageSysFlag.getTransactionValue(messageExtBatch.getSysFlag());
+            if (tranType != MessageSysFlag.TRANSACTION_NOT_TYPE) {
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+            }
+            if (messageExtBatch.getDelayTimeLevel() > 0) {
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+            }
+
+            // 在锁外进行编码，编码器是线程私有的
+            MessageExtBatchEncoder batchEncoder = batchEncoderThreadLocal.get();
+            ByteBuffer encodedBuff = batchEncoder.encode(messageExtBatch);
+            if (encodedBuff == null) {
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+            }
+            messageExtBatch.setEncodedBuff(encodedBuff);
+            messageExtBatch.setEncodedMsgNum(batchEncoder.getEncodedMsgNum());
+
+            if (this.defaultMessageStore.getMessageStoreConfig().isEnableLockFreeAppend()) {
+                result = this.putMessagesLockFree(messageExtBatch);
+                if (result == null || result.getStatus() != AppendMessageStatus.PUT_OK) {
+                    return new PutMessageResult(result == null ? PutMessageStatus.CREATE_MAPEDFILE_FAILED : PutMessageStatus.UNKNOWN_ERROR, result);
+                }
+            } else {
+                long eclipseTimeInLock = 0;
+                MappedFile unlockMappedFile = null;
+                MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
+
+                StoreMetrics storeMetrics = this.defaultMessageStore.getStoreMetrics();
+                long lockRequestNanos = System.nanoTime();
+                // 整批消息只加一次锁
+                putMessageLock.lock();
+                long lockAcquiredNanos = System.nanoTime();
+                try {
+                    long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
+                    this.beginTimeInLock = beginLockTimestamp;
+                    messageExtBatch.setStoreTimestamp(beginLockTimestamp);
+
+                    if (null == mappedFile || mappedFile.isFull()) {
+                        mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+                    }
+                    if (null == mappedFile) {
+                        log.error("Create mapped file1 error, topic: {} clientAddr: {}", messageExtBatch.getTopic(), messageExtBatch.getBornHostString());
+                        beginTimeInLock = 0;
+                        return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null);
+                    }
+
+                    result = mappedFile.appendMessages(messageExtBatch, this.appendMessageCallback);
+                    switch (result.getStatus()) {
+                    case PUT_OK:
+                        break;
+                    case END_OF_FILE:
+                        unlockMappedFile = mappedFile;
+                        mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+                        if (null == mappedFile) {
+                            log.error("Create mapped file2 error, topic: {} clientAddr: {}", messageExtBatch.getTopic(), messageExtBatch.getBornHostString());
+                            beginTimeInLock = 0;
+                            return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, result);
+                        }
+                        result = mappedFile.appendMessages(messageExtBatch, this.appendMessageCallback);
+                        break;
+                    case MESSAGE_SIZE_EXCEEDED:
+                    case PROPERTIES_SIZE_EXCEEDED:
+                        beginTimeInLock = 0;
+                        return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result);
+                    case UNKNOWN_ERROR:
+                    default:
+                        beginTimeInLock = 0;
+                        return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result);
+                    }
+
+                    eclipseTimeInLock = this.defaultMessageStore.getSystemClock().now() - beginLockTimestamp;
+                    beginTimeInLock = 0;
+                } finally {
+                    putMessageLock.unlock();
+                    storeMetrics.getPutMessageLockHold().recordNanos(System.nanoTime() - lockAcquiredNanos);
+                }
+                storeMetrics.getPutMessageLockWait().recordNanos(lockAcquiredNanos - lockRequestNanos);
+
+                if (eclipseTimeInLock > 500) {
+                    log.warn("[NOTIFYME]putMessages in lock cost time(ms)={}, bodyLength={} AppendMessageResult={}", eclipseTimeInLock, messageExtBatch.getBody().length, result);
+                }
+
+                if (null != unlockMappedFile && this.defaultMessageStore.getMessageStoreConfig().isWarmMapedFileEnable()) {
+                    this.defaultMessageStore.unlockMappedFile(unlockMappedFile);
+                }
+            }
+
+            PutMessageResult putMessageResult = new PutMessageResult(PutMessageStatus.PUT_OK, result);
+
+            // Statistics
+            storeStatsService.getSinglePutMessageTopicTimesTotal(messageExtBatch.getTopic()).addAndGet(result.getMsgNum());
+            storeStatsService.getSinglePutMessageTopicSizeTotal(messageExtBatch.getTopic()).addAndGet(result.getWroteBytes());
+
+            // 整批消息只提交一次刷盘请求和一次主从同步请求，刷盘点为这一批中最后一条消息的结束位置
+            handleDiskFlush(result, putMessageResult, messageExtBatch);
+            handleHA(result, putMessageResult, messageExtBatch);
+
+            return putMessageResult;
+        }
+
+        /**
+         * 无锁模式下的批量写入，整批消息一次性预留 encodedBuff 大小的空间，并且一次性分配 msgNum 个连续的 queueOffset，
+         * 然后复用 DefaultAppendMessageCallback#doAppend 的批量版本在预留的区域中回填偏移量并写入
+         */
+        // CommitLog#putMessagesLockFree
+        private AppendMessageResult putMessagesLockFree(final MessageExtBatch messageExtBatch) {
+            final String key = messageExtBatch.getTopic() + '-' + messageExtBatch.getQueueId();
+            final QueueOffsetSlot slot = this.getOrCreateQueueOffsetSlot(key);
+            final int totalLen = messageExtBatch.getEncodedBuff().remaining();
+            DefaultAppendMessageCallback callback = this.appendMessageCallbackThreadLocal.get();
+
+            for (int i = 0; i < 2; i++) {
+                MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
+                if (null == mappedFile || mappedFile.isFull()) {
+                    mappedFile = this.rollMappedFileLockFree(mappedFile);
+                }
+                if (null == mappedFile) {
+                    return null;
+                }
+
+                int pos;
+                long queueOffset;
+                synchronized (slot) {
+                    pos = mappedFile.reserve(totalLen, callback);
+                    queueOffset = slot.queueOffset;
+                    if (pos >= 0) {
+                        slot.queueOffset += messageExtBatch.getEncodedMsgNum();
+                    }
+                }
+
+                if (pos >= 0) {
+                    return mappedFile.appendEncodedBatch(pos, totalLen, queueOffset, messageExtBatch, callback);
+                }
+            }
+            return new AppendMessageResult(AppendMessageStatus.END_OF_FILE);
+        }
+
+        /**
+         * 批量消息编码器，每个线程一个（batchEncoderThreadLocal）。生产者发送过来的 MessageExtBatch 的 body 是客户端通过 MessageDecoder#encodeMessages
+         * 编码的多条消息，每条消息的格式为：
+         *
+         * TOTALSIZE(4) | MAGICCODE(4) | BODYCRC(4) | FLAG(4) | BODY LENGTH(4) | BODY | PROPERTIES LENGTH(2) | PROPERTIES
+         *
+         * encode 方法将其中的每一条消息转换成 CommitLog 中的存储格式，并且连续地写入到 msgBatchMemory 中，QUEUEOFFSET 和 PHYSICALOFFSET 先写 0，
+         * 在 doAppend 中回填
+         */
+        public static class MessageExtBatchEncoder {
+            // Store the message content
+            private final ByteBuffer msgBatchMemory;
+            // The maximum length of the message
+            private final int maxMessageSize;
+            private final ByteBuffer hostHolder = ByteBuffer.allocate(8);
+            // 上一次 encode 编码的消息条数
+            private int encodedMsgNum;
+
+            MessageExtBatchEncoder(final int size) {
+                this.msgBatchMemory = ByteBuffer.allocateDirect(size);
+                this.maxMessageSize = size;
+            }
+
+            // MessageExtBatchEncoder#encode
+            public ByteBuffer encode(final MessageExtBatch messageExtBatch) {
+                msgBatchMemory.clear(); //not thread-safe
+                this.encodedMsgNum = 0;
+                int totalMsgLen = 0;
+                ByteBuffer messagesByteBuff = messageExtBatch.wrap();
+
+                int sysFlag = messageExtBatch.getSysFlag();
+                int bornHostLength = 8;
+                int storeHostLength = 8;
+                final byte[] topicData = messageExtBatch.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
+                final int topicLength = topicData.length;
+
+                while (messagesByteBuff.hasRemaining()) {
+                    // 1 TOTALSIZE
+                    messagesByteBuff.getInt();
+                    // 2 MAGICCODE
+                    messagesByteBuff.getInt();
+                    // 3 BODYCRC
+                    messagesByteBuff.getInt();
+                    // 4 FLAG
+                    int flag = messagesByteBuff.getInt();
+                    // 5 BODY
+                    int bodyLen = messagesByteBuff.getInt();
+                    int bodyPos = messagesByteBuff.position();
+                    int bodyCrc = UtilAll.crc32(messagesByteBuff.array(), bodyPos, bodyLen);
+                    messagesByteBuff.position(bodyPos + bodyLen);
+                    // 6 properties
+                    short propertiesLen = messagesByteBuff.getShort();
+                    int propertiesPos = messagesByteBuff.position();
+                    messagesByteBuff.position(propertiesPos + propertiesLen);
+
+                    final int msgLen = calMsgLength(bodyLen, topicLength, propertiesLen);
+
+                    // 单条消息超过最大消息长度，或者整批消息超过编码缓冲区大小，都认为这一批消息不合法
+                    if (msgLen > this.maxMessageSize) {
+                        CommitLog.log.warn("message size exceeded, msg total size: " + msgLen + ", msg body size: " + bodyLen + ", maxMessageSize: " + this.maxMessageSize);
+                        return null;
+                    }
+                    totalMsgLen += msgLen;
+                    if (totalMsgLen > maxMessageSize) {
+                        CommitLog.log.warn("batch message size exceeded, total size: " + totalMsgLen + ", maxMessageSize: " + this.maxMessageSize);
+                        return null;
+                    }
+
+                    // 1 TOTALSIZE
+                    this.msgBatchMemory.putInt(msgLen);
+                    // 2 MAGICCODE
+                    this.msgBatchMemory.putInt(CommitLog.MESSAGE_MAGIC_CODE);
+                    // 3 BODYCRC
+                    this.msgBatchMemory.putInt(bodyCrc);
+                    // 4 QUEUEID
+                    this.msgBatchMemory.putInt(messageExtBatch.getQueueId());
+                    // 5 FLAG
+                    this.msgBatchMemory.putInt(flag);
+                    // 6 QUEUEOFFSET，在 doAppend 中回填
+                    this.msgBatchMemory.putLong(0);
+                    // 7 PHYSICALOFFSET，在 doAppend 中回填
+                    this.msgBatchMemory.putLong(0);
+                    // 8 SYSFLAG
+                    this.msgBatchMemory.putInt(sysFlag);
+                    // 9 BORNTIMESTAMP
+                    this.msgBatchMemory.putLong(messageExtBatch.getBornTimestamp());
+                    // 10 BORNHOST
+                    this.resetByteBuffer(hostHolder, bornHostLength);
+                    this.msgBatchMemory.put(messageExtBatch.getBornHostBytes(hostHolder));
+                    // 11 STORETIMESTAMP
+                    this.msgBatchMemory.putLong(messageExtBatch.getStoreTimestamp());
+                    // 12 STOREHOSTADDRESS
+                    this.resetByteBuffer(hostHolder, storeHostLength);
+                    this.msgBatchMemory.put(messageExtBatch.getStoreHostBytes(hostHolder));
+                    // 13 RECONSUMETIMES
+                    this.msgBatchMemory.putInt(messageExtBatch.getReconsumeTimes());
+                    // 14 Prepared Transaction Offset, batch does not support transaction
+                    this.msgBatchMemory.putLong(0);
+                    // 15 BODY
+                    this.msgBatchMemory.putInt(bodyLen);
+                    if (bodyLen > 0)
+                        this.msgBatchMemory.put(messagesByteBuff.array(), bodyPos, bodyLen);
+                    // 16 TOPIC
+                    this.msgBatchMemory.put((byte) topicLength);
+                    this.msgBatchMemory.put(topicData);
+                    // 17 PROPERTIES
+                    this.msgBatchMemory.putShort(propertiesLen);
+                    if (propertiesLen > 0)
+                        this.msgBatchMemory.put(messagesByteBuff.array(), propertiesPos, propertiesLen);
+
+                    this.encodedMsgNum++;
+                }
+                msgBatchMemory.flip();
+                return msgBatchMemory;
+            }
+
+            public int getEncodedMsgNum() {
+                return this.encodedMsgNum;
+            }
+
+            private void resetByteBuffer(final ByteBuffer byteBuffer, final int limit) {
+                byteBuffer.flip();
+                byteBuffer.limit(limit);
+            }
+        }
+
         // 同步刷盘和异步刷盘
         public void handleDiskFlush(AppendMessageResult result, PutMessageResult putMessageResult, MessageExt messageExt) {
             // Synchronization flush
@@ -1117,9 +2579,211 @@ public class RocketmqMessageStoreAnalysis{
             }
         }
 
+        /**
+         * handleDiskFlush 的异步版本。同步刷盘时不再调用 GroupCommitRequest#waitForFlush 阻塞当前线程，而是直接返回 GroupCommitRequest 中的 future，
+         * GroupCommitService 线程执行完刷盘之后会调用 wakeupCustomer 来完成这个 future。异步刷盘以及不需要等待存储结果的消息直接返回一个已完成的 future
+         */
+        // CommitLog#submitFlushRequest
+        public CompletableFuture<PutMessageStatus> submitFlushRequest(AppendMessageResult result, MessageExt messageExt) {
+            if (FlushDiskType.SYNC_FLUSH == this.defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
+                final GroupCommitService service = (GroupCommitService) this.flushCommitLogService;
+                if (messageExt.isWaitStoreMsgOK()) {
+                    GroupCommitRequest request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
+                    service.putRequest(request);
+                    return request.future().thenApply(flushOK -> {
+                        if (!flushOK) {
+                            log.error("do groupcommit, wait for flush failed, topic: " + messageExt.getTopic() + " tags: " + messageExt.getTags()
+                                + " client address: " + messageExt.getBornHostString());
+                            return PutMessageStatus.FLUSH_DISK_TIMEOUT;
+                        }
+                        return PutMessageStatus.PUT_OK;
+                    });
+                } else {
+                    service.wakeup();
+                    return CompletableFuture.completedFuture(PutMessageStatus.PUT_OK);
+                }
+            } else {
+                if (!this.defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+                    flushCommitLogService.wakeup();
+                } else {
+                    commitLogService.wakeup();
+                }
+                return CompletableFuture.completedFuture(PutMessageStatus.PUT_OK);
+            }
+        }
+
+        /**
+         * 异步写入消息。putMessage 在消息追加到 MappedFile 之后，会在 handleDiskFlush 和 handleHA 中阻塞调用线程，直到刷盘和主从同步完成，
+         * 对于 SYNC_FLUSH 或者 SYNC_MASTER 的 Broker 来说，每一条正在处理的消息都会占用一个 SendMessageProcessor 线程。
+         *
+         * asyncPutMessage 在消息追加完成之后，通过 submitFlushRequest 和 submitReplicaRequest 分别得到刷盘和主从同步的 future，
+         * 然后通过 thenCombine 将两者组合起来：只有刷盘和主从同步都完成之后，返回的 future 才会完成。调用线程不会被阻塞，
+         * 这样少量的线程就可以同时处理大量的同步发送请求
+         */
+        // CommitLog#asyncPutMessage
+        public CompletableFuture<PutMessageResult> asyncPutMessage(final MessageExtBrokerInner msg) {
+            // Set the storage time
+            msg.setStoreTimestamp(System.currentTimeMillis());
+            // Set the message body BODY CRC (consider the most appropriate setting on the client)
+            msg.setBodyCRC(UtilAll.crc32(msg.getBody()));
+            // Back to Results
+            AppendMessageResult result = null;
+
+            StoreStatsService storeStatsService = this.defaultMessageStore.getStoreStatsService();
+            String topic = msg.getTopic();
+            int queueId = msg.getQueueId();
+
+            final int tranType = MessageSysFlag.getTransactionValue(msg.getSysFlag());
+            if (tranType == MessageSysFlag.TRANSACTION_NOT_TYPE || tranType == MessageSysFlag.TRANSACTION_COMMIT_TYPE) {
+                // Delay Delivery
+                if (msg.getDelayTimeLevel() > 0) {
+                    if (msg.getDelayTimeLevel() > this.defaultMessageStore.getScheduleMessageService().getMaxDelayLevel()) {
+                        msg.setDelayTimeLevel(this.defaultMessageStore.getScheduleMessageService().getMaxDelayLevel());
+                    }
+
+                    topic = ScheduleMessageService.SCHEDULE_TOPIC;
+                    queueId = ScheduleMessageService.delayLevel2QueueId(msg.getDelayTimeLevel());
+
+                    MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_TOPIC, msg.getTopic());
+                    MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_QUEUE_ID, String.valueOf(msg.getQueueId()));
+                    msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+
+                    msg.setTopic(topic);
+                    msg.setQueueId(queueId);
+                }
+            }
+
+            // 开启无锁追加时必须和 putMessageLockFree 使用同一种写入方式，返回的结果同样不复用
+            if (this.defaultMessageStore.getMessageStoreConfig().isEnableLockFreeAppend()) {
+                return this.asyncPutMessageLockFree(msg);
+            }
+
+            long eclipseTimeInLock = 0;
+            MappedFile unlockMappedFile = null;
+            MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
+
+            // 返回的 PutMessageResult 会被 future 持有到刷盘和主从同步完成，所以这里不复用 AppendMessageResult
+            StoreMetrics storeMetrics = this.defaultMessageStore.getStoreMetrics();
+            long lockRequestNanos = System.nanoTime();
+            putMessageLock.lock();
+            long lockAcquiredNanos = System.nanoTime();
+            try {
+                long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
+                this.beginTimeInLock = beginLockTimestamp;
+
+                msg.setStoreTimestamp(beginLockTimestamp);
+
+                if (null == mappedFile || mappedFile.isFull()) {
+                    mappedFile = this.mappedFileQueue.getLastMappedFile(0); // Mark: NewFile may be cause noise
+                }
+
+                if (null == mappedFile) {
+                    log.error("create mapped file1 error, topic: " + msg.getTopic() + " clientAddr: " + msg.getBornHostString());
+                    beginTimeInLock = 0;
+                    return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null));
+                }
+
+                result = mappedFile.appendMessage(msg, this.appendMessageCallback, null);
+                switch (result.getStatus()) {
+                case PUT_OK:
+                    break;
+                case END_OF_FILE:
+                    unlockMappedFile = mappedFile;
+                    // Create a new file, re-write the message
+                    mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+                    if (null == mappedFile) {
+                        log.error("create mapped file2 error, topic: " + msg.getTopic() + " clientAddr: " + msg.getBornHostString());
+                        beginTimeInLock = 0;
+                        return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, result));
+                    }
+                    result = mappedFile.appendMessage(msg, this.appendMessageCallback, null);
+                    break;
+                case MESSAGE_SIZE_EXCEEDED:
+                case PROPERTIES_SIZE_EXCEEDED:
+                    beginTimeInLock = 0;
+                    return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result));
+                case UNKNOWN_ERROR:
+                default:
+                    beginTimeInLock = 0;
+                    return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result));
+                }
+
+                eclipseTimeInLock = this.defaultMessageStore.getSystemClock().now() - beginLockTimestamp;
+                beginTimeInLock = 0;
+            } finally {
+                putMessageLock.unlock();
+                storeMetrics.getPutMessageLockHold().recordNanos(System.nanoTime() - lockAcquiredNanos);
+            }
+            storeMetrics.getPutMessageLockWait().recordNanos(lockAcquiredNanos - lockRequestNanos);
+
+            if (eclipseTimeInLock > 500) {
+                log.warn("[NOTIFYME]putMessage in lock cost time(ms)={}, bodyLength={} AppendMessageResult={}", eclipseTimeInLock, msg.getBody().length, result);
+            }
+
+            if (null != unlockMappedFile && this.defaultMessageStore.getMessageStoreConfig().isWarmMapedFileEnable()) {
+                this.defaultMessageStore.unlockMappedFile(unlockMappedFile);
+            }
+
+            PutMessageResult putMessageResult = new PutMessageResult(PutMessageStatus.PUT_OK, result);
+
+            // Statistics
+            storeStatsService.getSinglePutMessageTopicTimesTotal(msg.getTopic()).incrementAndGet();
+            storeStatsService.getSinglePutMessageTopicSizeTotal(topic).addAndGet(result.getWroteBytes());
+
+            return this.submitFlushAndReplica(result, putMessageResult, msg);
+        }
+
+        // asyncPutMessage 在无锁追加模式下的实现，延迟消息的 topic 已经在 asyncPutMessage 中替换过了
+        // CommitLog#asyncPutMessageLockFree
+        private CompletableFuture<PutMessageResult> asyncPutMessageLockFree(final MessageExtBrokerInner msg) {
+            AppendMessageResult result = this.appendMessageLockFree(msg, null);
+            if (null == result) {
+                return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null));
+            }
+            switch (result.getStatus()) {
+            case PUT_OK:
+                break;
+            case MESSAGE_SIZE_EXCEEDED:
+            case PROPERTIES_SIZE_EXCEEDED:
+                return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result));
+            default:
+                return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result));
+            }
+
+            PutMessageResult putMessageResult = new PutMessageResult(PutMessageStatus.PUT_OK, result);
+
+            StoreStatsService storeStatsService = this.defaultMessageStore.getStoreStatsService();
+            storeStatsService.getSinglePutMessageTopicTimesTotal(msg.getTopic()).incrementAndGet();
+            storeStatsService.getSinglePutMessageTopicSizeTotal(msg.getTopic()).addAndGet(result.getWroteBytes());
+
+            return this.submitFlushAndReplica(result, putMessageResult, msg);
+        }
+
+        // CommitLog#submitFlushAndReplica
+        private CompletableFuture<PutMessageResult> submitFlushAndReplica(final AppendMessageResult result, final PutMessageResult putMessageResult,
+                    final MessageExt msg) {
+            CompletableFuture<PutMessageStatus> flushResultFuture = submitFlushRequest(result, msg);
+            CompletableFuture<PutMessageStatus> replicaResultFuture = submitReplicaRequest(result, msg);
+            // 刷盘失败的优先级高于主从同步失败，这和原来先执行 handleDiskFlush 再执行 handleHA 的覆盖顺序一致
+            return flushResultFuture.thenCombine(replicaResultFuture, (flushStatus, replicaStatus) -> {
+                if (flushStatus != PutMessageStatus.PUT_OK) {
+                    putMessageResult.setPutMessageStatus(flushStatus);
+                }
+                if (replicaStatus != PutMessageStatus.PUT_OK) {
+                    putMessageResult.setPutMessageStatus(replicaStatus);
+                }
+                return putMessageResult;
+            });
+        }
+
         // 获取当前 commitlog 目录的最小偏移量，首先获取目录下的第一个文件，如果该文件可用，那么返回该文件的起始偏移量，
         // 否则返回下一个文件的起始偏移量
         public long getMinOffset() {
+            // 被压缩的 CommitLog 文件仍然可以读取，所以最小偏移量是压缩段中的最小偏移量，这样 CleanConsumeQueueService 不会删除这些文件对应的 ConsumeQueue
+            long compressedMinOffset = this.getCompressedMinOffset();
+            if (compressedMinOffset != -1) {
+                return compressedMinOffset;
+            }
             MappedFile mappedFile = this.mappedFileQueue.getFirstMappedFile();
             if (mappedFile != null) {
                 if (mappedFile.isAvailable()) {
@@ -1142,9 +2806,26 @@ public class RocketmqMessageStoreAnalysis{
                 int pos = (int) (offset % mappedFileSize);
                 return mappedFile.selectMappedBuffer(pos, size);
             }
+            // 如果 offset 所在的 CommitLog 文件已经被 CommitLogCompactService 压缩，那么从压缩段中读取，
+            // 具体参考 RocketmqMessageStoreAnalysisThree 中的 CompressedSegment
+            if (offset < this.mappedFileQueue.getMinOffset() || this.mappedFileQueue.getMinOffset() == -1) {
+                return this.getMessageFromCompressedSegment(offset, size);
+            }
             return null;
         }
 
+        // 判断 CommitLog 中 [offset, offset + size) 这段数据是否都在 page cache 中，只检查 offset 所在的 MappedFile，超出文件末尾的部分忽略
+        // CommitLog#isResident
+        public boolean isResident(final long offset, final int size) {
+            int mappedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog();
+            MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset, offset == 0);
+            if (mappedFile == null) {
+                return true;
+            }
+            int pos = (int) (offset % mappedFileSize);
+            return mappedFile.isResident(pos, Math.min(size, mappedFileSize - pos));
+        }
+
         public DispatchRequest checkMessageAndReturnSize(java.nio.ByteBuffer byteBuffer, final boolean checkCRC, final boolean readBody) {
             try {
                 // 1 TOTAL SIZE 先从 ByteBuffer 中获取到这条消息的总长度
@@ -1261,12 +2942,26 @@ public class RocketmqMessageStoreAnalysis{
         private final CountDownLatch countDownLatch = new CountDownLatch(1);
         // 刷盘结果，初始状态为 false
         private volatile boolean flushOK = false;
+        // 异步写入模式下（CommitLog#asyncPutMessage），消息发送线程不会阻塞在 countDownLatch 上，而是在这个 future 上注册回调，
+        // 刷盘（或者主从同步）完成之后由 GroupCommitService（或者 GroupTransferService）线程完成这个 future
+        private final CompletableFuture<Boolean> flushOKFuture = new CompletableFuture<>();
+        // 创建时间，多数派复制模式下 GroupTransferService 根据它判断请求是否超时
+        private final long createTimestamp = System.currentTimeMillis();
 
         // GroupCommitService 线程处理 GroupCommitRequest 对象后将调用 wakeupCustomer 法将消费发送线程唤醒，并将刷盘的结果告知 GroupCommitRequest
         // 也就是将 flushOK 的结果保存到 GroupCommitRequest 中去
         public void wakeupCustomer(final boolean flushOK) {
             this.flushOK = flushOK;
             this.countDownLatch.countDown();
+            this.flushOKFuture.complete(flushOK);
+        }
+
+        public CompletableFuture<Boolean> future() {
+            return this.flushOKFuture;
+        }
+
+        public long getCreateTimestamp() {
+            return createTimestamp;
         }
 
         // 消费发送线程将消息追加到内存映射文件后，将同步任务 GroupCommitRequest 提交到 GroupCommitService 线程，然后调用阻塞等待刷盘结果，
@@ -1293,6 +2988,15 @@ public class RocketmqMessageStoreAnalysis{
         // 真正是从 requestsRead 列表中读取任务进行刷盘操作，这样就避免了刷盘任务提交与刷盘任务具体执行的冲突
         private volatile List<GroupCommitRequest> requestsRead = new ArrayList<GroupCommitRequest>();
 
+        // EWMA 的平滑系数，新的采样值占 1/8 的权重
+        private static final double EWMA_ALPHA = 0.125;
+        // 一次 force 操作耗时的指数加权移动平均值，单位为纳秒
+        private double avgFlushCostNanos = 0;
+        // 刷盘请求到达速率的指数加权移动平均值，单位为个/纳秒
+        private double avgArrivalRate = 0;
+        // 上一次 doCommit 开始的时间，用来计算两次 doCommit 之间到达的请求的速率
+        private long lastCommitBeginNanos = System.nanoTime();
+
         public synchronized void putRequest(final GroupCommitRequest request) {
             synchronized (this.requestsWrite) {
                 this.requestsWrite.add(request);
@@ -1311,27 +3015,53 @@ public class RocketmqMessageStoreAnalysis{
             this.requestsRead = tmp;
         }
 
+        /**
+         * 组提交。原来的实现是遍历 requestsRead 中的每一个 GroupCommitRequest，逐个判断并调用 mappedFileQueue#flush，现在改为：
+         *
+         * 1.先找出这一批请求中最大的刷盘点 maxNextOffset
+         * 2.只执行一次 force 操作（如果这一批消息跨越了两个 CommitLog 文件，最多执行两次），将数据刷到 maxNextOffset 之后
+         * 3.根据刷盘之后的 flushedWhere 一次性唤醒这一批所有的消息发送线程
+         *
+         * 由于一次 force 会把 MappedFile 中所有已写入的数据都刷到磁盘上，所以一批请求的刷盘代价和一个请求基本相同，
+         * 同步刷盘模式下 Broker 的 TPS 就不再受限于每条消息一次 fsync
+         */
         private void doCommit() {
             synchronized (this.requestsRead) {
                 if (!this.requestsRead.isEmpty()) {
-                    // 1.遍历同步刷盘任务列表，根据加入顺序逐一执行刷盘逻辑
+                    long beginNanos = System.nanoTime();
+                    // 1.找出这一批同步刷盘请求中最大的刷盘点
+                    long maxNextOffset = 0;
                     for (GroupCommitRequest req : this.requestsRead) {
-                        // There may be a message in the next file, so a maximum of two times the flush
-                        boolean flushOK = false;
-                        // 2.调用 mappedFileQueue#flush 方法执行刷盘操作，最终会调用 MappedByteBuffer#force 方法。
-                        // 如果已刷盘指针大于等于提交的刷盘点，表示刷盘成功，每执行一次刷盘操作后，立即调用 GroupCommitRequest#wakeupCustomer
-                        // 唤醒消息发送线程并通知刷盘结果
-                        for (int i = 0; i < 2 && !flushOK; i++) {
-                            flushOK = CommitLog.this.mappedFileQueue.getFlushedWhere() >= req.getNextOffset();
-                            if (!flushOK) {
-                                CommitLog.this.mappedFileQueue.flush(0);
-                            }
+                        if (req.getNextOffset() > maxNextOffset) {
+                            maxNextOffset = req.getNextOffset();
                         }
-                        req.wakeupCustomer(flushOK);
+                    }
+
+                    // 2.There may be a message in the next file, so a maximum of two times the flush
+                    boolean flushed = false;
+                    for (int i = 0; i < 2 && CommitLog.this.mappedFileQueue.getFlushedWhere() < maxNextOffset; i++) {
+                        CommitLog.this.mappedFileQueue.flush(0);
+                        flushed = true;
+                    }
+
+                    long endNanos = System.nanoTime();
+                    if (flushed) {
+                        this.avgFlushCostNanos = ewma(this.avgFlushCostNanos, endNanos - beginNanos);
+                        CommitLog.this.defaultMessageStore.getStoreMetrics().getFlush().recordNanos(endNanos - beginNanos);
+                    }
+                    // 两次 doCommit 之间到达的请求数就是这一批请求的个数
+                    long interval = Math.max(1, beginNanos - this.lastCommitBeginNanos);
+                    this.avgArrivalRate = ewma(this.avgArrivalRate, (double) this.requestsRead.size() / interval);
+                    this.lastCommitBeginNanos = beginNanos;
+
+                    // 3.一次性唤醒这一批所有的消息发送线程，刷盘点小于等于 flushedWhere 的请求刷盘成功
+                    long flushedWhere = CommitLog.this.mappedFileQueue.getFlushedWhere();
+                    for (GroupCommitRequest req : this.requestsRead) {
+                        req.wakeupCustomer(flushedWhere >= req.getNextOffset());
                     }
 
                     long storeTimestamp = CommitLog.this.mappedFileQueue.getStoreTimestamp();
-                    // 3.处理完所有的同步刷盘任务之后，更新刷盘检测点 StoreCheckpoint 中的 physicMsgTimestamp，
+                    // 4.处理完所有的同步刷盘任务之后，更新刷盘检测点 StoreCheckpoint 中的 physicMsgTimestamp，
                     // 但并没有执行检测点的刷盘操作，刷盘检测点的刷盘操作将在写消息队列文件时触发
                     if (storeTimestamp > 0) {
                         CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(storeTimestamp);
@@ -1345,13 +3075,42 @@ public class RocketmqMessageStoreAnalysis{
             }
         }
 
+        private double ewma(final double average, final double sample) {
+            return average == 0 ? sample : average + EWMA_ALPHA * (sample - average);
+        }
+
+        /**
+         * 计算在处理下一批请求之前需要额外等待（linger）的时间，单位为纳秒。
+         *
+         * putRequest 会立即唤醒 GroupCommitService 线程，所以如果不做任何等待，在请求稀疏的时候每个请求都能立刻被刷盘，延迟最低；
+         * 但是在请求密集的时候，每一批只能攒到很少的请求，fsync 的次数反而变多。所以这里根据测量到的 fsync 耗时和请求到达速率来决定是否等待：
+         *
+         * 1.如果在一次 fsync 的时间内预计到达的请求数不足 1 个（avgArrivalRate * avgFlushCostNanos < 1），说明请求很稀疏，等待只会增加延迟，不等待
+         * 2.否则等待 fsync 耗时的一半，让更多的请求加入到这一批中，等待时间不超过 groupCommitMaxLingerMicros。因为等待时间总是小于一次 fsync 的耗时，
+         * 所以单个请求的延迟最多增加半次 fsync，而每次 fsync 能够覆盖的请求数随着到达速率线性增长
+         */
+        private long computeLingerNanos() {
+            double expectedArrivals = this.avgArrivalRate * this.avgFlushCostNanos;
+            if (expectedArrivals < 1) {
+                return 0;
+            }
+            long maxLingerNanos = TimeUnit.MICROSECONDS.toNanos(
+                CommitLog.this.defaultMessageStore.getMessageStoreConfig().getGroupCommitMaxLingerMicros());
+            return Math.min(maxLingerNanos, (long) (this.avgFlushCostNanos / 2));
+        }
+
         public void run() {
             CommitLog.log.info(this.getServiceName() + " service started");
 
-            // GroupCommitService 每处理一批同步刷盘请求（也就是 requestsRead 容器中的刷盘请求）后"休息" 0ms，然后继续处理下一批，
-            // 其任务的核心实现为 doCommit 方法
+            // GroupCommitService 每处理一批同步刷盘请求（也就是 requestsRead 容器中的刷盘请求）后，根据 computeLingerNanos 的结果等待一小段时间，
+            // 让更多的请求进入 requestsWrite，然后再通过 waitForRunning 交换读写容器，处理下一批。waitForRunning(10) 中的 10ms 只是没有请求时的
+            // 最长等待时间，有新的请求到达时线程会被 putRequest 立即唤醒
             while (!this.isStopped()) {
                 try {
+                    long lingerNanos = this.computeLingerNanos();
+                    if (lingerNanos > 0) {
+                        LockSupport.parkNanos(lingerNanos);
+                    }
                     this.waitForRunning(10);
                     this.doCommit();
                 } catch (Exception e) {
@@ -1381,6 +3140,8 @@ public class RocketmqMessageStoreAnalysis{
         private static final AtomicLong TOTAL_MAPPED_VIRTUAL_MEMORY = new AtomicLong(0);
         // 当前 JVM 实例中 MappedFile 对象的个数
         private static final AtomicInteger TOTAL_MAPPED_FILES = new AtomicInteger(0);
+        // isResident 调用 mincore 时使用的线程私有数组，避免每次拉取都分配
+        private static final ThreadLocal<byte[]> MINCORE_VEC = ThreadLocal.withInitial(() -> new byte[64]);
         // 当前文件的写指针（内存映射文件中的写指针），从 0 开始
         protected final AtomicInteger wrotePosition = new AtomicInteger(0);
         // ADD BY ChenYang
@@ -1408,15 +3169,28 @@ public class RocketmqMessageStoreAnalysis{
         private volatile long storeTimestamp = 0;
         // 是否是 MappedFileQueue 队列的第一个文件
         private boolean firstCreateInQueue = false;
+        // 该文件对应的稀疏时间索引，持久化在 ${fileName}.timeidx 中，旧版本的文件以及没有开启 timeSkipIndexEnable 时为 null
+        private volatile TimeSkipIndex timeSkipIndex;
 
         // MappedFile#appendMessage
         public AppendMessageResult appendMessage(final MessageExtBrokerInner msg, final AppendMessageCallback cb) {
-            return appendMessagesInner(msg, cb);
+            return appendMessagesInner(msg, cb, null);
+        }
+
+        // reuse 不为 null 时，写入的结果保存在 reuse 中并返回，见 CommitLog.PutMessageContext
+        // MappedFile#appendMessage
+        public AppendMessageResult appendMessage(final MessageExtBrokerInner msg, final AppendMessageCallback cb, final AppendMessageResult reuse) {
+            return appendMessagesInner(msg, cb, reuse);
+        }
+
+        // MappedFile#appendMessages
+        public AppendMessageResult appendMessages(final MessageExtBatch messageExtBatch, final AppendMessageCallback cb) {
+            return appendMessagesInner(messageExtBatch, cb, null);
         }
 
         // 将消息追加到 MappedFile 中
         // MappedFile#appendMessageInner
-        public AppendMessageResult appendMessagesInner(final MessageExt messageExt, final AppendMessageCallback cb) {  
+        public AppendMessageResult appendMessagesInner(final MessageExt messageExt, final AppendMessageCallback cb, final AppendMessageResult reuse) {
             // 先获取 MappedFile 当前的写指针  
             int currentPos = this.wrotePosition.get();
 
@@ -1429,21 +3203,131 @@ public class RocketmqMessageStoreAnalysis{
                 byteBuffer.position(currentPos);
                 AppendMessageResult result = null;
 
-                if (messageExt instanceof MessageExtBrokerInner) {
-                    result = cb.doAppend(this.getFileFromOffset(), byteBuffer, this.fileSize - currentPos, (MessageExtBrokerInner) messageExt);
-                } else if (messageExt instanceof MessageExtBatch) {
-                    result = cb.doAppend(this.getFileFromOffset(), byteBuffer, this.fileSize - currentPos, (MessageExtBatch) messageExt);
-                } else {
-                    return new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR);
+                if (messageExt instanceof MessageExtBrokerInner) {
+                    result = cb.doAppend(this.getFileFromOffset(), byteBuffer, this.fileSize - currentPos, (MessageExtBrokerInner) messageExt, reuse);
+                } else if (messageExt instanceof MessageExtBatch) {
+                    result = cb.doAppend(this.getFileFromOffset(), byteBuffer, this.fileSize - currentPos, (MessageExtBatch) messageExt);
+                } else {
+                    return new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR);
+                }
+
+                this.wrotePosition.addAndGet(result.getWroteBytes());
+                this.storeTimestamp = result.getStoreTimestamp();
+                return result;
+            }
+
+            log.error("MappedFile.appendMessage return null, wrotePosition: {} fileSize: {}", currentPos, this.fileSize);
+            return new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR);
+        }
+
+        /**
+         * 无锁追加模式下的预留指针，多个写线程通过 CAS 推进该指针来获得各自独占的写入区域 [pos, pos + msgLen)。
+         *
+         * 在无锁模式下，wrotePosition 的含义变为"已发布的连续写入位置"，也就是 [0, wrotePosition) 之间的数据全部已经写入完成，
+         * 而 reservedPosition 总是大于等于 wrotePosition，两者之间就是正在被写入的区域
+         */
+        protected final AtomicInteger reservedPosition = new AtomicInteger(0);
+        // 已经写入完成但是还没有发布的区域，pos -> msgLen。由于前面的区域还没有写完，这些区域暂时不能对读线程和刷盘线程可见
+        private final ConcurrentMap<Integer, Integer> pendingPublish = new ConcurrentHashMap<>();
+
+        /**
+         * 在当前文件中为一条长度为 msgLen 的消息预留空间，返回预留区域的起始位置。
+         *
+         * 这里本质上是一次 fetch-and-add，但是由于需要保证 CommitLog 文件末尾至少留出 END_FILE_MIN_BLANK_LENGTH 个字节用来写入文件结束标记，
+         * 所以使用 CAS 循环来代替 getAndAdd，避免预留指针越过文件末尾之后无法回退。如果剩余空间不足，那么成功将 reservedPosition 推进到 fileSize 的线程
+         * 负责写入 BLANK_MAGIC_CODE 填充文件末尾，并且发布这段区域，其余线程直接返回 -1，然后在下一个文件中重试
+         */
+        // MappedFile#reserve
+        public int reserve(final int msgLen, final CommitLog.DefaultAppendMessageCallback cb) {
+            for (;;) {
+                int currentPos = this.reservedPosition.get();
+                if (currentPos >= this.fileSize) {
+                    return -1;
+                }
+
+                if (currentPos + msgLen + CommitLog.END_FILE_MIN_BLANK_LENGTH <= this.fileSize) {
+                    if (this.reservedPosition.compareAndSet(currentPos, currentPos + msgLen)) {
+                        return currentPos;
+                    }
+                } else if (this.reservedPosition.compareAndSet(currentPos, this.fileSize)) {
+                    int maxBlank = this.fileSize - currentPos;
+                    ByteBuffer byteBuffer = writeBuffer != null ? writeBuffer.slice() : this.mappedByteBuffer.slice();
+                    byteBuffer.position(currentPos);
+                    cb.appendBlank(byteBuffer, maxBlank);
+                    this.publish(currentPos, maxBlank);
+                    return -1;
                 }
+            }
+        }
 
-                this.wrotePosition.addAndGet(result.getWroteBytes());
+        // 将编码好的消息写入到 reserve 方法预留的区域中，然后发布该区域
+        // MappedFile#appendEncoded
+        public AppendMessageResult appendEncoded(final int pos, final int msgLen, final long queueOffset,
+                    final MessageExtBrokerInner msg, final CommitLog.DefaultAppendMessageCallback cb, final AppendMessageResult reuse) {
+            // 每个线程使用自己的 slice，各自的 position 互不影响
+            ByteBuffer byteBuffer = writeBuffer != null ? writeBuffer.slice() : this.mappedByteBuffer.slice();
+            byteBuffer.position(pos);
+            AppendMessageResult result = cb.appendEncoded(this.getFileFromOffset() + pos, byteBuffer, msgLen, queueOffset, msg, reuse);
+
+            // 多个线程并发写入，storeTimestamp 只向前推进
+            if (result.getStoreTimestamp() > this.storeTimestamp) {
                 this.storeTimestamp = result.getStoreTimestamp();
-                return result;
             }
+            this.publish(pos, msgLen);
+            return result;
+        }
 
-            log.error("MappedFile.appendMessage return null, wrotePosition: {} fileSize: {}", currentPos, this.fileSize);
-            return new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR);
+        /**
+         * 发布 [pos, pos + len) 这段已经写入完成的区域，也就是 sequencer 的实现。
+         *
+         * 先将该区域放入 pendingPublish 中，然后尝试推进 wrotePosition：只要 pendingPublish 中存在以当前 wrotePosition 为起点的区域，
+         * 就通过 CAS 将 wrotePosition 推进到该区域的末尾，并且继续检查下一个区域。任何一个写线程都可以帮助推进 wrotePosition，
+         * 因为每个线程都是先放入 pendingPublish 再检查 wrotePosition，而推进 wrotePosition 的线程在每次推进之后都会重新检查，
+         * 所以不会出现某个区域已经写完但是永远没有被发布的情况。
+         *
+         * 这样 wrotePosition 总是一个连续写入完成的水位线，getReadPosition、commit0、flush 以及 ReputMessageService 读取到的数据都不会有空洞
+         */
+        // MappedFile#publish
+        private void publish(final int pos, final int len) {
+            this.pendingPublish.put(pos, len);
+            for (;;) {
+                int published = this.wrotePosition.get();
+                Integer size = this.pendingPublish.get(published);
+                if (size == null) {
+                    break;
+                }
+                if (this.wrotePosition.compareAndSet(published, published + size)) {
+                    this.pendingPublish.remove(published);
+                }
+            }
+        }
+
+        // 无锁模式下的批量写入，在 reserve 方法预留的 [pos, pos + totalLen) 区域中写入整批消息，然后发布该区域。
+        // 传入的 queueOffset 是已经为这一批消息分配好的第一个逻辑偏移量
+        // MappedFile#appendEncodedBatch
+        public AppendMessageResult appendEncodedBatch(final int pos, final int totalLen, final long queueOffset,
+                    final MessageExtBatch messageExtBatch, final CommitLog.DefaultAppendMessageCallback cb) {
+            ByteBuffer byteBuffer = writeBuffer != null ? writeBuffer.slice() : this.mappedByteBuffer.slice();
+            byteBuffer.position(pos);
+            byteBuffer.limit(pos + totalLen);
+            AppendMessageResult result = cb.doAppendReserved(this.getFileFromOffset(), byteBuffer, queueOffset, messageExtBatch);
+
+            if (result.getStoreTimestamp() > this.storeTimestamp) {
+                this.storeTimestamp = result.getStoreTimestamp();
+            }
+            this.publish(pos, totalLen);
+            return result;
+        }
+
+        // 无锁追加模式下，只要 reservedPosition 到达文件末尾，就不会再有新的消息写入到该文件中，即使还有线程在向该文件中写入数据，
+        // 也应该认为该文件已满，这样 MappedFileQueue#getLastMappedFile 才会创建下一个文件。在加锁模式下 reservedPosition 停留在加载时恢复的写指针，不会等于 fileSize（除非文件在加载时已经写满），不影响原来的逻辑
+        // MappedFile#isFull
+        public boolean isFull() {
+            return this.fileSize == this.wrotePosition.get() || this.fileSize == this.reservedPosition.get();
+        }
+
+        // 给 TieredMappedFile 使用，由子类调用 initReadOnly 进行初始化
+        protected MappedFile() {
         }
 
         public MappedFile(final String fileName, final int fileSize) throws IOException {
@@ -1455,11 +3339,26 @@ public class RocketmqMessageStoreAnalysis{
         }
 
         public void init(final String fileName, final int fileSize, final TransientStorePool transientStorePool)throws IOException {
-            init(fileName, fileSize);
-            this.writeBuffer = transientStorePool.borrowBuffer();
+            // 正常情况下 putMessage 在池子耗尽时已经进行了反压，这里如果仍然借不到 ByteBuffer，就让创建文件失败，putMessage 返回 CREATE_MAPEDFILE_FAILED，
+            // 而不是悄悄退化为直接写 mappedByteBuffer
+            ByteBuffer byteBuffer = transientStorePool.borrowBuffer();
+            if (byteBuffer == null) {
+                throw new IOException("TransientStorePool exhausted, can not create " + fileName);
+            }
+            try {
+                init(fileName, fileSize);
+            } catch (IOException e) {
+                transientStorePool.returnBuffer(byteBuffer);
+                throw e;
+            }
+            this.writeBuffer = byteBuffer;
             this.transientStorePool = transientStorePool;
         }
 
+        public boolean hasWriteBuffer() {
+            return this.writeBuffer != null;
+        }
+
         /**
          * 根据是否开启 transientStorePoolEnable 存在两种初始化情况。
          * 
@@ -1505,6 +3404,16 @@ public class RocketmqMessageStoreAnalysis{
             }
         }
 
+        // 冷存储中的文件只读并且按 Block 读取，只打开 FileChannel，不做内存映射，mappedByteBuffer 为 null，也不计入 TOTAL_MAPPED_VIRTUAL_MEMORY
+        // MappedFile#initReadOnly
+        protected void initReadOnly(final String fileName, final int fileSize) throws IOException {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.file = new File(fileName);
+            this.fileFromOffset = Long.parseLong(this.file.getName());
+            this.fileChannel = new RandomAccessFile(this.file, "r").getChannel();
+        }
+
         public void mlock() {
             final long beginTime = System.currentTimeMillis();
             final long address = ((DirectBuffer) (this.mappedByteBuffer)).address();
@@ -1526,6 +3435,51 @@ public class RocketmqMessageStoreAnalysis{
             }
         }
 
+        /**
+         * 通过 mincore 系统调用判断 mappedByteBuffer 中 [pos, pos + size) 所在的页是否都在 page cache 中。mincore 要求起始地址按页对齐，
+         * 返回的 vec 中每一个字节对应一页，最低位为 1 表示该页在内存中。探测失败时当作在内存中处理，也就是退化为原来的读取方式
+         */
+        // MappedFile#isResident
+        public boolean isResident(final int pos, final int size) {
+            final long address = ((DirectBuffer) this.mappedByteBuffer).address();
+            final long begin = address + pos;
+            final long alignedBegin = begin - (begin % OS_PAGE_SIZE);
+            final long length = begin + size - alignedBegin;
+            final int pages = (int) ((length + OS_PAGE_SIZE - 1) / OS_PAGE_SIZE);
+            // 每次拉取都会调用，vec 使用线程私有的数组，只在页数变多时重新分配
+            byte[] vec = MINCORE_VEC.get();
+            if (vec.length < pages) {
+                vec = new byte[pages];
+                MINCORE_VEC.set(vec);
+            }
+
+            int ret = LibC.INSTANCE.mincore(new Pointer(alignedBegin), new NativeLong(length), vec);
+            if (ret != 0) {
+                log.warn("mincore {} pos {} size {} ret = {}", this.fileName, pos, size, ret);
+                return true;
+            }
+            for (int i = 0; i < pages; i++) {
+                if ((vec[i] & 1) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // 预读 [pos, pos + size) 所在的页：先通过 madvise(MADV_WILLNEED) 让内核异步地发起读 I/O，再逐页读取一个字节，确保返回时这些页都已经在 page cache 中
+        // MappedFile#readAhead
+        public void readAhead(final int pos, final int size) {
+            final long address = ((DirectBuffer) this.mappedByteBuffer).address();
+            final long begin = address + pos;
+            final long alignedBegin = begin - (begin % OS_PAGE_SIZE);
+            LibC.INSTANCE.madvise(new Pointer(alignedBegin), new NativeLong(begin + size - alignedBegin), LibC.MADV_WILLNEED);
+
+            ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+            for (int i = pos - (pos % OS_PAGE_SIZE); i < pos + size; i += OS_PAGE_SIZE) {
+                byteBuffer.get(i);
+            }
+        }
+
         /**
          * 1.对当前映射文件进行预热
          * 第一步：对当前映射文件的每个内存页写入一个字节0.当刷盘策略为同步刷盘时，执行强制刷盘，并且是每修改pages(默认是16MB)个分页刷一次盘
@@ -1638,142 +3592,564 @@ public class RocketmqMessageStoreAnalysis{
                 // commitLeastPages 为本次提交最小的页数，如果待提交数据不满 commitLeastPages ，则不执行本次提交操作，待下次提交
                 return ((write / OS_PAGE_SIZE) - (flush / OS_PAGE_SIZE)) >= commitLeastPages;
             }
-    
-            return write > flush;
+    
+            return write > flush;
+        }
+
+        /**
+         * @return The max position which have valid data
+         * 
+         * 返回有效数据的指针。在 MappedFile 设计中，只有提交了的数据（写入到 MappedByteBuffer 或者 FileChannel 中的数据）才是安全有效的数据;
+         * 
+         * 如果 writeBuffer 为空，则直接返回当前的写指针;如果 writeBuffer 是空，就说明 transientStorePoolEnable 为 false，消息内容是直接写入到 mappedByteBuffer 中，
+         * 也就是说可以看成是直接写入到磁盘文件中，所以写入的数据都可以看成是合法的数据
+         * 如果 writeBuffer 不为空，则返回上一次提交的指针。
+         */
+        public int getReadPosition() {
+            return this.writeBuffer == null ? this.wrotePosition.get() : this.committedPosition.get();
+        }
+
+        // 加载文件以及恢复时截断（truncateDirtyFiles）都通过这里恢复写指针，reservedPosition 必须同时恢复，
+        // 否则重启之后无锁模式下的 reserve 会从 0 开始预留，覆盖文件中已经存在的消息
+        public void setWrotePosition(int pos) {
+            this.wrotePosition.set(pos);
+            this.reservedPosition.set(pos);
+        }
+
+        public int flush(final int flushLeastPages) {
+            if (this.isAbleToFlush(flushLeastPages)) {
+                if (this.hold()) {
+                    int value = getReadPosition();
+    
+                    try {
+                        // We only append data to fileChannel or mappedByteBuffer, never both.
+                        // 刷写磁盘，直接调用 mappedByteBuffer 或者 fileChannel 的 force 方法将内存中数据持久化到磁盘
+                        // 这里的刷盘分为两种情况，一种就是 trasientPoolEnable 为 true 的话，这种情况下，消息是先写入到 writeBuffer 中，随后再提交到
+                        // fileChannel 中，所以 if 判断这两个地方是否有数据。第二种情况是 trasientPoolEnable 为 false 的情况，在这种情况下，会直接使用
+                        // mappedByteBuffer，而不会使用 fileChannel
+                        if (writeBuffer != null || this.fileChannel.position() != 0) {
+                            this.fileChannel.force(false);
+                        } else {
+                            this.mappedByteBuffer.force();
+                        }
+                        // 时间索引和数据文件一起刷盘
+                        if (this.timeSkipIndex != null) {
+                            this.timeSkipIndex.flush();
+                        }
+                    } catch (Throwable e) {
+                        log.error("Error occurred when force data to disk.", e);
+                    }
+    
+                    this.flushedPosition.set(value);
+                    this.release();
+                } else {
+                    log.warn("in flush, hold failed, flush offset = " + this.flushedPosition.get());
+                    this.flushedPosition.set(getReadPosition());
+                }
+            }
+            return this.getFlushedPosition();
+        }
+
+        // MappedFile#destroy
+        public boolean destroy(final long intervalForcibly) {
+            this.shutdown(intervalForcibly);
+
+            if (this.isCleanupOver()) {
+                // ignore code
+
+                // 删除数据文件的同时删除对应的 .timeidx 文件
+                if (this.timeSkipIndex != null) {
+                    this.timeSkipIndex.destroy();
+                }
+                return true;
+            }
+            // ignore code
+            return false;
+        }
+
+        public TimeSkipIndex getTimeSkipIndex() {
+            return timeSkipIndex;
+        }
+
+        public void setTimeSkipIndex(TimeSkipIndex timeSkipIndex) {
+            this.timeSkipIndex = timeSkipIndex;
+        }
+
+        /**
+         * 先介绍一下，NIO 中 slice 方法的作用。java.nio.ByteBuffer类的slice()方法用于创建一个新的字节缓冲区，其内容是给定缓冲区内容的共享子序列。
+         * 新缓冲区的内容将从该缓冲区的当前位置（也就是 position）开始。对该缓冲区内容的更改将在新缓冲区中可见，反之亦然。这两个缓冲区的位置，限制和标记值将是独立的。
+         * 新缓冲区的位置（position）将为零，其容量（capacity）和限制（limit）将为该缓冲区中剩余的空间。当且仅当该缓冲区是直接缓冲区时，新缓冲区才是直接缓冲区；
+         * 当且仅当该缓冲区是只读缓冲区时，新缓冲区才是只读缓冲区。
+         * 
+         * 查找从 pos 开始，size 个大小的数据，由于在整个写入期间都未曾改变 MappedByteBuffer 的指针（注意，在 appendMessagesInner 方法中，
+         * 获取到的 byteBuffer 是 writeBuffer 或者 mappedByteBuffer 的 slice 片段，也就是说 slice 方法新得到的 ByteBuffer 区域的 position
+         * 和 limit 指针和原始的 writeBuffer 以及 mappedByteBuffer 区域是相互独立的）。
+         * 
+         * 所以 mappedByteBuffer.slice() 法返回的共享缓存区空间为整个 MappedFile ，然后通过设置 byteBuffer 的 position 为待查找的值，再次通过 slice 
+         * 方法得到的 byteBufferNew 的就是 byteBuffer 从 pos 开始往后的区域，byteBufferNew 的 position 为  0，而 limit 为 size，也就说明
+         * byteBufferNew 中可以读取到 size 个字节的数据，也就是 byteBuffer 中从 pos 开始往后 size 个字节的数据。
+         */
+        public SelectMappedBufferResult selectMappedBuffer(int pos, int size) {
+            int readPosition = getReadPosition();
+            if ((pos + size) <= readPosition) {
+    
+                if (this.hold()) {
+                    ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+                    byteBuffer.position(pos);
+                    ByteBuffer byteBufferNew = byteBuffer.slice();
+                    byteBufferNew.limit(size);
+                    return new SelectMappedBufferResult(this.fileFromOffset + pos, byteBufferNew, size, this);
+                } else {
+                    log.warn("matched, but hold failed, request pos: " + pos + ", fileFromOffset: "
+                        + this.fileFromOffset);
+                }
+            } else {
+                log.warn("selectMappedBuffer request pos invalid, request pos: " + pos + ", size: " + size
+                    + ", fileFromOffset: " + this.fileFromOffset);
+            }
+    
+            return null;
+        }
+    
+
+    }
+
+    /**
+     * TransientStorePool 短暂的存储池。RocketMQ 在 MappedFile 中从 TransientStorePool 对象中获取（borrow）一个内存缓存池，
+     * 其实也就是一个 ByteBuffer 对象，用来临时存储数据，数据先写入该 ByteBuffer 中，然后由 commit 线程定时将数据从该内存复制到与目的物理文件对应的内存映射中，
+     * 也就是从 ByteBuffer 写入到 fileChannel 中。然后再在 flush 线程中，将 fileChannel 中的数据写入到磁盘上
+     *
+     * 原来的实现在启动时一次性分配 transientStorePoolSize 个堆外内存并 mlock，之后数量固定不变。这里改为弹性的池子，ByteBuffer 的数量在
+     * [minPoolSize, maxPoolSize] 之间变化：
+     *
+     * 1.扩容和缩容都由 CommitRealTimeService 线程调用 adjust 方法完成。当可用的 ByteBuffer 少于低水位时扩容，
+     * 当可用的 ByteBuffer 在连续 shrinkIdleRounds 轮调整中都多于高水位时缩容
+     * 2.Java 中无法直接指定内存所在的 NUMA 节点，但是 Linux 默认的 first-touch 策略会把物理页分配在第一次访问它的线程所在的节点上，而 writeBuffer 中的数据
+     * 在 commit 时由 CommitRealTimeService 线程读取。所以启动时预分配的以及扩容时新分配的 ByteBuffer 都在 CommitRealTimeService 线程中分配，并且由该线程逐页写入一次之后再 mlock，
+     * 使得这些内存页和执行 commit 的线程位于同一个 NUMA 节点上（需要同时通过 numactl 或者 taskset 将 Broker 进程绑定到固定的节点上）
+     * 3.当池子耗尽时，不再让 MappedFile 悄悄退化为直接写 mappedByteBuffer，而是通过 isExhausted 让 DefaultMessageStore#putMessage 返回
+     * OS_PAGECACHE_BUSY，由生产者进行重试，对写入进行反压
+     */
+    public class TransientStorePool {
+        // 池子中 ByteBuffer 的最少个数，也就是启动时预分配的个数
+        private final int minPoolSize;
+        // 池子中 ByteBuffer 的最多个数
+        private final int maxPoolSize;
+        // 每个 ByteBuffer 的大小
+        private final int fileSize;
+        // 双端队列
+        private final Deque<ByteBuffer> availableBuffers;
+        // 当前池子中分配的 ByteBuffer 总数，包括被借出的和可用的
+        private final AtomicInteger totalBuffers = new AtomicInteger(0);
+        // 借出 ByteBuffer 失败的次数
+        private final AtomicLong exhaustedTimes = new AtomicLong(0);
+        // 可用的 ByteBuffer 连续多少轮调整都高于高水位
+        private int idleRounds = 0;
+        // init 由 CommitRealTimeService 线程执行，CommitLog#start 等待它完成
+        private final CountDownLatch initialized = new CountDownLatch(1);
+
+        private final MessageStoreConfig storeConfig;
+
+        public TransientStorePool(final MessageStoreConfig storeConfig) {
+            this.storeConfig = storeConfig;
+            this.minPoolSize = storeConfig.getTransientStorePoolSize();
+            this.maxPoolSize = Math.max(this.minPoolSize, storeConfig.getTransientStorePoolMaxSize());
+            this.fileSize = storeConfig.getMapedFileSizeCommitLog();
+            this.availableBuffers = new ConcurrentLinkedDeque<>();
+        }
+
+        // TransientStorePool#init
+        public void init() {
+            try {
+                for (int i = 0; i < minPoolSize; i++) {
+                    // 创建 minPoolSize 个堆外内存
+                    availableBuffers.offer(this.allocate());
+                }
+            } finally {
+                this.initialized.countDown();
+            }
+        }
+
+        // TransientStorePool#awaitInitialized
+        public void awaitInitialized() {
+            try {
+                this.initialized.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // 分配一个堆外内存并将其锁定，调用此方法的线程会先逐页访问一次这块内存，使得物理页分配在当前线程所在的 NUMA 节点上。
+        // 开启 commitLogDirectIOEnable 时，writeBuffer 会直接用于 O_DIRECT 写入，需要多分配一个 Block 再按 directIOBlockSize 对齐
+        // TransientStorePool#allocate
+        private ByteBuffer allocate() {
+            ByteBuffer byteBuffer;
+            if (storeConfig.isCommitLogDirectIOEnable()) {
+                int blockSize = storeConfig.getDirectIOBlockSize();
+                byteBuffer = ByteBuffer.allocateDirect(fileSize + blockSize).alignedSlice(blockSize);
+                byteBuffer.limit(fileSize);
+                byteBuffer = byteBuffer.slice();
+            } else {
+                byteBuffer = ByteBuffer.allocateDirect(fileSize);
+            }
+            for (int i = 0; i < fileSize; i += MappedFile.OS_PAGE_SIZE) {
+                byteBuffer.put(i, (byte) 0);
+            }
+            final long address = ((DirectBuffer) byteBuffer).address();
+            Pointer pointer = new Pointer(address);
+
+            // 并利用 com.sun.jna.Library 类库将该批内存锁定，避免被置换到交换区，提高存储性能
+            LibC.INSTANCE.mlock(pointer, new NativeLong(fileSize));
+            this.totalBuffers.incrementAndGet();
+            return byteBuffer;
+        }
+
+        // 解除锁定并且立即释放堆外内存，而不是等待 GC 回收
+        // TransientStorePool#free
+        private void free(ByteBuffer byteBuffer) {
+            final long address = ((DirectBuffer) byteBuffer).address();
+            Pointer pointer = new Pointer(address);
+            LibC.INSTANCE.munlock(pointer, new NativeLong(fileSize));
+            // 对齐之后的 ByteBuffer 是一个切片，需要通过 attachment 找到真正持有内存的 ByteBuffer
+            DirectBuffer owner = (DirectBuffer) byteBuffer;
+            while (owner.attachment() != null) {
+                owner = (DirectBuffer) owner.attachment();
+            }
+            owner.cleaner().clean();
+            this.totalBuffers.decrementAndGet();
+        }
+
+        /**
+         * 根据可用 ByteBuffer 的比例调整池子的大小，由 CommitRealTimeService 线程在每次 commit 之后调用，所以扩容和缩容都是单线程的。
+         * 可用的 ByteBuffer 少于低水位时就扩容，不再要求 commit 积压超过一个文件：每个 MappedFile 在创建时就借走一个 ByteBuffer，commit 积压很少的时候
+         * 池子同样可能被借空。commitLag 为 CommitLog 中已经写入但是还没有 commit 的字节数，只用于日志
+         */
+        // TransientStorePool#adjust
+        public void adjust(final long commitLag) {
+            final int available = this.availableBuffers.size();
+            final int total = this.totalBuffers.get();
+            // 低水位和高水位分别为当前总数的 40%（和原来 borrowBuffer 中告警的阈值相同）和 80%
+            final int lowWatermark = (int) (total * 0.4);
+            final int highWatermark = (int) (total * 0.8);
+
+            if (available < lowWatermark && total < maxPoolSize) {
+                // 每次扩容一个 ByteBuffer，避免在 commit 线程中停顿太久
+                availableBuffers.offerLast(this.allocate());
+                this.idleRounds = 0;
+                log.info("TransientStorePool grow to {} sheets, available {}, commit lag {}", this.totalBuffers.get(), available + 1, commitLag);
+                return;
+            }
+
+            if (available > highWatermark && total > minPoolSize) {
+                if (++this.idleRounds >= storeConfig.getTransientStorePoolShrinkIdleRounds()) {
+                    // 从队尾取出 ByteBuffer 释放，returnBuffer 总是把归还的 ByteBuffer 放在队头，所以队尾的是最久没有被使用的
+                    ByteBuffer byteBuffer = availableBuffers.pollLast();
+                    if (byteBuffer != null) {
+                        this.free(byteBuffer);
+                        log.info("TransientStorePool shrink to {} sheets", this.totalBuffers.get());
+                    }
+                    this.idleRounds = 0;
+                }
+            } else {
+                this.idleRounds = 0;
+            }
+        }
+
+        public void returnBuffer(ByteBuffer byteBuffer) {
+            byteBuffer.position(0);
+            byteBuffer.limit(fileSize);
+            this.availableBuffers.offerFirst(byteBuffer);
+        }
+    
+        public ByteBuffer borrowBuffer() {
+            ByteBuffer buffer = availableBuffers.pollFirst();
+            if (buffer == null) {
+                this.exhaustedTimes.incrementAndGet();
+                log.warn("TransientStorePool exhausted, total {} sheets, max {} sheets.", totalBuffers.get(), maxPoolSize);
+                return null;
+            }
+            if (availableBuffers.size() < totalBuffers.get() * 0.4) {
+                log.warn("TransientStorePool only remain {} sheets.", availableBuffers.size());
+            }
+            return buffer;
+        }
+
+        // 池子中已经没有可用的 ByteBuffer，并且已经扩容到了上限，此时新的 MappedFile 拿不到 writeBuffer，应该对写入进行反压
+        // TransientStorePool#isExhausted
+        public boolean isExhausted() {
+            return this.availableBuffers.isEmpty() && this.totalBuffers.get() >= this.maxPoolSize;
+        }
+
+        public int availableBufferNums() {
+            return this.availableBuffers.size();
+        }
+
+        public int remainBufferNumbs() {
+            // 还可以扩容的 ByteBuffer 也算作剩余的 ByteBuffer
+            return this.availableBuffers.size() + (this.maxPoolSize - this.totalBuffers.get());
+        }
+
+        // 池子的占用率，即被借出的 ByteBuffer 占 maxPoolSize 的比例，和 getTotalBuffers、getExhaustedTimes 一起作为运行时统计信息导出
+        // TransientStorePool#getOccupancy
+        public double getOccupancy() {
+            return (double) (this.totalBuffers.get() - this.availableBuffers.size()) / this.maxPoolSize;
+        }
+
+        public int getTotalBuffers() {
+            return this.totalBuffers.get();
+        }
+
+        public long getExhaustedTimes() {
+            return this.exhaustedTimes.get();
+        }
+
+    }
+
+    /**
+     * 开启 commitLogDirectIOEnable 之后（要求同时开启 transientStorePoolEnable），CommitRealTimeService 通过 O_DIRECT 打开的 FileChannel
+     * 把 writeBuffer 中的数据直接写到磁盘上，不再经过 page cache，追赶读的消费者把 page cache 占满时写入的延迟也不会受到影响：
+     *
+     * 1.O_DIRECT 要求内存地址、文件偏移量以及写入的长度都按 directIOBlockSize 对齐。writeBuffer 由 TransientStorePool 按 Block 对齐分配，
+     * commit 时完整的 Block 直接从 writeBuffer 写入，最后一个不完整的 Block 拷贝到 tailBlock 中补零之后写入，下一次 commit 从这个 Block 的起始位置重新写入
+     * 2.文件仍然由 MappedFile#init 以 READ_WRITE 方式映射到 mappedByteBuffer（flush、预热等逻辑都依赖它），但从不通过映射区域写入，
+     * 只用于读取已经不在 DirectIORingCache 中的数据
+     * 3.刚 commit 的数据同时拷贝到 DirectIORingCache 中，ReputMessageService、HA 以及消费者读取最近的消息时直接从中拷贝，不会因为 page cache 中
+     * 没有这些页（O_DIRECT 写入会使 page cache 中对应的页失效）而产生读 I/O
+     *
+     * Broker 重启之后加载的最后一个文件仍然是普通的 MappedFile，通过 mappedByteBuffer 写入，和原来开启 transientStorePoolEnable 时一样
+     */
+    public class DirectIOMappedFile extends MappedFile {
+
+        // selectMappedBuffer(pos) 从 DirectIORingCache 中最多拷贝的字节数，超过时说明读取方已经落后，直接从 mappedByteBuffer 中切片，不再拷贝
+        private static final int MAX_RING_COPY_SIZE = 1024 * 1024;
+
+        private final DirectIORingCache ringCache;
+
+        private final int blockSize;
+        // 以 O_DIRECT 方式打开的写通道，fileChannel 仍然是普通的 FileChannel
+        private final FileChannel directChannel;
+        // 最后一个不完整的 Block，只被 CommitRealTimeService 线程使用
+        private final ByteBuffer tailBlock;
+
+        public DirectIOMappedFile(final String fileName, final int fileSize, final TransientStorePool transientStorePool,
+                    final DirectIORingCache ringCache, final int blockSize) throws IOException {
+            super(fileName, fileSize, transientStorePool);
+            this.ringCache = ringCache;
+            this.blockSize = blockSize;
+            this.directChannel = FileChannel.open(this.getFile().toPath(), StandardOpenOption.WRITE, ExtendedOpenOption.DIRECT);
+            this.tailBlock = ByteBuffer.allocateDirect(blockSize * 2).alignedSlice(blockSize);
+        }
+
+        // DirectIOMappedFile#commit0
+        @Override
+        protected void commit0(final int commitLeastPages) {
+            int writePos = this.wrotePosition.get();
+            int lastCommittedPosition = this.committedPosition.get();
+            if (writePos <= lastCommittedPosition) {
+                return;
+            }
+
+            try {
+                int alignedFrom = lastCommittedPosition / this.blockSize * this.blockSize;
+                int alignedTo = writePos / this.blockSize * this.blockSize;
+                if (alignedTo > alignedFrom) {
+                    ByteBuffer byteBuffer = this.writeBuffer.slice();
+                    byteBuffer.position(alignedFrom);
+                    byteBuffer.limit(alignedTo);
+                    this.write(byteBuffer, alignedFrom);
+                }
+                if (writePos > alignedTo) {
+                    ByteBuffer byteBuffer = this.writeBuffer.slice();
+                    byteBuffer.position(alignedTo);
+                    byteBuffer.limit(writePos);
+                    // alignedSlice 得到的 tailBlock 容量可能是 2 个 Block，只使用前一个
+                    this.tailBlock.clear();
+                    this.tailBlock.limit(this.blockSize);
+                    this.tailBlock.put(byteBuffer);
+                    while (this.tailBlock.hasRemaining()) {
+                        this.tailBlock.put((byte) 0);
+                    }
+                    this.tailBlock.flip();
+                    this.write(this.tailBlock, alignedTo);
+                }
+
+                ByteBuffer committed = this.writeBuffer.slice();
+                committed.position(lastCommittedPosition);
+                committed.limit(writePos);
+                this.ringCache.put(this.getFileFromOffset() + lastCommittedPosition, committed);
+                this.committedPosition.set(writePos);
+            } catch (Throwable e) {
+                log.error("Error occurred when commit data to direct io channel.", e);
+            }
         }
 
-        /**
-         * @return The max position which have valid data
-         * 
-         * 返回有效数据的指针。在 MappedFile 设计中，只有提交了的数据（写入到 MappedByteBuffer 或者 FileChannel 中的数据）才是安全有效的数据;
-         * 
-         * 如果 writeBuffer 为空，则直接返回当前的写指针;如果 writeBuffer 是空，就说明 transientStorePoolEnable 为 false，消息内容是直接写入到 mappedByteBuffer 中，
-         * 也就是说可以看成是直接写入到磁盘文件中，所以写入的数据都可以看成是合法的数据
-         * 如果 writeBuffer 不为空，则返回上一次提交的指针。
-         */
-        public int getReadPosition() {
-            return this.writeBuffer == null ? this.wrotePosition.get() : this.committedPosition.get();
+        private void write(final ByteBuffer byteBuffer, final long position) throws IOException {
+            long offset = position;
+            while (byteBuffer.hasRemaining()) {
+                offset += this.directChannel.write(byteBuffer, offset);
+            }
         }
 
+        // O_DIRECT 只是绕过了 page cache，数据可能还在磁盘的缓存中，仍然需要 fdatasync
+        // DirectIOMappedFile#flush
+        @Override
         public int flush(final int flushLeastPages) {
             if (this.isAbleToFlush(flushLeastPages)) {
                 if (this.hold()) {
-                    int value = getReadPosition();
-    
+                    int value = this.getReadPosition();
                     try {
-                        // We only append data to fileChannel or mappedByteBuffer, never both.
-                        // 刷写磁盘，直接调用 mappedByteBuffer 或者 fileChannel 的 force 方法将内存中数据持久化到磁盘
-                        // 这里的刷盘分为两种情况，一种就是 trasientPoolEnable 为 true 的话，这种情况下，消息是先写入到 writeBuffer 中，随后再提交到
-                        // fileChannel 中，所以 if 判断这两个地方是否有数据。第二种情况是 trasientPoolEnable 为 false 的情况，在这种情况下，会直接使用
-                        // mappedByteBuffer，而不会使用 fileChannel
-                        if (writeBuffer != null || this.fileChannel.position() != 0) {
-                            this.fileChannel.force(false);
-                        } else {
-                            this.mappedByteBuffer.force();
-                        }
+                        this.directChannel.force(false);
                     } catch (Throwable e) {
-                        log.error("Error occurred when force data to disk.", e);
+                        log.error("Error occurred when force direct io channel to disk.", e);
                     }
-    
-                    this.flushedPosition.set(value);
+                    this.setFlushedPosition(value);
                     this.release();
                 } else {
-                    log.warn("in flush, hold failed, flush offset = " + this.flushedPosition.get());
-                    this.flushedPosition.set(getReadPosition());
+                    log.warn("in flush, hold failed, flush offset = " + this.getFlushedPosition());
+                    this.setFlushedPosition(this.getReadPosition());
                 }
             }
             return this.getFlushedPosition();
         }
 
-        /**
-         * 先介绍一下，NIO 中 slice 方法的作用。java.nio.ByteBuffer类的slice()方法用于创建一个新的字节缓冲区，其内容是给定缓冲区内容的共享子序列。
-         * 新缓冲区的内容将从该缓冲区的当前位置（也就是 position）开始。对该缓冲区内容的更改将在新缓冲区中可见，反之亦然。这两个缓冲区的位置，限制和标记值将是独立的。
-         * 新缓冲区的位置（position）将为零，其容量（capacity）和限制（limit）将为该缓冲区中剩余的空间。当且仅当该缓冲区是直接缓冲区时，新缓冲区才是直接缓冲区；
-         * 当且仅当该缓冲区是只读缓冲区时，新缓冲区才是只读缓冲区。
-         * 
-         * 查找从 pos 开始，size 个大小的数据，由于在整个写入期间都未曾改变 MappedByteBuffer 的指针（注意，在 appendMessagesInner 方法中，
-         * 获取到的 byteBuffer 是 writeBuffer 或者 mappedByteBuffer 的 slice 片段，也就是说 slice 方法新得到的 ByteBuffer 区域的 position
-         * 和 limit 指针和原始的 writeBuffer 以及 mappedByteBuffer 区域是相互独立的）。
-         * 
-         * 所以 mappedByteBuffer.slice() 法返回的共享缓存区空间为整个 MappedFile ，然后通过设置 byteBuffer 的 position 为待查找的值，再次通过 slice 
-         * 方法得到的 byteBufferNew 的就是 byteBuffer 从 pos 开始往后的区域，byteBufferNew 的 position 为  0，而 limit 为 size，也就说明
-         * byteBufferNew 中可以读取到 size 个字节的数据，也就是 byteBuffer 中从 pos 开始往后 size 个字节的数据。
-         */
-        public SelectMappedBufferResult selectMappedBuffer(int pos, int size) {
-            int readPosition = getReadPosition();
-            if ((pos + size) <= readPosition) {
-    
-                if (this.hold()) {
-                    ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
-                    byteBuffer.position(pos);
-                    ByteBuffer byteBufferNew = byteBuffer.slice();
-                    byteBufferNew.limit(size);
-                    return new SelectMappedBufferResult(this.fileFromOffset + pos, byteBufferNew, size, this);
-                } else {
-                    log.warn("matched, but hold failed, request pos: " + pos + ", fileFromOffset: "
-                        + this.fileFromOffset);
+        @Override
+        public SelectMappedBufferResult selectMappedBuffer(final int pos, final int size) {
+            if (pos + size <= this.getReadPosition()) {
+                ByteBuffer byteBuffer = this.ringCache.get(this.getFileFromOffset() + pos, size);
+                if (byteBuffer != null) {
+                    return new SelectMappedBufferResult(this.getFileFromOffset() + pos, byteBuffer, size, null);
                 }
-            } else {
-                log.warn("selectMappedBuffer request pos invalid, request pos: " + pos + ", size: " + size
-                    + ", fileFromOffset: " + this.fileFromOffset);
             }
-    
-            return null;
+            return super.selectMappedBuffer(pos, size);
+        }
+
+        // ReputMessageService 每次读取的都是刚 commit 的数据，几乎总是命中 DirectIORingCache。这个方法返回 pos 到 readPosition 的全部数据，
+        // 读取方落后较多时一次拷贝的数据量会很大，所以只在数据量不超过 MAX_RING_COPY_SIZE 时从 DirectIORingCache 中拷贝
+        @Override
+        public SelectMappedBufferResult selectMappedBuffer(final int pos) {
+            int readPosition = this.getReadPosition();
+            if (pos < readPosition && pos >= 0 && readPosition - pos <= MAX_RING_COPY_SIZE) {
+                int size = readPosition - pos;
+                ByteBuffer byteBuffer = this.ringCache.get(this.getFileFromOffset() + pos, size);
+                if (byteBuffer != null) {
+                    return new SelectMappedBufferResult(this.getFileFromOffset() + pos, byteBuffer, size, null);
+                }
+            }
+            return super.selectMappedBuffer(pos);
+        }
+
+        @Override
+        public boolean isResident(final int pos, final int size) {
+            return this.ringCache.contains(this.getFileFromOffset() + pos, size) || super.isResident(pos, size);
+        }
+
+        // 写入不经过映射区域，预热只会把无用的页放到 page cache 中
+        @Override
+        public void warmMappedFile(FlushDiskType type, int pages) {
+            log.info("skip warm-up of direct io file {}", this.getFileName());
         }
-    
 
+        @Override
+        public boolean destroy(final long intervalForcibly) {
+            boolean result = super.destroy(intervalForcibly);
+            if (result && this.directChannel != null) {
+                try {
+                    this.directChannel.close();
+                } catch (IOException e) {
+                    log.warn("close direct io channel of {} failed", this.getFileName(), e);
+                }
+            }
+            return result;
+        }
     }
 
     /**
-     * TransientStorePool 短暂的存储池。RocketMQ 在 MappedFile 中从 TransientStorePool 对象中获取（borrow）一个内存缓存池，
-     * 其实也就是一个 ByteBuffer 对象，用来临时存储数据，数据先写入该 ByteBuffer 中，然后由 commit 线程定时将数据从该内存复制到与目的物理文件对应的内存映射中，
-     * 也就是从 ByteBuffer 写入到 fileChannel 中。然后再在 flush 线程中，将 fileChannel 中的数据写入到磁盘上
+     * 最近 commit 的 directIORingCacheSize 字节的 CommitLog 数据，按物理偏移量对 capacity 取模存放。只有 CommitRealTimeService 一个线程写入，
+     * 读取时拷贝出来而不是返回共享的切片，因为环形缓冲区中的数据随时可能被覆盖：
+     *
+     * 写入前先把 writingOffset 推进到这次写入的末尾，写完之后再推进 maxOffset；读取时要求数据在 maxOffset 之前，拷贝完成之后再检查
+     * writingOffset，如果这期间写入的数据已经覆盖了读取的区域，就放弃这次拷贝，由调用者从 mappedByteBuffer 中读取
      */
-    public class TransientStorePool {
-        // availableBuffers 中 ByteBuffer 的个数
-        private final int poolSize;
-        // 每个 ByteBuffer 的大小
-        private final int fileSize;
-        // 双端队列
-        private final Deque<ByteBuffer> availableBuffers;
+    public static class DirectIORingCache {
 
-        private final MessageStoreConfig storeConfig;
+        private final ByteBuffer buffer;
 
-        public TransientStorePool(final MessageStoreConfig storeConfig) {
-            this.storeConfig = storeConfig;
-            this.poolSize = storeConfig.getTransientStorePoolSize();
-            this.fileSize = storeConfig.getMapedFileSizeCommitLog();
-            this.availableBuffers = new ConcurrentLinkedDeque<>();
+        private final int capacity;
+
+        private volatile long writingOffset = 0;
+
+        private volatile long maxOffset = 0;
+        // 环形缓冲区中第一个有效字节的物理偏移量，写入不连续时（比如切换到了重启前的文件）整个缓冲区都会失效
+        private volatile long minOffset = 0;
+
+        public DirectIORingCache(final int capacity) {
+            this.capacity = capacity;
+            this.buffer = ByteBuffer.allocateDirect(capacity);
         }
 
-        public void init() {
-            for (int i = 0; i < poolSize; i++) {
-                // 创建 poolSize 个堆外内存
-                ByteBuffer byteBuffer = ByteBuffer.allocateDirect(fileSize);
-                final long address = ((DirectBuffer) byteBuffer).address();
-                Pointer pointer = new Pointer(address);
-
-                // 并利用 com.sun.jna.Library 类库将该批内存锁定，避免被置换到交换区，提高存储性能
-                LibC.INSTANCE.mlock(pointer, new NativeLong(fileSize));
-    
-                availableBuffers.offer(byteBuffer);
+        // DirectIORingCache#put
+        public void put(final long offset, final ByteBuffer data) {
+            final int size = data.remaining();
+            if (offset != this.maxOffset) {
+                this.writingOffset = offset;
+                this.minOffset = offset;
+                this.maxOffset = offset;
+            }
+            this.writingOffset = offset + size;
+            // volatile 写只保证之前的操作不会被重排到它之后，下面对 buffer 的写入仍然可能被重排到它之前，读取方在 get 中重新检查 writingOffset 时
+            // 就可能看不到正在进行的覆盖，这里用 StoreStore 屏障保证对 buffer 的写入一定发生在更新 writingOffset 之后
+            VarHandle.storeStoreFence();
+
+            ByteBuffer src = data.slice();
+            if (size > this.capacity) {
+                src.position(size - this.capacity);
+            }
+            long position = offset + src.position();
+            while (src.hasRemaining()) {
+                int index = (int) (position % this.capacity);
+                int length = Math.min(src.remaining(), this.capacity - index);
+                ByteBuffer target = this.buffer.duplicate();
+                target.position(index);
+                ByteBuffer chunk = src.slice();
+                chunk.limit(length);
+                target.put(chunk);
+                src.position(src.position() + length);
+                position += length;
             }
-        }
 
-        public void returnBuffer(ByteBuffer byteBuffer) {
-            byteBuffer.position(0);
-            byteBuffer.limit(fileSize);
-            this.availableBuffers.offerFirst(byteBuffer);
+            this.maxOffset = offset + size;
+            this.minOffset = Math.max(this.minOffset, this.maxOffset - this.capacity);
         }
-    
-        public ByteBuffer borrowBuffer() {
-            ByteBuffer buffer = availableBuffers.pollFirst();
-            if (availableBuffers.size() < poolSize * 0.4) {
-                log.warn("TransientStorePool only remain {} sheets.", availableBuffers.size());
+
+        // 返回 [offset, offset + size) 的拷贝，不在缓冲区中或者拷贝期间被覆盖时返回 null
+        // DirectIORingCache#get
+        public ByteBuffer get(final long offset, final int size) {
+            if (!this.contains(offset, size)) {
+                return null;
             }
-            return buffer;
+
+            byte[] data = new byte[size];
+            int copied = 0;
+            while (copied < size) {
+                int index = (int) ((offset + copied) % this.capacity);
+                int length = Math.min(size - copied, this.capacity - index);
+                ByteBuffer source = this.buffer.duplicate();
+                source.position(index);
+                source.get(data, copied, length);
+                copied += length;
+            }
+
+            // 保证上面对 buffer 的读取不会被重排到下面读取 writingOffset 之后，否则重新检查时可能漏掉拷贝期间发生的覆盖
+            VarHandle.loadFence();
+            if (offset < this.writingOffset - this.capacity || offset < this.minOffset) {
+                return null;
+            }
+            return ByteBuffer.wrap(data);
         }
 
+        public boolean contains(final long offset, final int size) {
+            return offset >= this.minOffset && offset + size <= this.maxOffset && offset >= this.writingOffset - this.capacity;
+        }
     }
 
     public class MappedFileQueue {
@@ -1792,13 +4168,75 @@ public class RocketmqMessageStoreAnalysis{
 
         private volatile long storeTimestamp = 0;
 
+        /**
+         * 用 newMappedFile 替换 mappedFiles 中的 oldMappedFile，两者的 fileFromOffset 相同。CopyOnWriteArrayList#set 是原子的，
+         * 并发的 findMappedFileByOffset 要么拿到原来的文件，要么拿到新的文件，两者的内容完全一样。如果 oldMappedFile 已经不在列表中了
+         * （比如被过期删除了），返回 false
+         */
+        // MappedFileQueue#replaceMappedFile
+        public boolean replaceMappedFile(final MappedFile oldMappedFile, final MappedFile newMappedFile) {
+            synchronized (this.mappedFiles) {
+                int index = this.mappedFiles.indexOf(oldMappedFile);
+                if (index < 0) {
+                    return false;
+                }
+                this.mappedFiles.set(index, newMappedFile);
+                return true;
+            }
+        }
+
+        // 和 ConsumeQueue#load 一样，跳过和 CommitLog 文件放在同一个目录中的 .timeidx 文件
+        // MappedFileQueue#load
+        public boolean load() {
+            File dir = new File(this.storePath);
+            File[] files = dir.listFiles();
+            if (files != null) {
+                // ascending order
+                Arrays.sort(files);
+                for (File file : files) {
+                    if (file.getName().endsWith(TimeSkipIndex.SUFFIX)) {
+                        continue;
+                    }
+
+                    if (file.length() != this.mappedFileSize) {
+                        log.warn(file + "\t" + file.length()
+                                + " length not matched message store config value, ignore it");
+                        return true;
+                    }
+
+                    try {
+                        MappedFile mappedFile = new MappedFile(file.getPath(), mappedFileSize);
+                        mappedFile.setWrotePosition(this.mappedFileSize);
+                        mappedFile.setFlushedPosition(this.mappedFileSize);
+                        mappedFile.setCommittedPosition(this.mappedFileSize);
+                        mappedFile.setTimeSkipIndex(TimeSkipIndex.load(file.getPath()));
+                        this.mappedFiles.add(mappedFile);
+                        log.info("load " + file.getPath() + " OK");
+                    } catch (IOException e) {
+                        log.error("load file " + file + " error", e);
+                        return false;
+                    }
+                }
+            }
+
+            return true;
+        }
+
         // 根据消息存储时间戳来查找 MappdFile。从 MappedFile 列表中第一个文件开始查找，找到第一个最后一次更新时间大于待查找时间戳的文件，
         // 其实也就是查找在 timestamp 时间戳之后进行过修改的文件，如果有多个则返回找到的第一个。如果不存在，则返回最后一个MappedFile 文件
+        //
+        // 如果所有文件都有 TimeSkipIndex，改为根据每个文件中第一条消息的存储时间二分查找，不再遍历所有文件，也不依赖文件的最后修改时间
+        // （文件被拷贝或者 touch 之后最后修改时间就不准确了）
         public MappedFile getMappedFileByTime(final long timestamp) {
             Object[] mfs = this.copyMappedFiles(0);
     
             if (null == mfs)
                 return null;
+
+            MappedFile byIndex = this.getMappedFileByTimeSkipIndex(mfs, timestamp);
+            if (byIndex != null) {
+                return byIndex;
+            }
     
             for (int i = 0; i < mfs.length; i++) {
                 MappedFile mappedFile = (MappedFile) mfs[i];
@@ -1810,6 +4248,29 @@ public class RocketmqMessageStoreAnalysis{
             return (MappedFile) mfs[mfs.length - 1];
         }
 
+        // MappedFileQueue#getMappedFileByTimeSkipIndex
+        private MappedFile getMappedFileByTimeSkipIndex(final Object[] mfs, final long timestamp) {
+            for (Object mf : mfs) {
+                TimeSkipIndex index = ((MappedFile) mf).getTimeSkipIndex();
+                if (index == null || index.getBeginTimestamp() < 0) {
+                    return null;
+                }
+            }
+
+            // 下一个文件的第一条消息早于 timestamp，说明这个文件中的消息都早于 timestamp。查找第一个不满足这个条件的文件，
+            // 也就是第一个可能包含存储时间大于等于 timestamp 的消息的文件
+            int low = 0, high = mfs.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (((MappedFile) mfs[mid + 1]).getTimeSkipIndex().getBeginTimestamp() < timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return (MappedFile) mfs[low];
+        }
+
         /**
          * 根据消息偏移量来查找 MappedFile
          * 
@@ -1901,16 +4362,15 @@ public class RocketmqMessageStoreAnalysis{
 
             if (createOffset != -1 && needCreate) {
                 String nextFilePath = this.storePath + File.separator + UtilAll.offset2FileName(createOffset);
-                String nextNextFilePath = this.storePath + File.separator + UtilAll.offset2FileName(createOffset + this.mappedFileSize);
                 MappedFile mappedFile = null;
 
                 if (this.allocateMappedFileService != null) {
                     // 预分配内存
-                    // 基于 createOffset 构建两个连续的 AllocateRequest 并插入 AllocateMappedFileService 线程维护的 requestQueue
-                    // 这两个 AllocateRequest 也就是创建两个 mappedFile 文件，一个文件的初始偏移量为 createOffset，另外一个为 createOffset + mappedFileSize
+                    // 基于 createOffset 构建 1 + mappedFilePreallocateDepth 个连续的 AllocateRequest 并插入 AllocateMappedFileService 线程维护的 requestQueue
+                    // 第一个 AllocateRequest 创建的 mappedFile 的初始偏移量为 createOffset，之后的依次为 createOffset + i * mappedFileSize（默认只预分配下一个）
                     // AllocateMappedFileService 线程读取 requestQueue 中的 AllocateRequest 异步创建对应的 MappedFile。在创建过程中，
                     // 消息处理线程通过 CountDownLatch 同步等待 MappedFile 完成创建
-                    mappedFile = this.allocateMappedFileService.putRequestAndReturnMappedFile(nextFilePath, nextNextFilePath, this.mappedFileSize);
+                    mappedFile = this.allocateMappedFileService.putRequestAndReturnMappedFile(this.storePath, createOffset, this.mappedFileSize);
                 } else {
                     try {
                         // 直接 new 一个 MappedFile 对象，并且不使用 TransientStorePool
@@ -1936,10 +4396,21 @@ public class RocketmqMessageStoreAnalysis{
 
     public class AllocateMappedFileService extends ServiceThread {
 
+        // 预分配的耗时统计，单位为毫秒
+        private final AtomicLong allocateTimes = new AtomicLong(0);
+        private final AtomicLong allocateCostTotal = new AtomicLong(0);
+        private volatile long allocateCostMax = 0;
+        // 消息处理线程在 getLastMappedFile 中等待 MappedFile 创建完成的次数和总耗时，正常情况下预分配的文件在需要时已经创建好，这两个值应该一直为 0
+        private final AtomicLong blockedTimes = new AtomicLong(0);
+        private final AtomicLong blockedCostTotal = new AtomicLong(0);
+
         // AllocateMappedFileService#putRequestAndReturnMappedFile
-        public MappedFile putRequestAndReturnMappedFile(String nextFilePath, String nextNextFilePath, int fileSize) {
-            // 默认提交两个请求
-            int canSubmitRequests = 2;
+        public MappedFile putRequestAndReturnMappedFile(String storePath, long createOffset, int fileSize) {
+            String nextFilePath = storePath + File.separator + UtilAll.offset2FileName(createOffset);
+            // 除了当前需要的文件之外，还要预先创建的文件个数，默认为 1，也就是原来的 nextNextFilePath
+            int lookAheadDepth = Math.max(1, this.messageStore.getMessageStoreConfig().getMappedFilePreallocateDepth());
+            // 默认提交 1 + lookAheadDepth 个请求
+            int canSubmitRequests = 1 + lookAheadDepth;
             if (this.messageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
                 if (this.messageStore.getMessageStoreConfig().isFastFailIfNoBufferInStorePool()
                         && BrokerRole.SLAVE != this.messageStore.getMessageStoreConfig().getBrokerRole()) { 
@@ -1968,18 +4439,23 @@ public class RocketmqMessageStoreAnalysis{
                 canSubmitRequests--;
             }
 
-            // 创建一个 AllocateRequest 请求，创建初始偏移量为 nextNextFilePath（等于 nextFilePath + mappedFileSize） 的 mappedFile 
-            AllocateRequest nextNextReq = new AllocateRequest(nextNextFilePath, fileSize);
-            boolean nextNextPutOK = this.requestTable.putIfAbsent(nextNextFilePath, nextNextReq) == null;
-            if (nextNextPutOK) {
-                if (canSubmitRequests <= 0) {
-                    log.warn("[NOTIFYME]TransientStorePool is not enough, so skip preallocate mapped file, ";
-                    this.requestTable.remove(nextNextFilePath);
-                } else {
-                    boolean offerOK = this.requestQueue.offer(nextNextReq);
+            // 依次创建初始偏移量为 createOffset + i * fileSize 的 AllocateRequest 请求，这些文件由 AllocateMappedFileService 线程在后台创建，
+            // 当消息处理线程需要它们时已经创建好了
+            for (int i = 1; i <= lookAheadDepth; i++) {
+                String lookAheadFilePath = storePath + File.separator + UtilAll.offset2FileName(createOffset + (long) i * fileSize);
+                AllocateRequest lookAheadReq = new AllocateRequest(lookAheadFilePath, fileSize);
+                boolean lookAheadPutOK = this.requestTable.putIfAbsent(lookAheadFilePath, lookAheadReq) == null;
+                if (lookAheadPutOK) {
+                    if (canSubmitRequests <= 0) {
+                        log.warn("[NOTIFYME]TransientStorePool is not enough, so skip preallocate mapped file, ");
+                        this.requestTable.remove(lookAheadFilePath);
+                        break;
+                    }
+                    boolean offerOK = this.requestQueue.offer(lookAheadReq);
                     if (!offerOK) {
                         log.warn("never expected here, add a request to preallocate queue failed");
                     }
+                    canSubmitRequests--;
                 }
             }
 
@@ -1997,7 +4473,16 @@ public class RocketmqMessageStoreAnalysis{
                     // 依据文件名从小到大排序。当需要创建 MappedFile 时，同时构建两个 AllocateRequest，消息处理线程通过下面的 CountDownLatch 将 
                     // AllocateMappedFileService 线程异步创建第一个 MappedFile 文件转化为同步操作，而第二个 MappedFile 文件的仍然创建交由 
                     // AllocateMappedFileService 线程异步创建。当消息处理线程需要再次创建 MappedFile 时，此时可以直接获取已创建的 MappedFile。
+                    // 如果文件还没有创建好，说明预分配的深度不够或者预分配太慢，消息处理线程（可能持有 putMessageLock）将在这里阻塞
+                    boolean blocked = result.getCountDownLatch().getCount() > 0;
+                    long beginWait = System.currentTimeMillis();
                     boolean waitOK = result.getCountDownLatch().await(waitTimeOut, TimeUnit.MILLISECONDS);
+                    if (blocked) {
+                        long waitCost = System.currentTimeMillis() - beginWait;
+                        this.blockedTimes.incrementAndGet();
+                        this.blockedCostTotal.addAndGet(waitCost);
+                        log.warn("wait for mapped file {} created cost {} ms, consider increasing mappedFilePreallocateDepth", result.getFilePath(), waitCost);
+                    }
                     if (!waitOK) {
                         log.warn("create mmap timeout " + result.getFilePath() + " " + result.getFileSize());
                         return null;
@@ -2016,9 +4501,34 @@ public class RocketmqMessageStoreAnalysis{
             return null;
         }
 
+        // 根据 mappedFilePreallocateMode 选择的预分配策略，在 run 方法中初始化
+        private MappedFilePreallocator preallocator;
+
+        public long getAllocateTimes() {
+            return this.allocateTimes.get();
+        }
+
+        public long getAllocateCostAvg() {
+            long times = this.allocateTimes.get();
+            return times == 0 ? 0 : this.allocateCostTotal.get() / times;
+        }
+
+        public long getAllocateCostMax() {
+            return this.allocateCostMax;
+        }
+
+        public long getBlockedTimes() {
+            return this.blockedTimes.get();
+        }
+
+        public long getBlockedCostTotal() {
+            return this.blockedCostTotal.get();
+        }
+
         // AllocateMappedFileService#run
         public void run() {
             log.info(this.getServiceName() + " service started");
+            this.preallocator = MappedFilePreallocator.create(this.messageStore.getMessageStoreConfig());
             while (!this.isStopped() && this.mmapOperation()) {
             }
             log.info(this.getServiceName() + " service end");
@@ -2048,7 +4558,10 @@ public class RocketmqMessageStoreAnalysis{
                     // writeBuffer，写入消息时先将消息写入 writeBuffer，然后将消息提交至 fileChannel 再 flush；否则，直接创建 MappedFile 内存映射
                     // 文件字节缓冲区 mappedByteBuffer，将消息写入 mappedByteBuffer 再 flush。完成消息写入后，更新 wrotePosition（此时还未 flush 至磁盘）
                     MappedFile mappedFile;
-                    if (messageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+                    if (messageStore.getDirectIORingCache() != null) {
+                        mappedFile = new DirectIOMappedFile(req.getFilePath(), req.getFileSize(), messageStore.getTransientStorePool(),
+                            messageStore.getDirectIORingCache(), messageStore.getMessageStoreConfig().getDirectIOBlockSize());
+                    } else if (messageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
                         try {
                             mappedFile = ServiceLoader.load(MappedFile.class).iterator().next();
                             mappedFile.init(req.getFilePath(), req.getFileSize(), messageStore.getTransientStorePool());
@@ -2063,12 +4576,19 @@ public class RocketmqMessageStoreAnalysis{
                     // 省略代码
 
                     // pre write mappedFile
-                    // 对 MappedFile 进行预热
-                    if (mappedFile.getFileSize() >= this.messageStore.getMessageStoreConfig().getMapedFileSizeCommitLog() &&
-                        this.messageStore.getMessageStoreConfig().isWarmMapedFileEnable()) {
-                        mappedFile.warmMappedFile(this.messageStore.getMessageStoreConfig().getFlushDiskType(),
-                            this.messageStore.getMessageStoreConfig().getFlushLeastPagesWhenWarmMapedFile());
+                    // 对 MappedFile 进行预分配，具体的方式由 mappedFilePreallocateMode 决定，只对 CommitLog 文件生效
+                    if (mappedFile.getFileSize() >= this.messageStore.getMessageStoreConfig().getMapedFileSizeCommitLog()) {
+                        this.preallocator.preallocate(mappedFile, this.messageStore.getMessageStoreConfig());
+                    }
+
+                    long cost = System.currentTimeMillis() - beginTime;
+                    this.allocateTimes.incrementAndGet();
+                    this.allocateCostTotal.addAndGet(cost);
+                    if (cost > this.allocateCostMax) {
+                        this.allocateCostMax = cost;
                     }
+                    log.info("create mappedFile {} with {} preallocator cost {} ms, queue size {}", req.getFilePath(),
+                        this.preallocator.getName(), cost, this.requestQueue.size());
 
                     req.setMappedFile(mappedFile);
                     this.hasException = false;
@@ -2077,6 +4597,16 @@ public class RocketmqMessageStoreAnalysis{
             } catch (InterruptedException e) {
                 // ignore code
             } catch (IOException e) {
+                if (req != null && this.isStorePoolExhausted()) {
+                    // TransientStorePool 被借空（比如预分配的文件把 ByteBuffer 都借走了）时，原来的做法是把请求放回 requestQueue 重试，
+                    // 在 ByteBuffer 归还之前只会一直失败并空转。这里直接让请求失败：从 requestTable 中移除并唤醒等待的线程，
+                    // putRequestAndReturnMappedFile 拿到的 MappedFile 为 null，putMessage 返回 CREATE_MAPEDFILE_FAILED，对写入进行反压。
+                    // 预分配的请求没有线程在等待，下一次 putRequestAndReturnMappedFile 会重新提交
+                    log.warn("{} fail mmap request {} because TransientStorePool is exhausted", this.getServiceName(), req.getFilePath());
+                    this.requestTable.remove(req.getFilePath(), req);
+                    req.getCountDownLatch().countDown();
+                    return true;
+                }
                 // ignore code
             } finally {
                 if (req != null && isSuccess)
@@ -2085,6 +4615,149 @@ public class RocketmqMessageStoreAnalysis{
             return true;
         }
 
+        // AllocateMappedFileService#isStorePoolExhausted
+        private boolean isStorePoolExhausted() {
+            return this.messageStore.getMessageStoreConfig().isTransientStorePoolEnable()
+                && this.messageStore.getTransientStorePool().availableBufferNums() == 0;
+        }
+
+    }
+
+    /**
+     * MappedFile 的预分配策略，在 AllocateMappedFileService 线程中对新创建的 MappedFile 调用，通过 mappedFilePreallocateMode 进行配置：
+     *
+     * 1.touch：原来的 warmMappedFile，对每一个 4KB 的页写入一个 0，然后 mlock。对于 1GB 的 CommitLog 文件，这样会产生 1GB 的脏页并写入磁盘，
+     * 和真正的消息写入竞争磁盘带宽
+     * 2.fallocate：通过 posix_fallocate 在文件系统中为整个文件预留磁盘块，只修改文件系统的元数据，不写入数据，然后通过 madvise 告诉内核这段映射会被
+     * 顺序访问并且马上就会用到
+     * 3.advise：只给出 madvise 建议，不做任何预分配
+     * 4.none：什么都不做
+     *
+     * 没有配置 mappedFilePreallocateMode 时和原来一样由 warmMapedFileEnable 决定：开启时为 touch，否则为 none。madvise 会改变内核对这段映射的预读和回收行为，
+     * 需要通过 fallocate 或者 advise 显式开启。fallocate 和 advise 都可以通过 mappedFileHugePageEnable 开启透明大页（MADV_HUGEPAGE），减少 TLB miss。注意对于普通文件的映射，只有在内核开启了
+     * CONFIG_READ_ONLY_THP_FOR_FS 或者文件位于 tmpfs 等支持大页的文件系统时才会生效，否则 madvise 会返回错误，这里只打印日志
+     */
+    public static abstract class MappedFilePreallocator {
+
+        public abstract String getName();
+
+        public abstract void preallocate(MappedFile mappedFile, MessageStoreConfig config);
+
+        // MappedFilePreallocator#create
+        public static MappedFilePreallocator create(MessageStoreConfig config) {
+            String mode = config.getMappedFilePreallocateMode();
+            if ("fallocate".equals(mode)) {
+                return new FallocatePreallocator();
+            }
+            if ("advise".equals(mode)) {
+                return new AdvisePreallocator();
+            }
+            if ("none".equals(mode)) {
+                return new NoopPreallocator();
+            }
+            // 默认使用原来的预热方式，并且仍然受 warmMapedFileEnable 控制，关闭时和原来一样不做任何处理
+            return config.isWarmMapedFileEnable() ? new TouchPagePreallocator() : new NoopPreallocator();
+        }
+
+        // 对整个映射区域给出 MADV_SEQUENTIAL 和 MADV_WILLNEED 建议，如果开启了大页还会给出 MADV_HUGEPAGE 建议
+        // MappedFilePreallocator#advise
+        protected void advise(MappedFile mappedFile, MessageStoreConfig config) {
+            // 直接写入的文件只在读取 DirectIORingCache 之外的旧数据时才访问映射区域，预读只会污染 page cache
+            if (mappedFile instanceof DirectIOMappedFile) {
+                return;
+            }
+            final long address = ((DirectBuffer) mappedFile.getMappedByteBuffer()).address();
+            Pointer pointer = new Pointer(address);
+            NativeLong length = new NativeLong(mappedFile.getFileSize());
+
+            int ret = LibC.INSTANCE.madvise(pointer, length, LibC.MADV_SEQUENTIAL);
+            if (ret != 0) {
+                log.warn("madvise MADV_SEQUENTIAL {} ret = {}", mappedFile.getFileName(), ret);
+            }
+            ret = LibC.INSTANCE.madvise(pointer, length, LibC.MADV_WILLNEED);
+            if (ret != 0) {
+                log.warn("madvise MADV_WILLNEED {} ret = {}", mappedFile.getFileName(), ret);
+            }
+            if (config.isMappedFileHugePageEnable()) {
+                ret = LibC.INSTANCE.madvise(pointer, length, LibC.MADV_HUGEPAGE);
+                if (ret != 0) {
+                    log.warn("madvise MADV_HUGEPAGE {} ret = {}, transparent hugepage is not supported for this mapping", mappedFile.getFileName(), ret);
+                }
+            }
+        }
+    }
+
+    public static class TouchPagePreallocator extends MappedFilePreallocator {
+
+        @Override
+        public String getName() {
+            return "touch";
+        }
+
+        @Override
+        public void preallocate(MappedFile mappedFile, MessageStoreConfig config) {
+            mappedFile.warmMappedFile(config.getFlushDiskType(), config.getFlushLeastPagesWhenWarmMapedFile());
+        }
+    }
+
+    public static class NoopPreallocator extends MappedFilePreallocator {
+
+        @Override
+        public String getName() {
+            return "none";
+        }
+
+        @Override
+        public void preallocate(MappedFile mappedFile, MessageStoreConfig config) {
+        }
+    }
+
+    public static class AdvisePreallocator extends MappedFilePreallocator {
+
+        @Override
+        public String getName() {
+            return "advise";
+        }
+
+        @Override
+        public void preallocate(MappedFile mappedFile, MessageStoreConfig config) {
+            this.advise(mappedFile, config);
+        }
+    }
+
+    public static class FallocatePreallocator extends MappedFilePreallocator {
+
+        @Override
+        public String getName() {
+            return "fallocate";
+        }
+
+        // FallocatePreallocator#preallocate
+        @Override
+        public void preallocate(MappedFile mappedFile, MessageStoreConfig config) {
+            // 获取 FileChannel 底层的文件描述符，JDK 没有提供公开的 API，只能通过反射获取 FileChannelImpl.fd 中的 FileDescriptor.fd
+            int fd = -1;
+            try {
+                Field fdField = mappedFile.getFileChannel().getClass().getDeclaredField("fd");
+                fdField.setAccessible(true);
+                FileDescriptor fileDescriptor = (FileDescriptor) fdField.get(mappedFile.getFileChannel());
+                Field intFdField = FileDescriptor.class.getDeclaredField("fd");
+                intFdField.setAccessible(true);
+                fd = intFdField.getInt(fileDescriptor);
+            } catch (Exception e) {
+                log.warn("get fd of {} failed, skip fallocate", mappedFile.getFileName(), e);
+            }
+
+            if (fd >= 0) {
+                // 为 [0, fileSize) 预留磁盘块，之后写入时不再需要文件系统分配块，也不会产生额外的数据写入
+                int ret = LibC.INSTANCE.posix_fallocate(fd, new NativeLong(0), new NativeLong(mappedFile.getFileSize()));
+                if (ret != 0) {
+                    log.warn("posix_fallocate {} ret = {}", mappedFile.getFileName(), ret);
+                }
+            }
+
+            this.advise(mappedFile, config);
+        }
     }
 
     /**
@@ -2099,12 +4772,17 @@ public class RocketmqMessageStoreAnalysis{
         private int wroteBytes;
         // Message ID
         private String msgId;
+        // 单条消息的 msgId 在 getMsgId 时才根据 storeHost 和 wroteOffset 生成，批量消息的 msgId 仍然在 doAppend 中拼接
+        private SocketAddress storeHost;
         // Message storage timestamp
         private long storeTimestamp;
         // Consume queue's offset(step by one)
         private long logicsOffset;
         private long pagecacheRT = 0;
+        // 批量消息的条数，单条消息为 1
         private int msgNum = 1;
+        // 批量消息中每一条消息在 CommitLog 中的物理偏移量，单条消息时为 null
+        private long[] msgPhyOffsets;
 
         public AppendMessageResult(AppendMessageStatus status, long wroteOffset, int wroteBytes, String msgId, long storeTimestamp, 
                     long logicsOffset, long pagecacheRT) {
@@ -2116,6 +4794,48 @@ public class RocketmqMessageStoreAnalysis{
             this.logicsOffset = logicsOffset;
             this.pagecacheRT = pagecacheRT;
         }
+
+        public AppendMessageResult(AppendMessageStatus status) {
+            this(status, 0, 0, "", 0, 0, 0);
+        }
+
+        // 单条消息写入时设置结果，复用的对象和新建的对象都通过这个方法设置
+        // AppendMessageResult#reset
+        public AppendMessageResult reset(AppendMessageStatus status, long wroteOffset, int wroteBytes, SocketAddress storeHost,
+                    long storeTimestamp, long logicsOffset, long pagecacheRT) {
+            this.status = status;
+            this.wroteOffset = wroteOffset;
+            this.wroteBytes = wroteBytes;
+            this.msgId = null;
+            this.storeHost = storeHost;
+            this.storeTimestamp = storeTimestamp;
+            this.logicsOffset = logicsOffset;
+            this.pagecacheRT = pagecacheRT;
+            this.msgNum = 1;
+            this.msgPhyOffsets = null;
+            return this;
+        }
+
+        // 多个线程同时调用时可能各自生成一次 msgId，结果是相同的
+        // AppendMessageResult#getMsgId
+        public String getMsgId() {
+            if (this.msgId == null && this.storeHost != null) {
+                this.msgId = MessageDecoder.createMessageId(ByteBuffer.allocate(MessageDecoder.MSG_ID_LENGTH),
+                    MessageExt.socketAddress2ByteBuffer(this.storeHost), this.wroteOffset);
+            }
+            return this.msgId;
+        }
+
+        // 复制一个不会被复用的结果，用于需要跨线程持有 putMessage 返回值的调用者
+        // AppendMessageResult#copy
+        public AppendMessageResult copy() {
+            AppendMessageResult copy = new AppendMessageResult(this.status).reset(this.status, this.wroteOffset, this.wroteBytes, this.storeHost,
+                this.storeTimestamp, this.logicsOffset, this.pagecacheRT);
+            copy.msgId = this.msgId;
+            copy.msgNum = this.msgNum;
+            copy.msgPhyOffsets = this.msgPhyOffsets;
+            return copy;
+        }
     }
 
 }
\ No newline at end of file
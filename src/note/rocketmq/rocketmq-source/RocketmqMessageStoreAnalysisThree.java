@@ -0,0 +1,1652 @@
+public class RocketmqMessageStoreAnalysisThree {
+    /**
+     * CommitLog 压缩段（CompressedSegment）
+     *
+     * CommitLog 文件写满之后就不会再被修改，但是在被 CleanCommitLogService#deleteExpiredFiles 删除之前（默认保留 72 小时），会一直以原始大小保存在磁盘上。
+     * 对于保留时间较长的集群，磁盘成本主要就是这些已经写满的历史文件。CommitLogCompactService 会在后台将写满并且足够旧的 CommitLog 文件重写为按块压缩的
+     * 压缩段文件，然后删除原来的 CommitLog 文件。
+     *
+     * 压缩段文件保存在 ${storePathCommitLog}/compressed 目录下，文件名和原来的 CommitLog 文件相同，也就是 fileFromOffset，文件的格式为：
+     *
+     * Header（40 个字节）| Block 0 | Block 1 | ... | Block N-1 | BlockIndex（N * 12 个字节）
+     *
+     * Header：magic(4) | version(4) | codec(4) | blockSize(4) | blockCount(4) | fileFromOffset(8) | rawSize(8) | storeTimestamp(4，秒)
+     * Block：原始文件中 [i * blockSize, (i + 1) * blockSize) 这段数据压缩之后的内容，默认 blockSize 为 64KB
+     * BlockIndex：每一个 Block 在压缩段文件中的位置 position(8) 和压缩之后的长度 length(4)
+     *
+     * 因为每一个 Block 对应的原始数据长度是固定的，所以根据物理偏移量 offset 可以直接算出所在的 Block：(offset - fileFromOffset) / blockSize，
+     * 再通过 BlockIndex 找到这个 Block 在压缩段中的位置，不需要额外的查找。一条消息可能跨越多个 Block，此时依次解压这些 Block 拼接起来。
+     *
+     * 读取时，CommitLog#getMessage 在 mappedFileQueue 中找不到 offset 对应的 MappedFile 时，会继续在 compressedSegmentTable 中查找，
+     * 解压之后的 Block 缓存在 BlockCache 中，同一个消费者顺序拉取一个 Block 中的消息时只需要解压一次。
+     */
+
+    public interface BlockCodec {
+
+        int LZ4 = 1;
+
+        int ZSTD = 2;
+
+        int getCodecId();
+
+        byte[] compress(byte[] src, int offset, int length);
+
+        // rawLength 为压缩之前的长度，也就是解压之后的长度
+        byte[] decompress(byte[] src, int offset, int length, int rawLength);
+    }
+
+    public static class Lz4BlockCodec implements BlockCodec {
+
+        private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+
+        private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+        @Override
+        public int getCodecId() {
+            return LZ4;
+        }
+
+        @Override
+        public byte[] compress(byte[] src, int offset, int length) {
+            byte[] dest = new byte[compressor.maxCompressedLength(length)];
+            int compressedLength = compressor.compress(src, offset, length, dest, 0, dest.length);
+            return Arrays.copyOf(dest, compressedLength);
+        }
+
+        @Override
+        public byte[] decompress(byte[] src, int offset, int length, int rawLength) {
+            byte[] dest = new byte[rawLength];
+            decompressor.decompress(src, offset, dest, 0, rawLength);
+            return dest;
+        }
+    }
+
+    public static class ZstdBlockCodec implements BlockCodec {
+
+        private final int level;
+
+        public ZstdBlockCodec(int level) {
+            this.level = level;
+        }
+
+        @Override
+        public int getCodecId() {
+            return ZSTD;
+        }
+
+        @Override
+        public byte[] compress(byte[] src, int offset, int length) {
+            byte[] dest = new byte[(int) Zstd.compressBound(length)];
+            long compressedLength = Zstd.compressByteArray(dest, 0, dest.length, src, offset, length, level);
+            if (Zstd.isError(compressedLength)) {
+                throw new RuntimeException("zstd compress error " + Zstd.getErrorName(compressedLength));
+            }
+            return Arrays.copyOf(dest, (int) compressedLength);
+        }
+
+        @Override
+        public byte[] decompress(byte[] src, int offset, int length, int rawLength) {
+            byte[] dest = new byte[rawLength];
+            long ret = Zstd.decompressByteArray(dest, 0, rawLength, src, offset, length);
+            if (Zstd.isError(ret)) {
+                throw new RuntimeException("zstd decompress error " + Zstd.getErrorName(ret));
+            }
+            return dest;
+        }
+    }
+
+    /**
+     * 可以按照固定大小的 Block 读取的 CommitLog 数据，BlockCache 以 (fileFromOffset, blockIndex) 作为缓存的 key。
+     * CompressedSegment 返回解压之后的 Block，TieredMappedFile 返回从冷存储目录中读取的 Block
+     */
+    public interface BlockSource {
+
+        long getFileFromOffset();
+
+        byte[] readBlock(int blockIndex) throws IOException;
+    }
+
+    public static class CompressedSegment implements BlockSource {
+
+        private static final Logger log = LoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+        public static final int MAGIC_CODE = 0xCAFEC0DE;
+
+        public static final int VERSION = 1;
+
+        public static final int HEADER_SIZE = 40;
+
+        public static final int BLOCK_INDEX_UNIT_SIZE = 12;
+
+        private final File file;
+        // 原始 CommitLog 文件的起始偏移量
+        private final long fileFromOffset;
+        // 原始 CommitLog 文件中有效数据的长度，也就是原 MappedFile 的 wrotePosition
+        private final long rawSize;
+        private final int blockSize;
+        private final int blockCount;
+        private final BlockCodec codec;
+        // 原始 CommitLog 文件中最后一条消息的存储时间，用来判断压缩段是否过期
+        private final long storeTimestamp;
+        // BlockIndex 常驻内存，每一个 Block 只占用 12 个字节
+        private final long[] blockPositions;
+        private final int[] blockLengths;
+
+        private final FileChannel fileChannel;
+
+        private CompressedSegment(File file, FileChannel fileChannel, long fileFromOffset, long rawSize, int blockSize, BlockCodec codec,
+                    long storeTimestamp, long[] blockPositions, int[] blockLengths) {
+            this.file = file;
+            this.fileChannel = fileChannel;
+            this.fileFromOffset = fileFromOffset;
+            this.rawSize = rawSize;
+            this.blockSize = blockSize;
+            this.blockCount = blockPositions.length;
+            this.codec = codec;
+            this.storeTimestamp = storeTimestamp;
+            this.blockPositions = blockPositions;
+            this.blockLengths = blockLengths;
+        }
+
+        /**
+         * 将一个写满的 MappedFile 重写为压缩段文件。先写入到 .tmp 文件中，全部写完并且 force 之后再重命名为正式的文件名，
+         * 这样 Broker 在压缩过程中宕机不会留下不完整的压缩段，重启时只需要删除残留的 .tmp 文件即可
+         */
+        // CompressedSegment#create
+        public static CompressedSegment create(final MappedFile mappedFile, final String compressedDir, final int blockSize,
+                    final BlockCodec codec) throws IOException {
+            final int rawSize = mappedFile.getWrotePosition();
+            final int blockCount = (rawSize + blockSize - 1) / blockSize;
+            final long[] blockPositions = new long[blockCount];
+            final int[] blockLengths = new int[blockCount];
+
+            File tmpFile = new File(compressedDir, mappedFile.getFile().getName() + ".tmp");
+            File file = new File(compressedDir, mappedFile.getFile().getName());
+            MappedFile.ensureDirOK(compressedDir);
+
+            ByteBuffer source = mappedFile.sliceByteBuffer();
+            byte[] rawBlock = new byte[blockSize];
+            try (FileChannel channel = new RandomAccessFile(tmpFile, "rw").getChannel()) {
+                // 先跳过 Header，等所有 Block 都写完之后再写
+                long position = HEADER_SIZE;
+                for (int i = 0; i < blockCount; i++) {
+                    int length = Math.min(blockSize, rawSize - i * blockSize);
+                    source.get(rawBlock, 0, length);
+                    byte[] compressed = codec.compress(rawBlock, 0, length);
+                    position += channel.write(ByteBuffer.wrap(compressed), position);
+                    blockPositions[i] = position - compressed.length;
+                    blockLengths[i] = compressed.length;
+                }
+
+                ByteBuffer index = ByteBuffer.allocate(blockCount * BLOCK_INDEX_UNIT_SIZE);
+                for (int i = 0; i < blockCount; i++) {
+                    index.putLong(blockPositions[i]);
+                    index.putInt(blockLengths[i]);
+                }
+                index.flip();
+                channel.write(index, position);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC_CODE);
+                header.putInt(VERSION);
+                header.putInt(codec.getCodecId());
+                header.putInt(blockSize);
+                header.putInt(blockCount);
+                header.putLong(mappedFile.getFileFromOffset());
+                header.putLong(rawSize);
+                header.putInt((int) (mappedFile.getStoreTimestamp() / 1000));
+                header.flip();
+                channel.write(header, 0);
+                channel.force(true);
+            }
+
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("rename " + tmpFile + " to " + file + " failed");
+            }
+
+            log.info("compress commitlog {} done, raw size {}, compressed size {}", mappedFile.getFileName(), rawSize, file.length());
+            return new CompressedSegment(file, new RandomAccessFile(file, "r").getChannel(), mappedFile.getFileFromOffset(), rawSize,
+                blockSize, codec, mappedFile.getStoreTimestamp(), blockPositions, blockLengths);
+        }
+
+        // 在 Broker 启动时加载 compressed 目录下的压缩段文件，只读取 Header 和 BlockIndex
+        // CompressedSegment#load
+        public static CompressedSegment load(final File file, final BlockCodec lz4, final BlockCodec zstd) throws IOException {
+            FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC_CODE || header.getInt() != VERSION) {
+                channel.close();
+                throw new IOException("illegal compressed segment " + file);
+            }
+            int codecId = header.getInt();
+            int blockSize = header.getInt();
+            int blockCount = header.getInt();
+            long fileFromOffset = header.getLong();
+            long rawSize = header.getLong();
+            long storeTimestamp = (header.getInt() & 0xFFFFFFFFL) * 1000;
+
+            long[] blockPositions = new long[blockCount];
+            int[] blockLengths = new int[blockCount];
+            ByteBuffer index = ByteBuffer.allocate(blockCount * BLOCK_INDEX_UNIT_SIZE);
+            channel.read(index, channel.size() - index.capacity());
+            index.flip();
+            for (int i = 0; i < blockCount; i++) {
+                blockPositions[i] = index.getLong();
+                blockLengths[i] = index.getInt();
+            }
+
+            return new CompressedSegment(file, channel, fileFromOffset, rawSize, blockSize, codecId == BlockCodec.LZ4 ? lz4 : zstd,
+                storeTimestamp, blockPositions, blockLengths);
+        }
+
+        // 读取并解压第 blockIndex 个 Block
+        // CompressedSegment#readBlock
+        @Override
+        public byte[] readBlock(final int blockIndex) throws IOException {
+            ByteBuffer compressed = ByteBuffer.allocate(blockLengths[blockIndex]);
+            this.fileChannel.read(compressed, blockPositions[blockIndex]);
+            int rawLength = (int) Math.min(blockSize, rawSize - (long) blockIndex * blockSize);
+            return codec.decompress(compressed.array(), 0, compressed.capacity(), rawLength);
+        }
+
+        /**
+         * 读取物理偏移量 [offset, offset + size) 的数据，优先从 BlockCache 中获取解压之后的 Block。
+         * 返回的 SelectMappedBufferResult 包装的是堆内的 ByteBuffer，mappedFile 为 null，所以 release 不需要做任何事情
+         */
+        // CompressedSegment#select
+        public SelectMappedBufferResult select(final long offset, final int size, final BlockCache cache) {
+            long pos = offset - this.fileFromOffset;
+            if (pos < 0 || pos + size > this.rawSize) {
+                return null;
+            }
+
+            try {
+                return cache.select(this, this.blockSize, pos, size);
+            } catch (IOException e) {
+                log.error("read compressed segment {} offset {} size {} failed", this.file, offset, size, e);
+                return null;
+            }
+        }
+
+        public boolean destroy() {
+            try {
+                this.fileChannel.close();
+            } catch (IOException e) {
+                log.warn("close compressed segment {} failed", this.file, e);
+            }
+            return this.file.delete();
+        }
+
+        @Override
+        public long getFileFromOffset() {
+            return fileFromOffset;
+        }
+
+        public long getRawSize() {
+            return rawSize;
+        }
+
+        public long getStoreTimestamp() {
+            return storeTimestamp;
+        }
+    }
+
+    /**
+     * Block 的缓存，按照 LRU 淘汰。压缩段和冷存储各使用一个实例，容量分别为 compressedBlockCacheSize 和 tieredBlockCacheSize 字节。
+     * 一次拉取的 32 条消息通常位于同一个或者相邻的几个 Block 中，有了这个缓存，一个 Block 只需要解压（或者从慢盘读取）一次
+     */
+    public static class BlockCache {
+
+        private final long capacityBytes;
+
+        private long usedBytes = 0;
+
+        private final LinkedHashMap<String, byte[]> blocks = new LinkedHashMap<>(256, 0.75f, true);
+
+        private final AtomicLong hitTimes = new AtomicLong(0);
+
+        private final AtomicLong missTimes = new AtomicLong(0);
+
+        public BlockCache(long capacityBytes) {
+            this.capacityBytes = capacityBytes;
+        }
+
+        // BlockCache#get
+        public byte[] get(final BlockSource segment, final int blockIndex) throws IOException {
+            final String key = segment.getFileFromOffset() + "-" + blockIndex;
+            synchronized (this) {
+                byte[] block = this.blocks.get(key);
+                if (block != null) {
+                    hitTimes.incrementAndGet();
+                    return block;
+                }
+            }
+
+            // 解压在锁外进行，并发解压同一个 Block 时只是多做了一次解压，结果是相同的
+            missTimes.incrementAndGet();
+            byte[] block = segment.readBlock(blockIndex);
+            synchronized (this) {
+                if (this.blocks.put(key, block) == null) {
+                    this.usedBytes += block.length;
+                }
+                Iterator<Map.Entry<String, byte[]>> it = this.blocks.entrySet().iterator();
+                while (this.usedBytes > this.capacityBytes && it.hasNext()) {
+                    this.usedBytes -= it.next().getValue().length;
+                    it.remove();
+                }
+            }
+            return block;
+        }
+
+        /**
+         * 读取 source 中 [pos, pos + size) 的数据，pos 是相对于 fileFromOffset 的位置。返回的 SelectMappedBufferResult 包装的是堆内的 ByteBuffer，
+         * mappedFile 为 null，所以 release 不需要做任何事情
+         */
+        // BlockCache#select
+        public SelectMappedBufferResult select(final BlockSource source, final int blockSize, final long pos, final int size) throws IOException {
+            final long offset = source.getFileFromOffset() + pos;
+            int firstBlock = (int) (pos / blockSize);
+            int lastBlock = (int) ((pos + size - 1) / blockSize);
+            byte[] block = this.get(source, firstBlock);
+            // 大多数消息都位于一个 Block 内，直接 wrap 缓存中的 Block，不需要拷贝
+            if (firstBlock == lastBlock) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(block, (int) (pos % blockSize), size).slice();
+                return new SelectMappedBufferResult(offset, byteBuffer, size, null);
+            }
+
+            byte[] data = new byte[size];
+            int copied = 0;
+            for (int i = firstBlock; i <= lastBlock; i++) {
+                if (i != firstBlock) {
+                    block = this.get(source, i);
+                }
+                int from = i == firstBlock ? (int) (pos % blockSize) : 0;
+                int length = Math.min(block.length - from, size - copied);
+                System.arraycopy(block, from, data, copied, length);
+                copied += length;
+            }
+            return new SelectMappedBufferResult(offset, ByteBuffer.wrap(data), size, null);
+        }
+
+        // 是否已经缓存了这个 Block
+        public synchronized boolean contains(final BlockSource segment, final int blockIndex) {
+            return this.blocks.containsKey(segment.getFileFromOffset() + "-" + blockIndex);
+        }
+
+        // 压缩段或者冷存储中的文件被删除时，移除它的所有 Block
+        public synchronized void invalidate(final BlockSource segment) {
+            final String prefix = segment.getFileFromOffset() + "-";
+            Iterator<Map.Entry<String, byte[]>> it = this.blocks.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, byte[]> entry = it.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    this.usedBytes -= entry.getValue().length;
+                    it.remove();
+                }
+            }
+        }
+
+        public long getHitTimes() {
+            return hitTimes.get();
+        }
+
+        public long getMissTimes() {
+            return missTimes.get();
+        }
+    }
+
+    /**
+     * 后台压缩 CommitLog 文件的服务，每隔 commitLogCompactInterval 毫秒检查一次。一个 MappedFile 需要同时满足以下条件才会被压缩：
+     *
+     * 1.不是最后一个 MappedFile，也就是已经写满，不会再被修改
+     * 2.最后一次修改的时间距今超过 commitLogCompactAfterHours 小时，刚写满的文件仍然会被实时消费者频繁读取，压缩之后反而增加解压的开销
+     * 3.文件中的数据已经全部刷盘、全部被 ReputMessageService 转发（构建了 ConsumeQueue 和 IndexFile），并且全部同步到了 Slave，
+     * 因为 HA 的 WriteSocketService 以及 ReputMessageService 都是直接读取 MappedFile 的
+     *
+     * 一次只压缩一个文件，压缩完成之后先把压缩段放入 compressedSegmentTable，再从 mappedFileQueue 中删除原来的 MappedFile，
+     * 这样在任何时刻，每一个偏移量都至少可以从其中一个地方读到
+     */
+    class CommitLogCompactService extends ServiceThread {
+
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(CommitLog.this.defaultMessageStore.getMessageStoreConfig().getCommitLogCompactInterval());
+                    this.compactOne();
+                } catch (Throwable e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+            log.info(this.getServiceName() + " service end");
+        }
+
+        // CommitLogCompactService#compactOne
+        private void compactOne() throws IOException {
+            MessageStoreConfig config = CommitLog.this.defaultMessageStore.getMessageStoreConfig();
+            long compactBefore = System.currentTimeMillis() - config.getCommitLogCompactAfterHours() * 60L * 60 * 1000;
+            long safeOffset = CommitLog.this.getSealedSafeOffset();
+
+            Object[] mfs = CommitLog.this.mappedFileQueue.copyMappedFiles(0);
+            if (mfs == null || mfs.length <= 1) {
+                return;
+            }
+
+            // 不考虑最后一个 MappedFile
+            for (int i = 0; i < mfs.length - 1; i++) {
+                MappedFile mappedFile = (MappedFile) mfs[i];
+                if (mappedFile.getLastModifiedTimestamp() > compactBefore) {
+                    break;
+                }
+                if (mappedFile.getFileFromOffset() + mappedFile.getFileSize() > safeOffset) {
+                    break;
+                }
+                if (!mappedFile.isAvailable() || !mappedFile.hold()) {
+                    continue;
+                }
+
+                long beginTime = System.currentTimeMillis();
+                CompressedSegment segment;
+                try {
+                    segment = CompressedSegment.create(mappedFile, CommitLog.this.compressedDir, config.getCommitLogCompactBlockSize(),
+                        CommitLog.this.blockCodec);
+                } finally {
+                    mappedFile.release();
+                }
+
+                // 先发布压缩段，再删除 MappedFile
+                CommitLog.this.compressedSegmentTable.put(segment.getFileFromOffset(), segment);
+                mappedFile.destroy(config.getDestroyMapedFileIntervalForcibly());
+                CommitLog.this.mappedFileQueue.deleteExpiredFile(Collections.singletonList(mappedFile));
+
+                log.info("compact commitlog {} cost {} ms", mappedFile.getFileName(), System.currentTimeMillis() - beginTime);
+                return;
+            }
+        }
+
+        @Override
+        public String getServiceName() {
+            return CommitLogCompactService.class.getSimpleName();
+        }
+    }
+
+    /**
+     * 冷存储（tiered storage）
+     *
+     * CleanCommitLogService 只能删除过期的文件，想要保留更长时间的消息，就需要更多的 NVMe 空间。开启 tieredStorageEnable 之后，TieredStorageService
+     * 把写满并且超过 tieredStorageAfterHours 小时的 CommitLog 文件从 storePathCommitLog 移动到 storePathTiered 目录（比如挂载在 HDD 上的目录），
+     * 文件名不变，也就是 fileFromOffset 不变。
+     *
+     * 移动之后的文件以 TieredMappedFile 的形式替换 mappedFileQueue 中原来的 MappedFile，位置不变，所以 findMappedFileByOffset、getMinOffset、
+     * deleteExpiredFileByTime 等方法不需要任何修改就可以同时覆盖两个目录中的文件。TieredMappedFile 不做内存映射，而是按照 tieredBlockSize 大小的 Block
+     * 从慢盘读取，读取的 Block 缓存在 BlockCache 中（read-through），避免冷数据的读取占用热数据的 page cache，也避免大量的内存映射。
+     *
+     * 和压缩一样，只有已经刷盘、转发并且同步到 Slave 的文件才会被移动，并且一次只移动一个文件
+     */
+    public static class TieredMappedFile extends MappedFile implements BlockSource {
+
+        private final BlockCache blockCache;
+
+        private final int blockSize;
+
+        public TieredMappedFile(final String fileName, final int fileSize, final BlockCache blockCache, final int blockSize) throws IOException {
+            this.blockCache = blockCache;
+            this.blockSize = blockSize;
+            // 只打开 FileChannel，不做内存映射。移动的都是写满的文件，所以各个指针都是文件大小
+            this.initReadOnly(fileName, fileSize);
+            this.setWrotePosition(fileSize);
+            this.setCommittedPosition(fileSize);
+            this.setFlushedPosition(fileSize);
+        }
+
+        // TieredMappedFile#readBlock
+        @Override
+        public byte[] readBlock(final int blockIndex) throws IOException {
+            long position = (long) blockIndex * this.blockSize;
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(this.blockSize, this.getFileSize() - position));
+            while (buffer.hasRemaining()) {
+                if (this.fileChannel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("unexpected end of tiered file " + this.getFileName());
+                }
+            }
+            return buffer.array();
+        }
+
+        @Override
+        public SelectMappedBufferResult selectMappedBuffer(final int pos, final int size) {
+            if (pos + size > this.getReadPosition() || !this.hold()) {
+                return null;
+            }
+            try {
+                return this.blockCache.select(this, this.blockSize, pos, size);
+            } catch (IOException e) {
+                log.error("read tiered file {} pos {} size {} failed", this.getFileName(), pos, size, e);
+                return null;
+            } finally {
+                this.release();
+            }
+        }
+
+        /**
+         * 和原来一样返回从 pos 到 readPosition 的全部数据。ReputMessageService 等调用者要求返回的数据中消息是完整的，截断到 Block 末尾会把跨越 Block
+         * 边界的消息切开，所以不能只返回一个 Block。这类调用都是顺序扫描整个文件，经过 BlockCache 拷贝几百 MB 的数据没有意义，
+         * 这里对 [pos, readPosition) 做一次只读映射，按需从慢盘读取，不占用 BlockCache
+         */
+        // TieredMappedFile#selectMappedBuffer
+        @Override
+        public SelectMappedBufferResult selectMappedBuffer(final int pos) {
+            int readPosition = this.getReadPosition();
+            if (pos < 0 || pos >= readPosition || !this.hold()) {
+                return null;
+            }
+            try {
+                int size = readPosition - pos;
+                ByteBuffer byteBuffer = this.fileChannel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+                return new SelectMappedBufferResult(this.getFileFromOffset() + pos, byteBuffer, size, null);
+            } catch (IOException e) {
+                log.error("map tiered file {} pos {} failed", this.getFileName(), pos, e);
+                return null;
+            } finally {
+                this.release();
+            }
+        }
+
+        // 所有 Block 都在 BlockCache 中时才认为是驻留在内存中的，否则 getMessage 会把这次拉取当作冷读，交给 coldReadExecutor 执行 readAhead
+        @Override
+        public boolean isResident(final int pos, final int size) {
+            for (int i = pos / this.blockSize; i <= (pos + size - 1) / this.blockSize; i++) {
+                if (!this.blockCache.contains(this, i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void readAhead(final int pos, final int size) {
+            try {
+                for (int i = pos / this.blockSize; i <= (pos + size - 1) / this.blockSize; i++) {
+                    this.blockCache.get(this, i);
+                }
+            } catch (IOException e) {
+                log.warn("read ahead tiered file {} failed", this.getFileName(), e);
+            }
+        }
+
+        // 只有 CommitLogCompactService 压缩冷存储中的文件时才会调用，临时映射为只读的 MappedByteBuffer
+        @Override
+        public ByteBuffer sliceByteBuffer() {
+            try {
+                return this.fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, this.getFileSize());
+            } catch (IOException e) {
+                throw new RuntimeException("map tiered file " + this.getFileName() + " failed", e);
+            }
+        }
+
+        // 没有内存映射，不需要 unmap
+        @Override
+        public boolean cleanup(final long currentRef) {
+            return true;
+        }
+
+        @Override
+        public boolean destroy(final long intervalForcibly) {
+            this.shutdown(intervalForcibly);
+            if (!this.isCleanupOver()) {
+                return false;
+            }
+
+            this.blockCache.invalidate(this);
+            try {
+                this.fileChannel.close();
+            } catch (IOException e) {
+                log.warn("close tiered file {} failed", this.getFileName(), e);
+            }
+            if (this.getTimeSkipIndex() != null) {
+                this.getTimeSkipIndex().destroy();
+            }
+            boolean result = this.getFile().delete();
+            log.info("delete tiered file " + this.getFileName() + (result ? " OK" : " Failed"));
+            return result;
+        }
+    }
+
+    /**
+     * 后台将写满的 CommitLog 文件移动到冷存储目录，每隔 tieredStorageInterval 毫秒检查一次，一次只移动一个文件：
+     *
+     * 1.使用 FileChannel#transferTo 拷贝到冷存储目录下的 .tmp 文件，force 之后重命名，宕机时只会留下 .tmp 文件
+     * 2.用 TieredMappedFile 替换 mappedFileQueue 中原来的 MappedFile
+     * 3.销毁原来的 MappedFile，正在读取它的线程持有引用计数，destroy 会等到引用计数为 0 或者超过 destroyMapedFileIntervalForcibly 之后才 unmap 并删除文件
+     *
+     * 如果在 1 和 3 之间宕机，重启时两个目录中都有这个文件，CommitLog#loadTieredFiles 会删除热存储中的文件
+     */
+    class TieredStorageService extends ServiceThread {
+
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(CommitLog.this.defaultMessageStore.getMessageStoreConfig().getTieredStorageInterval());
+                    this.moveOne();
+                } catch (Throwable e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+            log.info(this.getServiceName() + " service end");
+        }
+
+        // TieredStorageService#moveOne
+        private void moveOne() throws IOException {
+            MessageStoreConfig config = CommitLog.this.defaultMessageStore.getMessageStoreConfig();
+            long moveBefore = System.currentTimeMillis() - config.getTieredStorageAfterHours() * 60L * 60 * 1000;
+            long safeOffset = CommitLog.this.getSealedSafeOffset();
+
+            Object[] mfs = CommitLog.this.mappedFileQueue.copyMappedFiles(0);
+            if (mfs == null || mfs.length <= 1) {
+                return;
+            }
+
+            // 不考虑最后一个 MappedFile
+            for (int i = 0; i < mfs.length - 1; i++) {
+                MappedFile mappedFile = (MappedFile) mfs[i];
+                if (mappedFile instanceof TieredMappedFile) {
+                    continue;
+                }
+                if (mappedFile.getLastModifiedTimestamp() > moveBefore) {
+                    break;
+                }
+                if (mappedFile.getFileFromOffset() + mappedFile.getFileSize() > safeOffset) {
+                    break;
+                }
+                if (!mappedFile.isAvailable() || !mappedFile.hold()) {
+                    continue;
+                }
+
+                long beginTime = System.currentTimeMillis();
+                File target = new File(CommitLog.this.tieredDir, mappedFile.getFile().getName());
+                try {
+                    copyFile(mappedFile.getFile(), target);
+                    // 时间索引也一起移动
+                    File timeIndex = new File(mappedFile.getFileName() + TimeSkipIndex.SUFFIX);
+                    if (timeIndex.exists()) {
+                        copyFile(timeIndex, new File(target.getPath() + TimeSkipIndex.SUFFIX));
+                    }
+                } finally {
+                    mappedFile.release();
+                }
+
+                TieredMappedFile tieredMappedFile = new TieredMappedFile(target.getPath(), mappedFile.getFileSize(),
+                    CommitLog.this.tieredBlockCache, config.getTieredBlockSize());
+                tieredMappedFile.setTimeSkipIndex(TimeSkipIndex.load(target.getPath()));
+
+                // 先发布 TieredMappedFile，再销毁原来的 MappedFile
+                if (CommitLog.this.mappedFileQueue.replaceMappedFile(mappedFile, tieredMappedFile)) {
+                    mappedFile.destroy(config.getDestroyMapedFileIntervalForcibly());
+                    log.info("move commitlog {} to tiered storage cost {} ms", mappedFile.getFileName(), System.currentTimeMillis() - beginTime);
+                } else {
+                    // 拷贝期间原来的文件已经被删除了（比如过期删除），丢弃拷贝的文件
+                    tieredMappedFile.destroy(0);
+                }
+                return;
+            }
+        }
+
+        private void copyFile(final File source, final File target) throws IOException {
+            File tmp = new File(target.getPath() + ".tmp");
+            MappedFile.ensureDirOK(target.getParent());
+            try (FileChannel in = new RandomAccessFile(source, "r").getChannel();
+                 FileChannel out = new RandomAccessFile(tmp, "rw").getChannel()) {
+                long position = 0;
+                long size = in.size();
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+                out.force(true);
+            }
+            // 保留原来文件的修改时间，过期删除是根据 CommitLog 文件的修改时间判断的，否则移动之后的文件要多保留 fileReservedTime
+            if (!tmp.setLastModified(source.lastModified())) {
+                log.warn("set last modified time of {} failed", tmp);
+            }
+            if (!tmp.renameTo(target)) {
+                throw new IOException("rename " + tmp + " to " + target + " failed");
+            }
+        }
+
+        @Override
+        public String getServiceName() {
+            return TieredStorageService.class.getSimpleName();
+        }
+    }
+
+    public static class CommitLog {
+
+        // fileFromOffset -> 压缩段，按照偏移量排序
+        private final ConcurrentSkipListMap<Long, CompressedSegment> compressedSegmentTable = new ConcurrentSkipListMap<>();
+        // 压缩段文件所在的目录
+        private final String compressedDir;
+
+        private final BlockCodec blockCodec;
+
+        private final BlockCache decompressedBlockCache;
+
+        private final CommitLogCompactService commitLogCompactService;
+        // 冷存储目录
+        private final String tieredDir;
+        // 从冷存储中读取的 Block 的缓存
+        private final BlockCache tieredBlockCache;
+
+        private final TieredStorageService tieredStorageService;
+
+        public CommitLog(final DefaultMessageStore defaultMessageStore) {
+            // ignore code
+
+            MessageStoreConfig config = defaultMessageStore.getMessageStoreConfig();
+            this.compressedDir = config.getStorePathCommitLog() + File.separator + "compressed";
+            this.blockCodec = "zstd".equals(config.getCommitLogCompactCodec()) ?
+                new ZstdBlockCodec(config.getCommitLogCompactZstdLevel()) : new Lz4BlockCodec();
+            this.decompressedBlockCache = new BlockCache(config.getCompressedBlockCacheSize());
+            this.commitLogCompactService = new CommitLogCompactService();
+            this.tieredDir = config.getStorePathTiered() + File.separator + "commitlog";
+            this.tieredBlockCache = new BlockCache(config.getTieredBlockCacheSize());
+            this.tieredStorageService = new TieredStorageService();
+        }
+
+        // 已经安全的最大偏移量，这个偏移量之前的数据都已经刷盘、转发（开启并行转发时以所有 DispatchLane 都处理完为准）并且同步到了 Slave，
+        // 压缩和移动到冷存储都只处理这个偏移量之前的文件
+        // CommitLog#getSealedSafeOffset
+        public long getSealedSafeOffset() {
+            MessageStoreConfig config = this.defaultMessageStore.getMessageStoreConfig();
+            long safeOffset = Math.min(this.mappedFileQueue.getFlushedWhere(), this.defaultMessageStore.getDispatchedOffset());
+            if (config.getBrokerRole() != BrokerRole.SLAVE && this.defaultMessageStore.getHaService().getConnectionCount().get() > 0) {
+                safeOffset = Math.min(safeOffset, this.defaultMessageStore.getHaService().getPush2SlaveMaxOffset().get());
+            }
+            return safeOffset;
+        }
+
+        /**
+         * 加载冷存储目录中的文件，在 CommitLog#load 中 mappedFileQueue.load 之后、loadCompressedSegments 之前调用。
+         * 冷存储中的文件总是比热存储中的文件更旧，所以插入到 mappedFileQueue 的最前面
+         */
+        // CommitLog#loadTieredFiles
+        public boolean loadTieredFiles() {
+            File[] files = new File(this.tieredDir).listFiles();
+            if (files == null) {
+                return true;
+            }
+            Arrays.sort(files);
+
+            MessageStoreConfig config = this.defaultMessageStore.getMessageStoreConfig();
+            List<MappedFile> tieredMappedFiles = new ArrayList<>();
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    log.info("delete unfinished tiered file {}", file);
+                    file.delete();
+                    continue;
+                }
+                if (file.getName().endsWith(TimeSkipIndex.SUFFIX)) {
+                    continue;
+                }
+                try {
+                    TieredMappedFile tieredMappedFile = new TieredMappedFile(file.getPath(), config.getMapedFileSizeCommitLog(), this.tieredBlockCache,
+                        config.getTieredBlockSize());
+                    tieredMappedFile.setTimeSkipIndex(TimeSkipIndex.load(file.getPath()));
+                    tieredMappedFiles.add(tieredMappedFile);
+                } catch (IOException e) {
+                    log.error("load tiered file {} failed", file, e);
+                    return false;
+                }
+            }
+
+            // 拷贝完成之后、原来的 MappedFile 删除之前宕机，重启时两个目录中都有这个文件，删除热存储中的文件
+            for (MappedFile mappedFile : this.mappedFileQueue.getMappedFiles()) {
+                for (MappedFile tieredMappedFile : tieredMappedFiles) {
+                    if (tieredMappedFile.getFileFromOffset() == mappedFile.getFileFromOffset()) {
+                        log.info("commitlog {} has been moved to tiered storage, delete it", mappedFile.getFileName());
+                        mappedFile.destroy(0);
+                        this.mappedFileQueue.deleteExpiredFile(Collections.singletonList(mappedFile));
+                    }
+                }
+            }
+            this.mappedFileQueue.getMappedFiles().addAll(0, tieredMappedFiles);
+            log.info("load tiered files {}", tieredMappedFiles.size());
+            return true;
+        }
+
+        // 加载 compressed 目录下的压缩段，并且删除压缩过程中残留的 .tmp 文件，在 CommitLog#load 中调用
+        // CommitLog#loadCompressedSegments
+        public boolean loadCompressedSegments() {
+            File dir = new File(this.compressedDir);
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return true;
+            }
+            BlockCodec lz4 = new Lz4BlockCodec();
+            BlockCodec zstd = new ZstdBlockCodec(this.defaultMessageStore.getMessageStoreConfig().getCommitLogCompactZstdLevel());
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    log.info("delete unfinished compressed segment {}", file);
+                    file.delete();
+                    continue;
+                }
+                try {
+                    CompressedSegment segment = CompressedSegment.load(file, lz4, zstd);
+                    this.compressedSegmentTable.put(segment.getFileFromOffset(), segment);
+                } catch (IOException e) {
+                    log.error("load compressed segment {} failed", file, e);
+                    return false;
+                }
+            }
+
+            // 压缩段发布之后、MappedFile 删除之前宕机，重启时两者同时存在，这里删除已经被压缩的 MappedFile
+            for (MappedFile mappedFile : this.mappedFileQueue.getMappedFiles()) {
+                if (this.compressedSegmentTable.containsKey(mappedFile.getFileFromOffset())) {
+                    log.info("commitlog {} has been compressed, delete it", mappedFile.getFileName());
+                    mappedFile.destroy(0);
+                    this.mappedFileQueue.deleteExpiredFile(Collections.singletonList(mappedFile));
+                }
+            }
+            log.info("load compressed segments {}", this.compressedSegmentTable.size());
+            return true;
+        }
+
+        // 在压缩段中查找 [offset, offset + size) 的数据，由 CommitLog#getMessage 在 mappedFileQueue 中找不到 MappedFile 时调用
+        // CommitLog#getMessageFromCompressedSegment
+        public SelectMappedBufferResult getMessageFromCompressedSegment(final long offset, final int size) {
+            Map.Entry<Long, CompressedSegment> entry = this.compressedSegmentTable.floorEntry(offset);
+            if (entry == null) {
+                return null;
+            }
+            return entry.getValue().select(offset, size, this.decompressedBlockCache);
+        }
+
+        // 压缩段中最小的偏移量，没有压缩段时返回 -1
+        // CommitLog#getCompressedMinOffset
+        public long getCompressedMinOffset() {
+            Map.Entry<Long, CompressedSegment> entry = this.compressedSegmentTable.firstEntry();
+            return entry == null ? -1 : entry.getKey();
+        }
+
+        /**
+         * 删除过期的压缩段，和 MappedFileQueue#deleteExpiredFileByTime 一样，根据最后一条消息的存储时间判断是否过期，
+         * 由 CleanCommitLogService#deleteExpiredFiles 调用。压缩段总是比 mappedFileQueue 中的文件更旧，所以要先删除压缩段
+         */
+        // CommitLog#deleteExpiredCompressedSegments
+        public int deleteExpiredCompressedSegments(final long expiredTime, final boolean cleanImmediately) {
+            int deleteCount = 0;
+            long now = System.currentTimeMillis();
+            for (CompressedSegment segment : this.compressedSegmentTable.values()) {
+                if (now < segment.getStoreTimestamp() + expiredTime && !cleanImmediately) {
+                    break;
+                }
+                this.compressedSegmentTable.remove(segment.getFileFromOffset());
+                this.decompressedBlockCache.invalidate(segment);
+                if (segment.destroy()) {
+                    deleteCount++;
+                }
+            }
+            return deleteCount;
+        }
+
+        /**
+         * 增量恢复 CommitLog，只校验最后一个有水位的文件中水位之后的数据，以及之后创建的文件。和 recoverAbnormally 不同，这里不转发消息，
+         * 由 DefaultMessageStore#dispatchToConsumeQueue 补齐 ConsumeQueue，再由 ReputMessageService 从 consumeQueueSafeOffset 开始转发。找不到任何有水位的文件时返回 false，由调用者回退到 recoverAbnormally
+         */
+        // CommitLog#recoverIncrementally
+        public boolean recoverIncrementally(final long maxPhyOffsetOfConsumeQueue, final StoreRecoveryCheckpoint checkpoint) {
+            boolean checkCRCOnRecover = this.defaultMessageStore.getMessageStoreConfig().isCheckCRCOnRecover();
+            final List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
+            if (mappedFiles.isEmpty()) {
+                return false;
+            }
+
+            // 水位之后创建的文件没有水位，从最后一个有水位的文件开始
+            int index = mappedFiles.size() - 1;
+            Integer watermark = null;
+            for (; index >= 0; index--) {
+                watermark = checkpoint.getCommitLogWatermark(mappedFiles.get(index).getFileFromOffset());
+                if (watermark != null) {
+                    break;
+                }
+            }
+            if (index < 0) {
+                log.warn("no commit log watermark matched, fall back to recover abnormally");
+                return false;
+            }
+
+            long beginTime = System.currentTimeMillis();
+            MappedFile mappedFile = mappedFiles.get(index);
+            ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+            long processOffset = mappedFile.getFileFromOffset();
+            long mappedFileOffset = watermark;
+            byteBuffer.position(watermark);
+
+            while (true) {
+                // 水位正好在文件末尾，或者读到了文件末尾的空白，继续下一个文件
+                DispatchRequest dispatchRequest = mappedFileOffset < this.mappedFileSize
+                    ? this.checkMessageAndReturnSize(byteBuffer, checkCRCOnRecover, false) : null;
+                int size = dispatchRequest == null ? 0 : dispatchRequest.getMsgSize();
+
+                if (dispatchRequest != null && dispatchRequest.isSuccess() && size > 0) {
+                    mappedFileOffset += size;
+                } else if (dispatchRequest == null || (dispatchRequest.isSuccess() && size == 0)) {
+                    index++;
+                    if (index >= mappedFiles.size()) {
+                        log.info("recover physics file over, last mapped file " + mappedFile.getFileName());
+                        break;
+                    }
+                    mappedFile = mappedFiles.get(index);
+                    byteBuffer = mappedFile.sliceByteBuffer();
+                    processOffset = mappedFile.getFileFromOffset();
+                    mappedFileOffset = 0;
+                } else {
+                    log.info("recover physics file end, " + mappedFile.getFileName() + " pos=" + byteBuffer.position());
+                    break;
+                }
+            }
+
+            processOffset += mappedFileOffset;
+            this.mappedFileQueue.setFlushedWhere(processOffset);
+            this.mappedFileQueue.setCommittedWhere(processOffset);
+            this.mappedFileQueue.truncateDirtyFiles(processOffset);
+
+            // 删除 ConsumeQueue 中超出 CommitLog 的条目
+            if (maxPhyOffsetOfConsumeQueue >= processOffset) {
+                this.defaultMessageStore.truncateDirtyLogicFiles(processOffset);
+            }
+
+            log.info("recover commit log incrementally to {}, cost {} ms", processOffset, System.currentTimeMillis() - beginTime);
+            return true;
+        }
+    }
+
+    /**
+     * 增量、并行的启动恢复
+     *
+     * Broker 异常退出（abort 文件存在）之后，原来的 CommitLog#recoverAbnormally 从后往前找到第一个 isMappedFileMatchedRecover 的文件，也就是第一条消息的
+     * 存储时间早于 StoreCheckpoint 中 physicMsgTimestamp、logicsMsgTimestamp、indexMsgTimestamp 最小值的文件，然后在一个线程中对这个文件之后的所有消息
+     * 调用 checkMessageAndReturnSize 进行 CRC 校验并且重新转发。StoreCheckpoint 只记录时间戳，粒度是文件级别的，而 indexMsgTimestamp 只在 IndexFile
+     * 写满时才更新，所以往往要从很早的文件开始，对于几 TB 的 CommitLog，启动需要几分钟甚至更久。
+     *
+     * 开启 incrementalRecoverEnable 之后：
+     * 1.每隔 recoveryCheckpointInterval 毫秒持久化一次 StoreRecoveryCheckpoint，记录最后几个 CommitLog 文件、以及每一个 ConsumeQueue 已经刷盘的位置（水位），
+     * 以及 FlushConsumeQueueService 一轮刷盘开始前的转发位置 consumeQueueSafeOffset。水位之前的数据是 Broker 自己写入并且 force 过的，不需要再校验
+     * 2.ConsumeQueue 在线程池中并行恢复，每个 ConsumeQueue 只从自己的水位开始检查
+     * 3.CommitLog 只校验最后一个水位之后的数据，之后将 consumeQueueSafeOffset 之后的消息同步写入 ConsumeQueue（不构建索引），再恢复 topicQueueTable。
+     * 启动之后由 ReputMessageService 从 consumeQueueSafeOffset 开始重新转发，ConsumeQueue 和 IndexService 都会忽略已经构建过的消息，所以重复转发是安全的
+     * 4.被 IndexService#load 删除的 IndexFile 不在启动时重建，而是由 IndexRebuildService 在 Broker 开始提供服务之后在后台重建，重建完成之前根据 key
+     * 查询消息可能查不到异常退出之前的部分消息
+     *
+     * StoreRecoveryCheckpoint 不存在、无法解析或者找不到任何一个有水位的 CommitLog 文件时，回退到原来的 recoverAbnormally
+     */
+    public static class StoreRecoveryCheckpoint {
+
+        private static final int MAGIC_CODE = 0x5EC0FE17;
+
+        private final File file;
+
+        // CommitLog 文件的 fileFromOffset -> 已经刷盘的位置
+        private final ConcurrentSkipListMap<Long, Integer> commitLogWatermarks = new ConcurrentSkipListMap<>();
+
+        // topic@queueId -> ConsumeQueue 已经刷盘的逻辑偏移量（字节）
+        private final ConcurrentMap<String, Long> consumeQueueWatermarks = new ConcurrentHashMap<>();
+
+        // 所有 ConsumeQueue 都已经包含并且刷盘了这个物理偏移量之前的消息
+        private volatile long consumeQueueSafeOffset = -1;
+
+        public StoreRecoveryCheckpoint(final String fileName) {
+            this.file = new File(fileName);
+        }
+
+        // StoreRecoveryCheckpoint#persist
+        public void persist() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 4 + this.commitLogWatermarks.size() * 12 + 4 + this.consumeQueueWatermarks.size() * (2 + 256 + 8));
+            buffer.putInt(MAGIC_CODE);
+            buffer.putLong(this.consumeQueueSafeOffset);
+
+            Map<Long, Integer> commitLogWatermarks = new TreeMap<>(this.commitLogWatermarks);
+            buffer.putInt(commitLogWatermarks.size());
+            for (Map.Entry<Long, Integer> entry : commitLogWatermarks.entrySet()) {
+                buffer.putLong(entry.getKey());
+                buffer.putInt(entry.getValue());
+            }
+
+            Map<String, Long> consumeQueueWatermarks = new HashMap<>(this.consumeQueueWatermarks);
+            buffer.putInt(consumeQueueWatermarks.size());
+            for (Map.Entry<String, Long> entry : consumeQueueWatermarks.entrySet()) {
+                byte[] key = entry.getKey().getBytes(MessageDecoder.CHARSET_UTF8);
+                buffer.putShort((short) key.length);
+                buffer.put(key);
+                buffer.putLong(entry.getValue());
+            }
+            buffer.flip();
+
+            // 先写临时文件再重命名，宕机时要么是旧的检查点，要么是新的检查点
+            File tmp = new File(this.file.getPath() + ".tmp");
+            try (FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel()) {
+                channel.truncate(0);
+                channel.write(buffer, 0);
+                channel.force(true);
+            }
+            if (!tmp.renameTo(this.file)) {
+                throw new IOException("rename " + tmp + " to " + this.file + " failed");
+            }
+        }
+
+        // StoreRecoveryCheckpoint#load
+        public boolean load() {
+            if (!this.file.exists()) {
+                return false;
+            }
+            try (FileChannel channel = new RandomAccessFile(this.file, "r").getChannel()) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                channel.read(buffer, 0);
+                buffer.flip();
+                if (buffer.getInt() != MAGIC_CODE) {
+                    log.warn("illegal recovery checkpoint {}", this.file);
+                    return false;
+                }
+                this.consumeQueueSafeOffset = buffer.getLong();
+                for (int i = buffer.getInt(); i > 0; i--) {
+                    this.commitLogWatermarks.put(buffer.getLong(), buffer.getInt());
+                }
+                for (int i = buffer.getInt(); i > 0; i--) {
+                    byte[] key = new byte[buffer.getShort()];
+                    buffer.get(key);
+                    this.consumeQueueWatermarks.put(new String(key, MessageDecoder.CHARSET_UTF8), buffer.getLong());
+                }
+                return this.consumeQueueSafeOffset >= 0;
+            } catch (Exception e) {
+                log.warn("load recovery checkpoint {} failed", this.file, e);
+                return false;
+            }
+        }
+
+        public Integer getCommitLogWatermark(final long fileFromOffset) {
+            return this.commitLogWatermarks.get(fileFromOffset);
+        }
+
+        public void setCommitLogWatermarks(final List<MappedFile> mappedFiles) {
+            this.commitLogWatermarks.clear();
+            for (MappedFile mappedFile : mappedFiles) {
+                this.commitLogWatermarks.put(mappedFile.getFileFromOffset(), mappedFile.getFlushedPosition());
+            }
+        }
+
+        public long getConsumeQueueWatermark(final String topic, final int queueId) {
+            Long watermark = this.consumeQueueWatermarks.get(topic + "@" + queueId);
+            return watermark == null ? -1 : watermark;
+        }
+
+        public void setConsumeQueueWatermark(final String topic, final int queueId, final long watermark) {
+            this.consumeQueueWatermarks.put(topic + "@" + queueId, watermark);
+        }
+
+        public long getConsumeQueueSafeOffset() {
+            return consumeQueueSafeOffset;
+        }
+
+        public void setConsumeQueueSafeOffset(long consumeQueueSafeOffset) {
+            this.consumeQueueSafeOffset = consumeQueueSafeOffset;
+        }
+    }
+
+    public class DefaultMessageStore {
+
+        private final StoreRecoveryCheckpoint recoveryCheckpoint;
+
+        // 在后台重建 IndexFile 的服务，只有增量恢复之后才会创建
+        private volatile IndexRebuildService indexRebuildService;
+
+        // 增量恢复之后 ReputMessageService 开始转发的位置，-1 表示没有进行增量恢复
+        private long recoveredReputFromOffset = -1;
+
+        // DefaultMessageStore#recover
+        private void recover(final boolean lastExitOK) {
+            boolean incremental = this.messageStoreConfig.isIncrementalRecoverEnable() && this.recoveryCheckpoint.load();
+            long maxPhyOffsetOfConsumeQueue = this.recoverConsumeQueue(incremental);
+
+            if (lastExitOK) {
+                this.commitLog.recoverNormally(maxPhyOffsetOfConsumeQueue);
+            } else if (incremental && this.commitLog.recoverIncrementally(maxPhyOffsetOfConsumeQueue, this.recoveryCheckpoint)) {
+                this.recoveredReputFromOffset = Math.min(this.recoveryCheckpoint.getConsumeQueueSafeOffset(), this.commitLog.getMaxOffset());
+                // recoverTopicQueueTable 根据 ConsumeQueue 计算每个队列的下一个逻辑偏移量，ConsumeQueue 必须先包含 CommitLog 中的所有消息，
+                // 否则新写入的消息会重复使用已经分配给这些消息的逻辑偏移量
+                this.dispatchToConsumeQueue(this.recoveredReputFromOffset);
+                // IndexService#load 删除了 indexMsgTimestamp 之后的 IndexFile，这些消息以及 recoveredReputFromOffset 之前的消息在后台重新构建索引。
+                // 没有 IndexFile 时 getEndPhyOffset 为 0，从 CommitLog 现存的第一条消息开始
+                if (this.messageStoreConfig.isMessageIndexEnable()) {
+                    this.indexRebuildService = new IndexRebuildService(Math.max(this.indexService.getEndPhyOffset(), this.commitLog.getMinOffset()),
+                        this.recoveredReputFromOffset);
+                }
+            } else {
+                this.commitLog.recoverAbnormally(maxPhyOffsetOfConsumeQueue);
+            }
+
+            this.recoverTopicQueueTable();
+        }
+
+        /**
+         * 增量恢复时将 [fromOffset, CommitLog 末尾) 之间的消息同步写入 ConsumeQueue。已经写入的条目会被 ConsumeQueue 当作重复构建忽略，
+         * 所以之后 ReputMessageService 从 fromOffset 开始重新转发给其它 CommitLogDispatcher 仍然是安全的。
+         * recoverIncrementally 已经把 CommitLog 截断到了最后一条完整的消息，这里读取失败说明文件在恢复之后被修改了，直接停止
+         */
+        // DefaultMessageStore#dispatchToConsumeQueue
+        private void dispatchToConsumeQueue(final long fromOffset) {
+            long beginTime = System.currentTimeMillis();
+            final long maxOffset = this.commitLog.getMaxOffset();
+            long offset = fromOffset;
+            while (offset < maxOffset) {
+                SelectMappedBufferResult result = this.commitLog.getData(offset);
+                if (result == null) {
+                    log.warn("dispatch recovered commit log, not found at {}", offset);
+                    break;
+                }
+
+                boolean failed = false;
+                try {
+                    offset = result.getStartOffset();
+                    for (int readSize = 0; readSize < result.getSize() && offset < maxOffset; ) {
+                        DispatchRequest request = this.commitLog.checkMessageAndReturnSize(result.getByteBuffer(), false, false);
+                        int size = request.getMsgSize();
+                        if (request.isSuccess() && size > 0) {
+                            this.putMessagePositionInfo(request);
+                            offset += size;
+                            readSize += size;
+                        } else if (request.isSuccess() && size == 0) {
+                            offset = this.commitLog.rollNextFile(offset);
+                            break;
+                        } else {
+                            log.error("dispatch recovered commit log, read failed at {}", offset);
+                            failed = true;
+                            break;
+                        }
+                    }
+                } finally {
+                    result.release();
+                }
+                if (failed) {
+                    break;
+                }
+            }
+            log.info("dispatch recovered commit log [{}, {}) to consume queue, cost {} ms", fromOffset, offset, System.currentTimeMillis() - beginTime);
+        }
+
+        /**
+         * 原来是在一个线程中依次恢复每一个 ConsumeQueue，每个 ConsumeQueue 都要从倒数第三个文件开始读取所有条目。topic 和队列很多时，
+         * 这一步的耗时和 CommitLog 的恢复相当。这里交给 recoverConsumeQueueThreadNums 个线程并行恢复，增量恢复时每个 ConsumeQueue 从自己的水位开始检查
+         */
+        // DefaultMessageStore#recoverConsumeQueue
+        private long recoverConsumeQueue(final boolean incremental) {
+            ExecutorService executor = Executors.newFixedThreadPool(this.messageStoreConfig.getRecoverConsumeQueueThreadNums(),
+                new ThreadFactoryImpl("RecoverConsumeQueueThread_"));
+            List<Future<Long>> futures = new ArrayList<>();
+
+            for (ConcurrentMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
+                for (final ConsumeQueue logic : maps.values()) {
+                    final long watermark = incremental ? this.recoveryCheckpoint.getConsumeQueueWatermark(logic.getTopic(), logic.getQueueId()) : -1;
+                    futures.add(executor.submit(new Callable<Long>() {
+                        @Override
+                        public Long call() {
+                            logic.recover(watermark);
+                            return logic.getMaxPhysicOffset();
+                        }
+                    }));
+                }
+            }
+
+            long maxPhysicOffset = -1;
+            try {
+                for (Future<Long> future : futures) {
+                    maxPhysicOffset = Math.max(maxPhysicOffset, future.get());
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException("recover consume queue failed", e);
+            } finally {
+                executor.shutdown();
+            }
+            return maxPhysicOffset;
+        }
+
+        /**
+         * 由定时任务每隔 recoveryCheckpointInterval 毫秒调用一次。CommitLog 只记录最后 recoveryCheckpointFileNums 个文件，更早的文件早就写满并且刷盘了，
+         * 恢复时只会用到最后一个有水位的文件
+         */
+        // DefaultMessageStore#persistRecoveryCheckpoint
+        private void persistRecoveryCheckpoint() {
+            List<MappedFile> mappedFiles = this.commitLog.getMappedFileQueue().getMappedFiles();
+            int fromIndex = Math.max(0, mappedFiles.size() - this.messageStoreConfig.getRecoveryCheckpointFileNums());
+            this.recoveryCheckpoint.setCommitLogWatermarks(mappedFiles.subList(fromIndex, mappedFiles.size()));
+
+            for (ConcurrentMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
+                for (ConsumeQueue logic : maps.values()) {
+                    this.recoveryCheckpoint.setConsumeQueueWatermark(logic.getTopic(), logic.getQueueId(), logic.getMappedFileQueue().getFlushedWhere());
+                }
+            }
+
+            try {
+                this.recoveryCheckpoint.persist();
+            } catch (IOException e) {
+                log.error("persist recovery checkpoint failed", e);
+            }
+        }
+
+        class FlushConsumeQueueService extends ServiceThread {
+
+            // FlushConsumeQueueService#doFlush
+            private void doFlush(int retryTimes) {
+                // ignore code
+
+                // 在刷盘之前记录已经转发的位置，这一轮刷盘结束之后，所有 ConsumeQueue 中这个位置之前的条目都已经持久化了
+                long dispatchedOffset = DefaultMessageStore.this.getDispatchedOffset();
+
+                if (DefaultMessageStore.this.getMessageStoreConfig().isConsumeQueueDirtyFlushEnable()) {
+                    // 只刷有新数据的 ConsumeQueue，不再每一轮遍历 consumeQueueTable 中的所有队列。ConsumeQueue 在 dispatchedOffset 推进之前
+                    // 就已经加入 dirtyConsumeQueues，所以这一轮取出的队列覆盖了 dispatchedOffset 之前的所有条目，这一轮中新加入的留到下一轮
+                    ConcurrentLinkedQueue<ConsumeQueue> dirtyConsumeQueues = DefaultMessageStore.this.dirtyConsumeQueues;
+                    int count = dirtyConsumeQueues.size();
+                    ConsumeQueue cq;
+                    while (count-- > 0 && (cq = dirtyConsumeQueues.poll()) != null) {
+                        boolean result = false;
+                        for (int i = 0; i < retryTimes && !result; i++) {
+                            result = cq.flushIfDirty(flushConsumeQueueLeastPages);
+                        }
+                    }
+                } else {
+                    ConcurrentMap<String, ConcurrentMap<Integer, ConsumeQueue>> tables = DefaultMessageStore.this.consumeQueueTable;
+
+                    for (ConcurrentMap<Integer, ConsumeQueue> maps : tables.values()) {
+                        for (ConsumeQueue cq : maps.values()) {
+                            boolean result = false;
+                            for (int i = 0; i < retryTimes && !result; i++) {
+                                result = cq.flush(flushConsumeQueueLeastPages);
+                            }
+                        }
+                    }
+                }
+
+                // 只有强制刷盘（flushConsumeQueueLeastPages 为 0）时所有的数据才都落盘了
+                if (0 == flushConsumeQueueLeastPages) {
+                    DefaultMessageStore.this.recoveryCheckpoint.setConsumeQueueSafeOffset(dispatchedOffset);
+                    // ignore code
+                }
+            }
+        }
+    }
+
+    public class ConsumeQueue {
+
+        /**
+         * 从水位 watermark 开始恢复，水位之前的条目已经刷盘，不需要再检查。watermark 为 -1，或者水位所在的文件已经被删除时，
+         * 和原来一样从倒数第三个文件开始恢复
+         */
+        // ConsumeQueue#recover(long)
+        public void recover(final long watermark) {
+            final List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
+            MappedFile mappedFile = watermark < 0 ? null : this.mappedFileQueue.findMappedFileByOffset(watermark);
+            if (mappedFiles.isEmpty() || mappedFile == null) {
+                this.recover();
+                return;
+            }
+
+            int index = mappedFiles.indexOf(mappedFile);
+            int position = (int) (watermark - mappedFile.getFileFromOffset());
+            ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+            long maxExtAddr = 1;
+
+            // 用水位之前的最后一个条目初始化 maxPhysicOffset，水位之后可能没有任何条目
+            if (position >= CQ_STORE_UNIT_SIZE) {
+                this.maxPhysicOffset = byteBuffer.getLong(position - CQ_STORE_UNIT_SIZE) + byteBuffer.getInt(position - CQ_STORE_UNIT_SIZE + 8);
+                long tagsCode = byteBuffer.getLong(position - CQ_STORE_UNIT_SIZE + 12);
+                if (isExtAddr(tagsCode)) {
+                    maxExtAddr = tagsCode;
+                }
+            }
+            byteBuffer.position(position);
+
+            long processOffset = mappedFile.getFileFromOffset();
+            long mappedFileOffset = position;
+            while (true) {
+                for (int i = (int) mappedFileOffset; i < this.mappedFileSize; i += CQ_STORE_UNIT_SIZE) {
+                    long offset = byteBuffer.getLong();
+                    int size = byteBuffer.getInt();
+                    long tagsCode = byteBuffer.getLong();
+
+                    if (offset >= 0 && size > 0) {
+                        mappedFileOffset = i + CQ_STORE_UNIT_SIZE;
+                        this.maxPhysicOffset = offset + size;
+                        if (isExtAddr(tagsCode)) {
+                            maxExtAddr = tagsCode;
+                        }
+                    } else {
+                        break;
+                    }
+                }
+
+                if (mappedFileOffset == this.mappedFileSize) {
+                    index++;
+                    if (index >= mappedFiles.size()) {
+                        break;
+                    }
+                    mappedFile = mappedFiles.get(index);
+                    byteBuffer = mappedFile.sliceByteBuffer();
+                    processOffset = mappedFile.getFileFromOffset();
+                    mappedFileOffset = 0;
+                } else {
+                    break;
+                }
+            }
+
+            processOffset += mappedFileOffset;
+            this.mappedFileQueue.setFlushedWhere(processOffset);
+            this.mappedFileQueue.setCommittedWhere(processOffset);
+            this.mappedFileQueue.truncateDirtyFiles(processOffset);
+
+            if (isExtReadEnable()) {
+                this.consumeQueueExt.recover();
+                this.consumeQueueExt.truncateByMaxAddress(maxExtAddr);
+            }
+        }
+    }
+
+    /**
+     * 增量恢复之后在后台重建 IndexFile，重建的范围是 [最后一个 IndexFile 的 endPhyOffset, 当前转发的位置)。
+     *
+     * IndexService 不是线程安全的，并且要求按照物理偏移量递增的顺序构建，所以重建期间 CommitLogDispatcherBuildIndex 不构建索引，只通过 skipIfRebuilding
+     * 记录被跳过的最大偏移量 skippedUpTo，重建线程不断追赶 skippedUpTo。两者相差不超过 indexRebuildHandoffBytes 时，重建线程持有 handoffLock 补齐最后一段，
+     * 然后将 rebuilding 置为 false，此后由转发线程继续构建索引。持有锁期间转发线程会阻塞在 skipIfRebuilding 上，所以不会有消息既被跳过又没有被重建
+     */
+    class IndexRebuildService extends ServiceThread {
+
+        private final Object handoffLock = new Object();
+
+        private volatile boolean rebuilding = true;
+
+        private volatile long skippedUpTo;
+
+        private long rebuildFromOffset;
+
+        public IndexRebuildService(final long rebuildFromOffset, final long reputFromOffset) {
+            this.rebuildFromOffset = rebuildFromOffset;
+            this.skippedUpTo = reputFromOffset;
+        }
+
+        // 重建期间返回 true，调用者跳过这条消息
+        // IndexRebuildService#skipIfRebuilding
+        public boolean skipIfRebuilding(final DispatchRequest request) {
+            if (!this.rebuilding) {
+                return false;
+            }
+            synchronized (this.handoffLock) {
+                if (!this.rebuilding) {
+                    return false;
+                }
+                this.skippedUpTo = Math.max(this.skippedUpTo, request.getCommitLogOffset() + request.getMsgSize());
+                return true;
+            }
+        }
+
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started, rebuild index from " + this.rebuildFromOffset);
+            long beginTime = System.currentTimeMillis();
+            final long handoffBytes = DefaultMessageStore.this.getMessageStoreConfig().getIndexRebuildHandoffBytes();
+
+            while (!this.isStopped()) {
+                long target = this.skippedUpTo;
+                if (target - this.rebuildFromOffset <= handoffBytes) {
+                    synchronized (this.handoffLock) {
+                        this.rebuild(this.skippedUpTo);
+                        this.rebuilding = false;
+                    }
+                    break;
+                }
+                this.rebuild(target);
+            }
+
+            log.info(this.getServiceName() + " service end, rebuild index to " + this.rebuildFromOffset + ", cost "
+                + (System.currentTimeMillis() - beginTime) + "ms");
+        }
+
+        /**
+         * 读取失败时只跳过出错的这个文件，从下一个文件的开头继续重建。checkMessageAndReturnSize 失败时返回的大小不可信，
+         * 无法定位到下一条消息，但是每个文件都从一条完整的消息开始
+         */
+        // IndexRebuildService#rebuild
+        private void rebuild(final long toOffset) {
+            CommitLog commitLog = DefaultMessageStore.this.getCommitLog();
+            while (this.rebuildFromOffset < toOffset && !this.isStopped()) {
+                SelectMappedBufferResult result = commitLog.getData(this.rebuildFromOffset);
+                if (result == null) {
+                    // 文件已经被删除了，跳过这个文件
+                    long nextOffset = commitLog.rollNextFile(this.rebuildFromOffset);
+                    log.warn("rebuild index, commit log not found at {}, skip to {}", this.rebuildFromOffset, nextOffset);
+                    this.rebuildFromOffset = nextOffset;
+                    continue;
+                }
+
+                try {
+                    this.rebuildFromOffset = result.getStartOffset();
+                    for (int readSize = 0; readSize < result.getSize() && this.rebuildFromOffset < toOffset; ) {
+                        DispatchRequest request = commitLog.checkMessageAndReturnSize(result.getByteBuffer(), false, false);
+                        int size = request.getMsgSize();
+                        if (request.isSuccess() && size > 0) {
+                            DefaultMessageStore.this.indexService.buildIndex(request);
+                            this.rebuildFromOffset += size;
+                            readSize += size;
+                        } else if (request.isSuccess() && size == 0) {
+                            this.rebuildFromOffset = commitLog.rollNextFile(this.rebuildFromOffset);
+                            break;
+                        } else {
+                            long nextOffset = commitLog.rollNextFile(this.rebuildFromOffset);
+                            log.error("rebuild index, read commit log failed at {}, skip to {}", this.rebuildFromOffset, nextOffset);
+                            this.rebuildFromOffset = nextOffset;
+                            break;
+                        }
+                    }
+                } finally {
+                    result.release();
+                }
+            }
+        }
+
+        @Override
+        public String getServiceName() {
+            return IndexRebuildService.class.getSimpleName();
+        }
+    }
+
+    /**
+     * 存储热路径上的延迟分布
+     *
+     * StoreStatsService 只统计次数、字节数和若干最大值，putMessage 也只在锁内耗时超过 500ms 时打印一条 warn 日志，只看得到最坏的情况，看不到 p99、p999
+     * 这样的尾延迟是怎样一点点变差的。StoreMetrics 使用 HdrHistogram 对以下几个位置的耗时分别进行统计：
+     *
+     * putMessageLockWait / putMessageLockHold：等待 putMessageLock 的时间以及持有锁的时间
+     * appendEncode：DefaultAppendMessageCallback 将一条消息编码到 msgStoreItemMemory 中的时间（无锁追加模式下是锁外的 encodeWithoutOffset）
+     * flush / commit：一次 MappedFileQueue#flush、MappedFileQueue#commit 的时间
+     * reputLag：ReputMessageService 转发一条消息时，当前时间与消息存储时间之差，也就是消息从写入 CommitLog 到消费者可见的延迟
+     * getMessageHot / getMessageCold：DefaultMessageStore#getMessage 的时间，按照这次拉取是否是冷读分开统计
+     * coldReadAhead：冷读在 coldReadExecutor 中预读的时间
+     *
+     * 每一项都是一个 LatencyRecorder，热路径上只调用 recordNanos，HdrHistogram 的 Recorder#recordValue 是 wait-free 的，并且不分配任何对象。
+     * 定时任务每隔 storeMetricsInterval 毫秒调用一次 roll，取出这段时间的直方图生成 LatencySnapshot，通过 DefaultMessageStore#getStoreMetrics 拉取，
+     * 或者通过 JMX（org.apache.rocketmq.store:type=StoreMetrics）查看。所有的值都以微秒为单位
+     */
+    public static class StoreMetrics implements StoreMetricsMXBean {
+
+        public static final String OBJECT_NAME_PREFIX = "org.apache.rocketmq.store:type=StoreMetrics,brokerName=";
+
+        private final LatencyRecorder putMessageLockWait = new LatencyRecorder("putMessageLockWait");
+
+        private final LatencyRecorder putMessageLockHold = new LatencyRecorder("putMessageLockHold");
+
+        private final LatencyRecorder appendEncode = new LatencyRecorder("appendEncode");
+
+        private final LatencyRecorder flush = new LatencyRecorder("flush");
+
+        private final LatencyRecorder commit = new LatencyRecorder("commit");
+
+        private final LatencyRecorder reputLag = new LatencyRecorder("reputLag");
+
+        private final LatencyRecorder getMessageHot = new LatencyRecorder("getMessageHot");
+
+        private final LatencyRecorder getMessageCold = new LatencyRecorder("getMessageCold");
+
+        private final LatencyRecorder coldReadAhead = new LatencyRecorder("coldReadAhead");
+
+        private final LatencyRecorder[] recorders = {
+            putMessageLockWait, putMessageLockHold, appendEncode, flush, commit, reputLag, getMessageHot, getMessageCold, coldReadAhead
+        };
+
+        // 上一个统计周期的结果，roll 时整体替换
+        private volatile Map<String, LatencySnapshot> latencies = Collections.emptyMap();
+
+        // StoreMetrics#roll
+        public synchronized void roll() {
+            Map<String, LatencySnapshot> latencies = new LinkedHashMap<>();
+            for (LatencyRecorder recorder : this.recorders) {
+                latencies.put(recorder.getName(), recorder.roll());
+            }
+            this.latencies = Collections.unmodifiableMap(latencies);
+        }
+
+        @Override
+        public Map<String, LatencySnapshot> getLatencies() {
+            return latencies;
+        }
+
+        public LatencyRecorder getPutMessageLockWait() {
+            return putMessageLockWait;
+        }
+
+        public LatencyRecorder getPutMessageLockHold() {
+            return putMessageLockHold;
+        }
+
+        public LatencyRecorder getAppendEncode() {
+            return appendEncode;
+        }
+
+        public LatencyRecorder getFlush() {
+            return flush;
+        }
+
+        public LatencyRecorder getCommit() {
+            return commit;
+        }
+
+        public LatencyRecorder getReputLag() {
+            return reputLag;
+        }
+
+        public LatencyRecorder getGetMessageHot() {
+            return getMessageHot;
+        }
+
+        public LatencyRecorder getGetMessageCold() {
+            return getMessageCold;
+        }
+
+        public LatencyRecorder getColdReadAhead() {
+            return coldReadAhead;
+        }
+    }
+
+    // StoreMetrics 的 JMX 接口，使用 MXBean 是为了让 LatencySnapshot 以 CompositeData 的形式展示，jconsole 等工具不需要 RocketMQ 的 class 也可以查看
+    public interface StoreMetricsMXBean {
+
+        Map<String, LatencySnapshot> getLatencies();
+    }
+
+    public static class LatencyRecorder {
+        // 超过 1 小时的值按照 1 小时记录，reputLag 在 Broker 长时间积压之后可能会超过这个值
+        private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+
+        private final String name;
+
+        private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+        // 复用上一次取出的直方图，roll 的时候也不会重新分配 counts 数组
+        private Histogram intervalHistogram;
+
+        public LatencyRecorder(final String name) {
+            this.name = name;
+        }
+
+        // LatencyRecorder#recordNanos
+        public void recordNanos(final long nanos) {
+            long micros = nanos / 1000;
+            this.recorder.recordValue(micros < 0 ? 0 : Math.min(micros, HIGHEST_TRACKABLE_MICROS));
+        }
+
+        // 只在 StoreMetrics#roll 中调用，已经在 StoreMetrics 上加锁
+        LatencySnapshot roll() {
+            this.intervalHistogram = this.recorder.getIntervalHistogram(this.intervalHistogram);
+            Histogram histogram = this.intervalHistogram;
+            return new LatencySnapshot(histogram.getTotalCount(), histogram.getMean(), histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    public static class LatencySnapshot {
+
+        private final long count;
+
+        private final double mean;
+
+        private final long p50;
+
+        private final long p99;
+
+        private final long p999;
+
+        private final long max;
+
+        @ConstructorProperties({"count", "mean", "p50", "p99", "p999", "max"})
+        public LatencySnapshot(long count, double mean, long p50, long p99, long p999, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "LatencySnapshot [count=" + count + ", mean=" + mean + ", p50=" + p50 + ", p99=" + p99 + ", p999=" + p999 + ", max=" + max + "]";
+        }
+    }
+
+}
@@ -88,6 +88,26 @@ public class RocketmqMessageStoreAnalysisTwo {
         public static final int CQ_STORE_UNIT_SIZE = 20;
         // 一个 ConsumeQueue 文件的大小
         private final int mappedFileSize = 0;
+        // 暂存区的大小。4096 不是 20 的整数倍，从页的起始位置开始暂存时，要 205 个条目（4100 字节）才能越过下一个页边界
+        public static final int STAGE_SIZE = (MappedFile.OS_PAGE_SIZE / CQ_STORE_UNIT_SIZE + 1) * CQ_STORE_UNIT_SIZE;
+
+        /**
+         * 暂存区（consumeQueueStageEnable）
+         *
+         * 原来每转发一条消息，就向 ConsumeQueue 的 MappedFile 中写入一个 20 字节的条目。队列很多时，ReputMessageService 在各个文件之间来回写入，
+         * 每次写入都可能落在一个不同的页上。开启暂存之后，条目先追加到 stage 中，暂存满一页，或者 ReputMessageService 处理完一批消息时
+         * （ReputMessageService#publishStaged），再一次性写入 MappedFile。暂存区中的条目对消费者不可见，getDispatchedOffset 也不会越过
+         * 第一条还在暂存区中的消息，所以异常退出之后这些消息会被重新转发。
+         *
+         * stage、stagedFile、stagedBytes 只被 ReputMessageService 线程访问
+         */
+        private final byte[] stage = new byte[STAGE_SIZE];
+        // 暂存区中的条目属于哪一个 MappedFile，暂存区中的条目不会跨越文件
+        private MappedFile stagedFile;
+        // 暂存区中已有的字节数
+        private int stagedBytes = 0;
+        // 是否有还没有刷盘的数据，FlushConsumeQueueService 只刷 dirty 的 ConsumeQueue
+        private final AtomicBoolean dirty = new AtomicBoolean(false);
 
         // 根据 startIndex 来获取消息消费队列的条目
         public SelectMappedBufferResult getIndexBuffer(final long startIndex) {
@@ -108,15 +128,64 @@ public class RocketmqMessageStoreAnalysisTwo {
             return null;
         }
 
+        // ConsumeQueue#putMessagePositionInfoWrapper
+        public void putMessagePositionInfoWrapper(DispatchRequest request) {
+            final int maxRetries = 30;
+            boolean canWrite = this.defaultMessageStore.getRunningFlags().isCQWriteable();
+            for (int i = 0; i < maxRetries && canWrite; i++) {
+                long tagsCode = request.getTagsCode();
+                // 开启了 ConsumeQueueExt 时，把 tagsCode、存储时间、SQL92 过滤的位图以及属性投影写入扩展文件，ConsumeQueue 条目中的 tagsCode
+                // 替换为扩展单元的地址
+                if (isExtWriteEnable()) {
+                    ConsumeQueueExt.CqExtUnit cqExtUnit = new ConsumeQueueExt.CqExtUnit();
+                    cqExtUnit.setFilterBitMap(request.getBitMap());
+                    cqExtUnit.setMsgStoreTime(request.getStoreTimestamp());
+                    cqExtUnit.setTagsCode(request.getTagsCode());
+                    cqExtUnit.setProjection(request.getPropertyProjection());
+
+                    long extAddr = this.consumeQueueExt.put(cqExtUnit);
+                    if (isExtAddr(extAddr)) {
+                        tagsCode = extAddr;
+                    } else {
+                        log.warn("Save consume queue extend fail, So just save tagsCode! {}, topic:{}, queueId:{}, offset:{}", cqExtUnit,
+                            topic, queueId, request.getCommitLogOffset());
+                    }
+                }
+                boolean result = this.putMessagePositionInfo(request.getCommitLogOffset(), request.getMsgSize(), tagsCode,
+                    request.getStoreTimestamp(), request.getConsumeQueueOffset());
+                if (result) {
+                    // 并行转发时各个 lane 写入 ConsumeQueue 的顺序和 CommitLog 中的顺序不一致，logicsMsgTimestamp 由 ReputMessageService 根据
+                    // getDispatchedOffset 推进
+                    if (!this.defaultMessageStore.getMessageStoreConfig().isParallelReputEnable()) {
+                        this.defaultMessageStore.getStoreCheckpoint().setLogicsMsgTimestamp(request.getStoreTimestamp());
+                    }
+                    return;
+                } else {
+                    // ignore code
+                }
+            }
+
+            // ignore code
+        }
+
         // ConsumeQueue#putMessagePositionInfo
         // offset 表示的是消息在 CommitLog 文件中的偏移量
         // cqOffset 表示是消息在 ConsumeQueue 文件中的偏移量，这是逻辑偏移量，比如 msgA 是 ConsumeQueue 中的第一个消息，那么它的逻辑偏移量为 0
         // 如果是第二个消息，那么逻辑偏移量为 1，依次类推，所以 cqOffset 表示下次要插入消息的逻辑偏移量
-        private boolean putMessagePositionInfo(final long offset, final int size, final long tagsCode, final long cqOffset) {
+        // storeTimestamp 为消息的存储时间，用来构建 TimeSkipIndex
+        private boolean putMessagePositionInfo(final long offset, final int size, final long tagsCode, final long storeTimestamp,
+                final long cqOffset) {
             if (offset <= this.maxPhysicOffset) {
                 return true;
             }
 
+            final boolean stageEnable = this.defaultMessageStore.isConsumeQueueStaging();
+            // 这条消息不能紧接在暂存区后面（位于下一个文件中、或者逻辑偏移量不连续）时，先把暂存区写入文件，然后按照原来的流程处理
+            if (this.stagedBytes > 0 && cqOffset * CQ_STORE_UNIT_SIZE != this.stagedFile.getFileFromOffset()
+                    + this.stagedFile.getWrotePosition() + this.stagedBytes) {
+                this.publishStaged();
+            }
+
             // 依次将消息偏移量，消息长度，tag hashcode 写入到 ByteBuffer 中
             this.byteBufferIndex.flip();
             this.byteBufferIndex.limit(CQ_STORE_UNIT_SIZE);
@@ -129,7 +198,10 @@ public class RocketmqMessageStoreAnalysisTwo {
 
             if (mappedFile != null) {
 
-                if (mappedFile.isFirstCreateInQueue() && cqOffset != 0 && mappedFile.getWrotePosition() == 0) {
+                // 暂存区中的条目也要算作已经写入的数据
+                final int wrotePosition = mappedFile.getWrotePosition() + (mappedFile == this.stagedFile ? this.stagedBytes : 0);
+
+                if (mappedFile.isFirstCreateInQueue() && cqOffset != 0 && wrotePosition == 0) {
                     this.minLogicOffset = expectLogicOffset;
                     this.mappedFileQueue.setFlushedWhere(expectLogicOffset);
                     this.mappedFileQueue.setCommittedWhere(expectLogicOffset);
@@ -139,7 +211,7 @@ public class RocketmqMessageStoreAnalysisTwo {
 
                 if (cqOffset != 0) {
                     // currentLogicOffset 表示该 ConsumeQueue 中已经写入消息的总偏移量
-                    long currentLogicOffset = mappedFile.getWrotePosition() + mappedFile.getFileFromOffset();
+                    long currentLogicOffset = wrotePosition + mappedFile.getFileFromOffset();
 
                     // 由于 exptectLogicOffset 表示要从此偏移量插入消息，所以 exptectLogicOffset 应该和 currentLogicOffset 相等
                     // 比如 ConsumeQueue 中已经有 3 条消息，此 ConsumeQueue 的 fileFromOffset 为 0，那么现在要插入的消息的 cqOffset 为 3
@@ -156,12 +228,168 @@ public class RocketmqMessageStoreAnalysisTwo {
                 }
                 this.maxPhysicOffset = offset;
                 // 将消息的内容追加到 ConsumeQueue 的内存映射文件 MappedFile 中，但是并不刷盘，ConsumeQueue 的刷盘方式是固定为异步刷盘
-                // 追加方式就是简单地写入到 MappedFile 中的 fileChannel 中
-                return mappedFile.appendMessage(this.byteBufferIndex.array());
+                // 追加方式就是简单地写入到 MappedFile 中的 fileChannel 中。开启暂存时先写入暂存区
+                boolean result;
+                if (stageEnable && wrotePosition + CQ_STORE_UNIT_SIZE <= this.mappedFileSize) {
+                    result = this.stage(mappedFile, this.byteBufferIndex.array());
+                } else {
+                    result = mappedFile.appendMessage(this.byteBufferIndex.array());
+                    this.markDirty();
+                }
+                if (result && this.defaultMessageStore.getMessageStoreConfig().isTimeSkipIndexEnable()) {
+                    TimeSkipIndex timeSkipIndex = TimeSkipIndex.of(mappedFile);
+                    if (timeSkipIndex != null) {
+                        timeSkipIndex.record(storeTimestamp, cqOffset, this.defaultMessageStore.getMessageStoreConfig().getTimeSkipIndexInterval());
+                    }
+                }
+                return result;
             }
             return false;
         }
 
+        // ConsumeQueue#stage
+        private boolean stage(final MappedFile mappedFile, final byte[] unit) {
+            if (this.stagedBytes == 0) {
+                this.stagedFile = mappedFile;
+                // 第一次暂存时登记到 ReputMessageService，这一批消息处理完之后统一写入文件
+                this.defaultMessageStore.onConsumeQueueStaged(this);
+            }
+            System.arraycopy(unit, 0, this.stage, this.stagedBytes, CQ_STORE_UNIT_SIZE);
+            this.stagedBytes += CQ_STORE_UNIT_SIZE;
+
+            // 按照文件中的位置而不是暂存的字节数判断：暂存的条目写到或者越过了下一个页边界，或者已经到了文件末尾时写入文件。
+            // 条目不能拆开写，所以每次写入最多越过页边界一个条目，之前的页都已经写满，下一次暂存从这个页的中间开始
+            final int wrotePosition = this.stagedFile.getWrotePosition();
+            final int stagedEnd = wrotePosition + this.stagedBytes;
+            if (stagedEnd / MappedFile.OS_PAGE_SIZE > wrotePosition / MappedFile.OS_PAGE_SIZE || stagedEnd == this.mappedFileSize) {
+                return this.publishStaged();
+            }
+            return true;
+        }
+
+        // 将暂存区中的条目一次写入 MappedFile，之后这些条目对消费者可见
+        // ConsumeQueue#publishStaged
+        public boolean publishStaged() {
+            if (this.stagedBytes == 0) {
+                return true;
+            }
+            boolean result = this.stagedFile.appendMessage(this.stage, 0, this.stagedBytes);
+            if (!result) {
+                log.error("publish staged consume queue entries failed, topic: {} queueId: {} file: {} bytes: {}", this.topic, this.queueId,
+                    this.stagedFile.getFileName(), this.stagedBytes);
+            }
+            this.stagedBytes = 0;
+            this.stagedFile = null;
+            this.markDirty();
+            return result;
+        }
+
+        // ConsumeQueue#markDirty
+        private void markDirty() {
+            if (this.dirty.compareAndSet(false, true)) {
+                this.defaultMessageStore.markConsumeQueueDirty(this);
+            }
+        }
+
+        /**
+         * 由 FlushConsumeQueueService 调用，先清除 dirty 标记再刷盘，刷盘期间新写入的数据会重新标记 dirty。
+         * flushLeastPages 不为 0 时可能只刷了一部分，此时重新标记为 dirty，等下一轮再刷
+         */
+        // ConsumeQueue#flushIfDirty
+        public boolean flushIfDirty(final int flushLeastPages) {
+            this.dirty.set(false);
+            boolean result = this.flush(flushLeastPages);
+            if (this.mappedFileQueue.getFlushedWhere() < this.mappedFileQueue.getMaxOffset()) {
+                this.markDirty();
+            }
+            return result;
+        }
+
+        /**
+         * 根据时间戳查找消息消费队列中的逻辑偏移量，用于把消费进度重置到某个时间点。
+         *
+         * 原来的做法是先通过 getMappedFileByTime 找到 ConsumeQueue 文件，然后在文件内二分查找，每次比较都要根据条目中的物理偏移量调用
+         * CommitLog#pickupStoreTimestamp 读取消息的存储时间。现在 getMappedFileByTime 和文件内的查找都只使用内存中的 TimeSkipIndex，
+         * 返回的是存储时间大于等于 timestamp 的第一条消息之前、最近的一个索引条目的逻辑偏移量，最多提前 timeSkipIndexInterval 条消息
+         */
+        // ConsumeQueue#getOffsetInQueueByTime
+        public long getOffsetInQueueByTime(final long timestamp) {
+            MappedFile mappedFile = this.mappedFileQueue.getMappedFileByTime(timestamp);
+            if (mappedFile != null && mappedFile.getTimeSkipIndex() != null) {
+                long offset = mappedFile.getTimeSkipIndex().lookup(timestamp);
+                if (offset >= 0) {
+                    // 最小逻辑偏移量之前的条目已经被删除了
+                    return Math.max(offset, this.minLogicOffset / CQ_STORE_UNIT_SIZE);
+                }
+            }
+            // 旧版本留下的文件没有 TimeSkipIndex，仍然使用在 CommitLog 中读取存储时间的二分查找
+            return this.binarySearchOffsetByTime(mappedFile, timestamp);
+        }
+
+        // ConsumeQueue#binarySearchOffsetByTime
+        private long binarySearchOffsetByTime(final MappedFile mappedFile, final long timestamp) {
+            if (mappedFile != null) {
+                long offset = 0;
+                int low = minLogicOffset > mappedFile.getFileFromOffset() ? (int) (minLogicOffset - mappedFile.getFileFromOffset()) : 0;
+                int high = 0;
+                int midOffset = -1, targetOffset = -1, leftOffset = -1, rightOffset = -1;
+                long leftIndexValue = -1L, rightIndexValue = -1L;
+                long minPhysicOffset = this.defaultMessageStore.getMinPhyOffset();
+                SelectMappedBufferResult sbr = mappedFile.selectMappedBuffer(0);
+                if (null != sbr) {
+                    ByteBuffer byteBuffer = sbr.getByteBuffer();
+                    high = byteBuffer.limit() - CQ_STORE_UNIT_SIZE;
+                    try {
+                        while (high >= low) {
+                            midOffset = (low + high) / (2 * CQ_STORE_UNIT_SIZE) * CQ_STORE_UNIT_SIZE;
+                            byteBuffer.position(midOffset);
+                            long phyOffset = byteBuffer.getLong();
+                            int size = byteBuffer.getInt();
+                            if (phyOffset < minPhysicOffset) {
+                                low = midOffset + CQ_STORE_UNIT_SIZE;
+                                leftOffset = midOffset;
+                                continue;
+                            }
+
+                            // 每一次比较都要从 CommitLog 中读取消息的存储时间
+                            long storeTime = this.defaultMessageStore.getCommitLog().pickupStoreTimestamp(phyOffset, size);
+                            if (storeTime < 0) {
+                                return 0;
+                            } else if (storeTime == timestamp) {
+                                targetOffset = midOffset;
+                                break;
+                            } else if (storeTime > timestamp) {
+                                high = midOffset - CQ_STORE_UNIT_SIZE;
+                                rightOffset = midOffset;
+                                rightIndexValue = storeTime;
+                            } else {
+                                low = midOffset + CQ_STORE_UNIT_SIZE;
+                                leftOffset = midOffset;
+                                leftIndexValue = storeTime;
+                            }
+                        }
+
+                        if (targetOffset != -1) {
+                            offset = targetOffset;
+                        } else {
+                            if (leftIndexValue == -1) {
+                                offset = rightOffset;
+                            } else if (rightIndexValue == -1) {
+                                offset = leftOffset;
+                            } else {
+                                offset = Math.abs(timestamp - leftIndexValue) > Math.abs(timestamp - rightIndexValue) ? rightOffset : leftOffset;
+                            }
+                        }
+
+                        return (mappedFile.getFileFromOffset() + offset) / CQ_STORE_UNIT_SIZE;
+                    } finally {
+                        sbr.release();
+                    }
+                }
+            }
+            return 0;
+        }
+
         public boolean load() {
             // 消息存储路径
             File dir = new File(this.storePath);
@@ -170,6 +398,11 @@ public class RocketmqMessageStoreAnalysisTwo {
                 // ascending order
                 Arrays.sort(files);
                 for (File file : files) {
+                    // TimeSkipIndex 的 .timeidx 文件和数据文件在同一个目录中，00000000000000000000.timeidx 排在第二个数据文件之前，
+                    // 不跳过的话会因为大小不匹配而停止加载之后所有的文件。它们在加载对应的数据文件时一起加载
+                    if (file.getName().endsWith(TimeSkipIndex.SUFFIX)) {
+                        continue;
+                    }
 
                     if (file.length() != this.mappedFileSize) {
                         log.warn(file + "\t" + file.length()
@@ -185,6 +418,8 @@ public class RocketmqMessageStoreAnalysisTwo {
                         mappedFile.setFlushedPosition(this.mappedFileSize);
                         // 当前文件的提交指针，这里还是得说一句，commit 只有在 transientPoolEnable 为 true 的时候才起作用
                         mappedFile.setCommittedPosition(this.mappedFileSize);
+                        // 加载文件对应的稀疏时间索引
+                        mappedFile.setTimeSkipIndex(TimeSkipIndex.load(file.getPath()));
                         // 添加到 mappedFiles 文件集合中
                         this.mappedFiles.add(mappedFile);
                         log.info("load " + file.getPath() + " OK");
@@ -199,6 +434,679 @@ public class RocketmqMessageStoreAnalysisTwo {
         }
     }
 
+    /**
+     * 稀疏时间索引，每个 CommitLog、ConsumeQueue 文件对应一个，持久化在 ${fileName}.timeidx 中，同时常驻内存。
+     *
+     * 原来根据时间戳查找 MappedFile 是遍历所有文件比较最后修改时间，而在 ConsumeQueue 中根据时间戳查找逻辑偏移量时，二分查找的每一步都要根据
+     * 条目中的物理偏移量回到 CommitLog 中读取消息的 storeTimestamp，把消费进度重置到某个时间点时会读到大量冷的 CommitLog 页。
+     *
+     * TimeSkipIndex 每隔 timeSkipIndexInterval 条消息（以及每个文件的第一条消息）记录一个 (storeTimestamp, offset) 条目，offset 对于
+     * CommitLog 是物理偏移量，对于 ConsumeQueue 是逻辑偏移量（条目下标）。每个条目 16 个字节，按照默认的间隔 1024，一个 30 万条目的
+     * ConsumeQueue 文件只需要不到 5KB，根据时间戳的查找变成内存中的二分查找，不再需要任何 CommitLog 的 I/O
+     *
+     * 每个文件只有一个写线程（CommitLog 为 ReputMessageService 线程，ConsumeQueue 为构建它的线程或者 DispatchLane），查询线程先读 count，
+     * 再读数组，数组扩容时先发布新数组再增加 count，所以查询线程看到的条目总是完整的
+     */
+    public static class TimeSkipIndex {
+
+        public static final String SUFFIX = ".timeidx";
+
+        private static final int ENTRY_SIZE = 16;
+
+        private final File file;
+
+        private final FileChannel fileChannel;
+
+        private final ByteBuffer entryBuffer = ByteBuffer.allocate(ENTRY_SIZE);
+
+        private volatile long[] timestamps;
+
+        private volatile long[] offsets;
+
+        private volatile int count;
+
+        // 距离上一个条目之后又写入了多少条消息
+        private int skipped;
+
+        private volatile boolean dirty;
+
+        private TimeSkipIndex(final File file) throws IOException {
+            this.file = file;
+            this.fileChannel = new RandomAccessFile(file, "rw").getChannel();
+
+            // 加载已有的条目，文件末尾不完整的条目（写入时宕机）直接丢弃
+            int loaded = (int) (this.fileChannel.size() / ENTRY_SIZE);
+            this.timestamps = new long[Math.max(16, loaded)];
+            this.offsets = new long[Math.max(16, loaded)];
+            if (loaded > 0) {
+                ByteBuffer buffer = ByteBuffer.allocate(loaded * ENTRY_SIZE);
+                this.fileChannel.read(buffer, 0);
+                buffer.flip();
+                for (int i = 0; i < loaded; i++) {
+                    this.timestamps[i] = buffer.getLong();
+                    this.offsets[i] = buffer.getLong();
+                }
+                // 重启之后从下一条消息开始重新计数，最多比正常情况多记录一个条目
+                this.skipped = Integer.MAX_VALUE;
+            }
+            this.count = loaded;
+        }
+
+        /**
+         * 获取 mappedFile 对应的 TimeSkipIndex，不存在时打开（或者创建）${fileName}.timeidx。CommitLog 和 ConsumeQueue 的 MappedFile
+         * 由 AllocateMappedFileService 或者 load 创建，这里在第一次写入索引时才关联，没有开启 timeSkipIndexEnable 时不会产生 .timeidx 文件
+         */
+        // TimeSkipIndex#of
+        public static TimeSkipIndex of(final MappedFile mappedFile) {
+            TimeSkipIndex index = mappedFile.getTimeSkipIndex();
+            if (index != null) {
+                return index;
+            }
+            synchronized (mappedFile) {
+                index = mappedFile.getTimeSkipIndex();
+                if (index == null) {
+                    try {
+                        index = new TimeSkipIndex(new File(mappedFile.getFileName() + SUFFIX));
+                        mappedFile.setTimeSkipIndex(index);
+                    } catch (IOException e) {
+                        log.error("open time skip index of {} failed", mappedFile.getFileName(), e);
+                    }
+                }
+            }
+            return index;
+        }
+
+        // 加载时只打开已经存在的 .timeidx，旧版本留下的文件没有时间索引，查询时退回到原来的方式
+        // TimeSkipIndex#load
+        public static TimeSkipIndex load(final String mappedFileName) throws IOException {
+            File file = new File(mappedFileName + SUFFIX);
+            return file.exists() ? new TimeSkipIndex(file) : null;
+        }
+
+        /**
+         * 每写入一条消息调用一次，每隔 interval 条记录一个条目。
+         *
+         * 重启之后 ReputMessageService 可能会从更早的位置重新转发（比如 CommitLog 异常恢复之后截断了文件），此时 offset 不大于最后一个条目，
+         * 先把 offset 之后的条目截断再记录，保证条目按照 offset 递增
+         */
+        // TimeSkipIndex#record
+        public void record(final long storeTimestamp, final long offset, final int interval) {
+            int n = this.count;
+            if (n > 0 && offset <= this.offsets[n - 1]) {
+                n = this.truncate(offset);
+                this.skipped = Integer.MAX_VALUE;
+            }
+
+            if (n > 0 && this.skipped != Integer.MAX_VALUE && ++this.skipped < interval) {
+                return;
+            }
+            this.skipped = 0;
+
+            if (n == this.timestamps.length) {
+                this.timestamps = Arrays.copyOf(this.timestamps, n << 1);
+                this.offsets = Arrays.copyOf(this.offsets, n << 1);
+            }
+            this.timestamps[n] = storeTimestamp;
+            this.offsets[n] = offset;
+            this.count = n + 1;
+
+            this.entryBuffer.clear();
+            this.entryBuffer.putLong(storeTimestamp);
+            this.entryBuffer.putLong(offset);
+            this.entryBuffer.flip();
+            try {
+                this.fileChannel.write(this.entryBuffer, (long) n * ENTRY_SIZE);
+                this.dirty = true;
+            } catch (IOException e) {
+                log.error("write time skip index {} failed", this.file, e);
+            }
+        }
+
+        private int truncate(final long offset) {
+            int n = this.count;
+            while (n > 0 && this.offsets[n - 1] >= offset) {
+                n--;
+            }
+            this.count = n;
+            try {
+                this.fileChannel.truncate((long) n * ENTRY_SIZE);
+            } catch (IOException e) {
+                log.error("truncate time skip index {} failed", this.file, e);
+            }
+            return n;
+        }
+
+        /**
+         * 查找存储时间大于等于 timestamp 的第一条消息可能所在的位置：返回存储时间小于 timestamp 的最后一个条目的 offset，两个条目之间的消息
+         * 都有可能满足条件，所以只能从前一个条目开始。返回值最多比精确的结果提前 interval 条消息，对于重置消费进度来说只会多消费少量消息。
+         * timestamp 不大于第一个条目的时间戳时返回第一个条目，没有条目时返回 -1
+         */
+        // TimeSkipIndex#lookup
+        public long lookup(final long timestamp) {
+            int n = this.count;
+            long[] timestamps = this.timestamps;
+            long[] offsets = this.offsets;
+            if (n == 0) {
+                return -1;
+            }
+
+            // 在 [0, n) 中查找第一个时间戳大于等于 timestamp 的条目，存储时间在 CommitLog 中基本是递增的
+            int low = 0, high = n;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (timestamps[mid] < timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return offsets[Math.max(0, low - 1)];
+        }
+
+        public long getBeginTimestamp() {
+            return this.count > 0 ? this.timestamps[0] : -1;
+        }
+
+        // 由 MappedFile#flush 调用，和数据文件一起刷盘
+        // TimeSkipIndex#flush
+        public void flush() {
+            if (this.dirty) {
+                this.dirty = false;
+                try {
+                    this.fileChannel.force(false);
+                } catch (IOException e) {
+                    log.error("flush time skip index {} failed", this.file, e);
+                }
+            }
+        }
+
+        // TimeSkipIndex#destroy
+        public void destroy() {
+            try {
+                this.fileChannel.close();
+            } catch (IOException e) {
+                log.error("close time skip index {} failed", this.file, e);
+            }
+            boolean result = this.file.delete();
+            log.info("delete time skip index " + this.file + (result ? " OK" : " Failed"));
+        }
+    }
+
+    public class ConsumeQueueExt {
+
+        /**
+         * ConsumeQueueExt 中的一个扩展单元，原来的格式为：
+         *
+         * size(2) | tagsCode(8) | msgStoreTime(8) | bitMapSize(2) | filterBitMap(bitMapSize)
+         *
+         * filterBitMap 是 CommitLogDispatcherCalcBitMap 在转发时计算出来的布隆过滤器位图：对于每一个使用 SQL92 过滤的消费组，如果消息匹配该消费组的表达式，
+         * 就把该消费组对应的若干位置为 1。拉取时如果位图中该消费组的位不全为 1，说明一定不匹配，但是全为 1 时只能说明可能匹配，仍然要从 CommitLog 中解码消息属性
+         * 再执行一次表达式。
+         *
+         * 开启属性投影之后在末尾追加 topic 配置的属性的字典编码：
+         *
+         * ... | projectionSize(2) | projection(4 * projectionSize)
+         *
+         * 旧的扩展单元 size 等于 MIN_EXT_UNIT_SIZE + bitMapSize，读取时根据 size 判断是否有投影，所以新旧两种格式可以共存在同一个文件中
+         */
+        public static class CqExtUnit {
+            public static final short MIN_EXT_UNIT_SIZE = 2 * 1 + 8 * 2 + 2;
+
+            public static final int MAX_EXT_UNIT_SIZE = Short.MAX_VALUE;
+
+            private short size;
+            private long tagsCode;
+            private long msgStoreTime;
+            private short bitMapSize;
+            private byte[] filterBitMap;
+            // 属性投影，下标和 PropertyProjection 中该 topic 的投影属性一一对应，没有投影时为 null
+            private int[] projection;
+
+            // CqExtUnit#read
+            private boolean read(final ByteBuffer buffer) {
+                if (buffer.position() + 2 > buffer.limit()) {
+                    return false;
+                }
+
+                this.size = buffer.getShort();
+
+                if (this.size < 1) {
+                    return false;
+                }
+
+                this.tagsCode = buffer.getLong();
+                this.msgStoreTime = buffer.getLong();
+                this.bitMapSize = buffer.getShort();
+
+                if (this.bitMapSize > 0) {
+                    if (this.filterBitMap == null || this.filterBitMap.length != this.bitMapSize) {
+                        this.filterBitMap = new byte[bitMapSize];
+                    }
+                    buffer.get(this.filterBitMap);
+                }
+
+                // 同一个 CqExtUnit 对象会在一次拉取中被反复使用，没有投影时要清空上一条消息的投影
+                this.projection = null;
+                if (this.size - MIN_EXT_UNIT_SIZE - this.bitMapSize >= 2) {
+                    short projectionSize = buffer.getShort();
+                    this.projection = new int[projectionSize];
+                    for (int i = 0; i < projectionSize; i++) {
+                        this.projection[i] = buffer.getInt();
+                    }
+                }
+                return true;
+            }
+
+            // CqExtUnit#write
+            private byte[] write(final ByteBuffer container) {
+                this.bitMapSize = (short) (filterBitMap == null ? 0 : filterBitMap.length);
+                int projectionBytes = this.projection == null ? 0 : 2 + 4 * this.projection.length;
+                this.size = (short) (MIN_EXT_UNIT_SIZE + this.bitMapSize + projectionBytes);
+
+                ByteBuffer temp = container;
+
+                if (temp == null || temp.capacity() < this.size) {
+                    temp = ByteBuffer.allocate(this.size);
+                }
+
+                temp.flip();
+                temp.limit(this.size);
+
+                temp.putShort(this.size);
+                temp.putLong(this.tagsCode);
+                temp.putLong(this.msgStoreTime);
+                temp.putShort(this.bitMapSize);
+                if (this.bitMapSize > 0) {
+                    temp.put(this.filterBitMap);
+                }
+                if (this.projection != null) {
+                    temp.putShort((short) this.projection.length);
+                    for (int code : this.projection) {
+                        temp.putInt(code);
+                    }
+                }
+
+                return temp.array();
+            }
+
+            public int[] getProjection() {
+                return projection;
+            }
+
+            public void setProjection(int[] projection) {
+                this.projection = projection;
+            }
+
+            // ignore code
+        }
+    }
+
+    /**
+     * 消息属性投影。使用 SQL92 过滤时，即使 filterBitMap 判断消息可能匹配，DefaultMessageStore#getMessage 仍然要根据 ConsumeQueue 条目读取 CommitLog，
+     * 由 isMatchedByCommitLog 解码消息属性再执行一次表达式，拉取的消息越多，随机读和解码的开销越大。
+     *
+     * 通过 propertyProjection 配置每个 topic 需要投影的属性，比如 "TopicA:region,price;TopicB:a"，CommitLogDispatcherProjectProperties 在转发时
+     * （此时消息属性已经被 checkMessageAndReturnSize 解码了）将这些属性的值编码为整数写入 CqExtUnit。拉取时 ExpressionMessageFilter#isMatchedByProjection
+     * 直接用投影的属性执行表达式，只要表达式中用到的属性都被投影了，就不再需要读取 CommitLog。
+     *
+     * 属性值使用字典编码，每个 topic 的每个属性一个 PropertyDictionary。0 表示消息没有该属性，UNENCODED 表示字典已满，没有编码该值。
+     *
+     * CqExtUnit 中的编码是按照属性的下标存放的，所以每个 topic 投影的属性顺序持久化在 ${storePath}/${topic}/.projection 中，以持久化的顺序为准：
+     * 配置中新增的属性追加到末尾，配置中删除的属性仍然保留（继续投影），调整配置中的顺序不会影响已经写入的 CqExtUnit
+     */
+    public static class PropertyProjection {
+
+        public static final int ABSENT = 0;
+
+        public static final int UNENCODED = -1;
+
+        private static final String KEYS_FILE = ".projection";
+
+        private final String storePath;
+
+        private final int dictionaryMaxSize;
+
+        // topic -> 投影的属性名
+        private final Map<String, String[]> projectedKeys = new HashMap<>();
+
+        // topic -> 每个投影属性的字典，第一次使用时从磁盘加载
+        private final ConcurrentMap<String, PropertyDictionary[]> dictionaryTable = new ConcurrentHashMap<>();
+
+        public PropertyProjection(final String storePath, final String config, final int dictionaryMaxSize) {
+            this.storePath = storePath;
+            this.dictionaryMaxSize = dictionaryMaxSize;
+            if (config != null) {
+                for (String topicConfig : config.split(";")) {
+                    int index = topicConfig.indexOf(':');
+                    if (index > 0) {
+                        String topic = topicConfig.substring(0, index).trim();
+                        this.projectedKeys.put(topic, this.mergeKeys(topic, topicConfig.substring(index + 1).trim().split("\\s*,\\s*")));
+                    }
+                }
+            }
+        }
+
+        // 将配置的属性合并到持久化的属性顺序中，有新增的属性时重新写入 .projection 文件
+        // PropertyProjection#mergeKeys
+        private String[] mergeKeys(final String topic, final String[] configKeys) {
+            File file = new File(this.storePath + File.separator + topic + File.separator + KEYS_FILE);
+            List<String> keys = new ArrayList<>();
+            try {
+                if (file.exists()) {
+                    for (String key : new String(Files.readAllBytes(file.toPath()), MessageDecoder.CHARSET_UTF8).split("\n")) {
+                        if (!key.isEmpty()) {
+                            keys.add(key);
+                        }
+                    }
+                }
+                int persisted = keys.size();
+                for (String key : configKeys) {
+                    if (!keys.contains(key)) {
+                        keys.add(key);
+                    }
+                }
+                if (keys.size() > persisted) {
+                    MappedFile.ensureDirOK(file.getParent());
+                    File tmp = new File(file.getPath() + ".tmp");
+                    Files.write(tmp.toPath(), String.join("\n", keys).getBytes(MessageDecoder.CHARSET_UTF8));
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                if (persisted > 0 && !keys.subList(0, Math.min(keys.size(), configKeys.length)).equals(Arrays.asList(configKeys))) {
+                    log.warn("projected keys of topic {} follow the persisted order {}, config {}", topic, keys, Arrays.toString(configKeys));
+                }
+            } catch (IOException e) {
+                // 无法确认已有的顺序时不投影这个 topic，所有的过滤回退到 CommitLog
+                log.error("load projected keys of topic {} failed, projection disabled", topic, e);
+                return null;
+            }
+            return keys.toArray(new String[0]);
+        }
+
+        public String[] getProjectedKeys(final String topic) {
+            return this.projectedKeys.get(topic);
+        }
+
+        // 对消息属性进行编码，topic 没有配置投影时返回 null
+        // PropertyProjection#project
+        public int[] project(final String topic, final Map<String, String> properties) {
+            String[] keys = this.projectedKeys.get(topic);
+            if (keys == null || properties == null) {
+                return null;
+            }
+
+            PropertyDictionary[] dictionaries = this.getDictionaries(topic);
+            int[] projection = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                String value = properties.get(keys[i]);
+                projection[i] = value == null ? ABSENT : dictionaries[i].encode(value);
+            }
+            return projection;
+        }
+
+        /**
+         * 解码第 keyIndex 个投影属性，返回 null 表示消息没有该属性。编码为 UNENCODED 或者在字典中不存在（比如宕机时字典还没有写入磁盘）时，
+         * 抛出 ProjectionMissException，由调用者回退到 CommitLog
+         */
+        // PropertyProjection#decode
+        public String decode(final String topic, final int keyIndex, final int code) {
+            if (code == ABSENT) {
+                return null;
+            }
+            String value = code == UNENCODED ? null : this.getDictionaries(topic)[keyIndex].decode(code);
+            if (value == null) {
+                throw ProjectionMissException.INSTANCE;
+            }
+            return value;
+        }
+
+        private PropertyDictionary[] getDictionaries(final String topic) {
+            PropertyDictionary[] dictionaries = this.dictionaryTable.get(topic);
+            if (dictionaries == null) {
+                String[] keys = this.projectedKeys.get(topic);
+                PropertyDictionary[] newDictionaries = new PropertyDictionary[keys.length];
+                for (int i = 0; i < keys.length; i++) {
+                    newDictionaries[i] = new PropertyDictionary(this.storePath + File.separator + topic + File.separator + keys[i], this.dictionaryMaxSize);
+                }
+                dictionaries = this.dictionaryTable.putIfAbsent(topic, newDictionaries);
+                if (dictionaries == null) {
+                    dictionaries = newDictionaries;
+                } else {
+                    for (PropertyDictionary dictionary : newDictionaries) {
+                        dictionary.shutdown();
+                    }
+                }
+            }
+            return dictionaries;
+        }
+
+        public void shutdown() {
+            for (PropertyDictionary[] dictionaries : this.dictionaryTable.values()) {
+                for (PropertyDictionary dictionary : dictionaries) {
+                    dictionary.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个属性的字典，编码从 1 开始按照第一次出现的顺序分配。持久化为只追加的文件，每个值为 length(2) | value(length)，第 n 个值的编码为 n。
+     *
+     * 并行转发时同一个 topic 的不同队列由不同的 DispatchLane 构建，所以新增编码需要加锁，查找已有编码和解码不需要加锁。
+     * 订单号这类取值很多的属性不适合投影，字典中的值达到 dictionaryMaxSize 之后，新的值编码为 UNENCODED，用到这个属性的过滤会回退到 CommitLog
+     */
+    public static class PropertyDictionary {
+
+        private final ConcurrentMap<String, Integer> codeTable = new ConcurrentHashMap<>();
+
+        private volatile String[] values = new String[16];
+
+        private final int maxSize;
+
+        private FileChannel fileChannel;
+
+        private long writePosition;
+
+        public PropertyDictionary(final String fileName, final int maxSize) {
+            this.maxSize = maxSize;
+            try {
+                File file = new File(fileName);
+                MappedFile.ensureDirOK(file.getParent());
+                this.fileChannel = new RandomAccessFile(file, "rw").getChannel();
+
+                ByteBuffer buffer = ByteBuffer.allocate((int) this.fileChannel.size());
+                this.fileChannel.read(buffer, 0);
+                buffer.flip();
+                int code = 0;
+                // 末尾不完整的值（写入时宕机）直接丢弃
+                while (buffer.remaining() >= 2) {
+                    int length = buffer.getShort() & 0xFFFF;
+                    if (buffer.remaining() < length) {
+                        break;
+                    }
+                    byte[] bytes = new byte[length];
+                    buffer.get(bytes);
+                    this.put(new String(bytes, MessageDecoder.CHARSET_UTF8), ++code);
+                    this.writePosition = buffer.position();
+                }
+            } catch (IOException e) {
+                log.error("load property dictionary {} failed", fileName, e);
+            }
+        }
+
+        // PropertyDictionary#encode
+        public int encode(final String value) {
+            Integer code = this.codeTable.get(value);
+            if (code != null) {
+                return code;
+            }
+
+            synchronized (this) {
+                code = this.codeTable.get(value);
+                if (code != null) {
+                    return code;
+                }
+
+                byte[] bytes = value.getBytes(MessageDecoder.CHARSET_UTF8);
+                int newCode = this.codeTable.size() + 1;
+                if (newCode > this.maxSize || bytes.length > Short.MAX_VALUE || this.fileChannel == null) {
+                    return PropertyProjection.UNENCODED;
+                }
+
+                // 先写入文件再分配编码，CqExtUnit 中的编码在字典中一定有对应的值
+                ByteBuffer buffer = ByteBuffer.allocate(2 + bytes.length);
+                buffer.putShort((short) bytes.length);
+                buffer.put(bytes);
+                buffer.flip();
+                try {
+                    this.fileChannel.write(buffer, this.writePosition);
+                    // 编码写入 CqExtUnit 之后就可能被刷盘，字典必须先落盘，否则宕机之后这个编码无法解码。字典的大小有上限，force 的次数也有上限
+                    this.fileChannel.force(false);
+                    this.writePosition += 2 + bytes.length;
+                } catch (IOException e) {
+                    log.error("append property dictionary failed", e);
+                    return PropertyProjection.UNENCODED;
+                }
+
+                this.put(value, newCode);
+                return newCode;
+            }
+        }
+
+        // 编码不存在时返回 null
+        public String decode(final int code) {
+            String[] values = this.values;
+            return code > 0 && code < values.length ? values[code] : null;
+        }
+
+        private void put(final String value, final int code) {
+            String[] values = this.values;
+            if (code >= values.length) {
+                values = Arrays.copyOf(values, Math.max(code + 1, values.length << 1));
+            }
+            values[code] = value;
+            // 先发布解码数组，再发布编码，拿到编码的线程一定能解码
+            this.values = values;
+            this.codeTable.put(value, code);
+        }
+
+        public void shutdown() {
+            if (this.fileChannel != null) {
+                try {
+                    this.fileChannel.force(false);
+                    this.fileChannel.close();
+                } catch (IOException e) {
+                    log.error("close property dictionary failed", e);
+                }
+            }
+        }
+    }
+
+    // 表达式用到了没有投影的属性，或者属性值无法解码。表达式执行过程中会频繁抛出，所以使用不带堆栈的单例
+    public static class ProjectionMissException extends RuntimeException {
+
+        public static final ProjectionMissException INSTANCE = new ProjectionMissException();
+
+        private ProjectionMissException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * 使用 CqExtUnit 中的属性投影作为 SQL92 表达式的上下文，表达式访问没有投影的属性时抛出 ProjectionMissException 中断执行
+     */
+    public static class ProjectedEvaluationContext implements EvaluationContext {
+
+        private final PropertyProjection propertyProjection;
+
+        private final String topic;
+
+        private final String[] keys;
+
+        private final int[] projection;
+
+        public ProjectedEvaluationContext(PropertyProjection propertyProjection, String topic, String[] keys, int[] projection) {
+            this.propertyProjection = propertyProjection;
+            this.topic = topic;
+            this.keys = keys;
+            this.projection = projection;
+        }
+
+        @Override
+        public Object get(final String name) {
+            // 投影的属性一般只有几个，顺序查找即可
+            for (int i = 0; i < this.keys.length && i < this.projection.length; i++) {
+                if (this.keys[i].equals(name)) {
+                    return this.propertyProjection.decode(this.topic, i, this.projection[i]);
+                }
+            }
+            throw ProjectionMissException.INSTANCE;
+        }
+
+        @Override
+        public Map<String, Object> keyValues() {
+            Map<String, Object> keyValues = new HashMap<>();
+            for (int i = 0; i < this.keys.length && i < this.projection.length; i++) {
+                keyValues.put(this.keys[i], this.get(this.keys[i]));
+            }
+            return keyValues;
+        }
+    }
+
+    public class ExpressionMessageFilter implements MessageFilter {
+
+        protected final SubscriptionData subscriptionData;
+        protected final ConsumerFilterData consumerFilterData;
+        protected final ConsumerFilterManager consumerFilterManager;
+        protected final boolean bloomDataValid;
+        protected final PropertyProjection propertyProjection;
+
+        public ExpressionMessageFilter(SubscriptionData subscriptionData, ConsumerFilterData consumerFilterData,
+            ConsumerFilterManager consumerFilterManager, PropertyProjection propertyProjection) {
+            // ignore code
+            this.propertyProjection = propertyProjection;
+        }
+
+        /**
+         * 使用 CqExtUnit 中投影的属性执行 SQL92 表达式，返回 true/false 表示已经确定是否匹配，调用者不需要再读取 CommitLog 执行 isMatchedByCommitLog；
+         * 返回 null 表示无法确定：不是 SQL92 过滤、消息没有投影，或者表达式用到了没有投影（或者没有编码）的属性
+         *
+         * topic 为消息所在的队列的 topic，重试队列中的消息按照重试 topic 的配置投影，和 subscriptionData 中的 topic 不一定相同
+         */
+        // ExpressionMessageFilter#isMatchedByProjection
+        @Override
+        public Boolean isMatchedByProjection(final String topic, final ConsumeQueueExt.CqExtUnit cqExtUnit) {
+            if (subscriptionData == null || subscriptionData.isClassFilterMode()
+                || ExpressionType.isTagType(subscriptionData.getExpressionType())) {
+                return null;
+            }
+
+            ConsumerFilterData realFilterData = this.consumerFilterData;
+            if (realFilterData == null || realFilterData.getCompiledExpression() == null
+                || this.propertyProjection == null || cqExtUnit == null || cqExtUnit.getProjection() == null) {
+                return null;
+            }
+
+            String[] keys = this.propertyProjection.getProjectedKeys(topic);
+            if (keys == null) {
+                return null;
+            }
+
+            try {
+                Object ret = realFilterData.getCompiledExpression().evaluate(
+                    new ProjectedEvaluationContext(this.propertyProjection, topic, keys, cqExtUnit.getProjection()));
+                return ret instanceof Boolean ? (Boolean) ret : Boolean.FALSE;
+            } catch (ProjectionMissException e) {
+                return null;
+            } catch (Throwable e) {
+                // 和 isMatchedByCommitLog 一样，表达式执行出错时认为不匹配
+                log.error("Message Filter error by projection, " + realFilterData, e);
+                return Boolean.FALSE;
+            }
+        }
+
+        // ignore code
+    }
+
     public class IndexHeader {
         public static final int INDEX_HEADER_SIZE = 40;
         private static int beginTimestampIndex = 0;
@@ -223,43 +1131,181 @@ public class RocketmqMessageStoreAnalysisTwo {
         private static int invalidIndex = 0;
         private final int hashSlotNum;
 
-        // IndexFile 最多允许的索引条目个数
-        private final int indexNum;
-        private final MappedFile mappedFile;
-        private final FileChannel fileChannel;
-        private final MappedByteBuffer mappedByteBuffer;
-        private final IndexHeader indexHeader;
+        // IndexFile 最多允许的索引条目个数
+        private final int indexNum;
+        private final MappedFile mappedFile;
+        private final FileChannel fileChannel;
+        private final MappedByteBuffer mappedByteBuffer;
+        private final IndexHeader indexHeader;
+        // 该 IndexFile 中所有 key 的布隆过滤器，查询时先通过它判断 key 是否可能存在于这个文件中，不存在的话就不需要遍历 hash 槽和冲突链
+        private final IndexBloomFilter bloomFilter;
+        // key 的哈希算法版本，1 为原来的 String#hashCode，2 为 Murmur3。旧版本创建的 IndexFile 没有 .bloom 文件，仍然使用原来的哈希算法
+        private final int hashVersion;
+        // 加载时 .bloom 文件的修改时间，没有 .bloom 文件时为 0，用来判断 .bloom 中的内容是否完整
+        private final long bloomFileTimestamp;
+        // 写满之后布隆过滤器只需要持久化一次
+        private volatile boolean bloomFilterFlushed = false;
+
+        public IndexFile(final String fileName, final int hashSlotNum, final int indexNum, final long endPhyOffset,
+                final long endTimestamp) throws IOException {
+
+            int fileTotalSize = IndexHeader.INDEX_HEADER_SIZE + (hashSlotNum * hashSlotSize) + (indexNum * indexSize);
+            final boolean exists = new File(fileName).exists();
+            this.mappedFile = new MappedFile(fileName, fileTotalSize);
+            this.fileChannel = this.mappedFile.getFileChannel();
+            this.mappedByteBuffer = this.mappedFile.getMappedByteBuffer();
+            this.hashSlotNum = hashSlotNum;
+            this.indexNum = indexNum;
+
+            ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+            this.indexHeader = new IndexHeader(byteBuffer);
+
+            if (endPhyOffset > 0) {
+                this.indexHeader.setBeginPhyOffset(endPhyOffset);
+                this.indexHeader.setEndPhyOffset(endPhyOffset);
+            }
+
+            if (endTimestamp > 0) {
+                this.indexHeader.setBeginTimestamp(endTimestamp);
+                this.indexHeader.setEndTimestamp(endTimestamp);
+            }
+
+            // 新创建的 IndexFile 使用 Murmur3，并且立即写入一个空的 ${fileName}.bloom 文件记录哈希算法的版本，文件写满之后再持久化完整的布隆过滤器。
+            // 加载已有的 IndexFile 时，如果存在 .bloom 文件就从中读取哈希算法的版本，否则说明是旧版本的文件，使用 String#hashCode
+            File bloomFile = new File(fileName + IndexBloomFilter.SUFFIX);
+            this.bloomFileTimestamp = bloomFile.lastModified();
+            if (bloomFile.exists()) {
+                this.bloomFilter = IndexBloomFilter.load(bloomFile);
+                this.hashVersion = this.bloomFilter.getHashVersion();
+            } else if (!exists) {
+                this.hashVersion = IndexBloomFilter.HASH_VERSION_MURMUR3;
+                this.bloomFilter = new IndexBloomFilter(indexNum, this.hashVersion);
+                this.bloomFilter.persist(bloomFile);
+            } else {
+                this.hashVersion = IndexBloomFilter.HASH_VERSION_LEGACY;
+                this.bloomFilter = new IndexBloomFilter(indexNum, this.hashVersion);
+            }
+        }
+
+        // IndexService#load 在加载 IndexFile 之后，对于没有写满的文件（.bloom 中只有写满之前最后一次持久化的内容）以及旧版本的文件调用，
+        // 根据已有的 Index 条目重建布隆过滤器
+        // IndexFile#rebuildBloomFilter
+        public void rebuildBloomFilter() {
+            int indexCount = this.indexHeader.getIndexCount();
+            for (int i = 1; i < indexCount; i++) {
+                int absIndexPos = IndexHeader.INDEX_HEADER_SIZE + this.hashSlotNum * hashSlotSize + i * indexSize;
+                this.bloomFilter.put(this.mappedByteBuffer.getInt(absIndexPos));
+            }
+        }
+
+        /**
+         * .bloom 中的内容是否不完整，需要重建：
+         * 1.没有 .bloom 文件，也就是旧版本的 IndexFile
+         * 2.IndexFile 没有写满，.bloom 中只有创建时写入的空过滤器
+         * 3.IndexFile 写满之后还没来得及持久化布隆过滤器就宕机了，此时 .bloom 的修改时间早于 IndexFile 最后一次写入的时间
+         */
+        // IndexFile#isBloomFilterStale
+        public boolean isBloomFilterStale() {
+            return this.bloomFileTimestamp == 0 || !this.isWriteFull()
+                || this.bloomFileTimestamp < new File(this.mappedFile.getFileName()).lastModified();
+        }
+
+        public boolean isWriteFull() {
+            return this.indexHeader.getIndexCount() >= this.indexNum;
+        }
+
+        // IndexFile 写满之后，IndexService#getAndCreateLastIndexFile 会在单独的线程中调用 IndexService#flush 刷盘，
+        // 这里先刷 IndexFile 再持久化布隆过滤器，保证 .bloom 的修改时间晚于 IndexFile，load 时据此判断 .bloom 是否完整
+        // IndexFile#flush
+        public void flush() {
+            long beginTime = System.currentTimeMillis();
+            if (this.mappedFile.hold()) {
+                this.indexHeader.updateByteBuffer();
+                this.mappedByteBuffer.force();
+                this.mappedFile.release();
+                log.info("flush index file elapsed time(ms) " + (System.currentTimeMillis() - beginTime));
+            }
+            if (this.isWriteFull() && !this.bloomFilterFlushed) {
+                this.flushBloomFilter();
+                this.bloomFilterFlushed = true;
+            }
+        }
+
+        /**
+         * 原来的实现是 Math.abs(key.hashCode())，String#hashCode 的分布比较差，对于 "topic#orderId-1"、"topic#orderId-2" 这种前缀相同、只有结尾不同的 key，
+         * 哈希值只在低位有区别，在 500 万个 hash 槽中的冲突链很长。这里改为 Murmur3 的 32 位版本，最后屏蔽符号位得到非负数
+         */
+        public int indexKeyHashMethod(final String key) {
+            if (this.hashVersion == IndexBloomFilter.HASH_VERSION_LEGACY) {
+                int keyHash = key.hashCode();
+                int keyHashPositive = Math.abs(keyHash);
+                if (keyHashPositive < 0)
+                    keyHashPositive = 0;
+                return keyHashPositive;
+            }
+            return IndexBloomFilter.murmur3(key.getBytes(MessageDecoder.CHARSET_UTF8)) & Integer.MAX_VALUE;
+        }
+
+        // 判断 key 是否可能存在于这个 IndexFile 中
+        // IndexFile#mightContain
+        public boolean mightContain(final String key) {
+            return this.bloomFilter.mightContain(indexKeyHashMethod(key));
+        }
+
+        public int getHashVersion() {
+            return hashVersion;
+        }
+
+        // 按照 (keyHash, 写入顺序) 遍历所有的 Index 条目，用于将写满的 IndexFile 转换为 SortedIndexTable
+        // IndexFile#sortedIterator
+        public EntryIterator sortedIterator() {
+            final int indexCount = this.indexHeader.getIndexCount();
+            final int indexBase = IndexHeader.INDEX_HEADER_SIZE + this.hashSlotNum * hashSlotSize;
+            // 高 32 位为 keyHash（非负），低 32 位为条目下标，条目下标从 1 开始
+            final long[] sorted = new long[indexCount - 1];
+            for (int i = 1; i < indexCount; i++) {
+                sorted[i - 1] = ((long) this.mappedByteBuffer.getInt(indexBase + i * indexSize) << 32) | i;
+            }
+            Arrays.sort(sorted);
+
+            return new EntryIterator() {
+                private int i = -1;
+                private int pos;
+
+                public long size() { return sorted.length; }
 
-        public IndexFile(final String fileName, final int hashSlotNum, final int indexNum, final long endPhyOffset,
-                final long endTimestamp) throws IOException {
+                public boolean next() {
+                    if (++i >= sorted.length) {
+                        return false;
+                    }
+                    pos = indexBase + (int) sorted[i] * indexSize;
+                    return true;
+                }
 
-            int fileTotalSize = IndexHeader.INDEX_HEADER_SIZE + (hashSlotNum * hashSlotSize) + (indexNum * indexSize);
-            this.mappedFile = new MappedFile(fileName, fileTotalSize);
-            this.fileChannel = this.mappedFile.getFileChannel();
-            this.mappedByteBuffer = this.mappedFile.getMappedByteBuffer();
-            this.hashSlotNum = hashSlotNum;
-            this.indexNum = indexNum;
+                public int keyHash() { return (int) (sorted[i] >>> 32); }
 
-            ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
-            this.indexHeader = new IndexHeader(byteBuffer);
+                public long storeTimestamp() { return getBeginTimestamp() + mappedByteBuffer.getInt(pos + 4 + 8) * 1000L; }
 
-            if (endPhyOffset > 0) {
-                this.indexHeader.setBeginPhyOffset(endPhyOffset);
-                this.indexHeader.setEndPhyOffset(endPhyOffset);
-            }
+                public long phyOffset() { return mappedByteBuffer.getLong(pos + 4); }
+            };
+        }
 
-            if (endTimestamp > 0) {
-                this.indexHeader.setBeginTimestamp(endTimestamp);
-                this.indexHeader.setEndTimestamp(endTimestamp);
+        // IndexFile 写满之后持久化布隆过滤器，之后它就不会再变化了，由 IndexFile#flush 在刷盘写满的 IndexFile 时调用
+        // IndexFile#flushBloomFilter
+        public void flushBloomFilter() {
+            try {
+                this.bloomFilter.persist(new File(this.mappedFile.getFileName() + IndexBloomFilter.SUFFIX));
+            } catch (IOException e) {
+                log.error("persist bloom filter of {} failed", this.mappedFile.getFileName(), e);
             }
         }
 
-        public int indexKeyHashMethod(final String key) {
-            int keyHash = key.hashCode();
-            int keyHashPositive = Math.abs(keyHash);
-            if (keyHashPositive < 0)
-                keyHashPositive = 0;
-            return keyHashPositive;
+        // 删除 IndexFile 时同时删除它的 .bloom 文件，过期删除以及转换为 L1 之后都通过这里删除
+        // IndexFile#destroy
+        public boolean destroy(final long intervalForcibly) {
+            boolean result = this.mappedFile.destroy(intervalForcibly);
+            new File(this.mappedFile.getFileName() + IndexBloomFilter.SUFFIX).delete();
+            return result;
         }
 
         /**
@@ -316,6 +1362,7 @@ public class RocketmqMessageStoreAnalysisTwo {
                     this.mappedByteBuffer.putInt(absIndexPos + 4 + 8 + 4, slotValue);
                     // 将当前条目在 Index 条目列表中的下标存入到 hash 槽中
                     this.mappedByteBuffer.putInt(absSlotPos, this.indexHeader.getIndexCount());
+                    this.bloomFilter.put(keyHash);
 
                     if (this.indexHeader.getIndexCount() <= 1) {
                         this.indexHeader.setBeginPhyOffset(phyOffset);
@@ -361,6 +1408,11 @@ public class RocketmqMessageStoreAnalysisTwo {
         public void selectPhyOffset(final List<Long> phyOffsets, final String key, final int maxNum, final long begin,
                 final long end, boolean lock) {
 
+            // 布隆过滤器判断 key 一定不在这个文件中，直接返回，不需要读取 hash 槽以及冲突链所在的页
+            if (!this.mightContain(key)) {
+                return;
+            }
+
             if (this.mappedFile.hold()) {
                 // 根据 key 算出 key 的 hashcode，然后 keyHash 对 hash 槽数量取余定位到 hashcode 对应的 hash
                 // 槽下标，hashcode 对应的 hash 槽的偏移量为
@@ -434,8 +1486,679 @@ public class RocketmqMessageStoreAnalysisTwo {
 
     }
 
+    /**
+     * IndexFile 的布隆过滤器。过滤器的输入是 IndexFile 中保存的 32 位 keyHash 而不是原始的 key，这样可以直接根据 Index 条目重建过滤器，
+     * 并且由于 selectPhyOffset 本身也是比较 keyHash，哈希冲突导致的误判不会比原来更多。
+     *
+     * 位数组的大小按照每个 key 10 个 bit 计算，使用 7 个哈希函数，误判率约为 1%。7 个哈希函数通过 double hashing 从 keyHash 派生：
+     * h(i) = h1 + i * h2，其中 h1 为 keyHash，h2 为 keyHash 再经过一次 Murmur3 的 fmix。一个写满的 IndexFile 有 2000 万个条目，
+     * 布隆过滤器的大小约为 24MB，远小于 IndexFile 本身的 400MB
+     *
+     * .bloom 文件格式：magic(4) | hashVersion(4) | numHashFunctions(4) | numLongs(4) | long[numLongs]
+     */
+    public static class IndexBloomFilter {
+
+        public static final String SUFFIX = ".bloom";
+
+        public static final int HASH_VERSION_LEGACY = 1;
+
+        public static final int HASH_VERSION_MURMUR3 = 2;
+
+        private static final int MAGIC_CODE = 0xB10F17E5;
+
+        private static final int BITS_PER_KEY = 10;
+
+        private static final int NUM_HASH_FUNCTIONS = 7;
+
+        private final long[] bits;
+
+        private final long numBits;
+
+        private final int hashVersion;
+
+        public IndexBloomFilter(int expectedKeys, int hashVersion) {
+            this(new long[(int) (((long) expectedKeys * BITS_PER_KEY + 63) / 64)], hashVersion);
+        }
+
+        private IndexBloomFilter(long[] bits, int hashVersion) {
+            this.bits = bits;
+            this.numBits = (long) bits.length * 64;
+            this.hashVersion = hashVersion;
+        }
+
+        // 只有 ReputMessageService（或者并行转发时的 index lane）一个线程写入，查询线程读到的可能是旧值，
+        // 但 putKey 中先写 Index 条目和 hash 槽，再写布隆过滤器，最多只是刚写入的 key 暂时查不到，和原来 hash 槽的可见性是一样的
+        public void put(int keyHash) {
+            long h1 = keyHash;
+            long h2 = fmix(keyHash);
+            for (int i = 0; i < NUM_HASH_FUNCTIONS; i++) {
+                long bitIndex = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+                bits[(int) (bitIndex >>> 6)] |= 1L << bitIndex;
+            }
+        }
+
+        public boolean mightContain(int keyHash) {
+            long h1 = keyHash;
+            long h2 = fmix(keyHash);
+            for (int i = 0; i < NUM_HASH_FUNCTIONS; i++) {
+                long bitIndex = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+                if ((bits[(int) (bitIndex >>> 6)] & (1L << bitIndex)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int getHashVersion() {
+            return hashVersion;
+        }
+
+        // IndexBloomFilter#persist
+        public void persist(File file) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            try (FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel()) {
+                ByteBuffer buffer = ByteBuffer.allocate(16 + bits.length * 8);
+                buffer.putInt(MAGIC_CODE);
+                buffer.putInt(hashVersion);
+                buffer.putInt(NUM_HASH_FUNCTIONS);
+                buffer.putInt(bits.length);
+                for (long word : bits) {
+                    buffer.putLong(word);
+                }
+                buffer.flip();
+                channel.write(buffer, 0);
+                channel.force(true);
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename " + tmp + " to " + file + " failed");
+            }
+        }
+
+        // IndexBloomFilter#load
+        public static IndexBloomFilter load(File file) throws IOException {
+            try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                channel.read(buffer, 0);
+                buffer.flip();
+                if (buffer.getInt() != MAGIC_CODE) {
+                    throw new IOException("illegal bloom filter file " + file);
+                }
+                int hashVersion = buffer.getInt();
+                buffer.getInt();
+                long[] bits = new long[buffer.getInt()];
+                for (int i = 0; i < bits.length; i++) {
+                    bits[i] = buffer.getLong();
+                }
+                return new IndexBloomFilter(bits, hashVersion);
+            }
+        }
+
+        // Murmur3 x86 32 位版本，seed 为 0
+        public static int murmur3(byte[] data) {
+            final int c1 = 0xcc9e2d51;
+            final int c2 = 0x1b873593;
+            int h = 0;
+            int roundedEnd = data.length & 0xfffffffc;
+            for (int i = 0; i < roundedEnd; i += 4) {
+                int k = (data[i] & 0xff) | ((data[i + 1] & 0xff) << 8) | ((data[i + 2] & 0xff) << 16) | (data[i + 3] << 24);
+                k *= c1;
+                k = Integer.rotateLeft(k, 15);
+                k *= c2;
+                h ^= k;
+                h = Integer.rotateLeft(h, 13);
+                h = h * 5 + 0xe6546b64;
+            }
+
+            int k = 0;
+            switch (data.length & 0x03) {
+                case 3:
+                    k = (data[roundedEnd + 2] & 0xff) << 16;
+                case 2:
+                    k |= (data[roundedEnd + 1] & 0xff) << 8;
+                case 1:
+                    k |= data[roundedEnd] & 0xff;
+                    k *= c1;
+                    k = Integer.rotateLeft(k, 15);
+                    k *= c2;
+                    h ^= k;
+            }
+
+            h ^= data.length;
+            return fmix(h);
+        }
+
+        private static int fmix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+    }
+
+    /**
+     * 有序索引表（SortedIndexTable），由 IndexMergeService 将多个已经写满的 IndexFile（或者低一层的 SortedIndexTable）合并而成，创建之后不再修改。
+     *
+     * IndexFile 为了支持追加写入使用了 hash 槽 + 冲突链的结构，查询一个 key 需要先读 hash 槽，再沿着冲突链随机地读取多个 Index 条目。
+     * SortedIndexTable 中的条目按照 (keyHash, storeTimestamp) 排序，查询时二分查找到第一个 keyHash 相等的条目，然后顺序读取，
+     * 同一个 key 的所有条目都是相邻的。多个文件合并成一个之后，一次查询需要访问的文件数也变少了。
+     *
+     * 文件格式：Header（48 个字节）| Entry[entryCount]（每个 20 个字节）
+     * Header：magic(4) | level(4) | entryCount(4) | hashVersion(4) | beginTimestamp(8) | endTimestamp(8) | beginPhyOffset(8) | endPhyOffset(8)
+     * Entry：keyHash(4) | storeTimestamp(8) | phyOffset(8)
+     *
+     * 每个 SortedIndexTable 同样有一个 .bloom 文件
+     */
+    public static class SortedIndexTable {
+
+        public static final int HEADER_SIZE = 48;
+
+        public static final int ENTRY_SIZE = 20;
+
+        private static final int MAGIC_CODE = 0x5017ED1D;
+
+        private final MappedFile mappedFile;
+
+        private final MappedByteBuffer mappedByteBuffer;
+
+        private final int level;
+
+        private final int entryCount;
+
+        private final long beginTimestamp;
+
+        private final long endTimestamp;
+
+        private final long beginPhyOffset;
+
+        private final long endPhyOffset;
+
+        private final IndexBloomFilter bloomFilter;
+
+        public SortedIndexTable(final String fileName) throws IOException {
+            this.mappedFile = new MappedFile(fileName, (int) new File(fileName).length());
+            this.mappedByteBuffer = this.mappedFile.getMappedByteBuffer();
+            if (this.mappedByteBuffer.getInt(0) != MAGIC_CODE) {
+                throw new IOException("illegal sorted index table " + fileName);
+            }
+            this.level = this.mappedByteBuffer.getInt(4);
+            this.entryCount = this.mappedByteBuffer.getInt(8);
+            this.beginTimestamp = this.mappedByteBuffer.getLong(16);
+            this.endTimestamp = this.mappedByteBuffer.getLong(24);
+            this.beginPhyOffset = this.mappedByteBuffer.getLong(32);
+            this.endPhyOffset = this.mappedByteBuffer.getLong(40);
+            this.bloomFilter = IndexBloomFilter.load(new File(fileName + IndexBloomFilter.SUFFIX));
+        }
+
+        // 通过二分查找定位第一个 keyHash 相等的条目，然后顺序读取所有 keyHash 相等并且时间在 [begin, end] 之间的条目
+        // SortedIndexTable#selectPhyOffset
+        public void selectPhyOffset(final List<Long> phyOffsets, final int keyHash, final int maxNum, final long begin, final long end) {
+            if (!this.bloomFilter.mightContain(keyHash) || !this.mappedFile.hold()) {
+                return;
+            }
+            try {
+                int low = 0, high = this.entryCount;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (this.keyHashAt(mid) < keyHash) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                for (int i = low; i < this.entryCount && phyOffsets.size() < maxNum; i++) {
+                    int pos = HEADER_SIZE + i * ENTRY_SIZE;
+                    if (this.mappedByteBuffer.getInt(pos) != keyHash) {
+                        break;
+                    }
+                    long storeTimestamp = this.mappedByteBuffer.getLong(pos + 4);
+                    if (storeTimestamp >= begin && storeTimestamp <= end) {
+                        phyOffsets.add(this.mappedByteBuffer.getLong(pos + 12));
+                    }
+                }
+            } finally {
+                this.mappedFile.release();
+            }
+        }
+
+        private int keyHashAt(int i) {
+            return this.mappedByteBuffer.getInt(HEADER_SIZE + i * ENTRY_SIZE);
+        }
+
+        /**
+         * 将多个有序的条目序列（来自 IndexFile 排序之后的结果或者低一层的 SortedIndexTable）通过多路归并写入一个新的 SortedIndexTable。
+         * 先写入 .tmp 文件，连同 .bloom 文件一起 force 之后再重命名
+         */
+        // SortedIndexTable#merge
+        public static SortedIndexTable merge(final String fileName, final int level, final List<EntryIterator> sources) throws IOException {
+            long entryCount = 0;
+            long beginTimestamp = Long.MAX_VALUE, endTimestamp = 0, beginPhyOffset = Long.MAX_VALUE, endPhyOffset = 0;
+            for (EntryIterator source : sources) {
+                entryCount += source.size();
+            }
+            if (HEADER_SIZE + entryCount * ENTRY_SIZE > Integer.MAX_VALUE) {
+                throw new IOException("sorted index table " + fileName + " too large, entry count " + entryCount);
+            }
+
+            IndexBloomFilter bloomFilter = new IndexBloomFilter((int) entryCount, IndexBloomFilter.HASH_VERSION_MURMUR3);
+            PriorityQueue<EntryIterator> heap = new PriorityQueue<>(Comparator.comparingInt(EntryIterator::keyHash)
+                .thenComparingLong(EntryIterator::storeTimestamp));
+            for (EntryIterator source : sources) {
+                if (source.next()) {
+                    heap.add(source);
+                }
+            }
+
+            File tmp = new File(fileName + ".tmp");
+            try (FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel()) {
+                ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE * 4096);
+                long position = HEADER_SIZE;
+                while (!heap.isEmpty()) {
+                    EntryIterator top = heap.poll();
+                    buffer.putInt(top.keyHash());
+                    buffer.putLong(top.storeTimestamp());
+                    buffer.putLong(top.phyOffset());
+                    bloomFilter.put(top.keyHash());
+                    beginTimestamp = Math.min(beginTimestamp, top.storeTimestamp());
+                    endTimestamp = Math.max(endTimestamp, top.storeTimestamp());
+                    beginPhyOffset = Math.min(beginPhyOffset, top.phyOffset());
+                    endPhyOffset = Math.max(endPhyOffset, top.phyOffset());
+                    if (!buffer.hasRemaining()) {
+                        buffer.flip();
+                        position += channel.write(buffer, position);
+                        buffer.clear();
+                    }
+                    if (top.next()) {
+                        heap.add(top);
+                    }
+                }
+                buffer.flip();
+                channel.write(buffer, position);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC_CODE);
+                header.putInt(level);
+                header.putInt((int) entryCount);
+                header.putInt(IndexBloomFilter.HASH_VERSION_MURMUR3);
+                header.putLong(beginTimestamp);
+                header.putLong(endTimestamp);
+                header.putLong(beginPhyOffset);
+                header.putLong(endPhyOffset);
+                header.flip();
+                channel.write(header, 0);
+                channel.force(true);
+            }
+
+            bloomFilter.persist(new File(fileName + IndexBloomFilter.SUFFIX));
+            if (!tmp.renameTo(new File(fileName))) {
+                throw new IOException("rename " + tmp + " to " + fileName + " failed");
+            }
+            return new SortedIndexTable(fileName);
+        }
+
+        // 顺序遍历一个 SortedIndexTable 中的所有条目，作为上一层合并的输入
+        public EntryIterator iterator() {
+            return new EntryIterator() {
+                private int i = -1;
+
+                public long size() { return entryCount; }
+
+                public boolean next() { return ++i < entryCount; }
+
+                public int keyHash() { return mappedByteBuffer.getInt(HEADER_SIZE + i * ENTRY_SIZE); }
+
+                public long storeTimestamp() { return mappedByteBuffer.getLong(HEADER_SIZE + i * ENTRY_SIZE + 4); }
+
+                public long phyOffset() { return mappedByteBuffer.getLong(HEADER_SIZE + i * ENTRY_SIZE + 12); }
+            };
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public long getBeginTimestamp() {
+            return beginTimestamp;
+        }
+
+        public long getEndTimestamp() {
+            return endTimestamp;
+        }
+
+        public long getEndPhyOffset() {
+            return endPhyOffset;
+        }
+
+        public int getEntryCount() {
+            return entryCount;
+        }
+
+        public void destroy() {
+            this.mappedFile.destroy(3000);
+            new File(this.mappedFile.getFileName() + IndexBloomFilter.SUFFIX).delete();
+        }
+    }
+
+    public interface EntryIterator {
+
+        long size();
+
+        boolean next();
+
+        int keyHash();
+
+        long storeTimestamp();
+
+        long phyOffset();
+    }
+
+    /**
+     * 分层合并已经写满的 IndexFile：
+     *
+     * L0：IndexFile，由 IndexService 实时写入
+     * L1：每一个写满的 IndexFile 排序之后转换为一个 L1 的 SortedIndexTable
+     * L2：每 indexMergeFanIn（默认 4）个 L1 通过多路归并合并为一个 L2，以此类推，直到 indexMergeMaxLevel
+     *
+     * L0 转换为 L1 时需要将 IndexFile 中的条目排序，一个 IndexFile 有 2000 万个条目，这里将 (keyHash, 条目下标) 打包到一个 long 中排序，
+     * 避免创建 2000 万个对象，排序需要 160MB 的临时数组，所以一次只转换一个 IndexFile。条目下标就是写入的顺序，同一个 keyHash 的条目按照下标排序也就是
+     * 按照存储时间排序。更高层的合并是流式的多路归并，不需要额外的内存。只有使用 Murmur3 的 IndexFile 才会被合并，旧的 IndexFile 等待过期删除即可。
+     *
+     * 新的 SortedIndexTable 加入 sortedIndexTables 之后，才从 indexFileList 中删除被合并的 IndexFile，查询时先查 IndexFile，再查 SortedIndexTable，
+     * 合并过程中两者短暂地同时存在，同一个 offset 可能被返回两次，查询方会对物理偏移量去重
+     */
+    class IndexMergeService extends ServiceThread {
+
+        // IndexMergeService#run
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(60 * 1000);
+                    if (!this.mergeLevel0()) {
+                        this.mergeUpperLevel();
+                    }
+                } catch (Throwable e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+            log.info(this.getServiceName() + " service end");
+        }
+
+        // 将最旧的一个写满的 IndexFile 转换为 L1（最后一个 IndexFile 还在写入，不参与合并）
+        // IndexMergeService#mergeLevel0
+        private boolean mergeLevel0() throws IOException {
+            IndexFile candidate = null;
+            IndexService.this.readWriteLock.readLock().lock();
+            try {
+                for (int i = 0; i < IndexService.this.indexFileList.size() - 1; i++) {
+                    IndexFile f = IndexService.this.indexFileList.get(i);
+                    if (f.getHashVersion() == IndexBloomFilter.HASH_VERSION_MURMUR3 && f.isWriteFull()) {
+                        candidate = f;
+                        break;
+                    }
+                }
+            } finally {
+                IndexService.this.readWriteLock.readLock().unlock();
+            }
+            if (candidate == null) {
+                return false;
+            }
+
+            String fileName = IndexService.this.storePath + File.separator + "L1_" + candidate.getFileName();
+            SortedIndexTable table = SortedIndexTable.merge(fileName, 1, Collections.singletonList(candidate.sortedIterator()));
+
+            IndexService.this.readWriteLock.writeLock().lock();
+            try {
+                IndexService.this.sortedIndexTables.add(table);
+                IndexService.this.indexFileList.remove(candidate);
+            } finally {
+                IndexService.this.readWriteLock.writeLock().unlock();
+            }
+            candidate.destroy(3000);
+            log.info("convert index file {} into {}", candidate.getFileName(), fileName);
+            return true;
+        }
+
+        // 合并同一层中最旧的 indexMergeFanIn 个 SortedIndexTable 到下一层
+        // IndexMergeService#mergeUpperLevel
+        private void mergeUpperLevel() throws IOException {
+            int fanIn = IndexService.this.defaultMessageStore.getMessageStoreConfig().getIndexMergeFanIn();
+            int maxLevel = IndexService.this.defaultMessageStore.getMessageStoreConfig().getIndexMergeMaxLevel();
+            for (int level = 1; level < maxLevel; level++) {
+                List<SortedIndexTable> candidates = new ArrayList<>();
+                for (SortedIndexTable table : IndexService.this.sortedIndexTables) {
+                    if (table.getLevel() == level && candidates.size() < fanIn) {
+                        candidates.add(table);
+                    }
+                }
+                if (candidates.size() < fanIn) {
+                    continue;
+                }
+                // SortedIndexTable 整个文件只做一次内存映射，大小不能超过 Integer.MAX_VALUE。合并之后超过这个大小的层不再向上合并，
+                // 否则每一轮都会在 SortedIndexTable#merge 中抛出异常
+                long entryCount = 0;
+                for (SortedIndexTable table : candidates) {
+                    entryCount += table.getEntryCount();
+                }
+                if (SortedIndexTable.HEADER_SIZE + entryCount * SortedIndexTable.ENTRY_SIZE > Integer.MAX_VALUE) {
+                    continue;
+                }
+
+                List<EntryIterator> sources = new ArrayList<>();
+                for (SortedIndexTable table : candidates) {
+                    sources.add(table.iterator());
+                }
+                String fileName = IndexService.this.storePath + File.separator + "L" + (level + 1) + "_"
+                    + new File(candidates.get(0).mappedFile.getFileName()).getName().substring(3);
+                SortedIndexTable merged = SortedIndexTable.merge(fileName, level + 1, sources);
+
+                IndexService.this.readWriteLock.writeLock().lock();
+                try {
+                    IndexService.this.sortedIndexTables.add(merged);
+                    IndexService.this.sortedIndexTables.removeAll(candidates);
+                } finally {
+                    IndexService.this.readWriteLock.writeLock().unlock();
+                }
+                for (SortedIndexTable table : candidates) {
+                    table.destroy();
+                }
+                log.info("merge {} level {} tables into {}", candidates.size(), level, fileName);
+                return;
+            }
+        }
+
+        @Override
+        public String getServiceName() {
+            return IndexMergeService.class.getSimpleName();
+        }
+    }
+
     public class IndexService {
 
+        // 已经合并的有序索引表，按照创建的先后顺序排列，和 indexFileList 一样受 readWriteLock 保护
+        private final List<SortedIndexTable> sortedIndexTables = new ArrayList<>();
+
+        private final IndexMergeService indexMergeService = new IndexMergeService();
+
+        /**
+         * 加载 IndexFile 以及合并之后的 SortedIndexTable。存储目录中的文件分为以下几种：
+         * 1.IndexFile，文件名为创建时的时间戳
+         * 2.${fileName}.bloom，IndexFile 或者 SortedIndexTable 的布隆过滤器
+         * 3.L${level}_${fileName}，SortedIndexTable
+         * 4.*.tmp，合并或者持久化布隆过滤器时宕机留下的临时文件，直接删除
+         *
+         * 布隆过滤器不完整的 IndexFile 需要根据 Index 条目重建过滤器，否则 selectPhyOffset 会因为过滤器判断 key 不存在而漏掉消息
+         */
+        // IndexService#load
+        public boolean load(final boolean lastExitOK) {
+            File dir = new File(this.storePath);
+            File[] files = dir.listFiles();
+            if (files != null) {
+                // ascending order
+                Arrays.sort(files);
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.endsWith(IndexBloomFilter.SUFFIX)) {
+                        continue;
+                    }
+                    if (name.endsWith(".tmp")) {
+                        file.delete();
+                        continue;
+                    }
+                    try {
+                        if (name.startsWith("L")) {
+                            this.sortedIndexTables.add(new SortedIndexTable(file.getPath()));
+                            log.info("load sorted index table OK, " + name);
+                            continue;
+                        }
+
+                        // 转换为 L1 之后宕机，IndexFile 还没来得及删除，它的内容已经在 L1 中了
+                        if (new File(this.storePath, "L1_" + name).exists()) {
+                            file.delete();
+                            new File(file.getPath() + IndexBloomFilter.SUFFIX).delete();
+                            continue;
+                        }
+
+                        IndexFile f = new IndexFile(file.getPath(), this.hashSlotNum, this.indexNum, 0, 0);
+                        f.load();
+
+                        if (!lastExitOK) {
+                            if (f.getEndTimestamp() > this.defaultMessageStore.getStoreCheckpoint().getIndexMsgTimestamp()) {
+                                f.destroy(0);
+                                continue;
+                            }
+                        }
+
+                        if (f.isBloomFilterStale()) {
+                            f.rebuildBloomFilter();
+                            if (f.isWriteFull()) {
+                                f.flushBloomFilter();
+                            }
+                            log.info("rebuild bloom filter of index file {}", name);
+                        }
+
+                        log.info("load index file OK, " + f.getFileName());
+                        this.indexFileList.add(f);
+                    } catch (IOException e) {
+                        log.error("load file {} error", file, e);
+                        return false;
+                    } catch (NumberFormatException e) {
+                        log.error("load file {} error", file, e);
+                    }
+                }
+                // L1_、L2_ 的文件名排序和创建顺序不一致，按照时间重新排序
+                this.sortedIndexTables.sort(Comparator.comparingLong(SortedIndexTable::getBeginTimestamp));
+            }
+
+            return true;
+        }
+
+        // IndexService#start
+        public void start() {
+            this.indexMergeService.start();
+        }
+
+        // IndexService#shutdown
+        public void shutdown() {
+            this.indexMergeService.shutdown();
+        }
+
+        /**
+         * 根据 key 查询消息的物理偏移量。先从新到旧遍历 indexFileList 中时间范围有交集的 IndexFile，每个 IndexFile 先通过布隆过滤器判断，
+         * 再查询 SortedIndexTable。结果按照物理偏移量去重，原因参考 IndexMergeService
+         */
+        // IndexService#queryOffset
+        public QueryOffsetResult queryOffset(String topic, String key, int maxNum, long begin, long end) {
+            List<Long> phyOffsets = new ArrayList<Long>(maxNum);
+            long indexLastUpdateTimestamp = 0;
+            long indexLastUpdatePhyoffset = 0;
+            maxNum = Math.min(maxNum, this.defaultMessageStore.getMessageStoreConfig().getMaxMsgsNumBatch());
+            final String indexKey = buildKey(topic, key);
+            try {
+                this.readWriteLock.readLock().lock();
+                for (int i = this.indexFileList.size(); i > 0 && phyOffsets.size() < maxNum; i--) {
+                    IndexFile f = this.indexFileList.get(i - 1);
+                    if (i == this.indexFileList.size()) {
+                        indexLastUpdateTimestamp = f.getEndTimestamp();
+                        indexLastUpdatePhyoffset = f.getEndPhyOffset();
+                    }
+                    if (f.isTimeMatched(begin, end)) {
+                        f.selectPhyOffset(phyOffsets, indexKey, maxNum, begin, end, false);
+                    }
+                    if (f.getBeginTimestamp() < begin) {
+                        break;
+                    }
+                }
+
+                int keyHash = IndexBloomFilter.murmur3(indexKey.getBytes(MessageDecoder.CHARSET_UTF8)) & Integer.MAX_VALUE;
+                for (int i = this.sortedIndexTables.size(); i > 0 && phyOffsets.size() < maxNum; i--) {
+                    SortedIndexTable table = this.sortedIndexTables.get(i - 1);
+                    if (table.getEndTimestamp() >= begin && table.getBeginTimestamp() <= end) {
+                        table.selectPhyOffset(phyOffsets, keyHash, maxNum, begin, end);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("queryMsg exception", e);
+            } finally {
+                this.readWriteLock.readLock().unlock();
+            }
+
+            List<Long> distinct = new ArrayList<>(new LinkedHashSet<>(phyOffsets));
+            return new QueryOffsetResult(distinct, indexLastUpdateTimestamp, indexLastUpdatePhyoffset);
+        }
+
+        /**
+         * 删除其中的消息都已经不在 CommitLog 中的 IndexFile 和 SortedIndexTable，offset 为 CommitLog 的最小物理偏移量，由 CleanConsumeQueueService 调用。
+         * 最后一个 IndexFile 还在写入，不会被删除。SortedIndexTable 覆盖的范围更大，要等到其中最新的一条消息也被删除之后才会删除
+         */
+        // IndexService#deleteExpiredFile
+        public void deleteExpiredFile(final long offset) {
+            List<IndexFile> expiredFiles = new ArrayList<>();
+            List<SortedIndexTable> expiredTables = new ArrayList<>();
+            this.readWriteLock.writeLock().lock();
+            try {
+                for (int i = 0; i < this.indexFileList.size() - 1; i++) {
+                    IndexFile f = this.indexFileList.get(i);
+                    if (f.getEndPhyOffset() >= offset) {
+                        break;
+                    }
+                    expiredFiles.add(f);
+                }
+                for (SortedIndexTable table : this.sortedIndexTables) {
+                    if (table.getEndPhyOffset() < offset) {
+                        expiredTables.add(table);
+                    }
+                }
+                this.indexFileList.removeAll(expiredFiles);
+                this.sortedIndexTables.removeAll(expiredTables);
+            } finally {
+                this.readWriteLock.writeLock().unlock();
+            }
+
+            for (IndexFile f : expiredFiles) {
+                if (!f.destroy(3000)) {
+                    log.error("delete expired index file {} failed", f.getFileName());
+                }
+            }
+            for (SortedIndexTable table : expiredTables) {
+                table.destroy();
+                log.info("delete expired sorted index table {}, endPhyOffset {}", table.mappedFile.getFileName(), table.getEndPhyOffset());
+            }
+        }
+
+        // 最后一个 IndexFile 中消息的最大物理偏移量，没有 IndexFile 时返回 0
+        // IndexService#getEndPhyOffset
+        public long getEndPhyOffset() {
+            this.readWriteLock.readLock().lock();
+            try {
+                return this.indexFileList.isEmpty() ? 0 : this.indexFileList.get(this.indexFileList.size() - 1).getEndPhyOffset();
+            } finally {
+                this.readWriteLock.readLock().unlock();
+            }
+        }
+
         public void buildIndex(DispatchRequest req) {
             IndexFile indexFile = retryGetAndCreateIndexFile();
             if (indexFile != null) {
@@ -1046,7 +1046,7 @@ public class RocketmqProducer{
         }
     }
 
-    public abstract class AbstractSendMessageProcessor implements NettyRequestProcessor {
+    public abstract class AbstractSendMessageProcessor extends AsyncNettyRequestProcessor {
 
         protected RemotingCommand msgCheck(final ChannelHandlerContext ctx, final SendMessageRequestHeader requestHeader, final RemotingCommand response) {
             // 检查该 Broker 是否有写权限
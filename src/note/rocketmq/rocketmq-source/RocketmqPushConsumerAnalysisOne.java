@@ -538,6 +538,10 @@ public class RocketmqPushConsumerAnalysis{
             }
         }
 
+        public PullAPIWrapper getPullAPIWrapper() {
+            return pullAPIWrapper;
+        }
+
     }
 
     public static class FilterAPI {
@@ -736,6 +740,8 @@ public class RocketmqPushConsumerAnalysis{
         private final ConcurrentMap<String/* Topic */, TopicRouteData> topicRouteTable = new ConcurrentHashMap<String, TopicRouteData>();
 
         private final ConcurrentMap<String/* Broker Name */, HashMap<Long/* brokerId */, String/* address */>> brokerAddrTable = new ConcurrentHashMap<String, HashMap<Long, String>>();
+        // 每次心跳时 Broker 在响应中返回自己 CommitLog 的最大物理偏移量，同一个 Broker 组中 Master 与 Slave 的差值就是 Slave 的复制延迟（字节数）
+        private final ConcurrentMap<String/* Broker Name */, ConcurrentMap<Long/* brokerId */, MaxPhyOffsetSample>> brokerMaxPhyOffsetTable = new ConcurrentHashMap<>();
 
         private ServiceState serviceState = ServiceState.CREATE_JUST;
 
@@ -1171,7 +1177,8 @@ public class RocketmqPushConsumerAnalysis{
                                 }
 
                                 try {
-                                    int version = this.mQClientAPIImpl.sendHearbeat(addr, heartbeatData, 3000);
+                                    int version = this.mQClientAPIImpl.sendHearbeat(addr, heartbeatData, 3000,
+                                        maxPhyOffset -> this.updateBrokerMaxPhyOffset(brokerName, id, maxPhyOffset, times));
                                     if (!this.brokerVersionTable.containsKey(brokerName)) {
                                         this.brokerVersionTable.put(brokerName, new HashMap<String, Integer>(4));
                                     }
@@ -1190,6 +1197,60 @@ public class RocketmqPushConsumerAnalysis{
             }
         }
 
+        // MQClientInstance#updateBrokerMaxPhyOffset
+        private void updateBrokerMaxPhyOffset(final String brokerName, final long brokerId, final long maxPhyOffset, final long round) {
+            ConcurrentMap<Long, MaxPhyOffsetSample> offsets = this.brokerMaxPhyOffsetTable.get(brokerName);
+            if (offsets == null) {
+                ConcurrentMap<Long, MaxPhyOffsetSample> prev = this.brokerMaxPhyOffsetTable.putIfAbsent(brokerName, offsets = new ConcurrentHashMap<>(4));
+                if (prev != null) {
+                    offsets = prev;
+                }
+            }
+            offsets.put(brokerId, new MaxPhyOffsetSample(maxPhyOffset, round, System.currentTimeMillis()));
+        }
+
+        /**
+         * 选择一个复制延迟不超过 maxReplicaLagBytes 的 Slave，没有满足条件的 Slave 或者还没有收到 Master 的心跳响应时返回 MASTER_ID。
+         * 满足条件的 Slave 有多个时按照 hash 选择，同一个消息队列总是落在同一个 Slave 上，不同的消息队列分散到所有的 Slave 上。
+         *
+         * 只比较同一轮心跳中得到的 Master 和 Slave 的偏移量，不同轮次之间 Master 可能已经写入了很多数据，差值没有意义。超过两个心跳周期没有更新的样本
+         * 说明 Broker 已经下线或者心跳一直失败，同样不使用，这种情况下回到 Master 拉取
+         */
+        // MQClientInstance#selectLagSafeSlave
+        public long selectLagSafeSlave(final String brokerName, final long maxReplicaLagBytes, final int hash) {
+            ConcurrentMap<Long, MaxPhyOffsetSample> offsets = this.brokerMaxPhyOffsetTable.get(brokerName);
+            HashMap<Long, String> addrs = this.brokerAddrTable.get(brokerName);
+            if (offsets == null || addrs == null) {
+                return MixAll.MASTER_ID;
+            }
+            final long expireTimestamp = System.currentTimeMillis() - 2L * this.clientConfig.getHeartbeatBrokerInterval();
+            MaxPhyOffsetSample master = offsets.get(MixAll.MASTER_ID);
+            if (master == null || master.timestamp < expireTimestamp) {
+                return MixAll.MASTER_ID;
+            }
+
+            List<Long> candidates = new ArrayList<Long>(addrs.size());
+            for (Long brokerId : addrs.keySet()) {
+                if (brokerId == MixAll.MASTER_ID) {
+                    continue;
+                }
+                MaxPhyOffsetSample slave = offsets.get(brokerId);
+                if (slave != null && slave.round == master.round && slave.timestamp >= expireTimestamp
+                    && master.maxPhyOffset - slave.maxPhyOffset <= maxReplicaLagBytes) {
+                    candidates.add(brokerId);
+                }
+            }
+            if (candidates.isEmpty()) {
+                return MixAll.MASTER_ID;
+            }
+            Collections.sort(candidates);
+            return candidates.get((hash & Integer.MAX_VALUE) % candidates.size());
+        }
+
+        public ClientConfig getClientConfig() {
+            return clientConfig;
+        }
+
         // 在发送心跳包到所有的 Broker 之前（包括 Master 和 Slave），先收集好 Producer 和 Consumer 的必要的信息。
         private HeartbeatData prepareHeartbeatData() {
             HeartbeatData heartbeatData = new HeartbeatData();
@@ -1233,6 +1294,22 @@ public class RocketmqPushConsumerAnalysis{
 
     }
 
+    // 一次心跳响应中 Broker 返回的 CommitLog 最大物理偏移量，round 为心跳的轮次，timestamp 为收到响应的时间
+    public static class MaxPhyOffsetSample {
+
+        private final long maxPhyOffset;
+
+        private final long round;
+
+        private final long timestamp;
+
+        public MaxPhyOffsetSample(long maxPhyOffset, long round, long timestamp) {
+            this.maxPhyOffset = maxPhyOffset;
+            this.round = round;
+            this.timestamp = timestamp;
+        }
+    }
+
     public class RebalanceService extends ServiceThread {
         
         private static long waitInterval = Long.parseLong(System.getProperty("rocketmq.client.rebalance.waitInterval", "20000"));
@@ -735,6 +735,8 @@ public class RocketmqPushConsumerAnalysisThree{
             // 持久化消费进度，并且移除
             this.defaultMQPushConsumerImpl.getOffsetStore().persist(mq);
             this.defaultMQPushConsumerImpl.getOffsetStore().removeOffset(mq);
+            // 不再拉取这个队列，清除 PullAPIWrapper 中记录的拉取延迟
+            this.defaultMQPushConsumerImpl.getPullAPIWrapper().removePullLag(mq);
             // 顺序消费&集群模式，解锁该队列的锁定
             if (this.defaultMQPushConsumerImpl.isConsumeOrderly()
                 && MessageModel.CLUSTERING.equals(this.defaultMQPushConsumerImpl.messageModel())) {
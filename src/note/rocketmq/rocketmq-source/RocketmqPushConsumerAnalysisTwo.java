@@ -53,10 +53,12 @@ public class RocketmqPushConsumerAnalysisTwo{
             
             // 构建消息过滤对象 ExpressionForRetryMessageFilter，支持对重试主题的过滤
             if (this.brokerController.getBrokerConfig().isFilterSupportRetry()) {
-                messageFilter = new ExpressionForRetryMessageFilter(subscriptionData, consumerFilterData, this.brokerController.getConsumerFilterManager());
+                messageFilter = new ExpressionForRetryMessageFilter(subscriptionData, consumerFilterData, this.brokerController.getConsumerFilterManager(),
+                        this.brokerController.getMessageStore().getPropertyProjection());
             // 构建消息过滤对象 ExpressionMessageFilter，不支持对重试主题消息的过滤
             } else {
-                messageFilter = new ExpressionMessageFilter(subscriptionData, consumerFilterData, this.brokerController.getConsumerFilterManager());
+                messageFilter = new ExpressionMessageFilter(subscriptionData, consumerFilterData, this.brokerController.getConsumerFilterManager(),
+                        this.brokerController.getMessageStore().getPropertyProjection());
             }
 
             // 调用 MessageStore#getMessage 来查找消息
@@ -149,6 +151,52 @@ public class RocketmqPushConsumerAnalysisTwo{
                 }
 
                 switch (response.getCode()) {
+                    case ResponseCode.SUCCESS:
+                        this.brokerController.getBrokerStatsManager().incGroupGetNums(requestHeader.getConsumerGroup(), requestHeader.getTopic(),
+                            getMessageResult.getMessageCount());
+                        this.brokerController.getBrokerStatsManager().incGroupGetSize(requestHeader.getConsumerGroup(), requestHeader.getTopic(),
+                            getMessageResult.getBufferTotalSize());
+
+                        // transferMsgByHeap 为 true 时，将 GetMessageResult 中所有 SelectMappedBufferResult 的内容拷贝到一个堆内的 byte 数组中，
+                        // 作为 response 的 body 返回。这种方式每次拉取都会产生一次内存拷贝以及一个最大可达数百 KB 的 byte 数组，在消费者很多的情况下，
+                        // Broker 的 CPU 和 GC 压力都很大
+                        if (this.brokerController.getBrokerConfig().isTransferMsgByHeap()) {
+                            // 拷贝到堆内存时同样会在缺页中断上阻塞当前的拉取线程，冷读也先交给 coldReadExecutor 预读，预读完成之后再拷贝并写出
+                            if (getMessageResult.isColdRead()) {
+                                final RemotingCommand finalResponse = response;
+                                this.brokerController.getMessageStore().scheduleColdRead(getMessageResult, () -> {
+                                    finalResponse.setBody(this.readGetMessageResult(getMessageResult, requestHeader.getConsumerGroup(),
+                                        requestHeader.getTopic(), requestHeader.getQueueId()));
+                                    channel.writeAndFlush(finalResponse).addListener(new ChannelFutureListener() {
+                                        @Override
+                                        public void operationComplete(ChannelFuture future) throws Exception {
+                                            if (!future.isSuccess()) {
+                                                log.error("transfer cold read message by heap failed, {}", channel.remoteAddress(), future.cause());
+                                            }
+                                        }
+                                    });
+                                });
+                                // response 在预读完成之后写出
+                                response = null;
+                            } else {
+                                final byte[] r = this.readGetMessageResult(getMessageResult, requestHeader.getConsumerGroup(), requestHeader.getTopic(), requestHeader.getQueueId());
+                                response.setBody(r);
+                            }
+                        } else {
+                            // 零拷贝模式下，消息内容在 Netty 线程中才会从 page cache 中读取。如果是冷读，直接写出会让 Netty 线程阻塞在缺页中断上，
+                            // 所以冷读先交给 coldReadExecutor 预读，预读完成之后再写出；热读直接在当前线程中写出
+                            final RemotingCommand finalResponse = response;
+                            if (getMessageResult.isColdRead()) {
+                                this.brokerController.getMessageStore().scheduleColdRead(getMessageResult,
+                                    () -> this.transferByPageCache(channel, finalResponse, getMessageResult));
+                            } else {
+                                this.transferByPageCache(channel, finalResponse, getMessageResult);
+                            }
+
+                            // response 已经通过 FileRegion 写出，这里返回 null，NettyRemotingAbstract 不会再写一次 response
+                            response = null;
+                        }
+                        break;
                     case ResponseCode.PULL_NOT_FOUND:
                     
                     // brokerAllowSuspend 表示 Broker 是否支持挂起，即是否允许在未找到消息时暂时挂起线程。第一次调用时默认为 true。
@@ -200,6 +248,43 @@ public class RocketmqPushConsumerAnalysisTwo{
             
         }
 
+        // 零拷贝模式：将 response 的头部和 GetMessageResult 中的 SelectMappedBufferResult 包装成一个 FileRegion（ManyMessageTransfer），
+        // 由 Netty 直接写入到 socket 中。消息内容从 MappedFile 的 mappedByteBuffer（也就是 page cache）直接写出，不经过堆内存。
+        // SelectMappedBufferResult 持有 MappedFile 的引用，在写完成（无论成功与否）之后才能释放，否则 MappedFile 可能在写出的过程中被删除
+        // PullMessageProcessor#transferByPageCache
+        private void transferByPageCache(final Channel channel, final RemotingCommand response, final GetMessageResult getMessageResult) {
+            try {
+                FileRegion fileRegion = new ManyMessageTransfer(response.encodeHeader(getMessageResult.getBufferTotalSize()), getMessageResult);
+                channel.writeAndFlush(fileRegion).addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        getMessageResult.release();
+                        if (!future.isSuccess()) {
+                            log.error("transfer many message by pagecache failed, {}", channel.remoteAddress(), future.cause());
+                        }
+                    }
+                });
+            } catch (Throwable e) {
+                log.error("transfer many message by pagecache exception", e);
+                getMessageResult.release();
+            }
+        }
+
+        // 将 GetMessageResult 中所有消息的内容拷贝到一个堆内的 byte 数组中，拷贝完成之后立即释放 SelectMappedBufferResult
+        // PullMessageProcessor#readGetMessageResult
+        private byte[] readGetMessageResult(final GetMessageResult getMessageResult, final String group, final String topic, final int queueId) {
+            final ByteBuffer byteBuffer = ByteBuffer.allocate(getMessageResult.getBufferTotalSize());
+            try {
+                List<ByteBuffer> messageBufferList = getMessageResult.getMessageBufferList();
+                for (ByteBuffer bb : messageBufferList) {
+                    byteBuffer.put(bb);
+                }
+            } finally {
+                getMessageResult.release();
+            }
+            return byteBuffer.array();
+        }
+
         // PullMessageProcessor#executeRequestWhenWakeup
         public void executeRequestWhenWakeup(final Channel channel, final RemotingCommand request) throws RemotingCommandException {
             Runnable run = new Runnable() {
@@ -238,6 +323,93 @@ public class RocketmqPushConsumerAnalysisTwo{
 
     }
 
+    /**
+     * 零拷贝拉取时写入 socket 的 FileRegion，由两部分组成：
+     *
+     * 1.byteBufferHeader：RemotingCommand 编码之后的头部，包括总长度、头部长度以及头部数据，其中总长度已经包含了 body 的长度
+     * 2.getMessageResult：body，也就是多个 SelectMappedBufferResult 对应的 mappedByteBuffer 切片
+     *
+     * Netty 在写 FileRegion 时会反复调用 transferTo，直到 transferred() 等于 count()。这里依次将头部和每一个切片通过 WritableByteChannel#write
+     * 写入 socket，数据直接从 page cache 拷贝到 socket 缓冲区，不经过 JVM 堆。引用计数降为 0 时（deallocate）释放所有的 SelectMappedBufferResult，
+     * 与 PullMessageProcessor 中写完成之后的 release 是幂等的
+     */
+    public class ManyMessageTransfer extends AbstractReferenceCounted implements FileRegion {
+        private final ByteBuffer byteBufferHeader;
+        private final GetMessageResult getMessageResult;
+
+        // 已经写入 socket 的字节数
+        private long transferred = 0;
+
+        public ManyMessageTransfer(ByteBuffer byteBufferHeader, GetMessageResult getMessageResult) {
+            this.byteBufferHeader = byteBufferHeader;
+            this.getMessageResult = getMessageResult;
+        }
+
+        @Override
+        public long position() {
+            int pos = byteBufferHeader.position();
+            List<ByteBuffer> messageBufferList = this.getMessageResult.getMessageBufferList();
+            for (ByteBuffer bb : messageBufferList) {
+                pos += bb.position();
+            }
+            return pos;
+        }
+
+        @Override
+        public long transferred() {
+            return transferred;
+        }
+
+        @Override
+        public long count() {
+            return byteBufferHeader.limit() + this.getMessageResult.getBufferTotalSize();
+        }
+
+        // ManyMessageTransfer#transferTo
+        @Override
+        public long transferTo(WritableByteChannel target, long position) throws IOException {
+            // 先写头部，头部写完之后再按顺序写每一个消息切片，每次调用只写一个 ByteBuffer，socket 缓冲区满时返回 0，由 Netty 在下次可写时继续调用。
+            // 返回值是本次调用写入的字节数，Netty 用它累加 transferred 并更新 ChannelOutboundBuffer 的进度，不能返回累计值
+            if (this.byteBufferHeader.hasRemaining()) {
+                int written = target.write(this.byteBufferHeader);
+                transferred += written;
+                return written;
+            } else {
+                List<ByteBuffer> messageBufferList = this.getMessageResult.getMessageBufferList();
+                for (ByteBuffer bb : messageBufferList) {
+                    if (bb.hasRemaining()) {
+                        int written = target.write(bb);
+                        transferred += written;
+                        return written;
+                    }
+                }
+            }
+
+            return 0;
+        }
+
+        @Override
+        public FileRegion retain() {
+            super.retain();
+            return this;
+        }
+
+        @Override
+        public FileRegion touch(Object hint) {
+            return this;
+        }
+
+        public void close() {
+            this.deallocate();
+        }
+
+        // 引用计数为 0 时释放 SelectMappedBufferResult，也就是释放对 MappedFile 的引用
+        @Override
+        protected void deallocate() {
+            this.getMessageResult.release();
+        }
+    }
+
     public class ManyPullRequest {
 
         private final ArrayList<PullRequest> pullRequestList = new ArrayList<>();
@@ -803,6 +975,87 @@ public class RocketmqPushConsumerAnalysisTwo{
 
     public class SendMessageProcessor extends AbstractSendMessageProcessor implements NettyRequestProcessor {
 
+        /**
+         * 异步处理消息发送请求。processRequest 中调用 DefaultMessageStore#putMessage，对于 SYNC_FLUSH 或者 SYNC_MASTER 的 Broker，处理线程会一直阻塞到
+         * 消息刷盘以及主从同步完成。这里改为调用 asyncSendMessage，得到一个 CompletableFuture<RemotingCommand>，在 future 完成之后再通过
+         * responseCallback 将响应写回客户端，SendMessageProcessor 的线程不再被阻塞
+         */
+        // SendMessageProcessor#asyncProcessRequest
+        public void asyncProcessRequest(ChannelHandlerContext ctx, RemotingCommand request, RemotingResponseCallback responseCallback) throws Exception {
+            switch (request.getCode()) {
+            // RequestCode.CONSUMER_SEND_MSG_BACK 仍然同步处理
+            case RequestCode.CONSUMER_SEND_MSG_BACK:
+                responseCallback.callback(this.consumerSendMsgBack(ctx, request));
+                return;
+            default:
+                SendMessageRequestHeader requestHeader = parseRequestHeader(request);
+                if (requestHeader == null) {
+                    responseCallback.callback(null);
+                    return;
+                }
+
+                SendMessageContext mqtraceContext = buildMsgContext(ctx, requestHeader);
+                this.executeSendMessageHookBefore(ctx, request, mqtraceContext);
+
+                // 批量消息仍然走同步的 sendBatchMessage
+                if (requestHeader.isBatch()) {
+                    RemotingCommand response = this.sendBatchMessage(ctx, request, mqtraceContext, requestHeader);
+                    this.executeSendMessageHookAfter(response, mqtraceContext);
+                    responseCallback.callback(response);
+                    return;
+                }
+
+                // future 可能在刷盘线程或者 HA 线程中完成，回调切回 sendMessageExecutor 执行，避免 hook 和写响应占用这些线程；
+                // 写入过程中抛出的异常转换为 SYSTEM_ERROR 响应，否则客户端只能等到超时
+                this.asyncSendMessage(ctx, request, mqtraceContext, requestHeader).exceptionally(e -> {
+                    log.error("async send message failed, topic: {}", requestHeader.getTopic(), e);
+                    final RemotingCommand response = RemotingCommand.createResponseCommand(null);
+                    response.setOpaque(request.getOpaque());
+                    response.setCode(ResponseCode.SYSTEM_ERROR);
+                    response.setRemark("store message failed: " + e.getMessage());
+                    return response;
+                }).thenAcceptAsync(response -> {
+                    this.executeSendMessageHookAfter(response, mqtraceContext);
+                    responseCallback.callback(response);
+                }, this.brokerController.getSendMessageExecutor());
+            }
+        }
+
+        // SendMessageProcessor#asyncSendMessage
+        private CompletableFuture<RemotingCommand> asyncSendMessage(final ChannelHandlerContext ctx, final RemotingCommand request,
+                final SendMessageContext sendMessageContext, final SendMessageRequestHeader requestHeader) throws RemotingCommandException {
+
+            // response 的创建、Broker 是否可以开始接收请求的判断、msgCheck 检查以及根据请求构建 msgInner 的逻辑与 sendMessage 完全相同，
+            // 检查不通过时直接返回 CompletableFuture.completedFuture(response)
+            // ignore code
+
+            CompletableFuture<PutMessageResult> putMessageResult;
+            Map<String, String> oriProps = MessageDecoder.string2messageProperties(requestHeader.getProperties());
+            String traFlag = oriProps.get(MessageConst.PROPERTY_TRANSACTION_PREPARED);
+            if (traFlag != null && Boolean.parseBoolean(traFlag)) {
+                if (this.brokerController.getBrokerConfig().isRejectTransactionMessage()) {
+                    response.setCode(ResponseCode.NO_PERMISSION);
+                    response.setRemark("the broker [" + this.brokerController.getBrokerConfig().getBrokerIP1() + "] sending transaction message is forbidden");
+                    return CompletableFuture.completedFuture(response);
+                }
+                // 事务 prepare 消息仍然同步写入。开启 appendResultReuseEnable 时返回的是当前线程复用的对象，之后在 sendMessageExecutor 的其它线程中读取，
+                // 而当前线程可能已经开始写入下一条消息，所以先复制一份
+                PutMessageResult prepareResult = this.brokerController.getTransactionalMessageService().prepareMessage(msgInner);
+                if (prepareResult != null && prepareResult.getAppendMessageResult() != null) {
+                    prepareResult = new PutMessageResult(prepareResult.getPutMessageStatus(), prepareResult.getAppendMessageResult().copy());
+                }
+                putMessageResult = CompletableFuture.completedFuture(prepareResult);
+            } else {
+                // 调用 DefaultMessageStore#asyncPutMessage 进行消息存储，该方法不会阻塞
+                putMessageResult = this.brokerController.getMessageStore().asyncPutMessage(msgInner);
+            }
+
+            final int queueIdInt = msgInner.getQueueId();
+            return putMessageResult.thenApplyAsync(r ->
+                handlePutMessageResult(r, response, request, msgInner, responseHeader, sendMessageContext, ctx, queueIdInt),
+                this.brokerController.getSendMessageExecutor());
+        }
+
         @Override
         // SendMessageProcessor#processRequest
         public RemotingCommand processRequest(ChannelHandlerContext ctx, RemotingCommand request) throws RemotingCommandException {
@@ -914,6 +1167,51 @@ public class RocketmqPushConsumerAnalysisTwo{
             return handlePutMessageResult(putMessageResult, response, request, msgInner, responseHeader, sendMessageContext, ctx, queueIdInt);
         }
 
+        // 处理生产者发送的批量消息，request 的 body 是客户端通过 MessageDecoder#encodeMessages 编码的多条消息，这里不会在 Broker 端
+        // 把它们拆分成多个 MessageExtBrokerInner，而是整体包装成一个 MessageExtBatch 交给 DefaultMessageStore#putMessages，
+        // 由 CommitLog 一次编码、一次加锁写入
+        // SendMessageProcessor#sendBatchMessage
+        private RemotingCommand sendBatchMessage(final ChannelHandlerContext ctx, final RemotingCommand request, final SendMessageContext sendMessageContext,
+                final SendMessageRequestHeader requestHeader) throws RemotingCommandException {
+
+            // response 的创建、Broker 是否可以开始接收请求的判断以及 msgCheck 检查与 sendMessage 完全相同
+            // ignore code
+
+            int queueIdInt = requestHeader.getQueueId();
+            TopicConfig topicConfig = this.brokerController.getTopicConfigManager().selectTopicConfig(requestHeader.getTopic());
+            if (queueIdInt < 0) {
+                queueIdInt = Math.abs(this.random.nextInt() % 99999999) % topicConfig.getWriteQueueNums();
+            }
+
+            if (requestHeader.getTopic().length() > Byte.MAX_VALUE) {
+                response.setCode(ResponseCode.MESSAGE_ILLEGAL);
+                response.setRemark("message topic length too long " + requestHeader.getTopic().length());
+                return response;
+            }
+            // 批量消息不支持发送到重试主题
+            if (requestHeader.getTopic() != null && requestHeader.getTopic().startsWith(MixAll.RETRY_GROUP_TOPIC_PREFIX)) {
+                response.setCode(ResponseCode.MESSAGE_ILLEGAL);
+                response.setRemark("batch request does not support retry group " + requestHeader.getTopic());
+                return response;
+            }
+
+            MessageExtBatch messageExtBatch = new MessageExtBatch();
+            messageExtBatch.setTopic(requestHeader.getTopic());
+            messageExtBatch.setQueueId(queueIdInt);
+            messageExtBatch.setBody(request.getBody());
+            messageExtBatch.setFlag(requestHeader.getFlag());
+            MessageAccessor.setProperties(messageExtBatch, MessageDecoder.string2messageProperties(requestHeader.getProperties()));
+            messageExtBatch.setBornTimestamp(requestHeader.getBornTimestamp());
+            messageExtBatch.setBornHost(ctx.channel().remoteAddress());
+            messageExtBatch.setStoreHost(this.getStoreHost());
+            messageExtBatch.setReconsumeTimes(requestHeader.getReconsumeTimes() == null ? 0 : requestHeader.getReconsumeTimes());
+
+            PutMessageResult putMessageResult = this.brokerController.getMessageStore().putMessages(messageExtBatch);
+
+            // 返回给生产者的 msgId 是这一批消息的 msgId 用逗号拼接起来的字符串，queueOffset 是第一条消息的逻辑偏移量
+            return handlePutMessageResult(putMessageResult, response, request, messageExtBatch, responseHeader, sendMessageContext, ctx, queueIdInt);
+        }
+
         private RemotingCommand consumerSendMsgBack(final ChannelHandlerContext ctx, final RemotingCommand request) throws RemotingCommandException {
 
             final RemotingCommand response = RemotingCommand.createResponseCommand(null);
@@ -66,6 +66,20 @@ public class RocketmqRemotingAnalysis{
     
     }
 
+    // 异步处理请求时，用来将生成的 response 写回客户端的回调
+    public interface RemotingResponseCallback {
+        void callback(RemotingCommand response);
+    }
+
+    // 支持异步处理请求的 NettyRequestProcessor，默认实现就是同步调用 processRequest 然后执行回调
+    public abstract class AsyncNettyRequestProcessor implements NettyRequestProcessor {
+
+        public void asyncProcessRequest(ChannelHandlerContext ctx, RemotingCommand request, RemotingResponseCallback responseCallback) throws Exception {
+            RemotingCommand response = processRequest(ctx, request);
+            responseCallback.callback(response);
+        }
+    }
+
     /**
      * Rocketmq 通信协议分为 4 个部分：消息长度、序列化长度&头部长度、消息头数据、消息主体数据
      * 真正消息分为 4 个部分：
@@ -779,26 +793,41 @@ public class RocketmqRemotingAnalysis{
                             if (rpcHook != null) {
                                 rpcHook.doBeforeRequest(RemotingHelper.parseChannelRemoteAddr(ctx.channel()), cmd);
                             }
-                            // 使用 processor 来处理这个 RemotingCommand 请求
-                            final RemotingCommand response = pair.getObject1().processRequest(ctx, cmd);
-                            if (rpcHook != null) {
-                                rpcHook.doAfterResponse(RemotingHelper.parseChannelRemoteAddr(ctx.channel()), cmd, response);
-                            }
-    
-                            if (!cmd.isOnewayRPC()) {
-                                if (response != null) {
-                                    response.setOpaque(opaque);
-                                    response.markResponseType();
-                                    try {
-                                        // 将 response 对象发送回客户端
-                                        ctx.writeAndFlush(response);
-                                    } catch (Throwable e) {
-                                        log.error("process request over, but response failed", e);
-                                        log.error(cmd.toString());
-                                        log.error(response.toString());
+                            // 将响应写回客户端的逻辑封装成一个回调，同步处理器在 processRequest 返回之后直接调用它，
+                            // 而异步处理器则在 response 真正生成的时候（比如消息刷盘以及主从同步完成之后）才调用它
+                            final RemotingResponseCallback callback = new RemotingResponseCallback() {
+                                @Override
+                                public void callback(RemotingCommand response) {
+                                    if (rpcHook != null) {
+                                        rpcHook.doAfterResponse(RemotingHelper.parseChannelRemoteAddr(ctx.channel()), cmd, response);
+                                    }
+
+                                    if (!cmd.isOnewayRPC()) {
+                                        if (response != null) {
+                                            response.setOpaque(opaque);
+                                            response.markResponseType();
+                                            try {
+                                                // 将 response 对象发送回客户端
+                                                ctx.writeAndFlush(response);
+                                            } catch (Throwable e) {
+                                                log.error("process request over, but response failed", e);
+                                                log.error(cmd.toString());
+                                                log.error(response.toString());
+                                            }
+                                        } else {
+                                        }
                                     }
-                                } else {
                                 }
+                            };
+
+                            // 使用 processor 来处理这个 RemotingCommand 请求，如果 processor 实现了 AsyncNettyRequestProcessor 接口（比如 SendMessageProcessor），
+                            // 那么调用 asyncProcessRequest 方法，该方法不会等待请求处理完成，当前线程可以立即去处理下一个请求
+                            if (pair.getObject1() instanceof AsyncNettyRequestProcessor) {
+                                AsyncNettyRequestProcessor processor = (AsyncNettyRequestProcessor) pair.getObject1();
+                                processor.asyncProcessRequest(ctx, cmd, callback);
+                            } else {
+                                final RemotingCommand response = pair.getObject1().processRequest(ctx, cmd);
+                                callback.callback(response);
                             }
                         } catch (Throwable e) {
                             // 省略代码
@@ -0,0 +1,454 @@
+public class RocketmqStoreBenchmark {
+
+    /**
+     * 存储热路径的 JMH 基准测试
+     *
+     * 前面几篇对 CommitLog、MappedFile、ConsumeQueue 和 IndexFile 做的修改（无锁追加、批量刷盘、Bloom 过滤器等）都需要可以复现的数据来判断是否真的有收益。
+     * 这里的基准测试放在 RocketMQ 源码中单独的 benchmark 模块里（org.apache.rocketmq.store 包下，这样可以直接访问 DefaultAppendMessageCallback 等包级别的类），
+     * 依赖 rocketmq-store 以及 jmh-core、jmh-generator-annprocess，使用 maven-shade-plugin 打成 benchmarks.jar。
+     *
+     * 所有的基准测试都有两个公共的参数：
+     *
+     * storeType：tmpfs 或者 disk，分别对应 -Dbenchmark.tmpfsDir（默认 /dev/shm/rocketmq-benchmark）以及 -Dbenchmark.diskDir（默认 java.io.tmpdir 下的目录）。
+     * 对比两者就可以区分 CPU 开销（编码、拷贝、锁）和真正的 IO 开销（缺页、fsync）
+     * bodySize：消息体的大小，128B、1KB、4KB
+     *
+     * 线程数不能作为 @Param，所以 BenchmarkRunner 对 benchmark.threads（默认 1,4,16）中的每一个值分别运行一次 CommitLogPutBenchmark，
+     * 观察 putMessageLock 的竞争。其余的基准测试对应的都是单线程的路径（doAppend 和 MappedFile 的追加在锁内、ConsumeQueue 只由 ReputMessageService 写入），
+     * 固定为 @Threads(1)，只运行一次。
+     *
+     * 运行方式：java -jar benchmarks.jar 或者 java -cp benchmarks.jar org.apache.rocketmq.store.benchmark.BenchmarkRunner，
+     * 结果以 JSON 格式写到 benchmark.result 指定的文件中，便于在修改前后进行对比
+     */
+
+    public static class BenchmarkRunner {
+
+        public static void main(String[] args) throws RunnerException {
+            String result = System.getProperty("benchmark.result", "store-benchmark");
+
+            // 单线程的基准测试，线程数由 @Threads(1) 决定
+            Options options = new OptionsBuilder()
+                .include(RocketmqStoreBenchmark.class.getName() + ".*")
+                .exclude(CommitLogPutBenchmark.class.getName())
+                .resultFormat(ResultFormatType.JSON)
+                .result(result + ".json")
+                .build();
+            new Runner(options).run();
+
+            // OptionsBuilder#threads 会覆盖 @Threads 注解
+            for (String threads : System.getProperty("benchmark.threads", "1,4,16").split(",")) {
+                options = new OptionsBuilder()
+                    .include(CommitLogPutBenchmark.class.getName())
+                    .threads(Integer.parseInt(threads.trim()))
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(result + "-put-t" + threads.trim() + ".json")
+                    .build();
+                new Runner(options).run();
+            }
+        }
+    }
+
+    // 所有基准测试共用的参数和存储目录，每个 Trial 使用一个新的目录，结束之后删除
+    @State(Scope.Benchmark)
+    public static class StoreDir {
+
+        @Param({"tmpfs", "disk"})
+        public String storeType;
+
+        @Param({"128", "1024", "4096"})
+        public int bodySize;
+
+        public String path;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            String root = "tmpfs".equals(this.storeType) ? System.getProperty("benchmark.tmpfsDir", "/dev/shm/rocketmq-benchmark")
+                : System.getProperty("benchmark.diskDir", System.getProperty("java.io.tmpdir") + File.separator + "rocketmq-benchmark");
+            this.path = root + File.separator + UUID.randomUUID();
+            MappedFile.ensureDirOK(this.path);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            UtilAll.deleteFile(new File(this.path));
+        }
+
+        // 构造一条消息，和 DefaultMessageStore#putMessage 中的消息一样带有 KEYS、TAGS 以及 propertiesString
+        public MessageExtBrokerInner newMessage(final String topic, final int queueId) {
+            MessageExtBrokerInner msg = new MessageExtBrokerInner();
+            msg.setTopic(topic);
+            msg.setQueueId(queueId);
+            msg.setTags("TagA");
+            msg.setKeys("benchmark-key");
+            msg.setBody(new byte[this.bodySize]);
+            msg.setBornTimestamp(System.currentTimeMillis());
+            msg.setBornHost(new InetSocketAddress("127.0.0.1", 10911));
+            msg.setStoreHost(new InetSocketAddress("127.0.0.1", 10911));
+            msg.setTagsCode(MessageExtBrokerInner.tagsString2tagsCode(msg.getTags()));
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            return msg;
+        }
+
+        public MessageStoreConfig newStoreConfig() {
+            MessageStoreConfig config = new MessageStoreConfig();
+            config.setStorePathRootDir(this.path);
+            config.setStorePathCommitLog(this.path + File.separator + "commitlog");
+            config.setMapedFileSizeCommitLog(1024 * 1024 * 1024);
+            config.setFlushDiskType(FlushDiskType.ASYNC_FLUSH);
+            return config;
+        }
+    }
+
+    /**
+     * 包含一个已经启动的 DefaultMessageStore，DefaultAppendMessageCallback 和 ConsumeQueue 都依赖它。
+     * 除了 CommitLogPutBenchmark 之外的基准测试不会向 CommitLog 写入消息，刷盘、转发等后台线程基本空闲，对测量的影响不大，所以使用默认配置
+     */
+    @State(Scope.Benchmark)
+    public static class StoreState {
+
+        public DefaultMessageStore messageStore;
+
+        @Setup(Level.Trial)
+        public void setup(StoreDir dir) throws Exception {
+            this.messageStore = new DefaultMessageStore(dir.newStoreConfig(), new BrokerStatsManager("benchmark"), null, new BrokerConfig());
+            this.messageStore.load();
+            this.messageStore.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.messageStore.shutdown();
+            this.messageStore.destroy();
+        }
+    }
+
+    /**
+     * DefaultMessageStore#putMessage：完整的写入路径，包括写入前的检查、putMessageLock、doAppend、MappedFile 的追加以及异步刷盘的唤醒，
+     * 多个线程共用同一个 DefaultMessageStore。开启 enableLockFreeAppend 时 DefaultMessageStore#putMessage 会改走 CommitLog#putMessageLockFree，
+     * 可以通过 -jvmArgs 传入不同的配置进行对比。直接调用 CommitLog#putMessage 的话无论怎么配置都会加锁，测不到无锁追加
+     */
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @State(Scope.Thread)
+    public static class CommitLogPutBenchmark {
+
+        private DefaultMessageStore messageStore;
+
+        private MessageExtBrokerInner msg;
+
+        @Setup(Level.Trial)
+        public void setup(StoreDir dir, StoreState store) {
+            this.messageStore = store.messageStore;
+            // 每个线程写入不同的队列
+            this.msg = dir.newMessage("BenchmarkTopic", (int) (Thread.currentThread().getId() % 16));
+        }
+
+        @Benchmark
+        public PutMessageResult putMessage() {
+            return this.messageStore.putMessage(this.msg);
+        }
+
+        /**
+         * 每次迭代之后删除除了最后一个之外的 CommitLog 文件，否则多次迭代写满的 1GB 文件会一直保留到 Trial 结束，tmpfs 上很快会耗尽内存。
+         * 每个线程都会调用一次，之后的调用没有可以删除的文件
+         */
+        @TearDown(Level.Iteration)
+        public void deleteFiles() {
+            this.messageStore.getCommitLog().deleteExpiredFile(0, 0, 0, true);
+        }
+    }
+
+    /**
+     * DefaultAppendMessageCallback#doAppend：只测量编码和拷贝到 ByteBuffer 的开销，目标是一块堆外内存，不涉及 MappedFile 和文件系统，
+     * 所以 storeType 两个取值的结果应该相同
+     */
+    @Threads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @State(Scope.Thread)
+    public static class DoAppendBenchmark {
+
+        private static final int BUFFER_SIZE = 64 * 1024 * 1024;
+
+        private CommitLog.DefaultAppendMessageCallback callback;
+
+        private ByteBuffer byteBuffer;
+
+        private MessageExtBrokerInner msg;
+
+        @Setup(Level.Trial)
+        public void setup(StoreDir dir, StoreState store) {
+            CommitLog commitLog = store.messageStore.getCommitLog();
+            this.callback = commitLog.new DefaultAppendMessageCallback(store.messageStore.getMessageStoreConfig().getMaxMessageSize());
+            this.byteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            this.msg = dir.newMessage("BenchmarkTopic", 0);
+        }
+
+        @Benchmark
+        public AppendMessageResult doAppend() {
+            if (this.byteBuffer.remaining() < this.msg.getBody().length + 1024) {
+                this.byteBuffer.clear();
+            }
+            return this.callback.doAppend(0, this.byteBuffer, this.byteBuffer.remaining(), this.msg);
+        }
+    }
+
+    /**
+     * MappedFile#appendMessagesInner：包括写入 mappedByteBuffer（或者开启 transientStorePoolEnable 时的 writeBuffer）产生的缺页，
+     * 文件写满之后在测量的线程中创建下一个文件，1GB 的文件在一次迭代中最多写满一两次，这部分开销被均摊
+     */
+    @Threads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @State(Scope.Thread)
+    public static class MappedFileAppendBenchmark {
+
+        private static final int FILE_SIZE = 1024 * 1024 * 1024;
+
+        private StoreDir dir;
+
+        private CommitLog.DefaultAppendMessageCallback callback;
+
+        private MappedFile mappedFile;
+
+        private MessageExtBrokerInner msg;
+
+        private long fileFromOffset = 0;
+
+        @Setup(Level.Trial)
+        public void setup(StoreDir dir, StoreState store) throws IOException {
+            this.dir = dir;
+            this.callback = store.messageStore.getCommitLog().new DefaultAppendMessageCallback(
+                store.messageStore.getMessageStoreConfig().getMaxMessageSize());
+            this.msg = dir.newMessage("BenchmarkTopic", 0);
+            this.mappedFile = this.newMappedFile();
+        }
+
+        @Benchmark
+        public AppendMessageResult appendMessagesInner() throws IOException {
+            AppendMessageResult result = this.mappedFile.appendMessagesInner(this.msg, this.callback, null);
+            if (result.getStatus() == AppendMessageStatus.END_OF_FILE) {
+                this.mappedFile.destroy(0);
+                this.fileFromOffset += FILE_SIZE;
+                this.mappedFile = this.newMappedFile();
+                result = this.mappedFile.appendMessagesInner(this.msg, this.callback, null);
+            }
+            return result;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.mappedFile.destroy(0);
+        }
+
+        private MappedFile newMappedFile() throws IOException {
+            return new MappedFile(this.dir.path + File.separator + "append" + File.separator + UtilAll.offset2FileName(this.fileFromOffset), FILE_SIZE);
+        }
+    }
+
+    /**
+     * MappedFile#flush 和 MappedFile#commit。每次调用之前（Level.Invocation）先通过 appendMessagesInner 写入 pages 个页的消息，只测量一次 flush(0) 或者 commit(0) 的时间。
+     * Level.Invocation 的 Setup 本身有一定的开销，但是和一次 fsync 相比可以忽略。commit 需要 writeBuffer，所以使用 TransientStorePool 创建 MappedFile，
+     * appendMessagesInner 和 CommitLog 一样把消息写入 writeBuffer
+     */
+    @Threads(1)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @State(Scope.Thread)
+    public static class MappedFileFlushBenchmark {
+
+        private static final int FILE_SIZE = 1024 * 1024 * 1024;
+
+        @Param({"1", "4", "16"})
+        public int pages;
+
+        private StoreDir dir;
+
+        private CommitLog.DefaultAppendMessageCallback callback;
+
+        private MessageExtBrokerInner msg;
+
+        private MappedFile flushFile;
+
+        private MappedFile commitFile;
+
+        private TransientStorePool transientStorePool;
+
+        @Setup(Level.Trial)
+        public void setup(StoreDir dir, StoreState store) throws IOException {
+            this.dir = dir;
+            this.callback = store.messageStore.getCommitLog().new DefaultAppendMessageCallback(
+                store.messageStore.getMessageStoreConfig().getMaxMessageSize());
+            this.msg = dir.newMessage("BenchmarkTopic", 0);
+
+            MessageStoreConfig config = dir.newStoreConfig();
+            config.setTransientStorePoolEnable(true);
+            config.setTransientStorePoolSize(1);
+            this.transientStorePool = new TransientStorePool(config);
+            this.transientStorePool.init();
+
+            this.flushFile = this.newMappedFile("flush", 0, null);
+            this.commitFile = this.newMappedFile("commit", 0, this.transientStorePool);
+        }
+
+        @Setup(Level.Invocation)
+        public void write() throws IOException {
+            this.flushFile = this.append(this.flushFile, "flush", null);
+            this.commitFile = this.append(this.commitFile, "commit", this.transientStorePool);
+        }
+
+        @Benchmark
+        public int flush() {
+            return this.flushFile.flush(0);
+        }
+
+        @Benchmark
+        public int commit() {
+            return this.commitFile.commit(0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.flushFile.destroy(0);
+            this.commitFile.destroy(0);
+            this.transientStorePool.destroy();
+        }
+
+        /**
+         * 写入至少 pages 个页的消息。文件写满之后和 CommitLog 一样切换到一个新的文件，而不是回到文件开头覆盖已经存在的页，
+         * 旧文件剩余的数据在这里提交、刷盘之后删除，不计入测量。commit 会在文件全部提交之后把 writeBuffer 归还给 TransientStorePool，
+         * 新文件才能借到
+         */
+        private MappedFile append(MappedFile mappedFile, final String name, final TransientStorePool pool) throws IOException {
+            final int bytes = this.pages * MappedFile.OS_PAGE_SIZE;
+            int written = 0;
+            while (written < bytes) {
+                AppendMessageResult result = mappedFile.appendMessagesInner(this.msg, this.callback, null);
+                if (result.getStatus() == AppendMessageStatus.END_OF_FILE) {
+                    mappedFile.commit(0);
+                    mappedFile.flush(0);
+                    mappedFile.destroy(0);
+                    mappedFile = this.newMappedFile(name, mappedFile.getFileFromOffset() + FILE_SIZE, pool);
+                    continue;
+                }
+                written += result.getWroteBytes();
+            }
+            return mappedFile;
+        }
+
+        private MappedFile newMappedFile(final String name, final long fileFromOffset, final TransientStorePool pool) throws IOException {
+            String fileName = this.dir.path + File.separator + name + File.separator + UtilAll.offset2FileName(fileFromOffset);
+            return pool == null ? new MappedFile(fileName, FILE_SIZE) : new MappedFile(fileName, FILE_SIZE, pool);
+        }
+    }
+
+    /**
+     * ConsumeQueue#putMessagePositionInfo，通过 putMessagePositionInfoWrapper 调用，和 ReputMessageService 转发时的路径相同。
+     * 每次写入的 commitLogOffset 和 consumeQueueOffset 都是递增的，bodySize 只影响 commitLogOffset 的步长
+     */
+    @Threads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @State(Scope.Thread)
+    public static class ConsumeQueuePutBenchmark {
+
+        private ConsumeQueue consumeQueue;
+
+        private int msgSize;
+
+        private long commitLogOffset = 0;
+
+        private long consumeQueueOffset = 0;
+
+        @Setup(Level.Trial)
+        public void setup(StoreDir dir, StoreState store) {
+            this.consumeQueue = store.messageStore.findConsumeQueue("BenchmarkTopic", 0);
+            this.msgSize = dir.bodySize + 200;
+        }
+
+        @Benchmark
+        public void putMessagePositionInfo() {
+            DispatchRequest request = new DispatchRequest("BenchmarkTopic", 0, this.commitLogOffset, this.msgSize, 0L,
+                System.currentTimeMillis(), this.consumeQueueOffset, null, null, MessageSysFlag.TRANSACTION_NOT_TYPE, 0, null);
+            this.consumeQueue.putMessagePositionInfoWrapper(request);
+            this.commitLogOffset += this.msgSize;
+            this.consumeQueueOffset++;
+        }
+    }
+
+    /**
+     * IndexFile#putKey 和 IndexFile#selectPhyOffset。IndexFile 使用默认的 500 万个 hash 槽、2000 万个索引条目，
+     * 写满之后重新创建。查询的 key 一半存在一半不存在，不存在的 key 可以体现 Bloom 过滤器的效果
+     */
+    @Threads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @State(Scope.Thread)
+    public static class IndexFileBenchmark {
+
+        private static final int HASH_SLOT_NUM = 5000000;
+
+        private static final int INDEX_NUM = 5000000 * 4;
+        // selectPhyOffset 使用的 key 的个数
+        private static final int KEY_COUNT = 1 << 20;
+
+        private StoreDir dir;
+
+        private IndexFile putFile;
+
+        private IndexFile selectFile;
+
+        private String[] keys;
+
+        private long phyOffset = 0;
+
+        private int cursor = 0;
+
+        private final List<Long> phyOffsets = new ArrayList<>(32);
+
+        @Setup(Level.Trial)
+        public void setup(StoreDir dir) throws IOException {
+            this.dir = dir;
+            this.putFile = this.newIndexFile("put");
+            this.selectFile = this.newIndexFile("select");
+
+            this.keys = new String[KEY_COUNT];
+            for (int i = 0; i < KEY_COUNT; i++) {
+                this.keys[i] = "benchmark-key-" + i;
+                // 只写入偶数下标的 key
+                if ((i & 1) == 0) {
+                    this.selectFile.putKey(this.keys[i], i, System.currentTimeMillis());
+                }
+            }
+        }
+
+        @Benchmark
+        public boolean putKey() throws IOException {
+            String key = this.keys[this.cursor++ & (KEY_COUNT - 1)];
+            if (this.putFile.isWriteFull()) {
+                this.putFile.destroy(0);
+                this.putFile = this.newIndexFile("put");
+            }
+            return this.putFile.putKey(key, this.phyOffset++, System.currentTimeMillis());
+        }
+
+        @Benchmark
+        public List<Long> selectPhyOffset() {
+            this.phyOffsets.clear();
+            this.selectFile.selectPhyOffset(this.phyOffsets, this.keys[this.cursor++ & (KEY_COUNT - 1)], 32, 0, Long.MAX_VALUE, false);
+            return this.phyOffsets;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.putFile.destroy(0);
+            this.selectFile.destroy(0);
+        }
+
+        private IndexFile newIndexFile(final String name) throws IOException {
+            // MappedFile 会把文件名解析为 fileFromOffset，所以文件名只能是数字，put 和 select 放在不同的目录下
+            String fileName = this.dir.path + File.separator + "index" + File.separator + name + File.separator + System.nanoTime();
+            return new IndexFile(fileName, HASH_SLOT_NUM, INDEX_NUM, 0, 0);
+        }
+    }
+}